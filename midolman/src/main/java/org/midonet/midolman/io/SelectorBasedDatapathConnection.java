@@ -30,6 +30,7 @@ import org.midonet.netlink.Netlink;
 import org.midonet.netlink.NetlinkMetrics;
 import org.midonet.odp.protos.OvsDatapathConnection;
 import org.midonet.util.Bucket;
+import org.midonet.util.concurrent.CpuSet;
 import org.midonet.util.eventloop.SelectListener;
 import org.midonet.util.eventloop.SelectLoop;
 import org.midonet.util.eventloop.SimpleSelectLoop;
@@ -51,6 +52,7 @@ public class SelectorBasedDatapathConnection implements ManagedDatapathConnectio
     private final boolean singleThreaded;
     private final Bucket bucket;
     private final MetricRegistry metrics;
+    private CpuSet readCpus = CpuSet.Empty();
 
     public SelectorBasedDatapathConnection(String name,
                                            MidolmanConfig config,
@@ -83,6 +85,14 @@ public class SelectorBasedDatapathConnection implements ManagedDatapathConnectio
         this(name, config, false, Bucket.BOTTOMLESS, metrics);
     }
 
+    /**
+     * Sets the CPUs to pin the read thread to, which must be called before
+     * starting the connection.
+     */
+    public void setReadCpus(CpuSet cpus) {
+        readCpus = cpus;
+    }
+
     public OvsDatapathConnection getConnection() {
         return conn;
     }
@@ -109,9 +119,11 @@ public class SelectorBasedDatapathConnection implements ManagedDatapathConnectio
         readLoop = new SimpleSelectLoop();
         writeLoop = singleThreaded ? readLoop : new SimpleSelectLoop();
 
-        readThread = startLoop(readLoop, name + (singleThreaded ? "" : ".read"));
+        readThread = startLoop(readLoop, name + (singleThreaded ? "" : ".read"),
+                               readCpus);
         writeThread = singleThreaded ? readThread :
-                                       startLoop(writeLoop, name + ".write");
+                                       startLoop(writeLoop, name + ".write",
+                                                 CpuSet.Empty());
 
         conn = OvsDatapathConnection.create(new Netlink.Address(0), sendPool,
                                             new NetlinkMetrics(metrics));
@@ -170,10 +182,12 @@ public class SelectorBasedDatapathConnection implements ManagedDatapathConnectio
         }
     }
 
-    private Thread startLoop(final SelectLoop loop, final String threadName) {
+    private Thread startLoop(final SelectLoop loop, final String threadName,
+                             final CpuSet cpus) {
         Thread th = new Thread(new Runnable() {
             @Override
             public void run() {
+                cpus.pinCurrentThread();
                 try {
                     loop.doLoop();
                 } catch (IOException e) {
@@ -32,6 +32,7 @@ import org.midonet.netlink.Netlink;
 import org.midonet.netlink.NetlinkMetrics;
 import org.midonet.odp.protos.OvsDatapathConnection;
 import org.midonet.util.Bucket;
+import org.midonet.util.concurrent.CpuSet;
 import org.midonet.util.eventloop.SelectListener;
 import org.midonet.util.eventloop.SelectLoop;
 import org.midonet.util.eventloop.SimpleSelectLoop;
@@ -48,23 +49,60 @@ public class SelectorThreadPair {
     private SelectLoop readLoop;
     private SelectLoop writeLoop;
     private final boolean singleThreaded;
+    private final boolean readOnly;
     private final MetricRegistry metrics;
+    private CpuSet readCpus = CpuSet.Empty();
+    private Runnable endOfReadLoopCallback;
 
     private Set<ManagedDatapathConnection> conns = new HashSet<>();
 
+    /**
+     * Creates a thread pair whose connections are only used to receive
+     * notifications when `readOnly` is set, in which case the pair does not
+     * start a write thread, and the requests of its connections are never
+     * sent.
+     */
     public SelectorThreadPair(String name, MidolmanConfig config,
-                              boolean singleThreaded, MetricRegistry metrics) {
+                              boolean singleThreaded, boolean readOnly,
+                              MetricRegistry metrics) {
         this.config = config;
         this.name = name;
         this.singleThreaded = singleThreaded;
+        this.readOnly = readOnly;
         this.metrics = metrics;
     }
 
+    public SelectorThreadPair(String name, MidolmanConfig config,
+                              boolean singleThreaded, MetricRegistry metrics) {
+        this(name, config, singleThreaded, false, metrics);
+    }
+
     public SelectorThreadPair(String name, MidolmanConfig config,
                               MetricRegistry metrics) {
         this(name, config, false, metrics);
     }
 
+    /**
+     * Sets the CPUs to pin the read thread to, which must be called before
+     * starting the thread pair.
+     */
+    public void setReadCpus(CpuSet cpus) {
+        readCpus = cpus;
+    }
+
+    public CpuSet getReadCpus() {
+        return readCpus;
+    }
+
+    /**
+     * Sets the callback run at the end of every iteration of the read loop,
+     * which must be called before starting the thread pair, such that the
+     * callback runs from the first packet read.
+     */
+    public void setEndOfReadLoopCallback(Runnable cb) {
+        endOfReadLoopCallback = cb;
+    }
+
     public boolean isRunning() {
         return (readThread != null);
     }
@@ -109,17 +147,19 @@ public class SelectorThreadPair {
                     }
                 }, priority);
 
-        writeLoop.registerForInputQueue(
-                conn.getSendQueue(),
-                conn.getChannel(),
-                SelectionKey.OP_WRITE,
-                new SelectListener() {
-                    @Override
-                    public void handleEvent(SelectionKey key)
-                            throws IOException {
-                        conn.handleWriteEvent();
-                    }
-                }, priority);
+        if (writeLoop != null) {
+            writeLoop.registerForInputQueue(
+                    conn.getSendQueue(),
+                    conn.getChannel(),
+                    SelectionKey.OP_WRITE,
+                    new SelectListener() {
+                        @Override
+                        public void handleEvent(SelectionKey key)
+                                throws IOException {
+                            conn.handleWriteEvent();
+                        }
+                    }, priority);
+        }
 
         ManagedDatapathConnection managedConn =
                 new TrivialDatapathConnection(conn);
@@ -158,11 +198,23 @@ public class SelectorThreadPair {
 
         log.info("Starting selector thread pair: {}", name);
         readLoop = new SimpleSelectLoop();
-        writeLoop = singleThreaded ? readLoop : new SimpleSelectLoop();
+        if (endOfReadLoopCallback != null)
+            readLoop.setEndOfLoopCallback(endOfReadLoopCallback);
+        if (readOnly) {
+            writeLoop = null;
+        } else {
+            writeLoop = singleThreaded ? readLoop : new SimpleSelectLoop();
+        }
 
-        readThread = startLoop(readLoop, name + (singleThreaded ? "" : ".read"));
-        writeThread = singleThreaded ? readThread :
-                                       startLoop(writeLoop, name + ".write");
+        readThread = startLoop(readLoop, name + (singleThreaded ? "" : ".read"),
+                               readCpus);
+        if (writeLoop == null) {
+            writeThread = null;
+        } else {
+            writeThread = singleThreaded ? readThread :
+                                           startLoop(writeLoop, name + ".write",
+                                                     CpuSet.Empty());
+        }
     }
 
     public void stop() throws Exception {
@@ -190,10 +242,12 @@ public class SelectorThreadPair {
         }
     }
 
-    private Thread startLoop(final SelectLoop loop, final String threadName) {
+    private Thread startLoop(final SelectLoop loop, final String threadName,
+                             final CpuSet cpus) {
         Thread th = new Thread(new Runnable() {
             @Override
             public void run() {
+                cpus.pinCurrentThread();
                 try {
                     loop.doLoop();
                 } catch (IOException e) {
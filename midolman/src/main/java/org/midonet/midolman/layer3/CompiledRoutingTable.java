@@ -0,0 +1,336 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv4Subnet;
+
+/**
+ * An immutable IPv4 routing table, compiled from a set of routes into a
+ * multibit trie with a stride of 8 bits, which provides the same lookup
+ * semantics as the {@link RoutingTable} without allocating any memory per
+ * lookup.
+ *
+ * The destination prefixes are expanded into 256-slot chunks, such that a
+ * lookup visits at most four chunks to find the most specific prefix matching
+ * the destination address. Every prefix keeps the index of its closest less
+ * specific prefix, used to fall back when none of the routes of a prefix match
+ * the source address.
+ *
+ * The routes of every prefix are grouped by weight, and for each weight the
+ * table precomputes one result list per distinct source subnet. Since all
+ * source subnets matching an address are nested, the set of matching routes
+ * is fully determined by the most specific matching source subnet, and the
+ * lookup returns the precomputed list for that subnet.
+ *
+ * The table must be rebuilt when the routes change.
+ */
+public final class CompiledRoutingTable {
+
+    private final static Logger log =
+        LoggerFactory.getLogger("org.midonet.devices.router");
+
+    public static final CompiledRoutingTable EMPTY =
+        new CompiledRoutingTable(Collections.<Route>emptyList());
+
+    private static final int STRIDE = 8;
+    private static final int CHUNK_SIZE = 1 << STRIDE;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int NONE = -1;
+
+    /**
+     * The routes with the same destination prefix and weight. The source
+     * subnets are ordered from the most to the least specific, and the
+     * routes at a given index are all the routes whose source subnet contains
+     * the source subnet at the same index. The groups are shared with the
+     * {@link PersistentRoutingTable}.
+     */
+    static final class WeightGroup {
+        final int[] srcAddrs;
+        final int[] srcLengths;
+        final List<Route>[] routes;
+
+        @SuppressWarnings("unchecked")
+        WeightGroup(List<Route> groupRoutes) {
+            TreeMap<Long, Integer> subnets = new TreeMap<>();
+            for (Route route : groupRoutes) {
+                int addr = mask(route.srcNetworkAddr, route.srcNetworkLength);
+                // Order by descending prefix length.
+                long key = ((long) (32 - route.srcNetworkLength) << 32) |
+                           (addr & 0xffffffffL);
+                subnets.put(key, route.srcNetworkLength);
+            }
+            srcAddrs = new int[subnets.size()];
+            srcLengths = new int[subnets.size()];
+            routes = new List[subnets.size()];
+            int index = 0;
+            for (Map.Entry<Long, Integer> subnet : subnets.entrySet()) {
+                int addr = subnet.getKey().intValue();
+                int length = subnet.getValue();
+                List<Route> matching = new ArrayList<>(groupRoutes.size());
+                for (Route route : groupRoutes) {
+                    if (route.srcNetworkLength <= length &&
+                        IPv4Subnet.addrMatch(addr, route.srcNetworkAddr,
+                                             route.srcNetworkLength)) {
+                        matching.add(route);
+                    }
+                }
+                srcAddrs[index] = addr;
+                srcLengths[index] = length;
+                routes[index] = Collections.unmodifiableList(matching);
+                index++;
+            }
+        }
+
+        /**
+         * Returns the routes matching the source address, or null if none of
+         * the routes match.
+         */
+        List<Route> match(int src) {
+            for (int index = 0; index < srcAddrs.length; index++) {
+                if (IPv4Subnet.addrMatch(src, srcAddrs[index],
+                                         srcLengths[index])) {
+                    return routes[index];
+                }
+            }
+            return null;
+        }
+    }
+
+    // The trie chunks: for the slot s of chunk c, slotPrefixes[c * CHUNK_SIZE
+    // + s] is the index of the most specific prefix expanded into that slot,
+    // and slotChildren[c * CHUNK_SIZE + s] is the chunk for the next 8 bits.
+    private final int[] slotPrefixes;
+    private final int[] slotChildren;
+
+    // The destination prefixes, indexed by the trie slots.
+    private final int[] prefixAddrs;
+    private final int[] prefixLengths;
+    private final int[] prefixParents;
+    private final WeightGroup[][] prefixGroups;
+
+    private final int numRoutes;
+
+    public CompiledRoutingTable(Collection<Route> routes) {
+        // Group the routes by their masked destination prefix, in ascending
+        // order of the prefix length such that more specific prefixes are
+        // expanded after the less specific ones.
+        TreeMap<Long, LinkedHashSet<Route>> prefixes = new TreeMap<>();
+        for (Route route : routes) {
+            int addr = mask(route.dstNetworkAddr, route.dstNetworkLength);
+            long key = ((long) route.dstNetworkLength << 32) |
+                       (addr & 0xffffffffL);
+            LinkedHashSet<Route> prefixRoutes = prefixes.get(key);
+            if (prefixRoutes == null) {
+                prefixRoutes = new LinkedHashSet<>();
+                prefixes.put(key, prefixRoutes);
+            }
+            prefixRoutes.add(route);
+        }
+
+        int count = prefixes.size();
+        prefixAddrs = new int[count];
+        prefixLengths = new int[count];
+        prefixParents = new int[count];
+        prefixGroups = new WeightGroup[count][];
+
+        int[] prefixSlots = new int[CHUNK_SIZE];
+        int[] childSlots = new int[CHUNK_SIZE];
+        Arrays.fill(prefixSlots, NONE);
+        Arrays.fill(childSlots, NONE);
+        int chunks = 1;
+        int total = 0;
+
+        int index = 0;
+        for (Map.Entry<Long, LinkedHashSet<Route>> entry : prefixes.entrySet()) {
+            int addr = entry.getKey().intValue();
+            int length = (int) (entry.getKey() >>> 32);
+
+            prefixAddrs[index] = addr;
+            prefixLengths[index] = length;
+            prefixParents[index] = find(prefixSlots, childSlots, addr);
+            prefixGroups[index] = groupByWeight(entry.getValue());
+            total += entry.getValue().size();
+
+            // Descend to the chunk for the last, possibly partial, byte of
+            // the prefix, creating the intermediate chunks as needed.
+            int chunk = 0;
+            int shift = 32 - STRIDE;
+            while (length > 32 - shift) {
+                int slot = (chunk << STRIDE) | ((addr >>> shift) & CHUNK_MASK);
+                if (childSlots[slot] == NONE) {
+                    if ((chunks + 1) << STRIDE > childSlots.length) {
+                        prefixSlots = grow(prefixSlots);
+                        childSlots = grow(childSlots);
+                    }
+                    childSlots[slot] = chunks++;
+                }
+                chunk = childSlots[slot];
+                shift -= STRIDE;
+            }
+
+            // Expand the prefix to all slots it covers in this chunk.
+            int first = (chunk << STRIDE) | ((addr >>> shift) & CHUNK_MASK);
+            int span = 1 << (32 - shift - length);
+            for (int slot = first; slot < first + span; slot++) {
+                prefixSlots[slot] = index;
+            }
+            index++;
+        }
+
+        slotPrefixes = Arrays.copyOf(prefixSlots, chunks << STRIDE);
+        slotChildren = Arrays.copyOf(childSlots, chunks << STRIDE);
+        numRoutes = total;
+    }
+
+    /**
+     * Returns the routes with the most specific destination prefix matching
+     * the destination address, whose source subnet matches the source
+     * address and that have the lowest weight. The returned list is
+     * immutable and shared between lookups.
+     */
+    public List<Route> lookup(int src, int dst) {
+        int prefix = find(slotPrefixes, slotChildren, dst);
+        while (prefix != NONE) {
+            for (WeightGroup group : prefixGroups[prefix]) {
+                List<Route> routes = group.match(src);
+                if (routes != null) {
+                    return routes;
+                }
+            }
+            prefix = prefixParents[prefix];
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Writes the routes matching the source and destination addresses into
+     * the given list, after clearing it, and returns the number of routes.
+     * The routes are selected as in {@link #lookup(int, int)}.
+     */
+    public int lookup(int src, int dst, List<Route> result) {
+        List<Route> routes = lookup(src, dst);
+        result.clear();
+        for (int index = 0; index < routes.size(); index++) {
+            result.add(routes.get(index));
+        }
+        return routes.size();
+    }
+
+    public List<Route> lookup(int src, int dst, Logger logger) {
+        List<Route> routes = lookup(src, dst);
+        if (logger.isDebugEnabled()) {
+            logger.debug("lookup: return {} for src {} dst {} in table with " +
+                         "{} routes", routes, IPv4Addr.intToString(src),
+                         IPv4Addr.intToString(dst), numRoutes);
+        }
+        return routes;
+    }
+
+    public List<Route> lookup(IPv4Addr src, IPv4Addr dst) {
+        return lookup(src.toInt(), dst.toInt(), log);
+    }
+
+    public List<Route> lookup(IPv4Addr src, IPv4Addr dst, Logger logger) {
+        return lookup(src.toInt(), dst.toInt(), logger);
+    }
+
+    /**
+     * @return The number of routes in this routing table.
+     */
+    public int size() {
+        return numRoutes;
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledRoutingTable [routes=" + numRoutes + " prefixes=" +
+               prefixAddrs.length + " chunks=" +
+               (slotPrefixes.length >> STRIDE) + "]";
+    }
+
+    /**
+     * Returns the index of the most specific prefix matching the given
+     * address, or NONE if there is no such prefix.
+     */
+    private static int find(int[] prefixes, int[] children, int addr) {
+        int best = NONE;
+        int chunk = 0;
+        for (int shift = 32 - STRIDE; shift >= 0; shift -= STRIDE) {
+            int slot = (chunk << STRIDE) | ((addr >>> shift) & CHUNK_MASK);
+            if (prefixes[slot] != NONE) {
+                best = prefixes[slot];
+            }
+            chunk = children[slot];
+            if (chunk == NONE) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    static WeightGroup[] groupByWeight(Collection<Route> routes) {
+        List<Route> sorted = new ArrayList<>(routes);
+        // Stable sort, which preserves the insertion order for equal weights.
+        Collections.sort(sorted, new Comparator<Route>() {
+            @Override
+            public int compare(Route r1, Route r2) {
+                return Integer.compare(r1.weight, r2.weight);
+            }
+        });
+        LinkedHashMap<Integer, List<Route>> weights = new LinkedHashMap<>();
+        for (Route route : sorted) {
+            List<Route> group = weights.get(route.weight);
+            if (group == null) {
+                group = new ArrayList<>();
+                weights.put(route.weight, group);
+            }
+            group.add(route);
+        }
+        WeightGroup[] groups = new WeightGroup[weights.size()];
+        int index = 0;
+        for (List<Route> group : weights.values()) {
+            groups[index++] = new WeightGroup(group);
+        }
+        return groups;
+    }
+
+    private static int[] grow(int[] array) {
+        int length = array.length;
+        int[] newArray = Arrays.copyOf(array, length << 1);
+        Arrays.fill(newArray, length, newArray.length, NONE);
+        return newArray;
+    }
+
+    private static int mask(int addr, int length) {
+        return length == 0 ? 0 : addr & (~0 << (32 - length));
+    }
+}
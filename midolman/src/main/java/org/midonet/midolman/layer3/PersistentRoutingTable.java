@@ -0,0 +1,287 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.midolman.layer3.CompiledRoutingTable.WeightGroup;
+import org.midonet.packets.IPv4Addr;
+
+/**
+ * An immutable IPv4 routing table implemented as a persistent binary trie of
+ * destination prefixes, which provides the same lookup semantics as the
+ * {@link CompiledRoutingTable}.
+ *
+ * Adding or removing a route returns a new version of the table, which
+ * copies only the trie nodes on the path to the route's destination prefix,
+ * and shares all other nodes with the previous version. Therefore, an update
+ * takes time proportional to the prefix length and to the number of routes
+ * with the same prefix, independently of the size of the table, and the
+ * previous versions remain valid for the threads still using them.
+ *
+ * Every node precomputes the weight groups of the routes of its prefix, such
+ * that a lookup does not allocate any memory.
+ */
+public final class PersistentRoutingTable {
+
+    private final static Logger log =
+        LoggerFactory.getLogger("org.midonet.devices.router");
+
+    private static final Route[] NO_ROUTES = new Route[0];
+    private static final WeightGroup[] NO_GROUPS = new WeightGroup[0];
+
+    public static final PersistentRoutingTable EMPTY =
+        new PersistentRoutingTable(null, 0);
+
+    /**
+     * A trie node, for the prefix given by the path from the root. The
+     * routes are those whose destination is the node's prefix, in the order
+     * in which they were added.
+     */
+    private static final class Node {
+        final Node zero;
+        final Node one;
+        final Route[] routes;
+        final WeightGroup[] groups;
+
+        Node(Node zero, Node one, Route[] routes, WeightGroup[] groups) {
+            this.zero = zero;
+            this.one = one;
+            this.routes = routes;
+            this.groups = groups;
+        }
+
+        Node withChild(int bit, Node child) {
+            Node node = bit == 0 ? new Node(child, one, routes, groups)
+                                 : new Node(zero, child, routes, groups);
+            return node.isEmpty() ? null : node;
+        }
+
+        Node withRoutes(Route[] newRoutes) {
+            WeightGroup[] newGroups = newRoutes.length == 0 ? NO_GROUPS
+                : CompiledRoutingTable.groupByWeight(Arrays.asList(newRoutes));
+            Node node = new Node(zero, one, newRoutes, newGroups);
+            return node.isEmpty() ? null : node;
+        }
+
+        boolean isEmpty() {
+            return zero == null && one == null && routes.length == 0;
+        }
+    }
+
+    private static final Node EMPTY_NODE =
+        new Node(null, null, NO_ROUTES, NO_GROUPS);
+
+    private final Node root;
+    private final int numRoutes;
+
+    private PersistentRoutingTable(Node root, int numRoutes) {
+        this.root = root;
+        this.numRoutes = numRoutes;
+    }
+
+    /**
+     * Returns a table with the given route, or this table if it already
+     * contains the route.
+     */
+    public PersistentRoutingTable add(Route route) {
+        Node newRoot = add(root, 0, route);
+        return newRoot == root ? this
+                               : new PersistentRoutingTable(newRoot,
+                                                            numRoutes + 1);
+    }
+
+    /**
+     * Returns a table without the given route, or this table if it does not
+     * contain the route.
+     */
+    public PersistentRoutingTable remove(Route route) {
+        Node newRoot = remove(root, 0, route);
+        if (newRoot == root) {
+            return this;
+        }
+        return newRoot == null ? EMPTY
+                               : new PersistentRoutingTable(newRoot,
+                                                            numRoutes - 1);
+    }
+
+    /**
+     * Returns a table with the given routes removed and added, in this order.
+     */
+    public PersistentRoutingTable update(Collection<Route> added,
+                                         Collection<Route> removed) {
+        PersistentRoutingTable table = this;
+        for (Route route : removed) {
+            table = table.remove(route);
+        }
+        for (Route route : added) {
+            table = table.add(route);
+        }
+        return table;
+    }
+
+    /**
+     * Returns the routes with the most specific destination prefix matching
+     * the destination address, whose source subnet matches the source
+     * address and that have the lowest weight. The returned list is
+     * immutable and shared between lookups.
+     */
+    public List<Route> lookup(int src, int dst) {
+        List<Route> routes = lookup(root, 0, src, dst);
+        return routes != null ? routes : Collections.<Route>emptyList();
+    }
+
+    /**
+     * Writes the routes matching the source and destination addresses into
+     * the given list, after clearing it, and returns the number of routes.
+     * The routes are selected as in {@link #lookup(int, int)}.
+     */
+    public int lookup(int src, int dst, List<Route> result) {
+        List<Route> routes = lookup(src, dst);
+        result.clear();
+        for (int index = 0; index < routes.size(); index++) {
+            result.add(routes.get(index));
+        }
+        return routes.size();
+    }
+
+    public List<Route> lookup(int src, int dst, Logger logger) {
+        List<Route> routes = lookup(src, dst);
+        if (logger.isDebugEnabled()) {
+            logger.debug("lookup: return {} for src {} dst {} in table with " +
+                         "{} routes", routes, IPv4Addr.intToString(src),
+                         IPv4Addr.intToString(dst), numRoutes);
+        }
+        return routes;
+    }
+
+    public List<Route> lookup(IPv4Addr src, IPv4Addr dst) {
+        return lookup(src.toInt(), dst.toInt(), log);
+    }
+
+    public List<Route> lookup(IPv4Addr src, IPv4Addr dst, Logger logger) {
+        return lookup(src.toInt(), dst.toInt(), logger);
+    }
+
+    /**
+     * @return All routes in this routing table.
+     */
+    public List<Route> routes() {
+        List<Route> routes = new ArrayList<>(numRoutes);
+        collect(root, routes);
+        return routes;
+    }
+
+    /**
+     * @return The number of routes in this routing table.
+     */
+    public int size() {
+        return numRoutes;
+    }
+
+    @Override
+    public String toString() {
+        return "PersistentRoutingTable [routes=" + numRoutes + "]";
+    }
+
+    private static Node add(Node node, int depth, Route route) {
+        if (node == null) {
+            node = EMPTY_NODE;
+        }
+        if (depth == route.dstNetworkLength) {
+            for (Route existing : node.routes) {
+                if (existing.equals(route)) {
+                    return node;
+                }
+            }
+            Route[] routes = Arrays.copyOf(node.routes, node.routes.length + 1);
+            routes[node.routes.length] = route;
+            return node.withRoutes(routes);
+        }
+        int bit = bit(route.dstNetworkAddr, depth);
+        Node child = bit == 0 ? node.zero : node.one;
+        Node newChild = add(child, depth + 1, route);
+        return newChild == child ? node : node.withChild(bit, newChild);
+    }
+
+    private static Node remove(Node node, int depth, Route route) {
+        if (node == null) {
+            return null;
+        }
+        if (depth == route.dstNetworkLength) {
+            for (int index = 0; index < node.routes.length; index++) {
+                if (node.routes[index].equals(route)) {
+                    Route[] routes = new Route[node.routes.length - 1];
+                    System.arraycopy(node.routes, 0, routes, 0, index);
+                    System.arraycopy(node.routes, index + 1, routes, index,
+                                     routes.length - index);
+                    return node.withRoutes(routes);
+                }
+            }
+            return node;
+        }
+        int bit = bit(route.dstNetworkAddr, depth);
+        Node child = bit == 0 ? node.zero : node.one;
+        Node newChild = remove(child, depth + 1, route);
+        return newChild == child ? node : node.withChild(bit, newChild);
+    }
+
+    /**
+     * Returns the routes of the most specific prefix matching the destination
+     * address that has routes matching the source address, or null if there
+     * is none. The recursion depth is bounded by the prefix length.
+     */
+    private static List<Route> lookup(Node node, int depth, int src, int dst) {
+        if (node == null) {
+            return null;
+        }
+        if (depth < 32) {
+            List<Route> routes =
+                lookup(bit(dst, depth) == 0 ? node.zero : node.one,
+                       depth + 1, src, dst);
+            if (routes != null) {
+                return routes;
+            }
+        }
+        for (WeightGroup group : node.groups) {
+            List<Route> routes = group.match(src);
+            if (routes != null) {
+                return routes;
+            }
+        }
+        return null;
+    }
+
+    private static void collect(Node node, List<Route> routes) {
+        if (node != null) {
+            Collections.addAll(routes, node.routes);
+            collect(node.zero, routes);
+            collect(node.one, routes);
+        }
+    }
+
+    private static int bit(int addr, int depth) {
+        return (addr >>> (31 - depth)) & 1;
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.midonet.odp.FlowMatch;
+import org.midonet.packets.Unsigned;
+import org.midonet.util.Range;
+
+/**
+ * A classifier compiled from the rules of a chain, which selects the rules
+ * that may match a packet without evaluating their conditions one by one.
+ *
+ * For each of the ethertype, network protocol and transport source and
+ * destination ports, the classifier partitions the values of the field into
+ * elementary intervals, and precomputes for every interval the bitmap of the
+ * rules whose condition may match a value in that interval: those that do
+ * not constrain the field, and those whose exact value or range contains the
+ * interval. The candidate rules for a packet are the intersection of the
+ * bitmaps for its field values.
+ *
+ * A field is only read from the flow match when one of the remaining
+ * candidate rules constrains it, such that the fields marked as seen for
+ * wildcarding are those the decision actually depends on. The candidate rules
+ * must still be evaluated in order, since the classifier only rules out
+ * those that certainly do not match.
+ *
+ * Rules with inverted or negated constraints on a field are treated as not
+ * constraining that field.
+ *
+ * Rules other than literal rules, such as NAT rules and jumps, may modify the
+ * flow match and continue. After evaluating one of them, the candidates of
+ * the following rules must be computed again from the modified match.
+ */
+public final class RuleClassifier {
+
+    private static final int ETHER_TYPE = 0;
+    private static final int NETWORK_PROTO = 1;
+    private static final int SRC_PORT = 2;
+    private static final int DST_PORT = 3;
+    private static final int NUM_FIELDS = 4;
+
+    private static final class FieldIndex {
+        final int field;
+        // The rules constraining the field.
+        final long[] constrained;
+        // The rules that may match a value smaller than the first bound.
+        final long[] unconstrained;
+        // The start of each elementary interval, and the rules that may match
+        // a value in the interval.
+        final long[] bounds;
+        final long[][] bitmaps;
+
+        FieldIndex(int field, long[] constrained, long[] unconstrained,
+                   long[] bounds, long[][] bitmaps) {
+            this.field = field;
+            this.constrained = constrained;
+            this.unconstrained = unconstrained;
+            this.bounds = bounds;
+            this.bitmaps = bitmaps;
+        }
+
+        long[] lookup(int value) {
+            int low = 0;
+            int high = bounds.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (bounds[mid] <= value) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high < 0 ? unconstrained : bitmaps[high];
+        }
+    }
+
+    private final FieldIndex[] fields;
+    private final long[] modifying;
+    private final int numRules;
+    private final int numWords;
+
+    private RuleClassifier(FieldIndex[] fields, long[] modifying,
+                           int numRules) {
+        this.fields = fields;
+        this.modifying = modifying;
+        this.numRules = numRules;
+        this.numWords = (numRules + 63) >>> 6;
+    }
+
+    /**
+     * Compiles the classifier for the given list of rules. The method returns
+     * null when none of the rules constrains the classified fields, in which
+     * case the rules should be evaluated sequentially.
+     */
+    public static RuleClassifier compile(List<Rule> rules) {
+        int numRules = rules.size();
+        long[][] lows = new long[NUM_FIELDS][numRules];
+        long[][] highs = new long[NUM_FIELDS][numRules];
+        boolean[][] constrained = new boolean[NUM_FIELDS][numRules];
+        long[] modifying = new long[(numRules + 63) >>> 6];
+
+        for (int index = 0; index < numRules; index++) {
+            Rule rule = rules.get(index);
+            if (rule.getClass() != LiteralRule.class) {
+                modifying[index >>> 6] |= 1L << index;
+            }
+            Condition cond = rule.getCondition();
+            if (cond == null || cond.getClass() != Condition.class ||
+                cond.conjunctionInv) {
+                continue;
+            }
+            if (cond.etherType != null && !cond.invDlType) {
+                int value = Condition.unsignShort(cond.etherType);
+                setExact(lows, highs, constrained, ETHER_TYPE, index, value);
+            }
+            if (cond.nwProto != null && !cond.nwProtoInv) {
+                setExact(lows, highs, constrained, NETWORK_PROTO, index,
+                         cond.nwProto.byteValue());
+            }
+            if (cond.tpSrc != null && !cond.tpSrcInv) {
+                setRange(lows, highs, constrained, SRC_PORT, index, cond.tpSrc);
+            }
+            if (cond.tpDst != null && !cond.tpDstInv) {
+                setRange(lows, highs, constrained, DST_PORT, index, cond.tpDst);
+            }
+        }
+
+        List<FieldIndex> fields = new ArrayList<>(NUM_FIELDS);
+        for (int field = 0; field < NUM_FIELDS; field++) {
+            FieldIndex index = compileField(field, numRules, lows[field],
+                                            highs[field], constrained[field]);
+            if (index != null) {
+                fields.add(index);
+            }
+        }
+        if (fields.isEmpty()) {
+            return null;
+        }
+        return new RuleClassifier(fields.toArray(new FieldIndex[fields.size()]),
+                                  modifying, numRules);
+    }
+
+    /**
+     * @return The number of 64-bit words of the rule bitmaps.
+     */
+    public int words() {
+        return numWords;
+    }
+
+    /**
+     * Returns the bitmap of the candidate rules for the given packet, for the
+     * rules from 64 * word to 64 * word + 63. The classifier reads a field
+     * from the flow match only if some of the remaining candidates in the
+     * word constrain the field.
+     */
+    public long candidates(FlowMatch match, int word) {
+        long bits = word == numWords - 1 && (numRules & 63) != 0
+                    ? (1L << (numRules & 63)) - 1 : -1L;
+        for (FieldIndex index : fields) {
+            if ((bits & index.constrained[word]) != 0) {
+                bits &= index.lookup(valueOf(match, index.field))[word];
+                if (bits == 0) {
+                    return 0;
+                }
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Returns whether the rule at the given index may modify the flow match,
+     * either by itself or through the chain it jumps to.
+     */
+    public boolean mayModifyMatch(int index) {
+        return (modifying[index >>> 6] & (1L << index)) != 0;
+    }
+
+    @Override
+    public String toString() {
+        return "RuleClassifier [rules=" + numRules + " fields=" +
+               fields.length + "]";
+    }
+
+    private static int valueOf(FlowMatch match, int field) {
+        switch (field) {
+            case ETHER_TYPE: return Unsigned.unsign(match.getEtherType());
+            case NETWORK_PROTO: return match.getNetworkProto();
+            case SRC_PORT: return match.getSrcPort();
+            case DST_PORT: return match.getDstPort();
+            default: throw new IllegalArgumentException("Unknown field " + field);
+        }
+    }
+
+    private static void setExact(long[][] lows, long[][] highs,
+                                 boolean[][] constrained, int field, int index,
+                                 int value) {
+        lows[field][index] = value;
+        highs[field][index] = value;
+        constrained[field][index] = true;
+    }
+
+    private static void setRange(long[][] lows, long[][] highs,
+                                 boolean[][] constrained, int field, int index,
+                                 Range<Integer> range) {
+        lows[field][index] =
+            range.start() != null ? range.start() : Integer.MIN_VALUE;
+        highs[field][index] =
+            range.end() != null ? range.end() : Integer.MAX_VALUE;
+        constrained[field][index] = true;
+    }
+
+    private static FieldIndex compileField(int field, int numRules, long[] lows,
+                                           long[] highs, boolean[] constrained) {
+        int numWords = (numRules + 63) >>> 6;
+        long[] constrainedBits = new long[numWords];
+        long[] unconstrainedBits = new long[numWords];
+        TreeSet<Long> points = new TreeSet<>();
+        for (int index = 0; index < numRules; index++) {
+            if (constrained[index]) {
+                constrainedBits[index >>> 6] |= 1L << index;
+                points.add(lows[index]);
+                points.add(highs[index] + 1);
+            } else {
+                unconstrainedBits[index >>> 6] |= 1L << index;
+            }
+        }
+        if (points.isEmpty()) {
+            return null;
+        }
+
+        long[] bounds = new long[points.size()];
+        long[][] bitmaps = new long[points.size()][];
+        int interval = 0;
+        for (long point : points) {
+            long[] bits = Arrays.copyOf(unconstrainedBits, numWords);
+            for (int index = 0; index < numRules; index++) {
+                if (constrained[index] && lows[index] <= point &&
+                    point <= highs[index]) {
+                    bits[index >>> 6] |= 1L << index;
+                }
+            }
+            bounds[interval] = point;
+            // Share the bitmaps of the intervals with the same rules.
+            bitmaps[interval] = interval > 0 &&
+                                Arrays.equals(bits, bitmaps[interval - 1])
+                                ? bitmaps[interval - 1] : bits;
+            interval++;
+        }
+        return new FieldIndex(field, constrainedBits, unconstrainedBits,
+                              bounds, bitmaps);
+    }
+}
@@ -168,6 +168,7 @@ public class MidolmanService extends AbstractService {
             log.error("Exception while stopping the executors", e);
         }
 
+        virtualTopology.stopSnapshot();
         virtualTopology.stopRuleLogEventChannel();
 
         if (state() != State.FAILED)
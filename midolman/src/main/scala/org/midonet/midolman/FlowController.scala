@@ -40,8 +40,14 @@ import org.midonet.util.functors.Callback0
 object FlowController {
     private val NoCallbacks = new ArrayList[Callback0]()
     private val NoTags = new ArrayList[FlowTag]()
-    private[midolman] val IndexShift = 28 // Leave 4 bits for the work ID
-    private[midolman] val IndexMask = (1 << IndexShift) - 1
+
+    /**
+     * The number of low bits of a flow mark holding the index of the flow,
+     * such that the high bits hold the ID of the worker that owns it, with
+     * as many bits as needed for the number of workers.
+     */
+    private[midolman] def indexShift(numWorkers: Int): Int =
+        Integer.numberOfLeadingZeros(Math.max(numWorkers - 1, 1))
 }
 
 
@@ -52,10 +58,14 @@ class FlowTablePreallocation(config: MidolmanConfig) extends MidolmanLogging {
 
     private val numWorkers = PacketWorkersService.numWorkers(config)
 
+    val indexShift = FlowController.indexShift(numWorkers)
+    val indexMask = (1 << indexShift) - 1
+
     private val indexToFlows = new ArrayList[Array[ManagedFlow]](numWorkers)
     private val managedFlowPools = new ArrayList[ArrayObjectPool[ManagedFlow]](
         numWorkers)
     private val meterRegistries = new ArrayList[MeterRegistry](numWorkers)
+    private val flowTagIndexes = new ArrayList[FlowTagIndex](numWorkers)
 
     private val errorExpirationQueues = new ArrayList[ArrayDeque[ManagedFlow]](
         numWorkers)
@@ -65,11 +75,13 @@ class FlowTablePreallocation(config: MidolmanConfig) extends MidolmanLogging {
         new ArrayList[ArrayDeque[ManagedFlow]](numWorkers)
     private val tunnelFlowExpirationQueues =
         new ArrayList[ArrayDeque[ManagedFlow]](numWorkers)
+    private val idleFlowExpirationQueues =
+        new ArrayList[ArrayDeque[ManagedFlow]](numWorkers)
 
 
     val maxFlows = Math.min(
         ((config.datapath.maxFlowCount / numWorkers) * 1.2).toInt,
-        (1 << IndexShift) - 1)
+        indexMask)
 
     def allocateAndTenure() {
         var i = 0
@@ -82,11 +94,14 @@ class FlowTablePreallocation(config: MidolmanConfig) extends MidolmanLogging {
             managedFlowPools.add(new ArrayObjectPool[ManagedFlow](
                                      maxFlows, new ManagedFlow(_)))
             meterRegistries.add(new MeterRegistry(maxFlows))
+            flowTagIndexes.add(new FlowTagIndex(maxFlows << 1))
 
             errorExpirationQueues.add(new ArrayDeque(maxFlows/3))
             flowExpirationQueues.add(new ArrayDeque(maxFlows))
             statefulFlowExpirationQueues.add(new ArrayDeque(maxFlows))
             tunnelFlowExpirationQueues.add(new ArrayDeque(maxFlows/3))
+            idleFlowExpirationQueues.add(new ArrayDeque(
+                if (config.datapath.idleFlowExpiration > 0) maxFlows else 0))
 
             i += 1
         }
@@ -98,6 +113,7 @@ class FlowTablePreallocation(config: MidolmanConfig) extends MidolmanLogging {
     def takeManagedFlowPool(): ArrayObjectPool[ManagedFlow] =
         managedFlowPools.remove(0)
     def takeMeterRegistry(): MeterRegistry = meterRegistries.remove(0)
+    def takeFlowTagIndex(): FlowTagIndex = flowTagIndexes.remove(0)
     def takeErrorExpirationQueue(): ArrayDeque[ManagedFlow] =
         errorExpirationQueues.remove(0)
     def takeFlowExpirationQueue(): ArrayDeque[ManagedFlow] =
@@ -106,6 +122,8 @@ class FlowTablePreallocation(config: MidolmanConfig) extends MidolmanLogging {
         statefulFlowExpirationQueues.remove(0)
     def takeTunnelFlowExpirationQueue(): ArrayDeque[ManagedFlow] =
         tunnelFlowExpirationQueues.remove(0)
+    def takeIdleFlowExpirationQueue(): ArrayDeque[ManagedFlow] =
+        idleFlowExpirationQueues.remove(0)
 }
 
 trait FlowController extends FlowIndexer with FlowTagIndexer
@@ -124,6 +142,8 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
     private var curIndex = -1
     private var numFlows = 0
 
+    private val indexShift = preallocation.indexShift
+    private val indexMask = preallocation.indexMask
     private var indexToFlow = preallocation.takeIndexToFlow()
     private var mask = indexToFlow.length - 1
 
@@ -141,6 +161,14 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
         flowProcessor.capacity, new FlowOperation(_, completedFlowOperations))
     private val flowRemoveCommandsToRetry = new ArrayList[FlowOperation](
         flowProcessor.capacity)
+    // Statistics requests for idle expiration leave half of the pending
+    // flow operations available for flow deletions.
+    private val maxPendingStatsOperations = flowProcessor.capacity / 2
+
+    protected override val idleExpirationNanos =
+        config.datapath.idleFlowExpiration
+    protected override val maxInvalidationsPerRound =
+        config.datapath.maxFlowInvalidationsPerRound
 
     def addFlow(context: PacketContext, expiration: Expiration): Unit = {
         val flow = takeFlow()
@@ -187,7 +215,8 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
         }
     }
 
-    override def shouldProcess = completedFlowOperations.size > 0
+    override def shouldProcess =
+        completedFlowOperations.size > 0 || hasPendingInvalidations
 
     override def process(): Unit = {
         processCompletedFlowOperations()
@@ -232,7 +261,9 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
     private def processCompletedFlowOperations(): Unit = {
         var req: FlowOperation = null
         while ({ req = completedFlowOperations.poll(); req } ne null) {
-            if (req.isFailed) {
+            if (req.opId == FlowOperation.GET) {
+                flowGetCompleted(req)
+            } else if (req.isFailed) {
                 flowDeleteFailed(req)
             } else {
                 flowDeleteSucceeded(req)
@@ -285,6 +316,36 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
         req.clear()
     }
 
+    private def flowGetCompleted(req: FlowOperation): Unit = {
+        val flow = req.managedFlow
+        if (req.isFailed) {
+            log.debug(s"Failed to get the statistics of $flow", req.failure)
+            val flowExists = req.netlinkErrorCode match {
+                case ENODEV | ENOENT | ENXIO => false
+                case _ => true
+            }
+            flowStatsFailed(flow, flowExists, clock.tick)
+        } else {
+            val stats = req.flowMetadata.getStats
+            meters.updateFlow(flow.flowMatch, stats)
+            flowStatsReceived(flow, stats, clock.tick)
+        }
+        req.clear()
+    }
+
+    protected override def requestFlowStats(flow: ManagedFlow): Boolean = {
+        if (pooledFlowOperations.available <= maxPendingStatsOperations)
+            return false
+        val flowOp = pooledFlowOperations.take
+        flowOp.reset(FlowOperation.GET, flow, retries = 0)
+        if (flowProcessor.tryGet(datapathId, flow.flowMatch, flowOp)) {
+            true
+        } else {
+            flowOp.clear()
+            false
+        }
+    }
+
     private val flowOperationParkable = new Parkable {
         override def shouldWakeUp() = completedFlowOperations.size > 0
     }
@@ -298,7 +359,7 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
                 flowOperationParkable.park()
             }
         }
-        flowOp.reset(flow, retries = 10)
+        flowOp.reset(FlowOperation.DELETE, flow, retries = 10)
         flowOp
     }
 
@@ -323,7 +384,7 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
             index = curIndex & mask
         } while (indexToFlow(index) ne null)
         indexToFlow(index) = flow
-        flow.mark = (curIndex & IndexMask) | (workerId << IndexShift)
+        flow.mark = (curIndex & indexMask) | (workerId << indexShift)
     }
 
     private def clearFlowIndex(flow: ManagedFlow): Unit = {
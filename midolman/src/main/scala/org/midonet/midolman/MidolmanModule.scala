@@ -47,7 +47,7 @@ import org.midonet.midolman.host.services.{HostService, QosService, TcRequestHan
 import org.midonet.midolman.io._
 import org.midonet.midolman.logging.rule.{DisruptorRuleLogEventChannel, RuleLogEventChannel}
 import org.midonet.midolman.logging.{FlowTracingAppender, FlowTracingSchema}
-import org.midonet.midolman.monitoring.metrics.{DatapathMetrics, PacketExecutorMetrics}
+import org.midonet.midolman.monitoring.metrics.{DatapathMetrics, HtbMetrics, PacketExecutorMetrics}
 import org.midonet.midolman.openstack.metadata.{DatapathInterface, Plumber}
 import org.midonet.midolman.services._
 import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
@@ -83,7 +83,8 @@ class MidolmanModule(injector: Injector,
 
         // We add an extra slot so that channels can return tokens
         // they obtained due to the multiplier effect but didn't use.
-        val counter = new StatisticalCounter(config.simulationThreads + 1)
+        val counter = new StatisticalCounter(
+            PacketWorkersService.numWorkers(config) + 1)
         val policy = htbPolicy(counter)
         bind(classOf[StatisticalCounter]).toInstance(counter)
         bind(classOf[TokenBucketPolicy]).toInstance(policy)
@@ -185,10 +186,12 @@ class MidolmanModule(injector: Injector,
         val multiplier = 8
         // Here we check whether increments to our slot in the StatisticalCounter
         // should be atomic or not, depending on whether multiple threads will
-        // be accessing it (true in the one_to_one" configuration setting).
+        // be accessing it (true in the "one_to_one" and "multi_queue"
+        // configuration settings).
         val atomic = config.inputChannelThreading match {
             case "one_to_many" => false
             case "one_to_one" => true
+            case "multi_queue" => true
             case s => throw new IllegalArgumentException(
                         "Unknown value for input_channel_threading: " + s)
         }
@@ -197,7 +200,9 @@ class MidolmanModule(injector: Injector,
             config,
             new TokenBucketSystemRate(counter, multiplier),
             multiplier,
-            tb => new Bucket(tb, multiplier, counter, config.simulationThreads, atomic))
+            tb => new Bucket(tb, multiplier, counter,
+                             PacketWorkersService.numWorkers(config), atomic),
+            new HtbMetrics(metricRegistry))
     }
 
     protected def netlinkChannelFactory() =
@@ -288,7 +293,8 @@ class MidolmanModule(injector: Injector,
                 flowProcessor,
                 dpState,
                 families,
-                channelFactory))
+                channelFactory),
+            config.outputCpus)
     }
 
     protected def ruleLogEventChannel(capacity: Int): RuleLogEventChannel = {
@@ -305,6 +311,9 @@ class MidolmanModule(injector: Injector,
             case "one_to_one" =>
                 new OneToOneDpConnManager(config, workers,
                                           tbPolicy, metricRegistry)
+            case "multi_queue" =>
+                new MultiQueueDpConnManager(config, workers,
+                                            tbPolicy, metricRegistry)
             case s =>
                 throw new IllegalArgumentException(
                     "Unknown value for input_channel_threading: " + s)
@@ -22,11 +22,25 @@ import com.lmax.disruptor._
 
 import org.midonet.midolman.logging.MidolmanLogging
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
+import org.midonet.midolman.state.ReceivedFlowState
 import org.midonet.odp.Packet
 import org.midonet.Util
+import org.midonet.util.concurrent.CpuSet
 
 trait PacketWorker {
     def submit(packet: Packet): Boolean
+    def submit(state: ReceivedFlowState): Boolean
+}
+
+object PacketWorker {
+    /**
+     * Returns the index of the worker that processes the packets with the
+     * given connection hash. The sign bit is cleared rather than taking the
+     * absolute value, which is negative for Int.MinValue.
+     */
+    @inline
+    def indexOf(connectionHash: Int, numWorkers: Int): Int =
+        (connectionHash & Int.MaxValue) % numWorkers
 }
 
 object DisruptorPacketWorker {
@@ -37,7 +51,8 @@ object DisruptorPacketWorker {
 
 class DisruptorPacketWorker(packetWorkflow: PacketWorkflow,
                             metrics: PacketPipelineMetrics,
-                            index: Int)
+                            index: Int,
+                            cpus: CpuSet = CpuSet.Empty)
         extends Thread(s"packet-worker-${index}")
         with ExceptionHandler
         with PacketWorker with MidolmanLogging {
@@ -73,6 +88,25 @@ class DisruptorPacketWorker(packetWorkflow: PacketWorkflow,
         }
     }
 
+    override def submit(state: ReceivedFlowState): Boolean = {
+        try {
+            val seq = ringBuffer.tryNext()
+            try {
+                val ref = ringBuffer.get(seq)
+                ref.packet = null
+                ref.state = state
+            } finally {
+                ringBuffer.publish(seq)
+            }
+            true
+        } catch {
+            case ice: InsufficientCapacityException =>
+                log.debug("Disruptor ring buffer full, flow state dropped")
+                metrics.workerQueueOverflow.mark()
+                false
+        }
+    }
+
     def isRunning() = eventProcessor.isRunning
 
     def shutdown(): Unit =
@@ -83,8 +117,12 @@ class DisruptorPacketWorker(packetWorkflow: PacketWorkflow,
         interrupt()
     }
 
-    override def run(): Unit =
+    override def run(): Unit = {
+        // Pin the thread before processing any packet, such that the packet
+        // contexts and flow state it allocates are local to its CPU.
+        cpus.pinCurrentThread()
         eventProcessor.run()
+    }
 
     override def handleEventException(e: Throwable, sequence: Long,
                                       event: Object): Unit = {
@@ -34,27 +34,20 @@ import org.midonet.midolman.logging.MidolmanLogging
 import org.midonet.midolman.monitoring.{FlowRecorder, FlowSenderWorker}
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.services.HostIdProvider
-import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
-import org.midonet.midolman.state.NatState.NatKey
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackCodec, ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.NatState.{NatCodec, NatKey}
 import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
 import org.midonet.midolman.state.{NatBlockAllocator, NatLeaser, PeerResolver}
 import org.midonet.midolman.topology.VirtualTopology
 import org.midonet.packets.NatState.NatBinding
-import org.midonet.sdn.state.ShardedFlowStateTable
+import org.midonet.sdn.state.ShardableFlowStateTable
 import org.midonet.util.StatisticalCounter
 import org.midonet.util.concurrent.NanoClock
 import org.midonet.util.logging.Logger
 
 object PacketWorkersService {
-    def numWorkers(config: MidolmanConfig) = {
-        val n = config.simulationThreads
-        if (n <= 0)
-            1
-        else if (n > 16)
-            16
-        else
-            n
-    }
+    def numWorkers(config: MidolmanConfig) =
+        Math.max(config.simulationThreads, 1)
 }
 
 abstract class PacketWorkersService extends AbstractService {
@@ -82,14 +75,24 @@ class PacketWorkersServiceImpl(config: MidolmanConfig,
 
     val numWorkers = PacketWorkersService.numWorkers(config)
 
-    val connTrackStateTable = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](clock)
-    val natStateTable = new ShardedFlowStateTable[NatKey, NatBinding](clock)
+    // The concurrent tables do not resize: leave room for the forward and
+    // return keys of every flow at a low load factor. The off-heap tables
+    // start with the same capacity and grow as needed.
+    private val stateTableCapacity = config.datapath.maxFlowCount * 4
+
+    val connTrackStateTable =
+        ShardableFlowStateTable.create[ConnTrackKey, ConnTrackValue](
+            config.flowStateTable, clock, stateTableCapacity, ConnTrackCodec)
+    val natStateTable = ShardableFlowStateTable.create[NatKey, NatBinding](
+        config.flowStateTable, clock, stateTableCapacity, NatCodec)
     val natLeaser: NatLeaser = new NatLeaser {
         val log: Logger = Logger(LoggerFactory.getLogger(classOf[NatLeaser]))
         val allocator = natBlockAllocator
         val clock = PacketWorkersServiceImpl.this.clock
     }
-    val traceStateTable = new ShardedFlowStateTable[TraceKey, TraceContext](clock)
+    val traceStateTable =
+        ShardableFlowStateTable.create[TraceKey, TraceContext](
+            config.flowStateTable, clock, stateTableCapacity)
 
     val supervisorThread = new Thread(this, "packet-worker-supervisor")
     supervisorThread.setDaemon(true)
@@ -164,6 +167,7 @@ class PacketWorkersServiceImpl(config: MidolmanConfig,
             vt, counter.addAndGet(index, _: Int),
             flowTablePreallocation)
 
-        new DisruptorPacketWorker(workflow, metrics, index)
+        new DisruptorPacketWorker(workflow, metrics, index,
+                                  config.workerCpus.single(index))
     }
 }
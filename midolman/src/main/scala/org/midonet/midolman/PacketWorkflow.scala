@@ -65,7 +65,10 @@ import org.midonet.util.concurrent._
 import org.midonet.util.logging.Logger
 
 object PacketWorkflow {
-    sealed class PacketRef(var packet: Packet)
+    sealed class PacketRef(var packet: Packet) {
+        /** Flow state received from peers, submitted instead of a packet. */
+        var state: ReceivedFlowState = null
+    }
 
     object PacketRefFactory extends EventFactory[PacketRef] {
         override def newInstance() = new PacketRef(null)
@@ -296,7 +299,12 @@ class PacketWorkflow(
 
     override def onEvent(event: PacketRef, sequence: Long,
                          endOfBatch: Boolean): Unit = {
-        handlePacket(event.packet)
+        if (event.state ne null) {
+            handleReceivedState(event.state)
+            event.state = null
+        } else {
+            handlePacket(event.packet)
+        }
         if (endOfBatch) {
             process()
         }
@@ -327,7 +335,7 @@ class PacketWorkflow(
         val InvalidateFlows(id, added, deleted) = msg
 
         for (route <- deleted) {
-            invalidateFlowsFor(FlowTagger.tagForRoute(route))
+            scheduleInvalidation(FlowTagger.tagForRoute(route))
         }
 
         for (route <- added) {
@@ -339,14 +347,14 @@ class PacketWorkflow(
             while (deletions.hasNext) {
                 val ip = IPv4Addr.fromInt(deletions.next)
                 log.debug(s"Got the following destination to invalidate $ip")
-                invalidateFlowsFor(FlowTagger.tagForDestinationIp(id, ip))
+                scheduleInvalidation(FlowTagger.tagForDestinationIp(id, ip))
             }
         }
     }
 
     private def handle(msg: BackChannelMessage): Unit = msg match {
         case m: InvalidateFlows => invalidateRoutedFlows(m)
-        case tag: FlowTag => invalidateFlowsFor(tag)
+        case tag: FlowTag => scheduleInvalidation(tag)
         case RestartWorkflow(cookie, pktCtx, error) => restart(cookie, pktCtx, error)
         case m: GeneratedPacket => startWorkflow(generatedPacketContext(m))
         case m: FlowStateBatch => replicator.importFromStorage(m)
@@ -358,6 +366,7 @@ class PacketWorkflow(
         super.process()
         while (backChannel.hasMessages)
             handle(backChannel.poll())
+        processPendingInvalidations()
         connTrackStateTable.expireIdleEntries((), invalidateExpiredConnTrackKeys)
         natStateTable.expireIdleEntries((), invalidateExpiredNatKeys)
         natLeaser.obliterateUnusedBlocks()
@@ -717,6 +726,17 @@ class PacketWorkflow(
         metrics.statePacketsProcessed.mark()
     }
 
+    protected def handleReceivedState(state: ReceivedFlowState): Unit = {
+        log.debug(s"Accepting received flow state: $state")
+        replicator.accept(state)
+        val statePackets = state.statePackets
+        state.release()
+        if (statePackets > 0) {
+            metrics.statePacketsProcessed.mark(statePackets)
+            packetOut(statePackets)
+        }
+    }
+
     private def handleDHCP(context: PacketContext): Boolean = {
         val fmatch = context.origMatch
         val isDhcp = fmatch.getEtherType == IPv4.ETHERTYPE &&
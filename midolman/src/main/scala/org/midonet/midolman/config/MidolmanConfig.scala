@@ -15,6 +15,7 @@
  */
 package org.midonet.midolman.config
 
+import java.util.UUID
 import java.util.concurrent.TimeUnit
 
 import scala.concurrent.duration._
@@ -29,6 +30,7 @@ import org.midonet.cluster.storage.{CassandraConfig, MidonetBackendConfig}
 import org.midonet.conf.{HostIdGenerator, MidoNodeConfigurator, MidoTestConfigurator}
 import org.midonet.minion.{ExecutorsConfig, MinionConfig}
 import org.midonet.packets.{IPv4Addr, IPv4Subnet, MAC}
+import org.midonet.util.concurrent.CpuSet
 import org.midonet.services.flowstate.FlowStateService
 import org.midonet.services.rest_api.BindingApiService
 
@@ -66,6 +68,7 @@ trait TypeFailureFallback {
     def getInt(key: String): Int = get(key, (c, k) => c.getInt(k))
     def getDouble(key: String): Double = get(key, (c, k) => c.getDouble(k))
     def getDuration(key: String, unit: TimeUnit): Long = get(key, (c, k) => c.getDuration(k, unit))
+    def getBytes(key: String): Long = get(key, (c, k) => c.getBytes(k).longValue)
 }
 
 class MidolmanConfig(config: Config, val schema: Config = ConfigFactory.empty(),
@@ -84,6 +87,10 @@ class MidolmanConfig(config: Config, val schema: Config = ConfigFactory.empty(),
     def maxPooledContexts = getInt(s"$PREFIX.midolman.max_pooled_contexts")
     def outputChannels = getInt(s"$PREFIX.midolman.output_channels")
     def inputChannelThreading = getString(s"$PREFIX.midolman.input_channel_threading")
+    def flowStateTable = getString(s"$PREFIX.midolman.flow_state_table")
+    def workerCpus = CpuSet(getString(s"$PREFIX.midolman.worker_cpus"))
+    def upcallCpus = CpuSet(getString(s"$PREFIX.midolman.upcall_cpus"))
+    def outputCpus = CpuSet(getString(s"$PREFIX.midolman.output_cpus"))
     def datapathName = Try(getString(s"$PREFIX.midolman.datapath")).getOrElse("midonet")
 
     def lockMemory = getBoolean(s"$PREFIX.midolman.lock_memory")
@@ -107,6 +114,7 @@ class MidolmanConfig(config: Config, val schema: Config = ConfigFactory.empty(),
     val bindingApi = new BindingApiConfig(conf, schema)
     val ruleLogging = new RuleLoggingConfig(conf, schema)
     val fip64 = new Fip64Config(conf, schema)
+    val topologySnapshot = new TopologySnapshotConfig(conf, schema)
 }
 
 class HostConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
@@ -122,6 +130,10 @@ class RouterConfig(val conf: Config, val schema: Config) extends TypeFailureFall
     val PREFIX = "agent.router"
     def maxBgpPeerRoutes = conf.getInt(s"$PREFIX.max_bgp_peer_routes")
     def bgpZookeeperHoldtime = conf.getDuration(s"$PREFIX.bgp_zookeeper_holdtime", TimeUnit.SECONDS)
+    def routeUpdateWindow =
+        getDuration(s"$PREFIX.route_update_window", TimeUnit.MILLISECONDS)
+    def routeCompileDelay =
+        getDuration(s"$PREFIX.route_compile_delay", TimeUnit.MILLISECONDS)
 }
 
 class DatapathConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
@@ -132,6 +144,10 @@ class DatapathConfig(val conf: Config, val schema: Config) extends TypeFailureFa
     def sendBufferPoolBufSizeKb = getInt(s"$PREFIX.send_buffer_pool_buf_size_kb")
 
     def maxFlowCount = getInt(s"$PREFIX.max_flow_count")
+    def idleFlowExpiration =
+        getDuration(s"$PREFIX.idle_flow_expiration", TimeUnit.NANOSECONDS)
+    def maxFlowInvalidationsPerRound =
+        getInt(s"$PREFIX.max_flow_invalidations_per_round")
 
     def vxlanVtepUdpPort = getInt(s"$PREFIX.vxlan_vtep_udp_port")
     def vxlanOverlayUdpPort = getInt(s"$PREFIX.vxlan_overlay_udp_port")
@@ -145,6 +161,9 @@ class DatapathConfig(val conf: Config, val schema: Config) extends TypeFailureFa
     def vmIncomingBurstCapacity = getInt(s"$PREFIX.vm_incoming_burst_capacity")
     def tunnelIncomingBurstCapacity = getInt(s"$PREFIX.tunnel_incoming_burst_capacity")
     def vtepIncomingBurstCapacity = getInt(s"$PREFIX.vtep_incoming_burst_capacity")
+    def vmIncomingWeight = getInt(s"$PREFIX.vm_incoming_weight")
+    def tunnelIncomingWeight = getInt(s"$PREFIX.tunnel_incoming_weight")
+    def vtepIncomingWeight = getInt(s"$PREFIX.vtep_incoming_weight")
 
     def controlPacketTos: Byte = getInt(s"$PREFIX.control_packet_tos").toByte
     def setTosOnTunnelHeader: Boolean = getBoolean(s"$PREFIX.set_tos_on_tunnel_header")
@@ -210,6 +229,21 @@ class FlowHistoryConfig(val conf: Config, val schema: Config) extends TypeFailur
     def queueSize = getInt("agent.flow_history.queue_size")
     def connectionInterval = getDuration("agent.flow_history.connection_interval",
                                          TimeUnit.MILLISECONDS) millis
+    def samplingRate = getInt("agent.flow_history.sampling_rate")
+    def recordDrops = getBoolean("agent.flow_history.record_drops")
+    def ports: Set[UUID] =
+        getString("agent.flow_history.ports").split(",").map(_.trim)
+            .filter(_.nonEmpty).map(UUID.fromString).toSet
+    def spoolFile = getString("agent.flow_history.spool_file")
+    def spoolSize = getBytes("agent.flow_history.spool_size")
+}
+
+class TopologySnapshotConfig(val conf: Config, val schema: Config)
+        extends TypeFailureFallback {
+    val prefix = "agent.topology_snapshot"
+    def enabled = getBoolean(s"$prefix.enabled")
+    def file = getString(s"$prefix.file")
+    def interval = getDuration(s"$prefix.interval", TimeUnit.MILLISECONDS) millis
 }
 
 class ContainerConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
@@ -18,6 +18,7 @@ package org.midonet.midolman.datapath
 import com.lmax.disruptor._
 import org.midonet.midolman.datapath.DisruptorDatapathChannel.PacketContextHolder
 import org.midonet.midolman.simulation.PacketContext
+import org.midonet.util.concurrent.CpuSet
 
 trait DatapathChannel {
     def handoff(context: PacketContext): Long
@@ -36,7 +37,9 @@ object DisruptorDatapathChannel {
 }
 
 class DisruptorDatapathChannel(ringBuffer: RingBuffer[PacketContextHolder],
-                               processors: Array[_ <: EventProcessor]) extends DatapathChannel {
+                               processors: Array[_ <: EventProcessor],
+                               cpus: CpuSet = CpuSet.Empty)
+        extends DatapathChannel {
     def start(): Unit = {
         processors foreach { proc =>
             ringBuffer.addGatingSequences(proc.getSequence)
@@ -45,6 +48,7 @@ class DisruptorDatapathChannel(ringBuffer: RingBuffer[PacketContextHolder],
         processors.zipWithIndex foreach { case (proc, idx) =>
             val t = new Thread("datapath-output-" + idx) {
                 override def run() {
+                    cpus.pinCurrentThread()
                     proc.run()
                 }
             }
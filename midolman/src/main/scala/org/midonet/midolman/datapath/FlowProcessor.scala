@@ -115,7 +115,10 @@ class FlowProcessor(dpState: DatapathState,
         maxPendingRequests,
         maxRequestSize,
         BytesUtil.instance.allocateDirect(64 * 1024),
-        clock)
+        clock,
+        // Coalesce the flow deletions and statistics requests into
+        // multi-message writes.
+        writeBatchSize = 64 * 1024)
     private val timeoutMillis = broker.timeout.toMillis
 
     private val flowMask = new FlowMask()
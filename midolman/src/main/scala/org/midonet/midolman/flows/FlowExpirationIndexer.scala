@@ -21,6 +21,7 @@ import java.util.ArrayDeque
 import scala.concurrent.duration._
 
 import org.midonet.midolman.logging.MidolmanLogging
+import org.midonet.odp.flows.FlowStats
 import org.midonet.packets.{FlowStateStore => FlowState}
 import org.midonet.midolman.FlowTablePreallocation
 
@@ -55,6 +56,13 @@ object FlowExpirationIndexer {
  * be removed from the kernel via another mechanism (such as flow invalidation),
  * but it is still kept in these data structures until it expires. This is to
  * avoid linear remove operations or smarter, more expensive data structures.
+ *
+ * When an idle expiration is set, the regular flows (those using the
+ * [[FLOW_EXPIRATION]]) do not have a hard timeout. Instead, once a flow has
+ * not been known to be in use for the idle expiration interval, the indexer
+ * requests its datapath statistics and removes the flow only if it has not
+ * matched any packets since the last check. Idle flows are also the first to
+ * be evicted when the flow table exceeds its maximum size.
  */
 trait FlowExpirationIndexer extends FlowIndexer with MidolmanLogging {
     import FlowExpirationIndexer._
@@ -62,6 +70,23 @@ trait FlowExpirationIndexer extends FlowIndexer with MidolmanLogging {
     protected val preallocation: FlowTablePreallocation
 
     private val expirationQueues = new Array[ArrayDeque[ManagedFlow]](maxType)
+    private val idleExpirationQueue =
+        preallocation.takeIdleFlowExpirationQueue()
+    private val statsDelta = new FlowStats()
+
+    /**
+     * The idle expiration in nanoseconds for the regular flows, or zero if
+     * these flows are removed upon a hard timeout.
+     */
+    protected def idleExpirationNanos: Long = 0L
+
+    /**
+     * Requests the datapath statistics of the given flow. The method returns
+     * false if the request cannot be sent at this time. Otherwise, the
+     * outcome of the request must be reported by calling either
+     * `flowStatsReceived` or `flowStatsFailed`.
+     */
+    protected def requestFlowStats(flow: ManagedFlow): Boolean = false
 
     {
         expirationQueues(ERROR_CONDITION_EXPIRATION.typeId) =
@@ -76,15 +101,62 @@ trait FlowExpirationIndexer extends FlowIndexer with MidolmanLogging {
 
     abstract override def registerFlow(flow: ManagedFlow): Unit = {
         super.registerFlow(flow)
-        expirationQueues(flow.expirationType).addLast(flow)
+        if (idleExpirationNanos > 0 &&
+            flow.expirationType == FLOW_EXPIRATION.typeId) {
+            idleExpirationQueue.addLast(flow)
+        } else {
+            expirationQueues(flow.expirationType).addLast(flow)
+        }
         flow.ref()
     }
 
     def checkFlowsExpiration(now: Long): Unit = {
         checkHardTimeOutExpiration(now)
+        checkIdleExpiration(now)
         manageFlowTableSize()
     }
 
+    /**
+     * Handles the datapath statistics of a flow whose statistics were
+     * requested because of idle expiration. The flow is removed if it has
+     * not matched any packets since the previous statistics.
+     */
+    protected def flowStatsReceived(flow: ManagedFlow, stats: FlowStats,
+                                    now: Long): Unit = {
+        if (flow.removed) {
+            flow.unref()
+            return
+        }
+        flow.stats.updateAndGetDelta(stats, statsDelta)
+        if (statsDelta.packets != 0) {
+            flow.lastUsedNanos = now
+            idleExpirationQueue.addLast(flow)
+        } else {
+            log.debug(s"Removing flow $flow for idle expiration")
+            flow.unref()
+            removeFlow(flow)
+        }
+    }
+
+    /**
+     * Handles the failure of a statistics request. If the flow no longer
+     * exists in the datapath it is removed, otherwise it is checked again
+     * after the idle expiration interval.
+     */
+    protected def flowStatsFailed(flow: ManagedFlow, flowExists: Boolean,
+                                  now: Long): Unit = {
+        if (flow.removed) {
+            flow.unref()
+        } else if (flowExists) {
+            flow.lastUsedNanos = now
+            idleExpirationQueue.addLast(flow)
+        } else {
+            log.debug(s"Removing flow $flow missing from the datapath")
+            flow.unref()
+            removeFlow(flow)
+        }
+    }
+
     private def checkHardTimeOutExpiration(now: Long): Unit = {
         var i = 0
         while (i < maxType) {
@@ -100,8 +172,25 @@ trait FlowExpirationIndexer extends FlowIndexer with MidolmanLogging {
         }
     }
 
+    private def checkIdleExpiration(now: Long): Unit = {
+        val lastUsed = now - idleExpirationNanos
+        var flow: ManagedFlow = null
+        while (({ flow = idleExpirationQueue.peekFirst(); flow } ne null) &&
+               flow.lastUsedNanos <= lastUsed) {
+            if (flow.removed) {
+                idleExpirationQueue.pollFirst()
+                flow.unref()
+            } else if (requestFlowStats(flow)) {
+                // The flow reference is kept until the statistics arrive.
+                idleExpirationQueue.pollFirst()
+            } else {
+                return
+            }
+        }
+    }
+
     private def manageFlowTableSize(): Unit = {
-        var excessFlows = 0
+        var excessFlows = idleExpirationQueue.size()
         var i = 0
         while (i < maxType) {
             excessFlows += expirationQueues(i).size()
@@ -118,9 +207,16 @@ trait FlowExpirationIndexer extends FlowIndexer with MidolmanLogging {
     private def removeOldestDpFlows(numFlowsToEvict: Int): Unit = {
         var i = 0
         var evicted = 0
+        var flow: ManagedFlow = null
+        // Evict first the flows least recently known to be in use.
+        while (evicted < numFlowsToEvict &&
+               ({ flow = idleExpirationQueue.pollFirst(); flow } ne null)) {
+            flow.unref()
+            removeFlow(flow)
+            evicted += 1
+        }
         while (i < maxType) {
             val queue = expirationQueues(i)
-            var flow: ManagedFlow = null
             while (evicted < numFlowsToEvict &&
                    ({ flow = queue.pollFirst(); flow } ne null)) {
                 flow.unref()
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import java.util.{Collections, IdentityHashMap, Set => JSet}
+
+import org.midonet.Util
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+/**
+ * An open-addressing multimap from flow tags to the flows having that tag.
+ * The flows of a tag form a doubly linked list, whose links are stored in
+ * the flows themselves: the links of a flow for the tag at position `i` of
+ * its tag list are stored at position `i` of its link arrays. Therefore,
+ * adding or removing flows does not allocate memory, unless the table must
+ * grow to accommodate more tags. Flows are added at the head of the list,
+ * such that the tail of the list is the oldest flow of the tag.
+ *
+ * The table uses linear probing, and removes the tags without flows using
+ * backward shift deletion, such that lookups never traverse tombstones.
+ */
+final class FlowTagIndex(initialCapacity: Int) {
+
+    private var capacity =
+        Util.findNextPositivePowerOfTwo(Math.max(initialCapacity, 16))
+    private var mask = capacity - 1
+    private var keys = new Array[FlowTag](capacity)
+    private var heads = new Array[ManagedFlow](capacity)
+    private var headIndices = new Array[Int](capacity)
+    private var tails = new Array[ManagedFlow](capacity)
+    private var tailIndices = new Array[Int](capacity)
+    private var counts = new Array[Int](capacity)
+    private var numTags = 0
+
+    /**
+     * @return The number of tags having at least one flow.
+     */
+    def size: Int = numTags
+
+    /**
+     * @return The number of flows with the given tag.
+     */
+    def count(tag: FlowTag): Int = {
+        val slot = slotOf(tag)
+        if (slot < 0) 0 else counts(slot)
+    }
+
+    /**
+     * Adds the flow to the list of the tag at the given position of its tag
+     * list. The flow must have been prepared by calling `ensureTagLinks`.
+     */
+    def add(flow: ManagedFlow, index: Int): Unit = {
+        val tag = flow.tags.get(index)
+        var slot = slotOf(tag)
+        if (slot < 0) {
+            if ((numTags + 1) << 1 > capacity) {
+                grow()
+            }
+            slot = emptySlotOf(tag)
+            keys(slot) = tag
+            numTags += 1
+        }
+        val head = heads(slot)
+        val headIndex = headIndices(slot)
+        flow.tagNextFlows(index) = head
+        flow.tagNextIndices(index) = headIndex
+        flow.tagPrevFlows(index) = null
+        if (head ne null) {
+            head.tagPrevFlows(headIndex) = flow
+            head.tagPrevIndices(headIndex) = index
+        } else {
+            tails(slot) = flow
+            tailIndices(slot) = index
+        }
+        heads(slot) = flow
+        headIndices(slot) = index
+        counts(slot) += 1
+    }
+
+    /**
+     * Removes the flow from the list of the tag at the given position of its
+     * tag list. The method returns false if the flow is not in that list.
+     */
+    def remove(flow: ManagedFlow, index: Int): Boolean = {
+        val slot = slotOf(flow.tags.get(index))
+        if (slot < 0) {
+            return false
+        }
+        val prev = flow.tagPrevFlows(index)
+        val prevIndex = flow.tagPrevIndices(index)
+        val next = flow.tagNextFlows(index)
+        val nextIndex = flow.tagNextIndices(index)
+        if (prev ne null) {
+            prev.tagNextFlows(prevIndex) = next
+            prev.tagNextIndices(prevIndex) = nextIndex
+        } else if ((heads(slot) eq flow) && headIndices(slot) == index) {
+            heads(slot) = next
+            headIndices(slot) = nextIndex
+        } else {
+            return false
+        }
+        if (next ne null) {
+            next.tagPrevFlows(nextIndex) = prev
+            next.tagPrevIndices(nextIndex) = prevIndex
+        } else {
+            tails(slot) = prev
+            tailIndices(slot) = prevIndex
+        }
+        flow.tagNextFlows(index) = null
+        flow.tagPrevFlows(index) = null
+
+        counts(slot) -= 1
+        if (counts(slot) == 0) {
+            removeSlot(slot)
+        }
+        true
+    }
+
+    /**
+     * Removes the first flow from the list of the given tag, and returns
+     * that flow or null if the tag has no flows.
+     */
+    def removeFirst(tag: FlowTag): ManagedFlow = {
+        val slot = slotOf(tag)
+        if (slot < 0) {
+            return null
+        }
+        val flow = heads(slot)
+        remove(flow, headIndices(slot))
+        flow
+    }
+
+    /**
+     * Returns the oldest flow with the given tag, or null if the tag has no
+     * flows.
+     */
+    def last(tag: FlowTag): ManagedFlow = {
+        val slot = slotOf(tag)
+        if (slot < 0) null else tails(slot)
+    }
+
+    /**
+     * Returns a new set with the flows for the given tag, or null if there
+     * are no such flows. This method allocates memory and should be used
+     * only for inspection.
+     */
+    def flowsOf(tag: FlowTag): JSet[ManagedFlow] = {
+        val slot = slotOf(tag)
+        if (slot < 0) {
+            return null
+        }
+        val flows = Collections.newSetFromMap(
+            new IdentityHashMap[ManagedFlow, java.lang.Boolean]())
+        var flow = heads(slot)
+        var index = headIndices(slot)
+        while (flow ne null) {
+            flows.add(flow)
+            val nextIndex = flow.tagNextIndices(index)
+            flow = flow.tagNextFlows(index)
+            index = nextIndex
+        }
+        flows
+    }
+
+    @inline
+    private def hash(tag: FlowTag): Int = {
+        val h = tag.hashCode()
+        h ^ (h >>> 16)
+    }
+
+    private def slotOf(tag: FlowTag): Int = {
+        var slot = hash(tag) & mask
+        var key: FlowTag = null
+        while ({ key = keys(slot); key } ne null) {
+            if ((key eq tag) || key == tag) {
+                return slot
+            }
+            slot = (slot + 1) & mask
+        }
+        -1
+    }
+
+    private def emptySlotOf(tag: FlowTag): Int = {
+        var slot = hash(tag) & mask
+        while (keys(slot) ne null) {
+            slot = (slot + 1) & mask
+        }
+        slot
+    }
+
+    private def removeSlot(slot: Int): Unit = {
+        var hole = slot
+        var next = (slot + 1) & mask
+        var key: FlowTag = null
+        while ({ key = keys(next); key } ne null) {
+            // Shift the entry into the hole, unless the hole precedes the
+            // home slot of the entry.
+            val home = hash(key) & mask
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys(hole) = key
+                heads(hole) = heads(next)
+                headIndices(hole) = headIndices(next)
+                tails(hole) = tails(next)
+                tailIndices(hole) = tailIndices(next)
+                counts(hole) = counts(next)
+                hole = next
+            }
+            next = (next + 1) & mask
+        }
+        keys(hole) = null
+        heads(hole) = null
+        headIndices(hole) = 0
+        tails(hole) = null
+        tailIndices(hole) = 0
+        counts(hole) = 0
+        numTags -= 1
+    }
+
+    private def grow(): Unit = {
+        val oldKeys = keys
+        val oldHeads = heads
+        val oldHeadIndices = headIndices
+        val oldTails = tails
+        val oldTailIndices = tailIndices
+        val oldCounts = counts
+
+        capacity <<= 1
+        mask = capacity - 1
+        keys = new Array[FlowTag](capacity)
+        heads = new Array[ManagedFlow](capacity)
+        headIndices = new Array[Int](capacity)
+        tails = new Array[ManagedFlow](capacity)
+        tailIndices = new Array[Int](capacity)
+        counts = new Array[Int](capacity)
+
+        var index = 0
+        while (index < oldKeys.length) {
+            val key = oldKeys(index)
+            if (key ne null) {
+                val slot = emptySlotOf(key)
+                keys(slot) = key
+                heads(slot) = oldHeads(index)
+                headIndices(slot) = oldHeadIndices(index)
+                tails(slot) = oldTails(index)
+                tailIndices(slot) = oldTailIndices(index)
+                counts(slot) = oldCounts(index)
+            }
+            index += 1
+        }
+    }
+}
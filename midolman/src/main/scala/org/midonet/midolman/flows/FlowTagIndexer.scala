@@ -16,21 +16,62 @@
 
 package org.midonet.midolman.flows
 
-import java.util._
+import java.util.{ArrayDeque, Collection, Set}
 
+import org.midonet.midolman.FlowTablePreallocation
 import org.midonet.midolman.logging.MidolmanLogging
 
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 
+object FlowTagIndexer {
+
+    /**
+     * A scheduled invalidation of the flows with the given tag, registered
+     * before the given tag sequence number.
+     */
+    private case class PendingInvalidation(tag: FlowTag, sequence: Long)
+
+}
+
+/**
+ * This trait indexes the flows by their tags, such that all flows with a
+ * given tag can be removed when that tag is invalidated. The index is
+ * preallocated and stores the per-tag lists in the flows themselves, so that
+ * registering and removing flows does not allocate memory.
+ *
+ * Invalidations can also be scheduled, in which case the flows of the pending
+ * tags are removed in rounds of at most `maxInvalidationsPerRound` flows, such
+ * that a large invalidation does not monopolize the thread. Since removing a
+ * flow unlinks it from the lists of all its tags, a flow having several of
+ * the invalidated tags is removed only once. A scheduled invalidation removes
+ * only the flows registered before it was scheduled, oldest first, such that
+ * the flows added while it is pending do not prolong it.
+ */
 trait FlowTagIndexer extends FlowIndexer with MidolmanLogging {
-    private val tagToFlows = new HashMap[FlowTag, Set[ManagedFlow]]()
+
+    import FlowTagIndexer._
+
+    protected val preallocation: FlowTablePreallocation
+
+    private val tagToFlows = preallocation.takeFlowTagIndex()
+    private val pendingInvalidations = new ArrayDeque[PendingInvalidation]()
+    private var tagSequence = 0L
+
+    /**
+     * The maximum number of flows removed by `processPendingInvalidations`,
+     * or zero for no limit.
+     */
+    protected def maxInvalidationsPerRound: Int = 0
 
     abstract override def registerFlow(flow: ManagedFlow): Unit = {
         super.registerFlow(flow)
+        flow.ensureTagLinks()
+        flow.tagSequence = tagSequence
+        tagSequence += 1
         val numTags = flow.tags.size()
         var i = 0
         while (i < numTags) {
-            getOrAdd(flow.tags.get(i)).add(flow)
+            tagToFlows.add(flow, i)
             i += 1
         }
     }
@@ -40,37 +81,66 @@ trait FlowTagIndexer extends FlowIndexer with MidolmanLogging {
         val numTags = flow.tags.size()
         var i = 0
         while (i < numTags) {
-            val tag = flow.tags.get(i)
-            val flows = tagToFlows.get(tag)
-            if (flows ne null) {
-                flows.remove(flow)
-                if (flows.size() == 0)
-                    tagToFlows.remove(tag)
-            }
+            tagToFlows.remove(flow, i)
             i += 1
         }
     }
 
     def invalidateFlowsFor(tag: FlowTag): Unit = {
-        val flows = tagToFlows.remove(tag)
-        log.debug(s"Invalidating ${if (flows ne null) flows.size() else 0} flows for tag $tag")
-        if (flows ne null) {
-            val it = flows.iterator()
-            while (it.hasNext) {
-                removeFlow(it.next())
-            }
+        log.debug(s"Invalidating ${tagToFlows.count(tag)} flows for tag $tag")
+        var flow: ManagedFlow = null
+        while ({ flow = tagToFlows.removeFirst(tag); flow } ne null) {
+            removeFlow(flow)
         }
     }
 
-    def flowsFor(tag: FlowTag): Set[ManagedFlow] =
-        tagToFlows.get(tag)
+    /**
+     * Invalidates the flows for all the given tags.
+     */
+    def invalidateFlowsFor(tags: Collection[FlowTag]): Unit = {
+        val it = tags.iterator()
+        while (it.hasNext) {
+            invalidateFlowsFor(it.next())
+        }
+    }
+
+    /**
+     * Schedules the invalidation of the flows currently registered for the
+     * given tag, which are removed by the following calls to
+     * `processPendingInvalidations`.
+     */
+    def scheduleInvalidation(tag: FlowTag): Unit =
+        pendingInvalidations.addLast(PendingInvalidation(tag, tagSequence))
 
-    private def getOrAdd(tag: FlowTag): Set[ManagedFlow] = {
-        var set = tagToFlows.get(tag)
-        if (set eq null) {
-            set = Collections.newSetFromMap(new IdentityHashMap())
-            tagToFlows.put(tag, set)
+    def hasPendingInvalidations: Boolean =
+        !pendingInvalidations.isEmpty
+
+    /**
+     * Removes the flows for the pending invalidations, up to the maximum
+     * number of flows per round. Returns the number of removed flows.
+     */
+    def processPendingInvalidations(): Int = {
+        val max = if (maxInvalidationsPerRound > 0) maxInvalidationsPerRound
+                  else Int.MaxValue
+        var removed = 0
+        var pending = pendingInvalidations.peekFirst()
+        while (removed < max && (pending ne null)) {
+            val flow = tagToFlows.last(pending.tag)
+            if ((flow eq null) || flow.tagSequence >= pending.sequence) {
+                pendingInvalidations.pollFirst()
+                pending = pendingInvalidations.peekFirst()
+            } else {
+                removeFlow(flow)
+                removed += 1
+            }
+        }
+        if (removed > 0) {
+            log.debug(s"Invalidated $removed flows, ${pendingInvalidations.size} " +
+                      "invalidations pending")
         }
-        set
+        removed
     }
+
+    def flowsFor(tag: FlowTag): Set[ManagedFlow] =
+        tagToFlows.flowsOf(tag)
 }
@@ -19,10 +19,15 @@ import java.util.ArrayList
 
 import org.midonet.midolman.flows.FlowExpirationIndexer.Expiration
 import org.midonet.odp.FlowMatch
+import org.midonet.odp.flows.FlowStats
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.util.collection.{ArrayListUtil, ObjectPool, PooledObject}
 import org.midonet.util.functors.Callback0
 
+object ManagedFlow {
+    private final val InitialTagLinks = 8
+}
+
 /**
  * A ManagedFlow that is stored in a pool.
  * Once the instance is no longer used, the pool entry can be reused.
@@ -37,6 +42,10 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
     val flowMatch = new FlowMatch()
     var expirationType = 0
     var absoluteExpirationNanos = 0L
+    // The last time the flow was known to be in use, and the last datapath
+    // statistics of the flow, used for idle expiration
+    var lastUsedNanos = 0L
+    val stats = new FlowStats()
     // To synchronize create operation with delete operations
     var sequence = 0L
     // To access this object from a netlink sequence number, used for duplicate detection
@@ -44,12 +53,22 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
     var removed = true
     var linkedFlow: ManagedFlow = null
 
+    // The links of this flow in the lists of the flow tag index, where the
+    // position i stores the links for the tag at position i in `tags`
+    var tagNextFlows = new Array[ManagedFlow](ManagedFlow.InitialTagLinks)
+    var tagNextIndices = new Array[Int](ManagedFlow.InitialTagLinks)
+    var tagPrevFlows = new Array[ManagedFlow](ManagedFlow.InitialTagLinks)
+    var tagPrevIndices = new Array[Int](ManagedFlow.InitialTagLinks)
+    // The order in which the flow was registered in the flow tag index
+    var tagSequence = 0L
+
     def reset(flowMatch: FlowMatch, flowTags: ArrayList[FlowTag],
               flowRemovedCallbacks: ArrayList[Callback0], sequence: Long,
               expiration: Expiration, now: Long, linkedFlow: ManagedFlow = null): Unit = {
         this.flowMatch.resetWithoutIcmpData(flowMatch)
         expirationType = expiration.typeId
         absoluteExpirationNanos = now + expiration.value
+        lastUsedNanos = now
         ArrayListUtil.addAll(flowTags, tags)
         ArrayListUtil.addAll(flowRemovedCallbacks, callbacks)
         this.sequence = sequence
@@ -57,6 +76,21 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
         removed = false
     }
 
+    /**
+     * Ensures there are links for all the flow tags. Since flows are pooled,
+     * the link arrays only grow when a flow has more tags than before.
+     */
+    def ensureTagLinks(): Unit = {
+        val numTags = tags.size()
+        if (numTags > tagNextFlows.length) {
+            val length = Math.max(numTags, tagNextFlows.length << 1)
+            tagNextFlows = new Array[ManagedFlow](length)
+            tagNextIndices = new Array[Int](length)
+            tagPrevFlows = new Array[ManagedFlow](length)
+            tagPrevIndices = new Array[Int](length)
+        }
+    }
+
     def assignSequence(seq: Long): Unit = {
         sequence = seq
         if (linkedFlow ne null) {
@@ -66,6 +100,7 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
 
     override def clear(): Unit = {
         flowMatch.clear()
+        stats.clear()
         callbacks.clear()
         tags.clear()
     }
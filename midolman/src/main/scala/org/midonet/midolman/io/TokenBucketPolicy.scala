@@ -16,25 +16,35 @@
 
 package org.midonet.midolman.io
 
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.locks.ReentrantLock
 
-import scala.collection.mutable
+import scala.collection.JavaConverters._
+
+import com.codahale.metrics.MetricRegistry
 
 import org.slf4j.{Logger, LoggerFactory}
 
 import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.monitoring.metrics.HtbMetrics
 import org.midonet.odp.DpPort
 import org.midonet.util.{Bucket, TokenBucketFillRate, TokenBucket}
 
 /**
  * This class contains a policy to assign token buckets to datapath ports.
  * Depending on the port type, token buckets are linked at different levels
- * in the hierarchy.
+ * in the hierarchy, and with different weights.
+ *
+ * Only linking and unlinking ports is serialized: the upcall readers consume
+ * the tokens of their port buckets with atomic operations, and the lookup of
+ * a port's bucket does not take the lock.
  */
 class TokenBucketPolicy(config: MidolmanConfig,
                         tbRate: TokenBucketFillRate,
                         multiplier: Int,
-                        factory: TokenBucket => Bucket) {
+                        factory: TokenBucket => Bucket,
+                        metrics: HtbMetrics =
+                            new HtbMetrics(new MetricRegistry)) {
     private val log: Logger = LoggerFactory.getLogger("org.midonet.io.htb")
 
     private val root = TokenBucket.create(adjust(config.datapath.globalIncomingBurstCapacity),
@@ -44,26 +54,35 @@ class TokenBucketPolicy(config: MidolmanConfig,
 
     log.info("Creating root bucket with {} tokens", root.getCapacity)
 
-    private val vmBuckets = root.link(0, "vms")
+    private val vmBuckets =
+        root.link(0, "vms", weight(config.datapath.vmIncomingWeight))
 
-    private val tokenBuckets = mutable.Map[String, Bucket]()
+    private val tokenBuckets = new ConcurrentHashMap[String, Bucket]()
     private val lock = new ReentrantLock
 
     def calculateMinimumSystemTokens: Int =
-        tokenBuckets.foldLeft(0)(_ + _._2.underlyingTokenBucket().getCapacity)
+        tokenBuckets.values.asScala.foldLeft(0)(
+            _ + _.underlyingTokenBucket().getCapacity)
 
     def link(port: DpPort, t: ChannelType): Bucket = {
+        val existing = tokenBuckets.get(port.getName)
+        if (existing ne null) {
+            return existing
+        }
+
         lock.lock()
         try {
-            if (tokenBuckets.contains(port.getName)) {
-                return tokenBuckets(port.getName)
+            if (tokenBuckets.containsKey(port.getName)) {
+                return tokenBuckets.get(port.getName)
             }
 
             val tb = factory(t match {
                 case OverlayTunnel if config.datapath.tunnelIncomingBurstCapacity > 0 =>
-                    root.link(adjust(config.datapath.tunnelIncomingBurstCapacity), port.getName)
+                    root.link(adjust(config.datapath.tunnelIncomingBurstCapacity), port.getName,
+                              weight(config.datapath.tunnelIncomingWeight))
                 case VtepTunnel if config.datapath.vtepIncomingBurstCapacity > 0 =>
-                    root.link(adjust(config.datapath.vtepIncomingBurstCapacity), port.getName)
+                    root.link(adjust(config.datapath.vtepIncomingBurstCapacity), port.getName,
+                              weight(config.datapath.vtepIncomingWeight))
                 case VirtualMachine if config.datapath.vmIncomingBurstCapacity > 0 =>
                     vmBuckets.link(adjust(config.datapath.vmIncomingBurstCapacity), port.getName)
                 case _ =>
@@ -71,6 +90,7 @@ class TokenBucketPolicy(config: MidolmanConfig,
             })
 
             tokenBuckets.put(port.getName, tb)
+            metrics.portLinked(port.getName, tb.underlyingTokenBucket())
             val curMax = root.getCapacity
             val newMax = calculateMinimumSystemTokens
             if (newMax > curMax) {
@@ -86,11 +106,20 @@ class TokenBucketPolicy(config: MidolmanConfig,
         }
     }
 
+    /**
+     * Returns a new Bucket consuming the tokens of the same token bucket as
+     * the given one, for another thread reading the packets of the same port.
+     */
+    def share(bucket: Bucket): Bucket =
+        if (bucket eq null) null
+        else factory(bucket.underlyingTokenBucket())
+
     def unlink(port: DpPort): Unit = {
         lock.lock()
         try {
-            tokenBuckets.remove(port.getName) match {
+            Option(tokenBuckets.remove(port.getName)) match {
                 case Some(tb) =>
+                    metrics.portUnlinked(port.getName)
                     val tokens = tb.underlyingTokenBucket().unlink()
                     val newMax = calculateMinimumSystemTokens
                     if (newMax >= adjust(config.datapath.globalIncomingBurstCapacity))
@@ -109,4 +138,6 @@ class TokenBucketPolicy(config: MidolmanConfig,
     }
 
     private def adjust(tokens: Int): Int = Math.max(1, tokens / multiplier)
+
+    private def weight(weight: Int): Int = Math.max(1, weight)
 }
@@ -29,6 +29,7 @@ import akka.actor.{Actor, ActorRef, ActorSystem, Props}
 import org.midonet.midolman.NetlinkCallbackDispatcher
 import org.midonet.midolman.PacketWorker
 import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.state.ReceivedFlowState
 import org.midonet.odp._
 import org.midonet.odp.ports._
 import org.midonet.util._
@@ -60,6 +61,7 @@ object UpcallChannelsTest {
         val act = sys actorOf Props[Deaf]
         val workers = IndexedSeq(new PacketWorker() {
                                      override def submit(packet: Packet) = true
+                                     override def submit(state: ReceivedFlowState) = true
                                  })
         val nlDispatcher = sys actorOf Props[NetlinkCallbackDispatcher]
 
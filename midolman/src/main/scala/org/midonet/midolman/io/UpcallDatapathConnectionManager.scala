@@ -29,7 +29,7 @@ import com.codahale.metrics.MetricRegistry
 
 import org.midonet.ErrorCode.{EBUSY, EEXIST, EADDRINUSE}
 import org.midonet.midolman.config.MidolmanConfig
-import org.midonet.midolman.state.FlowState
+import org.midonet.midolman.state.{FlowState, FlowStateDispatcher}
 import org.midonet.midolman.{PacketWorker, NetlinkCallbackDispatcher}
 import org.midonet.netlink.BufferPool
 import org.midonet.netlink.exceptions.NetlinkException
@@ -102,7 +102,7 @@ abstract class UpcallDatapathConnectionManagerBase(
         val dpConn = conn.getConnection
         dpConn setCallbackDispatcher getDispatcher()
         setUpcallHandler(dpConn)
-        ensurePortPid(port, datapath, dpConn) andThen {
+        ensurePortPid(port, datapath, dpConn, upcallPids(conn)) andThen {
             case Success((createdPort, _)) =>
                 portToChannel.put((datapath, createdPort.getPortNo.intValue), conn)
             case Failure(e) =>
@@ -113,20 +113,29 @@ abstract class UpcallDatapathConnectionManagerBase(
         }
     }
 
-    def ensurePortPid(port: DpPort, dp: Datapath, con: OvsDatapathConnection)(
+    /**
+     * Returns the PIDs of the netlink sockets receiving the upcalls of the
+     * port using the given connection, or null if they are only received by
+     * the socket of the connection itself.
+     */
+    protected def upcallPids(conn: ManagedDatapathConnection): Array[Int] = null
+
+    def ensurePortPid(port: DpPort, dp: Datapath, con: OvsDatapathConnection,
+                      upcallPids: Array[Int] = null)(
                       implicit ec: ExecutionContext) = {
         val dpConnOps = new OvsConnectionOps(con)
+        def createPort() =
+            if (upcallPids eq null) dpConnOps.createPort(port, dp)
+            else dpConnOps.createPort(port, dp, upcallPids)
         log.info("creating datapath port {}", port)
-        dpConnOps.createPort(port, dp) recoverWith {
+        createPort() recoverWith {
             // Error code changed in OVS in May-2013 from EBUSY to EEXIST
             // http://openvswitch.org/pipermail/dev/2013-May/027947.html
             case ex: NetlinkException
                 if ex.getErrorCodeEnum == EEXIST ||
                    ex.getErrorCodeEnum == EBUSY ||
                    ex.getErrorCodeEnum == EADDRINUSE =>
-                dpConnOps.delPort(port, dp) flatMap { _ =>
-                    dpConnOps.createPort(port, dp)
-                }
+                dpConnOps.delPort(port, dp) flatMap { _ => createPort() }
         } map { (_, con.getChannel.getLocalAddress.getPid) }
     }
 
@@ -151,14 +160,21 @@ abstract class UpcallDatapathConnectionManagerBase(
                 }
         }
 
-    protected def makeUpcallHandler(workers: IndexedSeq[PacketWorker]) =
+    /**
+     * Creates the handler of the packets received by the upcall sockets. The
+     * packets are submitted to the given worker, or when it is negative,
+     * to the worker given by the connection hash of their match.
+     */
+    protected def makeUpcallHandler(workers: IndexedSeq[PacketWorker],
+                                    worker: Int = -1) =
         new BatchCollector[Packet] {
 
             val NUM_WORKERS = workers.length
             val log = LoggerFactory.getLogger("PacketInHook")
+            val flowStateDispatcher = new FlowStateDispatcher(workers, config)
 
             override def endBatch() {
-                // noop
+                flowStateDispatcher.flush()
             }
 
             override def submit(data: Packet): Boolean = {
@@ -167,26 +183,15 @@ abstract class UpcallDatapathConnectionManagerBase(
                 data.startTimeNanos = NanoClock.DEFAULT.tick
 
                 if (FlowState.isStateMessage(data.getMatch)) {
-                    var i = 0
-
-                    /* This code is problematic for the HTB. The HTB will take
-                     * one token for a flow state message, but each worker will
-                     * return one token for the flow state message.
-                     * This can potentially cause the number of HTB messages
-                     * available to explode.
-                     * MI-1273 should fix this by only sending flow state to
-                     * the correct thread.
-                     */
-                    var submitted = false
-                    while (i < workers.length) {
-                        // order is important here, we want submit to run, even
-                        // if submitted is already true
-                        submitted = workers(i).submit(data) || submitted
-                        i += 1
-                    }
-                    submitted
+                    // The state is decoded here and only the worker owning
+                    // each entry writes it, at the end of the batch. A single
+                    // worker returns the HTB token taken for the message.
+                    flowStateDispatcher.dispatch(data)
+                } else if (worker >= 0) {
+                    workers(worker).submit(data)
                 } else {
-                    val worker = Math.abs(data.getMatch.connectionHash) % NUM_WORKERS
+                    val worker = PacketWorker.indexOf(
+                        data.getMatch.connectionHash, NUM_WORKERS)
                     workers(worker).submit(data)
                 }
             }
@@ -206,9 +211,13 @@ class OneToOneDpConnManager(c: MidolmanConfig,
     protected override val log = LoggerFactory.getLogger(this.getClass)
 
     override def makeConnection(name: String, bucket: Bucket,
-                                channelType: ChannelType) =
-        new SelectorBasedDatapathConnection(name, config, true, bucket,
-                                            makeBufferPool(), metrics)
+                                channelType: ChannelType) = {
+        val conn = new SelectorBasedDatapathConnection(name, config, true,
+                                                       bucket, makeBufferPool(),
+                                                       metrics)
+        conn.setReadCpus(config.upcallCpus)
+        conn
+    }
 
     override def stopConnection(conn: ManagedDatapathConnection) {
         conn.stop()
@@ -230,6 +239,7 @@ class OneToManyDpConnManager(c: MidolmanConfig,
         extends UpcallDatapathConnectionManagerBase(c, tbPolicy) {
 
     val threadPair = new SelectorThreadPair("upcall", config, false, metrics)
+    threadPair.setReadCpus(config.upcallCpus)
 
     private val lock = new ReentrantLock()
 
@@ -275,3 +285,136 @@ class OneToManyDpConnManager(c: MidolmanConfig,
         conn.datapathsSetNotificationHandler(upcallHandler)
     }
 }
+
+/**
+ * The pool of upcall connections of a datapath port, one per packet worker.
+ * The connection of the first worker also sends the requests for the port.
+ */
+class MultiQueueDatapathConnection(val queues: IndexedSeq[ManagedDatapathConnection])
+    extends ManagedDatapathConnection {
+
+    override def getConnection = queues.head.getConnection
+
+    override def start(): Unit = {}
+
+    override def stop(): Unit = {}
+}
+
+/**
+ * UpcallDatapathConnectionManager with a multi-queue threading model: the
+ * datapath sends the upcalls of each port to a pool of netlink sockets, one
+ * per packet worker, selecting the socket by the hash of the packet. Each
+ * worker has its own read thread servicing its sockets of all ports, which
+ * submits the packets directly to the worker, without hashing them again
+ * or contending with the readers of other workers for the worker queue. Each
+ * read thread is pinned to the CPU of its worker, such that the packets it
+ * hands over through the worker ring stay in the cache of the same core. When
+ * the workers are not pinned, the read threads are pinned round robin to the
+ * upcall CPUs.
+ *
+ * Only the sockets of the first worker send requests to the datapath, and
+ * therefore the thread pairs of the other workers do not start a write
+ * thread.
+ *
+ * The token buckets of the ports are shared by the read threads, each of
+ * them consuming the tokens through its own Bucket.
+ */
+class MultiQueueDpConnManager(c: MidolmanConfig,
+                              workers: IndexedSeq[PacketWorker],
+                              tbPolicy: TokenBucketPolicy,
+                              metrics: MetricRegistry)
+        extends UpcallDatapathConnectionManagerBase(c, tbPolicy) {
+
+    protected override val log = LoggerFactory.getLogger(this.getClass)
+
+    private val lock = new ReentrantLock()
+
+    val sendPool = makeBufferPool()
+
+    val threadPairs = workers.indices map { index =>
+        val threadPair = makeThreadPair(s"upcall-$index", index > 0)
+        val workerCpus = config.workerCpus
+        threadPair.setReadCpus(
+            if (workerCpus.isEmpty) config.upcallCpus.single(index)
+            else workerCpus.single(index))
+        threadPair
+    }
+
+    private val upcallHandlers =
+        workers.indices map { makeUpcallHandler(workers, _) }
+
+    protected def makeThreadPair(name: String, readOnly: Boolean)
+    : SelectorThreadPair =
+        new SelectorThreadPair(name, config, false, readOnly, metrics)
+
+    override def makeConnection(name: String, bucket: Bucket,
+                                channelType: ChannelType) = {
+        val priority = channelType match {
+            case OverlayTunnel => SelectLoop.Priority.HIGH
+            case _ => SelectLoop.Priority.NORMAL
+        }
+        val queues = new Array[ManagedDatapathConnection](threadPairs.length)
+        lock.lock()
+        try {
+            var index = 0
+            while (index < threadPairs.length) {
+                val threadPair = threadPairs(index)
+                val handler = upcallHandlers(index)
+                if (!threadPair.isRunning) {
+                    threadPair.setEndOfReadLoopCallback(new Runnable {
+                        override def run(): Unit = handler.endBatch()
+                    })
+                    threadPair.start()
+                }
+                val queueBucket = if (index == 0) bucket
+                                  else tbPolicy.share(bucket)
+                val queue = threadPair.addConnection(queueBucket, sendPool,
+                                                     priority)
+                queue.getConnection.setUsingSharedNotificationHandler(true)
+                queue.getConnection.datapathsSetNotificationHandler(handler)
+                queues(index) = queue
+                index += 1
+            }
+        } catch {
+            case e: Throwable =>
+                stopQueues(queues)
+                throw e
+        } finally {
+            lock.unlock()
+        }
+        new MultiQueueDatapathConnection(queues)
+    }
+
+    override def stopConnection(conn: ManagedDatapathConnection): Unit =
+        conn match {
+            case multiQueue: MultiQueueDatapathConnection =>
+                stopQueues(multiQueue.queues)
+            case _ =>
+        }
+
+    private def stopQueues(queues: IndexedSeq[ManagedDatapathConnection])
+    : Unit = {
+        lock.lock()
+        try {
+            var index = 0
+            while (index < queues.length) {
+                if (queues(index) ne null)
+                    threadPairs(index).removeConnection(queues(index))
+                index += 1
+            }
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    protected override def upcallPids(conn: ManagedDatapathConnection)
+    : Array[Int] = conn match {
+        case multiQueue: MultiQueueDatapathConnection =>
+            multiQueue.queues.map(
+                _.getConnection.getChannel.getLocalAddress.getPid).toArray
+        case _ => null
+    }
+
+    // The handlers are set when creating the connections of every queue.
+    protected override def setUpcallHandler(conn: OvsDatapathConnection): Unit = {}
+}
@@ -32,8 +32,9 @@ import org.midonet.packets.{IPAddr, IPv4Addr, IPv6Addr, MAC}
 import org.midonet.sdn.flows.FlowTagger._
 
 
-class BinaryFlowRecorder(val hostId: UUID, flowSenderWorker: FlowSenderWorker)
-        extends AbstractFlowRecorder(flowSenderWorker) {
+class BinaryFlowRecorder(val hostId: UUID, flowSenderWorker: FlowSenderWorker,
+                         sampler: FlowSampler = FlowSampler.all)
+        extends AbstractFlowRecorder(flowSenderWorker, sampler) {
     val MESSAGE_HEADER = new MessageHeader
     val FLOW_SUMMARY = new FlowSummary
     val buffer = ByteBuffer.allocateDirect(BinarySerialization.BufferSize)
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.monitoring
+
+import java.io.{File, RandomAccessFile}
+import java.nio.channels.FileChannel.MapMode
+import java.nio.channels.WritableByteChannel
+import java.nio.{ByteBuffer, MappedByteBuffer}
+
+import com.typesafe.scalalogging.Logger
+
+import org.slf4j.LoggerFactory
+
+import org.midonet.midolman.config.FlowHistoryConfig
+
+object FlowHistorySpool {
+
+    /** The header stores the number of bytes of records in the spool. */
+    final val HeaderSize = 8
+
+    /**
+      * Creates the spool configured for the flow history, or returns None if
+      * the spool is disabled.
+      */
+    def apply(config: FlowHistoryConfig): Option[FlowHistorySpool] = {
+        if (config.spoolFile.nonEmpty && config.spoolSize > HeaderSize) {
+            Some(new FlowHistorySpool(new File(config.spoolFile),
+                                      config.spoolSize.toInt))
+        } else {
+            None
+        }
+    }
+}
+
+/**
+  * A bounded spool of flow records backed by a memory-mapped file, where the
+  * flow sender keeps the records it cannot send while the endpoint is not
+  * reachable. The spool only stores whole batches of length-delimited records,
+  * and it updates the header after writing the records, such that the records
+  * in the spool can be sent as they are when the connection is restored, also
+  * after the agent restarts. Records are discarded when the spool is full.
+  *
+  * The spool is not thread-safe: it is only used by the flow sender thread.
+  */
+class FlowHistorySpool(file: File, size: Int) {
+
+    import FlowHistorySpool.HeaderSize
+
+    private val log = Logger(LoggerFactory.getLogger("org.midonet.history"))
+
+    private val buffer: MappedByteBuffer = {
+        val raf = new RandomAccessFile(file, "rw")
+        try raf.getChannel.map(MapMode.READ_WRITE, 0, size)
+        finally raf.close()
+    }
+
+    private var used = {
+        val length = buffer.getLong(0)
+        if (length < 0 || length > size - HeaderSize) {
+            log.warn(s"Discarding invalid flow history spool $file")
+            0
+        } else {
+            if (length > 0)
+                log.info(s"Flow history spool $file has $length bytes of " +
+                         "records pending")
+            length.toInt
+        }
+    }
+    buffer.putLong(0, used)
+
+    def isEmpty: Boolean = used == 0
+
+    /** The number of bytes of records in the spool. */
+    def length: Int = used
+
+    /**
+      * Appends the remaining bytes of the given batch of records to the
+      * spool. Returns false, discarding the records, if the spool does not
+      * have room for the whole batch.
+      */
+    def append(batch: ByteBuffer): Boolean = {
+        val count = batch.remaining
+        if (count > size - HeaderSize - used) {
+            log.debug(s"Flow history spool full: $count bytes of records " +
+                      "discarded")
+            return false
+        }
+        val target = buffer.duplicate()
+        target.position(HeaderSize + used)
+        target.put(batch.duplicate())
+        used += count
+        buffer.putLong(0, used)
+        true
+    }
+
+    /**
+      * Writes the records in the spool to the given channel, and empties the
+      * spool once all the records were written. If writing fails, the
+      * records remain in the spool and may be sent again.
+      */
+    @throws[java.io.IOException]
+    def drainTo(channel: WritableByteChannel): Unit = {
+        if (used > 0) {
+            val source = buffer.duplicate()
+            source.limit(HeaderSize + used)
+            source.position(HeaderSize)
+            while (source.hasRemaining)
+                channel.write(source)
+            clear()
+        }
+    }
+
+    def clear(): Unit = {
+        used = 0
+        buffer.putLong(0, used)
+    }
+
+    /** Flushes the spool to the file. */
+    def force(): Unit = buffer.force()
+}
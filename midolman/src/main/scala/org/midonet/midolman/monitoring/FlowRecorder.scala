@@ -26,7 +26,8 @@ import com.typesafe.scalalogging.Logger
 import org.midonet.cluster.flowhistory._
 import org.midonet.midolman.PacketWorkflow
 import org.midonet.midolman.PacketWorkflow.{SimulationResult => MMSimRes}
-import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.PacketWorkflow.DropAction
+import org.midonet.midolman.config.{FlowHistoryConfig, MidolmanConfig}
 import org.midonet.midolman.rules.{RuleResult => MMRuleResult}
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.odp.FlowMatch
@@ -48,9 +49,11 @@ object FlowRecorder {
             config.flowHistory.endpointService.nonEmpty) {
             config.flowHistory.encoding match {
                 case "json" => new JsonFlowRecorder(
-                    hostId, flowSenderWorker)
-                case "binary" => new BinaryFlowRecorder(hostId,
-                                                        flowSenderWorker)
+                    hostId, flowSenderWorker,
+                    FlowSampler(config.flowHistory))
+                case "binary" => new BinaryFlowRecorder(
+                    hostId, flowSenderWorker,
+                    FlowSampler(config.flowHistory))
                 case "none" => NullFlowRecorder()
                 case other =>
                     log.error(s"Invalid encoding ($other) specified")
@@ -81,15 +84,55 @@ object NullFlowRecorder {
     def apply(): FlowRecorder = new NullFlowRecorder
 }
 
+/**
+  * Decides which flow simulations are recorded: those of packets ingressing
+  * the given ports, if any, and one in every `rate` simulations, except for
+  * the simulations that drop the packet, which may always be recorded.
+  *
+  * The sampler is not thread-safe, such that every packet worker has its own
+  * flow recorder and sampler.
+  */
+class FlowSampler(rate: Int, recordDrops: Boolean, ports: Set[UUID]) {
+    private var skipped = 0
+
+    def shouldRecord(pktContext: PacketContext, simRes: MMSimRes): Boolean = {
+        if (ports.nonEmpty && !ports.contains(pktContext.inputPort)) {
+            false
+        } else if (recordDrops && simRes.isInstanceOf[DropAction]) {
+            true
+        } else if (rate <= 1) {
+            true
+        } else {
+            skipped += 1
+            if (skipped >= rate) {
+                skipped = 0
+                true
+            } else false
+        }
+    }
+}
+
+object FlowSampler {
+    def all = new FlowSampler(1, recordDrops = true, Set.empty)
+
+    def apply(config: FlowHistoryConfig): FlowSampler =
+        new FlowSampler(config.samplingRate, config.recordDrops, config.ports)
+}
+
 /**
   * Abstract flow recorder example that sends summaries over a tcp port.
+  * Only the simulations chosen by the sampler are encoded, such that the
+  * sampler bounds the cost of the flow history in the packet worker.
   */
-abstract class AbstractFlowRecorder(flowSenderWorker: FlowSenderWorker)
+abstract class AbstractFlowRecorder(flowSenderWorker: FlowSenderWorker,
+                                    sampler: FlowSampler = FlowSampler.all)
     extends FlowRecorder {
     private val log = Logger(LoggerFactory.getLogger("org.midonet.history"))
 
     final override def record(pktContext: PacketContext, simRes: MMSimRes):
     Unit = {
+        if (!sampler.shouldRecord(pktContext, simRes))
+            return
         try {
             val buffer = encodeRecord(pktContext: PacketContext, simRes)
             flowSenderWorker.submit(buffer)
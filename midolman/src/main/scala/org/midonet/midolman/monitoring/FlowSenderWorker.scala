@@ -151,8 +151,18 @@ class FlowSender(config: FlowHistoryConfig, backend: MidonetBackend)
 
     private var channel: SocketChannel = _
     private var current: InetSocketAddress = _
-    private val sizeBuffer: ByteBuffer = ByteBuffer.allocateDirect(4)
-    private val codedOutputStream = CodedOutputStream.newInstance(sizeBuffer, 4)
+    private val sizeBuffer: ByteBuffer =
+        ByteBuffer.allocateDirect(FlowSender.MaxLengthSize)
+    private val codedOutputStream =
+        CodedOutputStream.newInstance(sizeBuffer, FlowSender.MaxLengthSize)
+
+    // Records are sent in batches of length delimited records, which are
+    // flushed at the end of every batch of events of the ring buffer, such
+    // that the sender makes one write per batch instead of two per record.
+    private val batch: ByteBuffer = ByteBuffer.allocateDirect(
+        BinarySerialization.BufferSize + FlowSender.MaxLengthSize)
+
+    protected val spool: Option[FlowHistorySpool] = FlowHistorySpool(config)
 
     // Create a connection rate limiter with a rate of 1 connection per
     // connectionInterval seconds
@@ -163,17 +173,42 @@ class FlowSender(config: FlowHistoryConfig, backend: MidonetBackend)
 
     override def onEvent(event: ByteBuffer, sequence: Long,
                          endOfBatch: Boolean): Unit = {
+        if (batch.remaining < event.remaining + FlowSender.MaxLengthSize) {
+            flush()
+        }
+        // Prepend the record length to the record
+        sizeBuffer.clear()
+        codedOutputStream.writeRawVarint32(event.remaining)
+        codedOutputStream.flush()
+        sizeBuffer.flip()
+        batch.put(sizeBuffer)
+        batch.put(event)
+        if (endOfBatch) {
+            flush()
+        }
+    }
+
+    private def flush(): Unit = {
+        if (batch.position == 0)
+            return
+        batch.flip()
         try {
-            sendRecord(event)
+            sendRecord(batch)
         } catch {
             case ex: IOException =>
                 // Close and invalidate endpoint on IOException
                 close()
                 invalidateEndpoint()
-                log.info("Error sending flow record to endpoint: {}",
+                log.info("Error sending flow records to endpoint: {}",
                          ex.getMessage)
+                // Keep the whole batch, since the records that were written
+                // may not have reached the endpoint
+                batch.rewind()
+                spool foreach { _ append batch }
             case NonFatal(e) =>
                 log.info("Unknown error while recording flow record", e)
+        } finally {
+            batch.clear()
         }
     }
 
@@ -187,22 +222,24 @@ class FlowSender(config: FlowHistoryConfig, backend: MidonetBackend)
 
     override def doStop(): Unit = {
         clioDiscoveryClient.stop()
+        spool foreach { _.force() }
         notifyStopped()
     }
 
-    protected def sendRecord(buffer: ByteBuffer) = {
+    /**
+      * Sends a batch of length delimited records to the endpoint, after the
+      * records kept in the spool, if any. The batch is kept in the spool when
+      * there is no endpoint.
+      */
+    protected def sendRecord(buffer: ByteBuffer): Unit = {
         val actualEndpoint = endpoint.orElse(maybeChangeEndpoint()).orNull
         if (actualEndpoint != null) {
             maybeConnect(actualEndpoint)
-            // Send buffer length int before sending buffer
-            sizeBuffer.clear()
-            codedOutputStream.writeRawVarint32(buffer.limit)
-            codedOutputStream.flush()
-            sizeBuffer.flip()
-            while (sizeBuffer.hasRemaining)
-                channel.write(sizeBuffer)
+            spool foreach { _ drainTo channel }
             while (buffer.hasRemaining)
                 channel.write(buffer)
+        } else {
+            spool foreach { _ append buffer }
         }
     }
 
@@ -295,4 +332,6 @@ object DisruptorFlowSenderWorker {
 
 object FlowSender {
     final val ConnectionTimeout = Duration("5s")
+    /** The maximum size of the varint length of a record. */
+    final val MaxLengthSize = 5
 }
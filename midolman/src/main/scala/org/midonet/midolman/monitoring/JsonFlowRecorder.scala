@@ -23,8 +23,9 @@ import org.midonet.cluster.flowhistory.JsonSerialization
 import org.midonet.midolman.PacketWorkflow.{SimulationResult => MMSimRes}
 import org.midonet.midolman.simulation.PacketContext
 
-class JsonFlowRecorder(hostId: UUID, flowSenderWorker: FlowSenderWorker)
-        extends AbstractFlowRecorder(flowSenderWorker) {
+class JsonFlowRecorder(hostId: UUID, flowSenderWorker: FlowSenderWorker,
+                       sampler: FlowSampler = FlowSampler.all)
+        extends AbstractFlowRecorder(flowSenderWorker, sampler) {
 
     val serializer = new JsonSerialization
 
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.monitoring.metrics
+
+import com.codahale.metrics.MetricRegistry.name
+import com.codahale.metrics.{Gauge, Metric, MetricFilter, MetricRegistry}
+
+import org.midonet.util.TokenBucket
+
+trait HtbGauge
+
+/**
+ * Exposes the state of the token bucket of every datapath port: the number
+ * of tokens in the bucket, the total number of tokens with which the bucket
+ * was refilled, and the number of times the upcall readers found the bucket
+ * empty and stopped reading packets from the port.
+ */
+class HtbMetrics(val registry: MetricRegistry) {
+
+    def portLinked(port: String, tb: TokenBucket): Unit = {
+        portUnlinked(port)
+        registry.register(name(classOf[HtbGauge], port, "tokens"), gauge {
+            tb.getNumTokens
+        })
+        registry.register(name(classOf[HtbGauge], port, "refilled"), gauge {
+            tb.getRefilledTokens
+        })
+        registry.register(name(classOf[HtbGauge], port, "throttled"), gauge {
+            tb.getThrottledCount
+        })
+    }
+
+    def portUnlinked(port: String): Unit = {
+        val prefix = name(classOf[HtbGauge], port) + "."
+        registry.removeMatching(new MetricFilter {
+            override def matches(metric: String, m: Metric): Boolean =
+                metric.startsWith(prefix)
+        })
+    }
+
+    private def gauge[T](f: => T): Gauge[T] = {
+        new Gauge[T] { override def getValue = f }
+    }
+}
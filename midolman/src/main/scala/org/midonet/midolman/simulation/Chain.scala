@@ -20,7 +20,7 @@ import java.util.{UUID, List => JList, Map => JMap}
 
 import com.google.common.annotations.VisibleForTesting
 
-import org.midonet.midolman.rules.{JumpRule, Rule, RuleResult}
+import org.midonet.midolman.rules.{JumpRule, Rule, RuleClassifier, RuleResult}
 import org.midonet.midolman.rules.RuleResult.Action
 import org.midonet.midolman.topology.VirtualTopology.VirtualDevice
 import org.midonet.sdn.flows.FlowTagger
@@ -50,6 +50,13 @@ case class Chain(id: UUID,
     override val deviceTag: FlowTagger.FlowTag = FlowTagger.tagForChain(id)
     override def adminStateUp = true
 
+    /**
+     * The classifier selecting the rules that may match a packet, compiled
+     * when the chain is built by the chain mapper, or null if the rules do not
+     * constrain any of the classified fields.
+     */
+    private val classifier = RuleClassifier.compile(rules)
+
     def getJumpTarget(to: UUID): Chain = jumpTargets.get(to)
 
     @VisibleForTesting def isJumpTargetsEmpty: Boolean = jumpTargets.isEmpty
@@ -74,39 +81,67 @@ case class Chain(id: UUID,
 
         context.addFlowTag(deviceTag)
         traversedChains.add(id)
-        var i = 0
         var res = Continue
-        while ((i < rules.size()) && (res.action eq Action.CONTINUE)) {
-            val rule = rules.get(i)
-            i += 1
-            res = rule.process(context)
-
-            res.action match {
-                case Action.ACCEPT | Action.RETURN =>
-                    var i = 0
-                    while (i < ruleLoggers.size) {
-                        ruleLoggers(i).logAccept(context, this, rule)
-                        i += 1
-                    }
-                case Action.DROP | Action.REJECT =>
-                    var i = 0
-                    while (i < ruleLoggers.size) {
-                        ruleLoggers(i).logDrop(context, this, rule)
-                        i += 1
+        if (classifier eq null) {
+            var i = 0
+            while ((i < rules.size()) && (res.action eq Action.CONTINUE)) {
+                res = applyRule(context, rules.get(i), traversedChains)
+                i += 1
+            }
+        } else {
+            // Only evaluate the rules selected by the classifier, in order.
+            val words = classifier.words()
+            val fmatch = context.wcmatch
+            var word = 0
+            while ((word < words) && (res.action eq Action.CONTINUE)) {
+                var bits = classifier.candidates(fmatch, word)
+                while ((bits != 0) && (res.action eq Action.CONTINUE)) {
+                    val i = (word << 6) + java.lang.Long.numberOfTrailingZeros(bits)
+                    bits &= bits - 1
+                    res = applyRule(context, rules.get(i), traversedChains)
+                    if ((res.action eq Action.CONTINUE) &&
+                        classifier.mayModifyMatch(i)) {
+                        // The rule may have modified the match: select the
+                        // remaining rules of the word from the new values.
+                        bits = classifier.candidates(fmatch, word) &
+                               (-2L << i)
                     }
-                case _ =>
+                }
+                word += 1
             }
+        }
+        assert(res.action ne Action.JUMP)
+        res
+    }
 
-            if (rule.id == null) {
-                context.log.warn(s"Rule $rule missing identifier")
-            } else {
-                context.recordTraversedRule(rule.id, res)
-            }
+    private def applyRule(context: PacketContext, rule: Rule,
+                          traversedChains: util.ArrayList[UUID]): RuleResult = {
+        var res = rule.process(context)
+
+        res.action match {
+            case Action.ACCEPT | Action.RETURN =>
+                var i = 0
+                while (i < ruleLoggers.size) {
+                    ruleLoggers(i).logAccept(context, this, rule)
+                    i += 1
+                }
+            case Action.DROP | Action.REJECT =>
+                var i = 0
+                while (i < ruleLoggers.size) {
+                    ruleLoggers(i).logDrop(context, this, rule)
+                    i += 1
+                }
+            case _ =>
+        }
 
-            if (res.action eq Action.JUMP)
-                res = jump(context, res.jumpToChain, traversedChains)
+        if (rule.id == null) {
+            context.log.warn(s"Rule $rule missing identifier")
+        } else {
+            context.recordTraversedRule(rule.id, res)
         }
-        assert(res.action ne Action.JUMP)
+
+        if (res.action eq Action.JUMP)
+            res = jump(context, res.jumpToChain, traversedChains)
         res
     }
 
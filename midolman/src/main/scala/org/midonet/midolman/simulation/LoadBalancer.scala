@@ -16,18 +16,33 @@
 package org.midonet.midolman.simulation
 
 import java.util
-import java.util.{Objects, UUID}
+import java.util.{HashMap => JHashMap, Objects, UUID}
 
 import scala.collection.breakOut
 
 import org.midonet.midolman.rules.RuleResult
 import org.midonet.midolman.topology.VirtualTopology.{VirtualDevice, tryGet}
+import org.midonet.packets.IPAddr
 import org.midonet.sdn.flows.FlowTagger
 
 object LoadBalancer {
     val simpleAcceptRuleResult = new RuleResult(RuleResult.Action.ACCEPT)
     val simpleContinueRuleResult = new RuleResult(RuleResult.Action.CONTINUE)
     val simpleDropRuleResult = new RuleResult(RuleResult.Action.DROP)
+
+    /**
+     * Indexes the VIPs that are administratively up by their address,
+     * preserving the order of the VIPs sharing an address.
+     */
+    private def indexByAddress(vips: Array[Vip]): JHashMap[IPAddr, Array[Vip]] = {
+        val index = new JHashMap[IPAddr, Array[Vip]]()
+        for (vip <- vips if vip.adminStateUp && (vip.address ne null)) {
+            val group = index.get(vip.address)
+            index.put(vip.address, if (group eq null) Array(vip)
+                                   else group :+ vip)
+        }
+        index
+    }
 }
 
 class LoadBalancer(val id: UUID, val adminStateUp: Boolean, val routerId: UUID,
@@ -40,6 +55,12 @@ class LoadBalancer(val id: UUID, val adminStateUp: Boolean, val routerId: UUID,
 
     val vips: Array[Vip] = pools.flatMap(_.vips)(breakOut)
 
+    // The VIPs are looked up by the address of the packet, and only the VIPs
+    // with that address are matched against the rest of the packet. The
+    // address is only read when there are VIPs administratively up, as the
+    // linear scan of all VIPs did, to keep the same wildcards in the flows.
+    private val vipsByAddress = indexByAddress(vips)
+
     // Session persistence should only ever be set on either pools or VIPs,
     // never both. Ignore VIP settings if we see a pool with sticky source.
     val (hasStickySource, hasNonStickySource) =
@@ -140,20 +161,30 @@ class LoadBalancer(val id: UUID, val adminStateUp: Boolean, val routerId: UUID,
     }
 
     private def findVip(context: PacketContext): Vip = {
+        if (vipsByAddress.isEmpty)
+            return null
+        val candidates = vipsByAddress.get(context.wcmatch.getNetworkDstIP)
+        if (candidates eq null)
+            return null
         var i = 0
-        while (i < vips.length) {
-            if (vips(i).matches(context))
-                return vips(i)
+        while (i < candidates.length) {
+            if (candidates(i).matches(context))
+                return candidates(i)
             i += 1
         }
         null
     }
 
     private def findVipReturn(context: PacketContext): Vip = {
+        if (vipsByAddress.isEmpty)
+            return null
+        val candidates = vipsByAddress.get(context.wcmatch.getNetworkSrcIP)
+        if (candidates eq null)
+            return null
         var i = 0
-        while (i < vips.length) {
-            if (vips(i).matchesReturn(context))
-                return vips(i)
+        while (i < candidates.length) {
+            if (candidates(i).matchesReturn(context))
+                return candidates(i)
             i += 1
         }
         null
@@ -407,6 +407,8 @@ class PacketContext extends Clearable
     val outPorts = new ArrayList[UUID]()
     var currentDevice: UUID = _
     var routeTo: Route = _
+    // Reused by the routers to store the routes matched by a lookup.
+    val matchedRoutes = new ArrayList[Route](4)
     var nwDstRewritten: Boolean = _
 
     val preRoutingMatch = new FlowMatch
@@ -495,6 +497,7 @@ class PacketContext extends Clearable
 
     override def clear(): Unit = {
         super.clear()
+        matchedRoutes.clear()
         flowRemovedCallbacks.runAndClear()
     }
 
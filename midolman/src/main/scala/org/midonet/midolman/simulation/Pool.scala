@@ -17,7 +17,9 @@
 package org.midonet.midolman.simulation
 
 import java.util
-import java.util.{Objects, UUID}
+import java.util.{HashMap => JHashMap, Objects, UUID}
+
+import scala.util.hashing.MurmurHash3
 
 import org.midonet.midolman.state.NatState.NatKey
 import org.midonet.midolman.state.l4lb.{PoolLBMethod, SessionPersistence}
@@ -25,7 +27,7 @@ import org.midonet.midolman.topology.VirtualTopology.VirtualDevice
 import org.midonet.packets.{ICMP, IPAddr}
 import org.midonet.packets.NatState
 import org.midonet.sdn.flows.FlowTagger
-import org.midonet.util.collection.WeightedSelector
+import org.midonet.util.collection.MaglevSelector
 
 object Pool {
     def findPoolMember(ip: IPAddr, port: Int, pmArray: Array[PoolMember])
@@ -39,6 +41,42 @@ object Pool {
         }
         false
     }
+
+    /**
+     * Indexes the pool members by address, such that finding a member only
+     * scans the members sharing the address of the packet.
+     */
+    private def indexByAddress(members: Array[PoolMember])
+    : JHashMap[IPAddr, Array[PoolMember]] = {
+        val index = new JHashMap[IPAddr, Array[PoolMember]]()
+        for ((address, group) <- members.groupBy(_.address)) {
+            index.put(address, group)
+        }
+        index
+    }
+
+    private def memberKey(member: PoolMember): Long =
+        member.id.getMostSignificantBits ^ member.id.getLeastSignificantBits
+
+    private final val HashSeed = 0x7a3c9f1d
+
+    /**
+     * Hashes the connection of a packet sent to a VIP, or only its source
+     * address if the VIP has sticky source IP, such that all agents select
+     * the same pool member for it.
+     */
+    private def connectionHash(context: PacketContext,
+                               stickySourceIP: Boolean): Int = {
+        val fmatch = context.wcmatch
+        var hash = MurmurHash3.mix(HashSeed, fmatch.getNetworkSrcIP.hashCode)
+        if (stickySourceIP)
+            return MurmurHash3.finalizeHash(hash, 1)
+        hash = MurmurHash3.mix(hash, fmatch.getSrcPort)
+        hash = MurmurHash3.mix(hash, fmatch.getNetworkDstIP.hashCode)
+        hash = MurmurHash3.mix(hash, fmatch.getDstPort)
+        hash = MurmurHash3.mixLast(hash, fmatch.getNetworkProto)
+        MurmurHash3.finalizeHash(hash, 5)
+    }
 }
 
 final class Pool(val id: UUID, val adminStateUp: Boolean,
@@ -56,8 +94,14 @@ final class Pool(val id: UUID, val adminStateUp: Boolean,
 
     val isUp = adminStateUp && activePoolMembers.nonEmpty
 
-    private val memberSelector = if (!isUp) null
-                                 else WeightedSelector(activePoolMembers)
+    // Members are selected by consistent hashing of the connection, such
+    // that every agent selects the same member for the same connection.
+    private val memberSelector =
+        if (!isUp) null
+        else MaglevSelector[PoolMember](activePoolMembers, Pool.memberKey)
+
+    private val activeByAddress = Pool.indexByAddress(activePoolMembers)
+    private val disabledByAddress = Pool.indexByAddress(disabledPoolMembers)
 
     /**
      * Choose an active pool member and apply DNAT to the packetContext
@@ -76,7 +120,7 @@ final class Pool(val id: UUID, val adminStateUp: Boolean,
         context.addFlowTag(deviceTag)
 
         if (isUp) {
-            val member = memberSelector.select()
+            val member = selectMember(context, stickySourceIP)
             if (context.log.underlying.isDebugEnabled) {
                 context.log.debug(s"Selected member $member out of {}",
                                   activePoolMembers.mkString(", "))
@@ -88,6 +132,15 @@ final class Pool(val id: UUID, val adminStateUp: Boolean,
         }
     }
 
+    /**
+     * Selects the active pool member for the connection of the packet, or
+     * for its source address if the VIP has sticky source IP.
+     */
+    private[simulation] def selectMember(context: PacketContext,
+                                         stickySourceIP: Boolean)
+    : PoolMember =
+        memberSelector.select(Pool.connectionHash(context, stickySourceIP))
+
     /**
      * Applies the reverse load balance DNAT. If the source pool member is down
      * and it's a sticky IP, we drop the packet.
@@ -180,10 +233,16 @@ final class Pool(val id: UUID, val adminStateUp: Boolean,
             isActiveBackend(ip, port) || isDisabledBackend(ip, port)
 
     private def isActiveBackend(ip: IPAddr, port: Int) =
-        Pool.findPoolMember(ip, port, activePoolMembers)
+        isBackend(ip, port, activeByAddress)
 
     private def isDisabledBackend(ip: IPAddr, port: Int) =
-        Pool.findPoolMember(ip, port, disabledPoolMembers)
+        isBackend(ip, port, disabledByAddress)
+
+    private def isBackend(ip: IPAddr, port: Int,
+                          index: JHashMap[IPAddr, Array[PoolMember]]) = {
+        val members = index.get(ip)
+        (members ne null) && Pool.findPoolMember(ip, port, members)
+    }
 
     val isStickySourceIP = sessionPersistence == SessionPersistence.SOURCE_IP
 
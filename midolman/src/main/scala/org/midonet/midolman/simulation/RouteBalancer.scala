@@ -16,29 +16,87 @@
 
 package org.midonet.midolman.simulation
 
+import java.util.ArrayList
+
 import org.midonet.midolman.layer3.Route
 import org.midonet.midolman.simulation.Router.RoutingTable
 import org.midonet.odp.FlowMatch
+import org.midonet.packets.{ICMP, IPAddr, IPv4Addr, TCP, UDP}
 import org.midonet.util.logging.Logger
 
+object RouteBalancer {
+
+    /**
+     * Computes a hash of the flow 5-tuple, used to select one among multiple
+     * equal-cost routes, such that all packets of a flow take the same route.
+     * The fields are read through the [[FlowMatch]] accessors, such that they
+     * are marked as seen and the flow is not wildcarded over them.
+     */
+    def flowHash(fmatch: FlowMatch): Int = {
+        var hash = addressHash(fmatch.getNetworkSrcIP)
+        hash = 31 * hash + addressHash(fmatch.getNetworkDstIP)
+        val proto = fmatch.getNetworkProto
+        hash = 31 * hash + proto
+        if (proto == TCP.PROTOCOL_NUMBER || proto == UDP.PROTOCOL_NUMBER) {
+            hash = 31 * hash + fmatch.getSrcPort
+            hash = 31 * hash + fmatch.getDstPort
+        } else if (proto == ICMP.PROTOCOL_NUMBER) {
+            hash = 31 * hash + fmatch.getIcmpIdentifier
+        }
+        mix(hash)
+    }
+
+    /**
+     * Selects the index of the route for the flow among the given number of
+     * equal-cost routes.
+     */
+    def select(fmatch: FlowMatch, size: Int): Int =
+        (flowHash(fmatch) & Int.MaxValue) % size
+
+    @inline
+    private def addressHash(addr: IPAddr): Int = addr match {
+        case null => 0
+        case ipv4: IPv4Addr => ipv4.toInt
+        case _ => addr.hashCode()
+    }
+
+    // The MurmurHash3 finalizer, which spreads the 5-tuple over all bits.
+    @inline
+    private def mix(value: Int): Int = {
+        var h = value
+        h ^= h >>> 16
+        h *= 0x85ebca6b
+        h ^= h >>> 13
+        h *= 0xc2b2ae35
+        h ^= h >>> 16
+        h
+    }
+}
+
 /**
  * Handles lookups on the routing table. If multiple routes match, chooses
- * one based on the flow's hash.
+ * one based on the hash of the flow's 5-tuple.
  */
 class RouteBalancer(val rTable: RoutingTable) extends AnyVal {
 
-    def lookup(fmatch: FlowMatch, logger: Logger): Route = {
-        val routes = rTable.lookup(fmatch, logger)
-        routes.size match {
+    /**
+     * Looks up the route for the flow, using the given buffer to store the
+     * matching routes, such that the lookup does not allocate memory.
+     */
+    def lookup(fmatch: FlowMatch, routes: ArrayList[Route],
+               logger: Logger): Route =
+        rTable.lookup(fmatch, routes, logger) match {
             case 0 => null
             case 1 =>
                 logger.debug("routing to {}", routes.get(0))
                 routes.get(0)
             case size =>
-                val ret = routes.get(Math.abs(fmatch.connectionHash()) % size)
+                val ret = routes.get(RouteBalancer.select(fmatch, size))
                 logger.debug("got multiple routes: {}, selected {}",
                              routes, ret)
                 ret
         }
-    }
+
+    def lookup(fmatch: FlowMatch, logger: Logger): Route =
+        lookup(fmatch, new ArrayList[Route](), logger)
 }
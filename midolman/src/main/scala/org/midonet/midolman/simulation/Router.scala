@@ -70,6 +70,23 @@ object Router {
     trait RoutingTable {
         def lookup(flowMatch: FlowMatch): java.util.List[Route]
         def lookup(flowMatch: FlowMatch, log: Logger): java.util.List[Route]
+
+        /**
+         * Writes the routes matching the flow into the given buffer, after
+         * clearing it, and returns the number of matching routes. This allows
+         * the caller to reuse the same buffer for all lookups.
+         */
+        def lookup(flowMatch: FlowMatch, routes: util.ArrayList[Route],
+                   log: Logger): Int = {
+            val result = lookup(flowMatch, log)
+            routes.clear()
+            var index = 0
+            while (index < result.size) {
+                routes.add(result.get(index))
+                index += 1
+            }
+            routes.size
+        }
     }
 
     private val connTrackTxNoOp = new FlowStateTransaction(
@@ -470,7 +487,8 @@ class Router(override val id: UUID,
         val ipMatch = new FlowMatch()
                       .setNetworkDst(packet.getDestinationIPAddress)
                       .setNetworkSrc(packet.getSourceIPAddress)
-        val rt: Route = routeBalancer.lookup(ipMatch, context.log)
+        val rt: Route = routeBalancer.lookup(ipMatch, context.matchedRoutes,
+                                             context.log)
         if (rt == null || rt.nextHop != Route.NextHop.PORT)
             return false
         if (rt.nextHopPort == null)
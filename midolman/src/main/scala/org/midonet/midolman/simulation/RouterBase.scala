@@ -299,7 +299,8 @@ abstract class RouterBase[IP <: IPAddr]()
         }
 
         def applyRoutingTable(): (Route, SimulationResult) = {
-            val rt: Route = routeBalancer.lookup(fmatch, context.log)
+            val rt: Route = routeBalancer.lookup(fmatch, context.matchedRoutes,
+                                                   context.log)
 
             if (rt == null) {
                 // No route to network
@@ -16,6 +16,7 @@
 
 package org.midonet.midolman.state
 
+import java.nio.ByteBuffer
 import java.util.UUID
 
 import akka.actor.ActorSystem
@@ -26,8 +27,8 @@ import org.midonet.midolman.state.FlowState.FlowStateKey
 import org.midonet.midolman.topology.VirtualTopology
 import org.midonet.odp.FlowMatch
 import org.midonet.packets.ConnTrackState.{ConnTrackKeyAllocator, ConnTrackKeyStore}
-import org.midonet.packets.{ICMP, IPAddr, IPv4, TCP, UDP}
-import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.packets.{ICMP, IPAddr, IPv4, IPv4Addr, IPv6Addr, TCP, UDP}
+import org.midonet.sdn.state.{FlowStateCodec, FlowStateTransaction}
 
 object ConnTrackState {
     type ConnTrackValue = java.lang.Boolean
@@ -78,6 +79,86 @@ object ConnTrackState {
         }
         or.intValue()
     }
+
+    /**
+     * Encodes the connection tracking keys and values as fixed-width records
+     * for the off-heap flow state table.
+     */
+    object ConnTrackCodec extends FlowStateCodec[ConnTrackKey, ConnTrackValue] {
+        private final val SrcIPv6 = 0x1
+        private final val DstIPv6 = 0x2
+        private final val HasDevice = 0x4
+
+        override val keySize = 58
+        override val valueSize = 1
+
+        private def encodeAddress(address: IPAddr, buffer: ByteBuffer,
+                                  offset: Int): Int = address match {
+            case ipv6: IPv6Addr =>
+                buffer.putLong(offset, ipv6.upperWord)
+                buffer.putLong(offset + 8, ipv6.lowerWord)
+                1
+            case ipv4: IPv4Addr =>
+                buffer.putLong(offset, 0L)
+                buffer.putLong(offset + 8, ipv4.addr & 0xffffffffL)
+                0
+            case _ =>
+                buffer.putLong(offset, 0L)
+                buffer.putLong(offset + 8, 0L)
+                0
+        }
+
+        private def decodeAddress(buffer: ByteBuffer, offset: Int,
+                                  ipv6: Boolean): IPAddr =
+            if (ipv6) new IPv6Addr(buffer.getLong(offset),
+                                   buffer.getLong(offset + 8))
+            else IPv4Addr.fromInt(buffer.getLong(offset + 8).toInt)
+
+        override def encodeKey(key: ConnTrackKey, buffer: ByteBuffer,
+                               offset: Int): Unit = {
+            var flags = encodeAddress(key.networkSrc, buffer, offset) * SrcIPv6
+            flags |= encodeAddress(key.networkDst, buffer, offset + 16) * DstIPv6
+            if (key.deviceId ne null) {
+                buffer.putLong(offset + 32, key.deviceId.getMostSignificantBits)
+                buffer.putLong(offset + 40, key.deviceId.getLeastSignificantBits)
+                flags |= HasDevice
+            } else {
+                buffer.putLong(offset + 32, 0L)
+                buffer.putLong(offset + 40, 0L)
+            }
+            buffer.putInt(offset + 48, key.icmpIdOrTransportSrc)
+            buffer.putInt(offset + 52, key.icmpIdOrTransportDst)
+            buffer.put(offset + 56, key.networkProtocol)
+            buffer.put(offset + 57, flags.toByte)
+        }
+
+        override def decodeKey(buffer: ByteBuffer, offset: Int): ConnTrackKey = {
+            val flags = buffer.get(offset + 57)
+            ConnTrackKey(decodeAddress(buffer, offset, (flags & SrcIPv6) != 0),
+                         buffer.getInt(offset + 48),
+                         decodeAddress(buffer, offset + 16,
+                                       (flags & DstIPv6) != 0),
+                         buffer.getInt(offset + 52),
+                         buffer.get(offset + 56),
+                         if ((flags & HasDevice) != 0)
+                             new UUID(buffer.getLong(offset + 32),
+                                      buffer.getLong(offset + 40))
+                         else null)
+        }
+
+        override def encodeValue(value: ConnTrackValue, buffer: ByteBuffer,
+                                 offset: Int): Unit =
+            buffer.put(offset, (if (value eq null) 0
+                                else if (value.booleanValue()) 1
+                                else 2).toByte)
+
+        override def decodeValue(buffer: ByteBuffer, offset: Int): ConnTrackValue =
+            buffer.get(offset) match {
+                case 1 => java.lang.Boolean.TRUE
+                case 2 => java.lang.Boolean.FALSE
+                case _ => null
+            }
+    }
 }
 
 /**
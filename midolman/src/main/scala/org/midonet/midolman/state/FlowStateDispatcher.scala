@@ -0,0 +1,293 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.net.{DatagramPacket, DatagramSocket, InetAddress}
+import java.nio.ByteBuffer
+import java.util.ArrayList
+
+import scala.collection.IndexedSeq
+import scala.util.control.NonFatal
+
+import com.google.common.annotations.VisibleForTesting
+import com.typesafe.scalalogging.Logger
+
+import org.slf4j.LoggerFactory
+
+import org.midonet.midolman.PacketWorker
+import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.FlowState.FlowStateKey
+import org.midonet.midolman.state.FlowStateReplicator.{StateReceiver, decodeState}
+import org.midonet.midolman.state.NatState.NatKey
+import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
+import org.midonet.odp.{FlowMatch, Packet}
+import org.midonet.packets.NatState.NatBinding
+import org.midonet.packets.{FlowStateEthernet, ICMP, IPAddr, SbeEncoder}
+import org.midonet.services.flowstate.{FlowStateInternalMessageHeaderSize, FlowStateInternalMessageType}
+
+/**
+ * The flow state received from peers during an upcall batch that a packet
+ * worker must write to its flow state tables, and the keys received by all
+ * workers in the same batch, whose flows the worker must invalidate.
+ *
+ * The dispatcher reuses the state of a worker for a later batch once the
+ * worker has released it.
+ */
+final class ReceivedFlowState {
+    val conntrackKeys = new ArrayList[ConnTrackKey]()
+    val natKeys = new ArrayList[NatKey]()
+    val natBindings = new ArrayList[NatBinding]()
+    val traceKeys = new ArrayList[TraceKey]()
+    val traceContexts = new ArrayList[TraceContext]()
+    val invalidations = new ArrayList[FlowStateKey]()
+
+    /** The number of state packets accounted by this worker, for which it
+      * returns the HTB tokens. */
+    var statePackets = 0
+
+    @volatile private var submitted = false
+
+    /** Called by the packet worker when it no longer reads the state, after
+      * which the dispatcher may reuse it. */
+    def release(): Unit = {
+        submitted = false
+    }
+
+    private[state] def isSubmitted: Boolean = submitted
+
+    private[state] def submit(): Unit = {
+        submitted = true
+    }
+
+    private[state] def clear(): Unit = {
+        conntrackKeys.clear()
+        natKeys.clear()
+        natBindings.clear()
+        traceKeys.clear()
+        traceContexts.clear()
+        invalidations.clear()
+        statePackets = 0
+    }
+
+    override def toString =
+        s"ReceivedFlowState[conntrack=${conntrackKeys.size} " +
+        s"nat=${natKeys.size} trace=${traceKeys.size} " +
+        s"invalidations=${invalidations.size} packets=$statePackets]"
+}
+
+/**
+ * Decodes the flow state messages received from peers on the upcall thread,
+ * and dispatches each of their entries only to the packet worker that owns
+ * the flow the entry applies to, instead of having every worker decode every
+ * message. The owner is the worker that the upcall handler submits the
+ * packets of that flow to, as given by the connection hash of their match:
+ *
+ *  - conntrack keys are looked up by the return flow, so they are owned by
+ *    the worker of the packets going from the destination of the key to its
+ *    source.
+ *  - nat and trace keys are looked up by the packets whose match they were
+ *    built from.
+ *
+ * The ownership only improves the locality of the state: packets hashed
+ * differently, such as ICMP errors or tunnelled packets, are still able to
+ * find the entries because every worker reads from the whole flow state
+ * tables. The flows tagged with a received key may have been installed by
+ * any of the workers, so every worker invalidates them.
+ *
+ * Entries are accumulated per worker and submitted at the end of each upcall
+ * batch. Every state message takes a token from the HTB, and exactly one of
+ * the workers returns it. The state of each worker is reused for the next
+ * batch if the worker has released it, and replaced otherwise.
+ *
+ * NOT thread-safe: it is only used by the upcall thread that owns it.
+ */
+class FlowStateDispatcher(workers: IndexedSeq[PacketWorker],
+                          config: MidolmanConfig) {
+    import FlowStateAgentPackets._
+
+    private val log =
+        Logger(LoggerFactory.getLogger("org.midonet.state.replication"))
+
+    private val numWorkers = workers.length
+    private val encoder = new SbeEncoder
+    private val connectionMatch = new FlowMatch
+
+    // The state of every worker, and whether it has entries in the current
+    // batch.
+    private val states = Array.fill(numWorkers)(new ReceivedFlowState)
+    private val pending = new Array[Boolean](numWorkers)
+    // The keys received in the current batch, whose flows every worker
+    // invalidates.
+    private val invalidations = new ArrayList[FlowStateKey]()
+    private var statePackets = 0
+
+    /* Used for sending flow state messages to minion */
+    @VisibleForTesting
+    protected[state] val flowStateSocket = new DatagramSocket()
+    private val flowStatePacket =
+        new DatagramPacket(Array.emptyByteArray, 0,
+                           InetAddress.getLoopbackAddress, config.flowState.port)
+    private val flowStateBuffer =
+        ByteBuffer.allocate(FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH)
+
+    private val partitioner = new StateReceiver {
+        override def conntrack(k: ConnTrackKey): Unit = {
+            val state = stateFor(ownerOf(k.networkDst, k.icmpIdOrTransportDst,
+                                         k.networkSrc, k.icmpIdOrTransportSrc,
+                                         k.networkProtocol))
+            state.conntrackKeys.add(k)
+            invalidations.add(k)
+        }
+
+        override def nat(k: NatKey, v: NatBinding): Unit = {
+            val state = stateFor(ownerOf(k.networkSrc, k.transportSrc,
+                                         k.networkDst, k.transportDst,
+                                         k.networkProtocol))
+            state.natKeys.add(k)
+            state.natBindings.add(v)
+            invalidations.add(k)
+        }
+
+        override def trace(k: TraceKey, ctx: TraceContext): Unit = {
+            val state = stateFor(ownerOf(k.networkSrc, k.srcPort,
+                                         k.networkDst, k.dstPort,
+                                         k.networkProto))
+            state.traceKeys.add(k)
+            state.traceContexts.add(ctx)
+        }
+    }
+
+    /**
+     * Decodes a state packet and assigns its entries to their owners.
+     * Returns false if the packet is not a valid flow state message, in which
+     * case its HTB token must be returned by the caller.
+     */
+    def dispatch(packet: Packet): Boolean = {
+        val data = parseDatagram(packet.getEthernet)
+        if (data eq null) {
+            log.info("Ignoring unexpected packet: {}", packet.getEthernet)
+            return false
+        }
+        try {
+            encoder.decodeFrom(data.getData)
+            if (decodeState(encoder, partitioner, log) &&
+                config.flowState.localPushState) {
+                pushState(encoder.flowStateBuffer.array,
+                          encoder.encodedLength())
+            }
+        } catch {
+            case e: IllegalArgumentException =>
+                log.error("Error decoding flow state", e)
+                return false
+        }
+        statePackets += 1
+        true
+    }
+
+    /**
+     * Submits the state accumulated during the upcall batch to the workers.
+     * The tokens of the state packets are given to the first worker that
+     * accepts its state, and they are retained for the next batch if the
+     * queues of all workers are full.
+     */
+    def flush(): Unit = {
+        if (statePackets == 0 && invalidations.isEmpty)
+            return
+
+        var tokens = statePackets
+        var i = 0
+        while (i < numWorkers) {
+            if (pending(i) || tokens > 0 || !invalidations.isEmpty) {
+                val state = stateFor(i)
+                var j = 0
+                while (j < invalidations.size) {
+                    state.invalidations.add(invalidations.get(j))
+                    j += 1
+                }
+                state.statePackets = tokens
+                state.submit()
+                if (workers(i).submit(state)) {
+                    tokens = 0
+                } else {
+                    state.release()
+                    log.debug("Dropped flow state for packet worker {}: {}",
+                              Int.box(i), state)
+                }
+                pending(i) = false
+            }
+            i += 1
+        }
+
+        statePackets = tokens
+        invalidations.clear()
+    }
+
+    /** Returns the state of the worker for the current batch, clearing the
+      * state of the previous batch if the worker has released it, or
+      * replacing it otherwise. */
+    private def stateFor(worker: Int): ReceivedFlowState = {
+        if (!pending(worker)) {
+            if (states(worker).isSubmitted) {
+                states(worker) = new ReceivedFlowState
+            } else {
+                states(worker).clear()
+            }
+            pending(worker) = true
+        }
+        states(worker)
+    }
+
+    /**
+     * Returns the worker that the upcall handler submits the packets with
+     * the given 5-tuple to. For ICMP the transport source is the identifier,
+     * and the type and code are those of an echo reply.
+     */
+    @VisibleForTesting
+    private[state] def ownerOf(networkSrc: IPAddr, transportSrc: Int,
+                               networkDst: IPAddr, transportDst: Int,
+                               protocol: Byte): Int = {
+        connectionMatch.clear()
+        if (networkSrc ne null) connectionMatch.setNetworkSrc(networkSrc)
+        if (networkDst ne null) connectionMatch.setNetworkDst(networkDst)
+        connectionMatch.setNetworkProto(protocol)
+        if (protocol == ICMP.PROTOCOL_NUMBER) {
+            connectionMatch.setSrcPort(0)
+            connectionMatch.setDstPort(0)
+            connectionMatch.setIcmpIdentifier(transportSrc)
+        } else {
+            connectionMatch.setSrcPort(transportSrc)
+            connectionMatch.setDstPort(transportDst)
+            connectionMatch.setIcmpIdentifier(0)
+        }
+        PacketWorker.indexOf(connectionMatch.connectionHash, numWorkers)
+    }
+
+    private def pushState(msg: Array[Byte], length: Int): Unit = try {
+        flowStateBuffer.clear()
+        flowStateBuffer.putInt(FlowStateInternalMessageType.FlowStateMessage)
+        flowStateBuffer.putInt(length)
+        flowStateBuffer.put(msg, 0, length)
+        flowStatePacket.setData(flowStateBuffer.array,
+                                0,
+                                length + FlowStateInternalMessageHeaderSize)
+        flowStateSocket.send(flowStatePacket)
+    } catch {
+        case NonFatal(e) =>
+            log.debug("Failed to push flow state to the minion", e)
+    }
+}
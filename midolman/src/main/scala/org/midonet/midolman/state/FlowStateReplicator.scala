@@ -47,6 +47,95 @@ import org.midonet.services.flowstate.{FlowStateInternalMessageHeaderSize, FlowS
 import org.midonet.util.collection.Reducer
 import org.midonet.util.functors.Callback0
 
+object FlowStateReplicator {
+
+    /**
+     * Receives the entries of a flow state message, as they are decoded by
+     * [[FlowStateReplicator.decodeState]].
+     */
+    trait StateReceiver {
+        def conntrack(k: ConnTrackKey): Unit
+        def nat(k: NatKey, v: NatBinding): Unit
+        def trace(k: TraceKey, ctx: TraceContext): Unit
+    }
+
+    /**
+     * Decodes the flow state message held by the encoder and passes its
+     * entries to the receiver. Returns whether the message could be read to
+     * its end, which is not the case for the messages sent by older agents
+     * that do not carry the port ids.
+     */
+    def decodeState(encoder: SbeEncoder, receiver: StateReceiver,
+                    log: Logger): Boolean = {
+        import FlowStateAgentPackets._
+
+        val msg = encoder.flowStateMessage
+        val sender = uuidFromSbe(msg.sender)
+        log.debug("Got state replication message from: {}", sender)
+
+        val conntrackIter = msg.conntrack
+        while (conntrackIter.hasNext()) {
+            val k = connTrackKeyFromSbe(conntrackIter.next(), ConnTrackKey)
+            log.debug("got new conntrack key: {}", k)
+            receiver.conntrack(k)
+        }
+
+        val natIter = msg.nat
+        while (natIter.hasNext()) {
+            val nat = natIter.next()
+            val k = natKeyFromSbe(nat, NatKey)
+            val v = natBindingFromSbe(nat)
+            log.debug("Got new nat mapping: {} -> {}", k, v)
+            receiver.nat(k, v)
+        }
+
+        val traceIter = msg.trace
+        if (traceIter.count > 0) {
+            // There's only one trace object, so no need to iterate
+            val trace = traceIter.next()
+            val k = traceFromSbe(trace, TraceKey)
+            val ctx = new TraceContext(uuidFromSbe(trace.flowTraceId))
+            ctx.enable()
+
+            val reqIdsIter = msg.traceRequestIds
+            while (reqIdsIter.hasNext) {
+                ctx.addRequest(uuidFromSbe(reqIdsIter.next().id))
+            }
+            log.debug("Got new trace state: {} -> {}", k, ctx)
+            receiver.trace(k, ctx)
+        } else {
+            try {
+                // Bypass Trace request IDs to reach the last group, portIds.
+                val reqIdsIter = msg.traceRequestIds
+            } catch {
+                case NonFatal(e) =>
+                // 5.0 does not set the count of traceRequestIds (and will throw
+                // an IndexOutOfBounds exception) whereas 5.2 does set the
+                // count to 0 (so we need to at least load the header of the
+                // group to get to the portIds).
+            }
+        }
+
+        // Read the rest of the message so we know the actual encoded length
+        try {
+            val portIds = msg.portIds
+            if (portIds.hasNext) {
+                portIds.next
+                val egressPorts = portIds.egressPortIds
+                while (egressPorts.hasNext) egressPorts.next
+            }
+            true
+        } catch {
+            case NonFatal(e) =>
+                // If we have a failure here means that we tried to read past
+                // the buffer limit (meaning the message came from an older
+                // agent version). Just ignore it as in that case we don't
+                // need to send it to the minion.
+                false
+        }
+    }
+}
+
 /**
  * A class to replicate per-flow connection state between interested hosts.
  *
@@ -82,9 +171,10 @@ import org.midonet.util.functors.Callback0
  *     expirations, making use of the internal state that keeps track of which
  *     hosts received what.
  *
- *   3 Received state will always be processed by the same packet processing
- *     thread, because state packets have all the same flow match. It will be
- *     written to its local shard.
+ *   3 Received state is decoded once on the upcall thread by the
+ *     FlowStateDispatcher, and each key is written by the packet processing
+ *     thread that owns its flow, to its local shard. State packets handed
+ *     directly to a packet processing thread are written to its local shard.
  *
  *   4 Received deletion notifications will also be processed by the same
  *     packet processing thread, because of the flow match. This guarantees
@@ -103,6 +193,7 @@ class FlowStateReplicator(
         flowInvalidation: FlowTagIndexer,
         midolmanConfig: MidolmanConfig) {
     import FlowStateAgentPackets._
+    import FlowStateReplicator._
     private val log = Logger(LoggerFactory.getLogger("org.midonet.state.replication"))
 
     private val flowStateEncoder = new SbeEncoder
@@ -291,75 +382,64 @@ class FlowStateReplicator(
         flowStateSocket.send(flowStatePacket)
     }
 
-    private def acceptNewState(encoder: SbeEncoder) {
-        val msg = encoder.flowStateMessage
-        val sender = uuidFromSbe(msg.sender)
-        log.debug("Got state replication message from: {}", sender)
-
-        val conntrackIter = msg.conntrack
-        while (conntrackIter.hasNext()) {
-            val k = connTrackKeyFromSbe(conntrackIter.next(), ConnTrackKey)
-            log.debug("got new conntrack key: {}", k)
+    private val stateWriter = new StateReceiver {
+        override def conntrack(k: ConnTrackKey): Unit = {
             conntrackTable.touch(k, ConnTrackState.RETURN_FLOW)
             flowInvalidation.invalidateFlowsFor(k)
         }
 
-        val natIter = msg.nat
-        while (natIter.hasNext()) {
-            val nat = natIter.next()
-            val k = natKeyFromSbe(nat, NatKey)
-            val v = natBindingFromSbe(nat)
-            log.debug("Got new nat mapping: {} -> {}", k, v)
+        override def nat(k: NatKey, v: NatBinding): Unit = {
             natTable.touch(k, v)
             flowInvalidation.invalidateFlowsFor(k)
         }
 
-        val traceIter = msg.trace
-        if (traceIter.count > 0) {
-            // There's only one trace object, so no need to iterate
-            val trace = traceIter.next()
-            val k = traceFromSbe(trace, TraceKey)
-            val ctx = new TraceContext(uuidFromSbe(trace.flowTraceId))
-            ctx.enable()
-
-            val reqIdsIter = msg.traceRequestIds
-            while (reqIdsIter.hasNext) {
-                ctx.addRequest(uuidFromSbe(reqIdsIter.next().id))
-            }
-            log.debug("Got new trace state: {} -> {}", k, ctx)
+        override def trace(k: TraceKey, ctx: TraceContext): Unit =
             traceTable.touch(k, ctx)
-        } else {
+    }
+
+    private def acceptNewState(encoder: SbeEncoder) {
+        if (decodeState(encoder, stateWriter, log) &&
+            config.flowState.localPushState) {
             try {
-                // Bypass Trace request IDs to reach the last group, portIds.
-                val reqIdsIter = msg.traceRequestIds
+                sendState(encoder.flowStateBuffer.array,
+                          encoder.encodedLength())
             } catch {
                 case NonFatal(e) =>
-                // 5.0 does not set the count of traceRequestIds (and will throw
-                // an IndexOutOfBounds exception) whereas 5.2 does set the
-                // count to 0 (so we need to at least load the header of the
-                // group to get to the portIds).
+                    log.debug("Failed to push flow state to the minion", e)
             }
         }
+    }
 
-        // Read the rest of the message so we know the actual encoded length
-        try {
-            val portIds = msg.portIds
-            if (portIds.hasNext) {
-                portIds.next
-                val egressPorts = portIds.egressPortIds
-                while (egressPorts.hasNext) egressPorts.next
-            }
-
-            if (config.flowState.localPushState) {
-                sendState(encoder.flowStateBuffer.array,
-                          encoder.encodedLength())
-            }
-        } catch {
-            case NonFatal(e) =>
-                // If we have a failure here means that we tried to read past
-                // the buffer limit (meaning the message came from an older
-                // agent version). Just ignore it as in that case we don't
-                // need to send it to the minion.
+    /**
+     * Writes the flow state received from peers that the
+     * [[FlowStateDispatcher]] assigned to the packet worker owning this
+     * replicator, and invalidates the flows tagged with any of the keys
+     * received in the same upcall batch.
+     *
+     * EXPECTED CALLING THREADS: only the packet processing thread that owns
+     * this replicator.
+     */
+    def accept(state: ReceivedFlowState): Unit = {
+        var i = 0
+        while (i < state.conntrackKeys.size) {
+            conntrackTable.touch(state.conntrackKeys.get(i),
+                                 ConnTrackState.RETURN_FLOW)
+            i += 1
+        }
+        i = 0
+        while (i < state.natKeys.size) {
+            natTable.touch(state.natKeys.get(i), state.natBindings.get(i))
+            i += 1
+        }
+        i = 0
+        while (i < state.traceKeys.size) {
+            traceTable.touch(state.traceKeys.get(i), state.traceContexts.get(i))
+            i += 1
+        }
+        i = 0
+        while (i < state.invalidations.size) {
+            flowInvalidation.invalidateFlowsFor(state.invalidations.get(i))
+            i += 1
         }
     }
 
@@ -28,7 +28,7 @@ import org.midonet.odp.FlowMatch
 import org.midonet.odp.FlowMatch.Field
 import org.midonet.packets.NatState._
 import org.midonet.packets._
-import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.sdn.state.{FlowStateCodec, FlowStateTransaction}
 
 
 object NatState {
@@ -151,6 +151,68 @@ object NatState {
                                          key.transportDst, binding)
         }
 
+    /**
+     * Encodes the NAT keys and bindings as fixed-width records for the
+     * off-heap flow state table.
+     */
+    object NatCodec extends FlowStateCodec[NatKey, NatBinding] {
+        private val KeyTypes = Array[KeyType](FWD_SNAT, FWD_DNAT,
+                                              FWD_STICKY_DNAT, REV_SNAT,
+                                              REV_DNAT, REV_STICKY_DNAT)
+
+        override val keySize = 34
+        override val valueSize = 9
+
+        override def encodeKey(key: NatKey, buffer: ByteBuffer,
+                               offset: Int): Unit = {
+            buffer.putInt(offset, key.networkSrc.addr)
+            buffer.putInt(offset + 4, key.networkDst.addr)
+            buffer.putInt(offset + 8, key.transportSrc)
+            buffer.putInt(offset + 12, key.transportDst)
+            if (key.deviceId ne null) {
+                buffer.putLong(offset + 16, key.deviceId.getMostSignificantBits)
+                buffer.putLong(offset + 24, key.deviceId.getLeastSignificantBits)
+            } else {
+                buffer.putLong(offset + 16, 0L)
+                buffer.putLong(offset + 24, 0L)
+            }
+            buffer.put(offset + 32, key.networkProtocol)
+            // The key type, and whether the device is set.
+            buffer.put(offset + 33, (KeyTypes.indexOf(key.keyType) |
+                                     (if (key.deviceId ne null) 0x80 else 0)).toByte)
+        }
+
+        override def decodeKey(buffer: ByteBuffer, offset: Int): NatKey = {
+            val flags = buffer.get(offset + 33)
+            NatKey(KeyTypes((flags & 0x7f) % KeyTypes.length),
+                   IPv4Addr.fromInt(buffer.getInt(offset)),
+                   buffer.getInt(offset + 8),
+                   IPv4Addr.fromInt(buffer.getInt(offset + 4)),
+                   buffer.getInt(offset + 12),
+                   buffer.get(offset + 32),
+                   if ((flags & 0x80) != 0)
+                       new UUID(buffer.getLong(offset + 16),
+                                buffer.getLong(offset + 24))
+                   else null)
+        }
+
+        override def encodeValue(value: NatBinding, buffer: ByteBuffer,
+                                 offset: Int): Unit = {
+            if (value ne null) {
+                buffer.putInt(offset, value.networkAddress.addr)
+                buffer.putInt(offset + 4, value.transportPort)
+                buffer.put(offset + 8, 1.toByte)
+            } else {
+                buffer.putLong(offset, 0L)
+                buffer.put(offset + 8, 0.toByte)
+            }
+        }
+
+        override def decodeValue(buffer: ByteBuffer, offset: Int): NatBinding =
+            if (buffer.get(offset + 8) == 0) null
+            else NatBinding(IPv4Addr.fromInt(buffer.getInt(offset)),
+                            buffer.getInt(offset + 4))
+    }
 }
 
 trait NatState extends FlowState { this: PacketContext =>
@@ -17,6 +17,7 @@
 package org.midonet.midolman.topology
 
 import java.lang.{Boolean => JBoolean}
+import java.util.concurrent.TimeUnit.{MILLISECONDS, NANOSECONDS}
 import java.util.{UUID, ArrayList => JArrayList}
 
 import javax.annotation.Nullable
@@ -24,15 +25,16 @@ import javax.annotation.Nullable
 import scala.collection.JavaConverters._
 import scala.collection.mutable
 
-import rx.Observable
+import rx.Scheduler.Worker
 import rx.subjects.{PublishSubject, Subject}
+import rx.{Observable, Subscriber}
 
 import org.midonet.cluster.data.ZoomConvert
 import org.midonet.cluster.models.Commons.IPVersion
 import org.midonet.cluster.models.Topology.{Route => TopologyRoute, Router => TopologyRouter}
 import org.midonet.cluster.state.RoutingTableStorage._
 import org.midonet.cluster.util.UUIDUtil._
-import org.midonet.midolman.layer3.{IPv4RoutingTable, Route}
+import org.midonet.midolman.layer3.{CompiledRoutingTable, PersistentRoutingTable, Route}
 import org.midonet.midolman.simulation.Router.{Config, RoutingTable, TagManager}
 import org.midonet.midolman.simulation.{Chain, LoadBalancer, Mirror, RouterPort, Router => SimulationRouter}
 import org.midonet.midolman.SimulationBackChannel.{BackChannelMessage, Broadcast}
@@ -46,8 +48,6 @@ import org.midonet.util.logging.Logger
 
 object RouterMapper {
 
-    private val Route6 = new Route
-
     private val EmptyRouteSet = Set.empty[Route]
     private val EmptyRouteUpdates = RouteUpdates(EmptyRouteSet, EmptyRouteSet)
 
@@ -77,14 +77,12 @@ object RouterMapper {
         @Nullable private var currentPort: RouterPort = null
         private val mark = PublishSubject.create[RouteUpdates]
 
-        private val routes = new mutable.HashMap[UUID, RouteState]
-        private val routesSubject = PublishSubject
-            .create[Observable[RouteUpdates]]
+        private val routes = new RouteSetState(vt, log)
 
-        // Caches the current routes for this port. Each route state emits route
-        // updates that include both the added and removed route. The routes
-        // cache merge these updates into the set of current routes for this
-        // port.
+        // Caches the current routes for this port. The route set state emits
+        // route updates that include both the added and removed routes. The
+        // routes cache merge these updates into the set of current routes for
+        // this port.
         private val routesCache = new mutable.HashSet[Route]
 
         private val portStateSubject = PublishSubject.create[UUID]
@@ -93,8 +91,7 @@ object RouterMapper {
         private val portObservable = VirtualTopology
             .observable(classOf[RouterPort], portId)
             .map[RouteUpdates](makeFunc1(portUpdated))
-        private val routesObservable = Observable
-            .merge(routesSubject)
+        private val routesObservable = routes.observable
             .map[RouteUpdates](makeFunc1(routeUpdated))
         private val learnedRoutesObservable = vt.stateStore
             .portRoutesObservable(portId, portStateSubject)
@@ -111,7 +108,7 @@ object RouterMapper {
         //             +-------------+                     |
         //                    | route added/removed        |
         //                    |          +--------------+  |
-        //              routesSubject -> | routeUpdated |--+-> route updates
+        //            RouteSetState -> | routeUpdated |--+-> route updates
         //                               +--------------+  |
         //                                                 |
         //                        +----------------------+ |
@@ -130,16 +127,14 @@ object RouterMapper {
         def complete(): RouteUpdates = {
             if ((currentPort ne null) && currentPort.isL2)
                 vniMap.remove(currentPort.vni)
-            routes.foreach(_._2.complete())
-            routesSubject.onCompleted()
+            routes.complete()
             mark.onCompleted()
 
             RouteUpdates(EmptyRouteSet, publishedRoutes)
         }
         /** Indicates whether the port state has received the port data. */
         def isReady: Boolean = {
-            (currentPort ne null) && portStateReady &&
-            routes.forall(_._2.isReady)
+            (currentPort ne null) && portStateReady && routes.isReady
         }
 
         /**
@@ -173,37 +168,18 @@ object RouterMapper {
 
             currentPort = port
 
-            val removedRoutes = new mutable.HashSet[Route]
             val currentRoutesSet = routesCache.toSet
 
-            // Remove the state for the routes that are no longer part of this
-            // port.
-            for ((routeId, routeState) <- routes.toList
-                 if !port.routeIds.contains(routeId)) {
-                routes -= routeId
-                if (routeState.isReady && (routeState.route ne Route6)) {
-                    removedRoutes += routeState.route
-                    routesCache -= routeState.route
-                }
-                routeState.complete()
-            }
-
-            // Add the state for the new routes of this port, and notify its
-            // observable on the routes observable.
-            val addedRoutes = new mutable.MutableList[RouteState]
-            for (routeId <- port.routeIds if !routes.contains(routeId)) {
-                val routeState = new RouteState(routeId, vt, log)
-                routes += routeId -> routeState
-                addedRoutes += routeState
-            }
-            for (routeState <- addedRoutes) {
-                routesSubject onNext routeState.observable
-            }
+            // Update the routes of this port: the route set state removes the
+            // routes that are no longer part of the port, and loads the new
+            // routes emitting them as a batch on the routes observable.
+            val removedRoutes = routes.update(port.routeIds)
+            routesCache --= removedRoutes
 
             if (oldPublish && newPublish) {
                 // If the port previously published the updates, publish only
                 // the difference.
-                RouteUpdates(EmptyRouteSet, removedRoutes.toSet)
+                RouteUpdates(EmptyRouteSet, removedRoutes)
             } else if (!oldPublish && newPublish) {
                 // If the port did not previously publish routes, but does so
                 // now publish all routes.
@@ -211,8 +187,7 @@ object RouterMapper {
             } else if (oldPublish && !newPublish) {
                 // If the port did previously publish routes, but does not now,
                 // remove all routes.
-                RouteUpdates(EmptyRouteSet,
-                             currentRoutesSet ++ removedRoutes.toSet)
+                RouteUpdates(EmptyRouteSet, currentRoutesSet ++ removedRoutes)
             } else {
                 // The port does not publishes routes.
                 EmptyRouteUpdates
@@ -279,61 +254,173 @@ object RouterMapper {
     }
 
     /**
-     * Stores the state for a route, and exposes an [[Observable]] that emits
-     * updates when the route has changed. The observable completes either when
-     * the route is deleted, or when calling the complete() method, which is
-     * used to signal that the route is no longer used by the router or port.
+     * Stores the state for the set of routes of a router or a router port, and
+     * exposes an [[Observable]] that emits the updates for these routes. All
+     * routes share the same state and output subject, rather than having a
+     * state and pipeline per route.
+     *
+     * When routes are added to the set, the state subscribes to all of them at
+     * once, such that their reads are pipelined, and it accumulates their
+     * updates until all new routes are loaded. It then emits them as a single
+     * [[RouteUpdates]], such that a router with many routes is built once
+     * rather than once per route. Later changes to a loaded route are emitted
+     * as they arrive.
+     *
+     * The observable completes when calling the complete() method, which is
+     * used to signal that the routes are no longer used by the router or port.
+     * Unsubscribing from the observable releases the route subscriptions.
      */
-    private class RouteState(val routeId: UUID, vt: VirtualTopology,
-                             log: Logger) {
+    private class RouteSetState(vt: VirtualTopology, log: Logger) {
 
-        @Nullable private var currentRoute: Route = null
-        private val mark = PublishSubject.create[RouteUpdates]
+        /** The subscriber for a route, storing the last route received. */
+        private class RouteSubscriber(val routeId: UUID)
+            extends Subscriber[TopologyRoute] {
 
-        val observable = vt.store.observable(classOf[TopologyRoute], routeId)
-            .observeOn(vt.vtScheduler)
-            .flatMap[RouteUpdates](makeFunc1(routeUpdated))
-            .onErrorResumeNext(makeFunc1(routeError))
-            .takeUntil(mark)
+            @Nullable var route: Route = null
 
-        /** Completes the observable corresponding to this route state. */
-        def complete(): Unit = mark.onCompleted()
-        /** Gets the last route published by this route state. */
-        @Nullable def route: Route = currentRoute
-        /** Indicates whether the route state has received the route data. */
-        def isReady: Boolean = currentRoute ne null
-
-        /** Generates a route update when the route changes. */
-        private def routeUpdated(tr: TopologyRoute): Observable[RouteUpdates] = {
-            if (!isIp4(tr)) {
-                log.debug(s"Route $routeId is IPv6: ignoring")
-                currentRoute = Route6
-                return Observable.just(EmptyRouteUpdates)
+            override def onNext(tr: TopologyRoute): Unit =
+                routeUpdated(this, tr)
+            // A deleted route is removed when the owner removes its identifier.
+            override def onCompleted(): Unit = { }
+            override def onError(e: Throwable): Unit = routeError(this, e)
+        }
+
+        private val routes = new mutable.HashMap[UUID, RouteSubscriber]
+        private val pending = new mutable.HashSet[UUID]
+        private val batchAdded = new mutable.HashSet[Route]
+        private val batchRemoved = new mutable.HashSet[Route]
+        private val subject = PublishSubject.create[RouteUpdates]
+
+        val observable = subject
+            .doOnUnsubscribe(makeAction0(release()))
+
+        /** Completes the observable corresponding to this route set. */
+        def complete(): Unit = {
+            release()
+            subject.onCompleted()
+        }
+
+        /** Indicates whether all routes in the set have been loaded. */
+        def isReady: Boolean = pending.isEmpty
+
+        /**
+         * Updates the identifiers of the routes in this set, and returns the
+         * previously emitted routes that are no longer part of the set. The
+         * new routes are emitted on the observable once loaded.
+         */
+        def update(routeIds: Set[UUID]): Set[Route] = {
+            vt.assertThread()
+
+            val removedRoutes = new mutable.HashSet[Route]
+            for ((routeId, subscriber) <- routes.toList
+                 if !routeIds.contains(routeId)) {
+                routes -= routeId
+                pending -= routeId
+                subscriber.unsubscribe()
+                if ((subscriber.route ne null) &&
+                    !batchAdded.remove(subscriber.route)) {
+                    removedRoutes += subscriber.route
+                }
             }
 
-            val route = ZoomConvert.fromProto(tr, classOf[Route])
+            val addedRoutes = new mutable.MutableList[RouteSubscriber]
+            for (routeId <- routeIds if !routes.contains(routeId)) {
+                val subscriber = new RouteSubscriber(routeId)
+                routes += routeId -> subscriber
+                pending += routeId
+                addedRoutes += subscriber
+            }
+            if (addedRoutes.nonEmpty) {
+                log.debug("Loading {} routes", Int.box(addedRoutes.size))
+            }
+            for (subscriber <- addedRoutes) {
+                vt.store.observable(classOf[TopologyRoute], subscriber.routeId)
+                    .observeOn(vt.vtScheduler)
+                    .subscribe(subscriber)
+            }
+
+            // The owner emits its own update after changing the routes, so an
+            // empty batch is not emitted when the last pending route is
+            // removed.
+            flush(loaded = false)
+            removedRoutes.toSet
+        }
+
+        /** Generates a route update when a route changes. */
+        private def routeUpdated(subscriber: RouteSubscriber,
+                                 tr: TopologyRoute): Unit = {
+            if (!isCurrent(subscriber)) {
+                return
+            }
+            val route =
+                if (isIp4(tr)) {
+                    ZoomConvert.fromProto(tr, classOf[Route])
+                } else {
+                    log.debug(s"Route ${subscriber.routeId} is IPv6: ignoring")
+                    null
+                }
             log.debug("Route updated: {}", route)
 
-            val updateObservable =
-                if (route != currentRoute)
-                    Observable.just(RouteUpdates(routeAsSet(route),
-                                                 routeAsSet(currentRoute)))
-                else Observable.empty[RouteUpdates]
+            if (route != subscriber.route) {
+                removeRoute(subscriber.route)
+                if (route ne null) {
+                    batchAdded += route
+                }
+                subscriber.route = route
+            }
+            flush(pending.remove(subscriber.routeId))
+        }
+
+        /** Handles the error emitted by a route observable by logging the
+          * error, and if the route was loaded advertise its removal. */
+        private def routeError(subscriber: RouteSubscriber,
+                               e: Throwable): Unit = {
+            if (!isCurrent(subscriber)) {
+                return
+            }
+            log.warn(s"Update stream emitted error for route " +
+                     s"${subscriber.routeId}: the route will be ignored", e)
+            // A route that was never loaded remains pending, such that the
+            // owner is not ready until the route is removed.
+            removeRoute(subscriber.route)
+            subscriber.route = null
+            flush(loaded = false)
+        }
+
+        private def removeRoute(@Nullable route: Route): Unit = {
+            if ((route ne null) && !batchAdded.remove(route)) {
+                batchRemoved += route
+            }
+        }
 
-            currentRoute = route
+        /** Emits the accumulated route updates when all routes are loaded.
+          * When the last pending route was loaded, the updates are emitted
+          * even if empty, such that the owner may become ready. */
+        private def flush(loaded: Boolean): Unit = {
+            if (pending.isEmpty) {
+                if (batchAdded.nonEmpty || batchRemoved.nonEmpty) {
+                    val updates = RouteUpdates(batchAdded.toSet,
+                                               batchRemoved.toSet)
+                    batchAdded.clear()
+                    batchRemoved.clear()
+                    subject onNext updates
+                } else if (loaded) {
+                    subject onNext EmptyRouteUpdates
+                }
+            }
+        }
 
-            updateObservable
+        private def isCurrent(subscriber: RouteSubscriber): Boolean = {
+            vt.assertThread()
+            routes.get(subscriber.routeId).exists(_ eq subscriber)
         }
 
-        /** Handles the error emitted by the route observable by filtering
-          * all errors, logging the error, and if the route is ready advertise
-          * its removal. */
-        private def routeError(e: Throwable): Observable[RouteUpdates] = {
-            log.warn(s"Update stream emitted error for route $routeId: the " +
-                     s"route will be ignored", e)
-            if (isReady) Observable.just(RouteUpdates(EmptyRouteSet,
-                                                      routeAsSet(currentRoute)))
-            else Observable.empty()
+        private def release(): Unit = {
+            for (subscriber <- routes.values) {
+                subscriber.unsubscribe()
+            }
+            routes.clear()
+            pending.clear()
         }
 
         /**
@@ -380,36 +467,55 @@ object RouterMapper {
 
     /**
      * Provides an implementation for a router's [[RoutingTable]], wrapping an
-     * underlying IPv4 routing table.
+     * immutable version of a [[PersistentRoutingTable]]. A new version is
+     * published when the router's routes change, and it is shared by all
+     * router devices built until the next change.
+     *
+     * Once the routes remain unchanged for the route compile delay, the mapper
+     * sets the `compiled` table, a [[CompiledRoutingTable]] with the same
+     * routes, and the lookups use it instead of the persistent table. Since
+     * both tables return the same routes, the devices sharing this version
+     * need not be rebuilt.
      */
-    private class RouterRoutingTable(routes: mutable.Set[Route])
+    private[topology] class RouterRoutingTable(val table: PersistentRoutingTable)
         extends RoutingTable {
 
-        private val ipv4RoutingTable = new IPv4RoutingTable()
-
-        for (route <- routes) {
-            ipv4RoutingTable.addRoute(route)
-        }
+        @volatile var compiled: CompiledRoutingTable = null
 
         override def lookup(flowMatch: FlowMatch): java.util.List[Route] = {
-            ipv4RoutingTable.lookup(
-                flowMatch.getNetworkSrcIP.asInstanceOf[IPv4Addr],
-                flowMatch.getNetworkDstIP.asInstanceOf[IPv4Addr])
+            val src = flowMatch.getNetworkSrcIP.asInstanceOf[IPv4Addr]
+            val dst = flowMatch.getNetworkDstIP.asInstanceOf[IPv4Addr]
+            val compiledTable = compiled
+            if (compiledTable ne null) compiledTable.lookup(src, dst)
+            else table.lookup(src, dst)
         }
 
         override def lookup(flowMatch: FlowMatch, log: Logger): java.util.List[Route] = {
-            ipv4RoutingTable.lookup(
-                flowMatch.getNetworkSrcIP.asInstanceOf[IPv4Addr],
-                flowMatch.getNetworkDstIP.asInstanceOf[IPv4Addr],
-                log.underlying)
+            val src = flowMatch.getNetworkSrcIP.asInstanceOf[IPv4Addr]
+            val dst = flowMatch.getNetworkDstIP.asInstanceOf[IPv4Addr]
+            val compiledTable = compiled
+            if (compiledTable ne null) compiledTable.lookup(src, dst, log.underlying)
+            else table.lookup(src, dst, log.underlying)
         }
-    }
 
-    /** Converts a nullable route to a [[Set]]. */
-    @inline
-    private def routeAsSet(route: Route) = {
-        if (route ne null) Set(route) else EmptyRouteSet
+        override def lookup(flowMatch: FlowMatch,
+                            routes: java.util.ArrayList[Route],
+                            log: Logger): Int = {
+            val src = flowMatch.getNetworkSrcIP.asInstanceOf[IPv4Addr].toInt
+            val dst = flowMatch.getNetworkDstIP.asInstanceOf[IPv4Addr].toInt
+            val compiledTable = compiled
+            val count =
+                if (compiledTable ne null) compiledTable.lookup(src, dst, routes)
+                else table.lookup(src, dst, routes)
+            if (log.underlying.isDebugEnabled) {
+                log.debug(s"Lookup returned $routes for $flowMatch")
+            }
+            count
+        }
+
+        override def toString = table.toString
     }
+
 }
 
 /**
@@ -436,10 +542,26 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
     private val ports = new mutable.HashMap[UUID, PortState]
     private var loadBalancer: LoadBalancerState = null
     // Stores all routes received via notifications from the replicated routing
-    // table.
-    private val routes = new mutable.HashSet[Route]
+    // table, including the routes not yet published to the router devices.
+    private var routes = PersistentRoutingTable.EMPTY
+    // The routing table version published to the router devices.
+    private var routingTable = new RouterRoutingTable(routes)
+    // Coalesces the route updates received within the route update window:
+    // the updates not yet published, the time of the last publication, and
+    // the worker that publishes the pending updates at the end of the window.
+    private val routeUpdateWindow =
+        MILLISECONDS.toNanos(vt.config.router.routeUpdateWindow)
+    private val pendingAdded = new mutable.HashSet[Route]
+    private val pendingRemoved = new mutable.HashSet[Route]
+    private var routesPublishedAt = System.nanoTime() - routeUpdateWindow
+    private var routesScheduled = false
+    private var routesWorker: Worker = null
+    // Compiles the published routing table once the routes are stable.
+    private val routeCompileDelay =
+        MILLISECONDS.toNanos(vt.config.router.routeCompileDelay)
+    private var compileScheduled = false
     // Stores routes received via the router's configuration in storage.
-    private val localRoutes = new mutable.HashMap[UUID, RouteState]
+    private val localRoutes = new RouteSetState(vt, log)
     private var arpCache: ArpCache = null
     private var traceChain: Option[UUID] = None
     private val vniToPort = new mutable.HashMap[Int, UUID]
@@ -462,10 +584,10 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
         PublishSubject.create[Config]
     private lazy val portRoutesSubject =
         PublishSubject.create[Observable[RouteUpdates]]
-    private lazy val routesSubject =
-        PublishSubject.create[Observable[RouteUpdates]]
     private lazy val loadBalancerSubject =
         PublishSubject.create[Observable[LoadBalancer]]
+    private lazy val routesPublishedSubject =
+        PublishSubject.create[Config]
 
     private lazy val routerObservable =
         vt.store.observable(classOf[TopologyRouter], routerId)
@@ -475,8 +597,7 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
     private lazy val portRoutesObservable = Observable
         .merge(portRoutesSubject)
         .map[Config](makeFunc1(routingTableUpdated))
-    private lazy val routesObservable = Observable
-        .merge(routesSubject)
+    private lazy val routesObservable = localRoutes.observable
         .map[Config](makeFunc1(routingTableUpdated))
     private lazy val arpTableObservable = ArpCache
         .createAsObservable(vt, routerId, log)
@@ -528,6 +649,7 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
                          chainsTracker.refsObservable.map[Config](makeFunc1(refUpdated)),
                          mirrorsTracker.refsObservable.map[Config](makeFunc1(refUpdated)),
                          loadBalancerObservable,
+                         routesPublishedSubject,
                          routerObservable)
             .takeUntil(mark)
             .filter(makeFunc1(isRouterReady))
@@ -539,10 +661,15 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
      * load-balancer (if any), and the states for all router's ports are ready.
      */
     private def isRouterReady(cfg: Config): JBoolean = {
+        // A null configuration indicates a route update deferred to the end
+        // of the route update window, which does not change the router.
+        if (cfg eq null) {
+            return false
+        }
         ready = (config ne null) &&
                 (arpCache ne null) &&
                 (if (loadBalancer ne null) loadBalancer.isReady else true) &&
-                ports.forall(_._2.isReady) && localRoutes.forall(_._2.isReady) &&
+                ports.forall(_._2.isReady) && localRoutes.isReady &&
                 chainsTracker.areRefsReady && mirrorsTracker.areRefsReady && isTracingReady
         log.debug("Router ready: {} ", Boolean.box(ready))
         ready
@@ -561,10 +688,14 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
         completeTraceChain()
         chainsTracker.completeRefs()
         mirrorsTracker.completeRefs()
+        localRoutes.complete()
         mark.onCompleted()
         if (arpCache ne null) {
             arpCache.close()
         }
+        if (routesWorker ne null) {
+            routesWorker.unsubscribe()
+        }
     }
 
     /**
@@ -657,26 +788,11 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
             loadBalancerSubject onNext loadBalancer.observable
         }
 
-        // Remove any local routes no longer part of the router's configuration
-        for ((routeId, routeState) <- localRoutes.toList
-             if !routeIds.contains(routeId)) {
-            localRoutes -= routeId
-            if (routeState.isReady) {
-                routingTableUpdated(RouteUpdates(EmptyRouteSet,
-                                                 Set(routeState.route)))
-            }
-            routeState.complete()
-        }
-        // Add any routes present in the router's configuration, and not part of
-        // the local routes map.
-        val addedRoutes = new mutable.MutableList[RouteState]
-        for (routeId <- routeIds if !localRoutes.contains(routeId)) {
-            val routeState = new RouteState(routeId, vt, log)
-            localRoutes += routeId -> routeState
-            addedRoutes += routeState
-        }
-        for (routeState <- addedRoutes) {
-            routesSubject onNext routeState.observable
+        // Update the routes from the router's configuration: remove the routes
+        // no longer part of the configuration, and load the new ones.
+        val removedRoutes = localRoutes.update(routeIds)
+        if (removedRoutes.nonEmpty) {
+            routingTableUpdated(RouteUpdates(EmptyRouteSet, removedRoutes))
         }
 
         // Update the router configuration.
@@ -697,18 +813,101 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
     }
 
     /**
-     * Processes route updates emitted by the router's routing table.
+     * Processes route updates emitted by the router's routing table. The
+     * updates are applied incrementally to the current routes, and they are
+     * published immediately unless a previous version was published within
+     * the route update window. In that case, the method returns null and the
+     * updates are published at the end of the window, together with any other
+     * updates received in the meantime.
      */
     private def routingTableUpdated(routeUpdates: RouteUpdates): Config = {
         log.debug("Routes added {} removed {}", routeUpdates.added,
                   routeUpdates.removed)
         assertThread()
         // Update the current routes.
-        routes ++= routeUpdates.added
-        routes --= routeUpdates.removed
+        routes = routes.update(routeUpdates.added.asJava,
+                               routeUpdates.removed.asJava)
+        pendingAdded ++= routeUpdates.added
+        pendingRemoved ++= routeUpdates.removed
+
+        if (routesScheduled) {
+            return null
+        }
+        val elapsed = System.nanoTime() - routesPublishedAt
+        if (routeUpdateWindow <= 0 || !routeUpdates.nonEmpty ||
+            elapsed >= routeUpdateWindow) {
+            publishRoutes()
+            config
+        } else {
+            if (routesWorker eq null) {
+                routesWorker = vt.vtScheduler.createWorker()
+            }
+            routesScheduled = true
+            routesWorker.schedule(makeAction0 {
+                routesScheduled = false
+                publishRoutes()
+                routesPublishedSubject onNext config
+            }, routeUpdateWindow - elapsed, NANOSECONDS)
+            null
+        }
+    }
+
+    /**
+     * Publishes the current routes as a new version of the routing table,
+     * and invalidates the flows for the routes changed since the previous
+     * version.
+     */
+    private def publishRoutes(): Unit = {
+        if (routingTable.table ne routes) {
+            routingTable = new RouterRoutingTable(routes)
+        }
         vt.tellBackChannel(InvalidateFlows(
-            id, routeUpdates.added, routeUpdates.removed))
-        config
+            id, pendingAdded.toSet, pendingRemoved.toSet))
+        pendingAdded.clear()
+        pendingRemoved.clear()
+        routesPublishedAt = System.nanoTime()
+        scheduleCompile(routeCompileDelay)
+    }
+
+    /**
+     * Schedules the compilation of the published routing table, unless it is
+     * already scheduled. Compiling takes time proportional to the number of
+     * routes, hence it is deferred until the routes remain unchanged for the
+     * route compile delay, such that a burst of updates only builds new
+     * versions of the persistent table.
+     */
+    private def scheduleCompile(delay: Long): Unit = {
+        if (compileScheduled || (routingTable.compiled ne null)) {
+            return
+        }
+        if (routesWorker eq null) {
+            routesWorker = vt.vtScheduler.createWorker()
+        }
+        compileScheduled = true
+        routesWorker.schedule(makeAction0(compileRoutes()),
+                              Math.max(delay, 0L), NANOSECONDS)
+    }
+
+    /**
+     * Compiles the published routing table if the routes did not change for
+     * the route compile delay, or schedules the compilation again otherwise.
+     * Updates waiting for the end of the route update window schedule the
+     * compilation when they are published.
+     */
+    private def compileRoutes(): Unit = {
+        compileScheduled = false
+        if (routesScheduled || (routingTable.compiled ne null)) {
+            return
+        }
+        val elapsed = System.nanoTime() - routesPublishedAt
+        if (elapsed < routeCompileDelay) {
+            scheduleCompile(routeCompileDelay - elapsed)
+            return
+        }
+        val table = routingTable
+        table.compiled = new CompiledRoutingTable(table.table.routes())
+        log.debug("Compiled routing table with {} routes",
+                  Int.box(table.table.size))
     }
 
     /**
@@ -756,12 +955,12 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
         val device = new SimulationRouter(
             routerId,
             config2,
-            new RouterRoutingTable(routes),
+            routingTable,
             tagManager,
             vniToPort.asJava,
             arpCache,
             vt.config.fip64)
-        log.debug("Build router: {} {}", device, routes)
+        log.debug("Build router: {} {}", device, routingTable)
 
         device
     }
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.topology
+
+import scala.concurrent.Future
+
+import rx.Observable.OnSubscribe
+import rx.subscriptions.Subscriptions
+import rx.{Observable, Subscriber}
+
+import org.midonet.cluster.data.ZoomMetadata.ZoomOwner
+import org.midonet.cluster.data.storage.Storage.{BindingsMap, ClassesMap}
+import org.midonet.cluster.data.storage.{PersistenceOp, Storage, Transaction}
+import org.midonet.cluster.data.{ObjId, getIdString}
+import org.midonet.midolman.topology.TopologySnapshot.Key
+import org.midonet.util.functors.{makeAction0, makeAction1, makeFunc1}
+
+/**
+ * A storage that serves the objects of a [[TopologySnapshot]] to the device
+ * mappers while the snapshot is pending revalidation, and otherwise delegates
+ * to the underlying storage.
+ *
+ * An object observable emits the snapshot version of the object, if any,
+ * followed by the notifications of the underlying storage, where the first
+ * notification is filtered if it is equal to the snapshot version. Therefore,
+ * after a restart the mappers can build their devices without waiting for
+ * the NSDB, and they only see a second version of an object if the object
+ * was modified while the agent was down.
+ */
+private[topology] class SnapshotStorage(store: Storage,
+                                        snapshot: TopologySnapshot)
+    extends Storage {
+
+    build()
+
+    override def get[T](clazz: Class[T], id: ObjId): Future[T] =
+        store.get(clazz, id)
+
+    override def getAll[T](clazz: Class[T],
+                           ids: Seq[_ <: ObjId]): Future[Seq[T]] =
+        store.getAll(clazz, ids)
+
+    override def getAll[T](clazz: Class[T]): Future[Seq[T]] =
+        store.getAll(clazz)
+
+    override def exists(clazz: Class[_], id: ObjId): Future[Boolean] =
+        store.exists(clazz, id)
+
+    override def multi(ops: Seq[PersistenceOp]): Unit = store.multi(ops)
+
+    override def transaction(owner: ZoomOwner): Transaction =
+        store.transaction(owner)
+
+    override def tryTransaction[R](owner: ZoomOwner)
+                                  (f: (Transaction) => R): R =
+        store.tryTransaction(owner)(f)
+
+    override def observable[T](clazz: Class[T]): Observable[Observable[T]] =
+        store.observable(clazz)
+
+    override def observable[T](clazz: Class[T], id: ObjId): Observable[T] = {
+        val key = Key(clazz, getIdString(id))
+        Observable.create(new OnSubscribe[T] {
+            override def call(child: Subscriber[_ >: T]): Unit = {
+                snapshot.subscribed(key)
+                child.add(Subscriptions.create(makeAction0 {
+                    snapshot.unsubscribed(key)
+                }))
+
+                val updates = store.observable(clazz, id)
+                    .doOnNext(makeAction1 { obj: T => snapshot.updated(key, obj) })
+                    .doOnTerminate(makeAction0 { snapshot.validated(key) })
+                val cached = snapshot.cached[T](key)
+                val observable = if (cached == null) updates else {
+                    var first = true
+                    updates.filter(makeFunc1 { obj: T =>
+                        val emit = !first || obj != cached
+                        first = false
+                        Boolean.box(emit)
+                    }).startWith(cached)
+                }
+                observable.unsafeSubscribe(child)
+            }
+        })
+    }
+
+    override def objectClasses: ClassesMap = store.objectClasses
+
+    override def bindings: BindingsMap = store.bindings
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.topology
+
+import java.io.{File, RandomAccessFile}
+import java.nio.channels.FileChannel.MapMode
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, StandardCopyOption}
+import java.nio.{BufferUnderflowException, ByteBuffer}
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration.FiniteDuration
+import scala.util.control.NonFatal
+
+import com.google.protobuf.Message
+
+import org.midonet.midolman.logging.MidolmanLogging
+import org.midonet.midolman.topology.TopologySnapshot.Key
+import org.midonet.util.concurrent.NamedThreadFactory
+import org.midonet.util.functors.makeRunnable
+
+object TopologySnapshot {
+
+    final val Magic = 0x4d4e5453
+    final val FormatVersion = 1
+
+    case class Key(clazz: Class[_], id: String)
+
+    /**
+     * Reads the objects of a snapshot file, returning the serialized objects
+     * indexed by their class and identifier. The method returns an empty map
+     * if the file does not exist, or if it is not a valid snapshot of the
+     * current format version, in which case the agent starts without a
+     * snapshot.
+     */
+    @throws[Exception]
+    def read(file: File): ConcurrentHashMap[Key, Array[Byte]] = {
+        val objects = new ConcurrentHashMap[Key, Array[Byte]]()
+        if (!file.exists()) {
+            return objects
+        }
+        val raf = new RandomAccessFile(file, "r")
+        val buffer = try raf.getChannel.map(MapMode.READ_ONLY, 0, raf.length)
+                     finally raf.close()
+        if (buffer.remaining < 16 || buffer.getInt != Magic ||
+            buffer.getInt != FormatVersion) {
+            throw new IllegalArgumentException(
+                s"File $file is not a topology snapshot of version " +
+                s"$FormatVersion")
+        }
+        buffer.getLong // The time when the snapshot was written
+        val count = buffer.getInt
+        var index = 0
+        try {
+            while (index < count) {
+                val className = readString(buffer)
+                val id = readString(buffer)
+                val data = new Array[Byte](buffer.getInt)
+                buffer.get(data)
+                try {
+                    objects.put(Key(Class.forName(className), id), data)
+                } catch {
+                    case e: ClassNotFoundException => // Class removed
+                }
+                index += 1
+            }
+        } catch {
+            case e: BufferUnderflowException =>
+                throw new IllegalArgumentException(
+                    s"Topology snapshot $file is truncated", e)
+        }
+        objects
+    }
+
+    /**
+     * Writes the given objects to a snapshot file. The snapshot is written
+     * to a temporary file which then replaces the snapshot file, such that a
+     * crash while writing does not corrupt the previous snapshot.
+     */
+    @throws[Exception]
+    def write(file: File, objects: Iterable[(Key, Message)]): Int = {
+        val entries = objects.toSeq map { case (key, obj) =>
+            (key.clazz.getName.getBytes(StandardCharsets.UTF_8),
+             key.id.getBytes(StandardCharsets.UTF_8),
+             obj.toByteArray)
+        }
+        val size = entries.foldLeft(20L) { case (sum, (clazz, id, data)) =>
+            sum + 8 + clazz.length + id.length + data.length
+        }
+
+        val temp = new File(file.getPath + ".tmp")
+        val raf = new RandomAccessFile(temp, "rw")
+        try {
+            raf.setLength(size)
+            val buffer = raf.getChannel.map(MapMode.READ_WRITE, 0, size)
+            buffer.putInt(Magic)
+            buffer.putInt(FormatVersion)
+            buffer.putLong(System.currentTimeMillis())
+            buffer.putInt(entries.size)
+            for ((clazz, id, data) <- entries) {
+                buffer.putShort(clazz.length.toShort)
+                buffer.put(clazz)
+                buffer.putShort(id.length.toShort)
+                buffer.put(id)
+                buffer.putInt(data.length)
+                buffer.put(data)
+            }
+            buffer.force()
+        } finally {
+            raf.close()
+        }
+        Files.move(temp.toPath, file.toPath,
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE)
+        entries.size
+    }
+
+    private def readString(buffer: ByteBuffer): String = {
+        val bytes = new Array[Byte](buffer.getShort & 0xffff)
+        buffer.get(bytes)
+        new String(bytes, StandardCharsets.UTF_8)
+    }
+
+}
+
+/**
+ * A local snapshot of the topology objects to which the virtual topology is
+ * subscribed, such that after a restart the device mappers can build their
+ * devices from the snapshot instead of waiting for the objects to be loaded
+ * from the NSDB.
+ *
+ * The snapshot loaded when the agent starts contains the objects that are
+ * pending revalidation: an object is removed from them as soon as the NSDB
+ * emits its current version, or when its observable terminates. Meanwhile,
+ * the snapshot tracks the latest version of the objects with subscribers,
+ * which it periodically writes to the snapshot file.
+ */
+class TopologySnapshot(file: File) extends MidolmanLogging {
+
+    override def logSource = "org.midonet.devices.snapshot"
+
+    private class Entry {
+        var subscribers = 0
+        @volatile var value: Message = _
+    }
+
+    private val pending = try {
+        val objects = TopologySnapshot.read(file)
+        log.info(s"Loaded ${objects.size} topology objects from snapshot $file")
+        objects
+    } catch {
+        case NonFatal(e) =>
+            log.warn(s"Ignoring topology snapshot $file", e)
+            new ConcurrentHashMap[Key, Array[Byte]]()
+    }
+
+    private val current = new ConcurrentHashMap[Key, Entry]()
+
+    private val executor = java.util.concurrent.Executors
+        .newSingleThreadScheduledExecutor(
+            new NamedThreadFactory("topology-snapshot", isDaemon = true))
+
+    /**
+     * Returns the object from the snapshot that is pending revalidation, or
+     * null if there is none.
+     */
+    def cached[T](key: Key): T = {
+        val data = pending.get(key)
+        if (data eq null) {
+            return null.asInstanceOf[T]
+        }
+        try {
+            key.clazz.getMethod("parseFrom", classOf[Array[Byte]])
+                .invoke(null, data).asInstanceOf[T]
+        } catch {
+            case NonFatal(e) =>
+                log.warn(s"Invalid snapshot object ${key.clazz.getSimpleName}/" +
+                         s"${key.id}", e)
+                pending.remove(key)
+                null.asInstanceOf[T]
+        }
+    }
+
+    /** Indicates that the object is no longer pending revalidation. */
+    def validated(key: Key): Unit = pending.remove(key)
+
+    /** Returns the number of objects pending revalidation. */
+    def pendingCount: Int = pending.size
+
+    def subscribed(key: Key): Unit = current.synchronized {
+        var entry = current.get(key)
+        if (entry eq null) {
+            entry = new Entry
+            current.put(key, entry)
+        }
+        entry.subscribers += 1
+    }
+
+    def unsubscribed(key: Key): Unit = current.synchronized {
+        val entry = current.get(key)
+        if (entry ne null) {
+            entry.subscribers -= 1
+            if (entry.subscribers <= 0) {
+                current.remove(key)
+            }
+        }
+    }
+
+    /** Records the latest version of an object emitted by the NSDB. */
+    def updated(key: Key, obj: Any): Unit = {
+        pending.remove(key)
+        obj match {
+            case message: Message =>
+                val entry = current.get(key)
+                if (entry ne null) {
+                    entry.value = message
+                }
+            case _ =>
+        }
+    }
+
+    /**
+     * Writes the latest version of the objects with subscribers to the
+     * snapshot file, including the objects still pending revalidation.
+     */
+    def write(): Unit = {
+        try {
+            val objects = current.asScala.iterator
+                .map { case (key, entry) =>
+                    val value = if (entry.value ne null) entry.value
+                                else cached[Message](key)
+                    (key, value)
+                }
+                .filter(_._2 ne null)
+                .toList
+            val count = TopologySnapshot.write(file, objects)
+            log.debug(s"Wrote $count topology objects to snapshot $file")
+        } catch {
+            case NonFatal(e) =>
+                log.warn(s"Failed to write topology snapshot $file", e)
+        }
+    }
+
+    /** Starts writing the snapshot periodically with the given interval. */
+    def start(interval: FiniteDuration): Unit = {
+        executor.scheduleWithFixedDelay(makeRunnable { write() },
+                                        interval.toMillis, interval.toMillis,
+                                        TimeUnit.MILLISECONDS)
+    }
+
+    /** Stops the periodic writes and writes the snapshot a last time. */
+    def stop(): Unit = {
+        executor.shutdownNow()
+        executor.awaitTermination(5, TimeUnit.SECONDS)
+        write()
+    }
+
+}
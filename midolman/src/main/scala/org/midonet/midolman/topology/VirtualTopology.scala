@@ -15,6 +15,7 @@
  */
 package org.midonet.midolman.topology
 
+import java.io.File
 import java.util.UUID
 import java.util.concurrent.atomic.AtomicLong
 import java.util.concurrent.{ConcurrentHashMap, ExecutorService}
@@ -227,9 +228,21 @@ class VirtualTopology(val backend: MidonetBackend,
             classOf[Port], new PortMapper(_, this, traceChains))
     )
 
+    private val snapshot =
+        if (config.topologySnapshot.enabled) {
+            val snapshot = new TopologySnapshot(
+                new File(config.topologySnapshot.file))
+            snapshot.start(config.topologySnapshot.interval)
+            snapshot
+        } else null
+
+    private val snapshotStorage =
+        if (snapshot ne null) new SnapshotStorage(backend.store, snapshot)
+        else null
+
     register(this)
 
-    def store = backend.store
+    def store = if (snapshotStorage ne null) snapshotStorage else backend.store
 
     def stateStore = backend.stateStore
 
@@ -291,6 +304,13 @@ class VirtualTopology(val backend: MidonetBackend,
         })
     }
 
+    /** Stops the topology snapshot, writing the snapshot a last time. */
+    private[midolman] def stopSnapshot(): Unit = {
+        if (snapshot ne null) {
+            snapshot.stop()
+        }
+    }
+
     /** Shut down rule log event channel. Blocks until terminated. */
     private[midolman] def stopRuleLogEventChannel(): Unit = {
         if (ruleLogEventChannel != null) {
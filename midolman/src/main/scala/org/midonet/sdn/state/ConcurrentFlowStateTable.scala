@@ -0,0 +1,416 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state
+
+import java.util.concurrent.atomic.{AtomicInteger, AtomicReferenceArray}
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentLinkedQueue, CopyOnWriteArrayList, TimeUnit}
+
+import org.slf4j.LoggerFactory
+
+import org.midonet.Util
+import org.midonet.packets.FlowStateStore.IdleExpiration
+import org.midonet.util.collection.Reducer
+import org.midonet.util.concurrent.NanoClock
+import org.midonet.util.logging.Logger
+
+object ConcurrentFlowStateTable {
+
+    /**
+     * The maximum number of slots probed for a key, starting at its home slot.
+     * Keys that do not fit in their probe window are stored in an overflow
+     * map, such that lookups are bounded even when the table is fragmented
+     * by removed entries.
+     */
+    final val ProbeWindow = 32
+
+    final val DefaultCapacity = 1 << 16
+
+    /**
+     * A table entry. The atomic integer is the reference count of the entry,
+     * where -1 marks an entry that is being removed and cannot be referenced
+     * again.
+     */
+    private[state] final class Entry[K, V](val key: K, val hash: Int,
+                                           @volatile var value: V)
+        extends AtomicInteger(1) {
+        @volatile var expiration = Long.MaxValue
+    }
+
+    private[state] final class Expiring[K, V](val entry: Entry[K, V],
+                                              val expiration: Long)
+
+    private val Tombstone = new Entry[AnyRef, AnyRef](null, 0, null)
+    Tombstone.set(-1)
+
+    @inline
+    private def hash(key: AnyRef): Int = {
+        val h = key.hashCode()
+        h ^ (h >>> 16)
+    }
+}
+
+/**
+ * A per-flow state table shared by all packet workers, backed by a single
+ * lock-free open-addressing hash table. Unlike the [[ShardedFlowStateTable]],
+ * whose lookups iterate over the shards of every worker, all operations probe
+ * a single table regardless of the number of workers.
+ *
+ * Each entry has a reference count and an idle expiration time, with the
+ * same semantics as the [[org.midonet.util.concurrent.TimedExpirationMap]]:
+ * when the count of an entry reaches zero the entry is scheduled for
+ * expiration, and it is removed when it is still unreferenced after the
+ * idle expiration of its key. The removal of an entry sets its count to -1
+ * and calls the reducer before releasing its slot, and during this time the
+ * entry cannot be referenced or replaced.
+ *
+ * The slots use linear probing within a bounded window. Removed entries leave
+ * a tombstone which is reused by later insertions, and a key that does not
+ * find a free slot in its window is stored in an overflow map.
+ *
+ * The number of slots is fixed when the table is created and the table never
+ * grows: once the slots are taken, every new key goes to the overflow map,
+ * whose lookups are slower but still correct. Callers should size the table
+ * for the expected number of keys at a low load factor.
+ *
+ * THREADING SEMANTICS:
+ *
+ * All operations are thread-safe and non-blocking. As for the sharded table,
+ * concurrent writes of the same key from different threads result in
+ * undefined behaviour, and clients should distribute the keyspace among the
+ * threads writing to the table. Each shard returned by `addShard` schedules
+ * the expiration of the entries it unreferences, and its expireIdleEntries()
+ * method is limited to one caller at a time.
+ */
+class ConcurrentFlowStateTable[K <: IdleExpiration, V >: Null]
+        (val clock: NanoClock = NanoClock.DEFAULT,
+         capacity: Int = ConcurrentFlowStateTable.DefaultCapacity)
+    extends ShardableFlowStateTable[K, V] {
+
+    import ConcurrentFlowStateTable._
+
+    private val size = Util.findNextPositivePowerOfTwo(
+        Math.max(capacity, ProbeWindow))
+    private val mask = size - 1
+    private val slots = new AtomicReferenceArray[Entry[K, V]](size)
+    private val overflow = new ConcurrentHashMap[K, Entry[K, V]]()
+    @volatile private var overflowed = false
+
+    private val tombstone = Tombstone.asInstanceOf[Entry[K, V]]
+
+    private val defaultLogger =
+        Logger(LoggerFactory.getLogger("org.midonet.state.table"))
+
+    private val identityReducer = new Reducer[K, V, Unit] {
+        override def apply(acc: Unit, key: K, value: V): Unit = ()
+    }
+
+    private val shards = new CopyOnWriteArrayList[FlowStateShard]()
+    private val root = new FlowStateShard(defaultLogger)
+
+    override def addShard(log: Logger = defaultLogger): FlowStateShard = {
+        val shard = new FlowStateShard(log)
+        shards.add(shard)
+        shard
+    }
+
+    /**
+     * Returns the entry for the key, including an entry that is being
+     * removed, or null if the table does not contain the key.
+     */
+    private def find(key: K, h: Int): Entry[K, V] = {
+        var slot = h & mask
+        var probes = 0
+        while (probes < ProbeWindow) {
+            val entry = slots.get(slot)
+            if (entry eq null) {
+                // Slots never become empty again, hence a key that did not
+                // fit in its window was inserted when there was no empty slot.
+                return null
+            }
+            if ((entry ne tombstone) && entry.hash == h &&
+                ((entry.key eq key) || entry.key == key)) {
+                return entry
+            }
+            slot = (slot + 1) & mask
+            probes += 1
+        }
+        if (overflowed) overflow.get(key) else null
+    }
+
+    /**
+     * Inserts a new entry for a key that is not in the table, in the first
+     * free slot of its probe window. Returns false if the slot was taken
+     * concurrently, in which case the caller should retry.
+     */
+    private def insert(entry: Entry[K, V]): Boolean = {
+        var slot = entry.hash & mask
+        var probes = 0
+        while (probes < ProbeWindow) {
+            val current = slots.get(slot)
+            if ((current eq null) || (current eq tombstone)) {
+                return slots.compareAndSet(slot, current, entry)
+            }
+            slot = (slot + 1) & mask
+            probes += 1
+        }
+        if (!overflowed) {
+            overflowed = true
+            defaultLogger.warn(s"Flow state table with $size slots overflowed: " +
+                               "new keys are stored in a slower map")
+        }
+        overflow.putIfAbsent(entry.key, entry) eq null
+    }
+
+    /**
+     * Releases the slot of an entry after it has been expired.
+     */
+    private def remove(entry: Entry[K, V]): Unit = {
+        var slot = entry.hash & mask
+        var probes = 0
+        while (probes < ProbeWindow) {
+            if (slots.get(slot) eq entry) {
+                slots.set(slot, tombstone)
+                return
+            }
+            slot = (slot + 1) & mask
+            probes += 1
+        }
+        overflow.remove(entry.key, entry)
+    }
+
+    private def tryRef(entry: Entry[K, V]): Int = {
+        while (true) {
+            val count = entry.get
+            if (count < 0) {
+                return -1
+            }
+            if (entry.compareAndSet(count, count + 1)) {
+                return count + 1
+            }
+        }
+        -1 // not reached
+    }
+
+    /**
+     * Inserts or references the entry for a key. The operation is lock-free
+     * but not wait-free: it retries without bound for as long as it races
+     * with the insertion or removal of the same key, where every retry means
+     * that the competing operation completed. Since the writes of a key are
+     * expected from a single thread, the only such race is with the removal
+     * of an expired entry, and the loop retries at most a few times.
+     */
+    private def putAndRef(key: K, value: V, log: Logger): V = {
+        val h = hash(key)
+        while (true) {
+            val entry = find(key, h)
+            if (entry eq null) {
+                if (insert(new Entry[K, V](key, h, value))) {
+                    log.debug(s"Incrementing reference count of $key to 1")
+                    return null
+                }
+            } else if (tryRef(entry) > 0) {
+                val oldValue = entry.value
+                entry.value = value
+                return oldValue
+            }
+            // Retry, either an insertion or a deletion raced with us and won.
+        }
+        null // not reached
+    }
+
+    private def ref(key: K, log: Logger): V = {
+        val entry = find(key, hash(key))
+        if (entry eq null) {
+            return null
+        }
+        val count = tryRef(entry)
+        if (count < 0) {
+            null
+        } else {
+            log.debug(s"Incrementing reference count of $key to $count")
+            entry.value
+        }
+    }
+
+    private def unref(key: K, shard: FlowStateShard): Unit = {
+        val entry = find(key, hash(key))
+        if (entry eq null) {
+            return
+        }
+        if (entry.get <= 0) {
+            shard.log.error(s"Decrement a ref count past 0 for $key")
+            return
+        }
+        // Write the expiration before the count may reach zero, otherwise a
+        // concurrent expiration may see an unreferenced entry with a stale
+        // expiration time and remove it early. The expiration is ignored
+        // while the entry is referenced.
+        val period = key.expiresAfter.toMillis
+        entry.expiration = tickMillis + period
+        val count = entry.decrementAndGet()
+        shard.log.debug(s"Decrementing reference count of $key to $count")
+        if (count == 0) {
+            shard.schedule(entry, period)
+        } else if (count < 0) {
+            shard.log.warn(s"Decrement a ref count past 0 for $key")
+            entry.incrementAndGet()
+        }
+    }
+
+    private def tickMillis = TimeUnit.NANOSECONDS.toMillis(clock.tick)
+
+    override def putAndRef(key: K, value: V): V =
+        putAndRef(key, value, defaultLogger)
+
+    override def get(key: K): V = {
+        val entry = find(key, hash(key))
+        if ((entry eq null) || entry.get < 0) null else entry.value
+    }
+
+    override def ref(key: K): V = ref(key, defaultLogger)
+
+    override def unref(key: K): Unit = unref(key, root)
+
+    override def touch(key: K, value: V): Unit = root.touch(key, value)
+
+    override def getRefCount(key: K): Int = {
+        val entry = find(key, hash(key))
+        if (entry eq null) 0 else Math.max(entry.get, 0)
+    }
+
+    override def fold[U](seed: U, func: Reducer[K, V, U]): U = {
+        var acc = seed
+        var slot = 0
+        while (slot < size) {
+            val entry = slots.get(slot)
+            if ((entry ne null) && entry.get >= 0) {
+                acc = func(acc, entry.key, entry.value)
+            }
+            slot += 1
+        }
+        val it = overflow.values().iterator()
+        while (it.hasNext) {
+            val entry = it.next()
+            if (entry.get >= 0) {
+                acc = func(acc, entry.key, entry.value)
+            }
+        }
+        acc
+    }
+
+    /**
+     * Expires the idle entries scheduled by all shards. This method must not
+     * be called concurrently with the expiration of any of the shards.
+     */
+    override def expireIdleEntries(): Unit = {
+        root.expireIdleEntries()
+        var i = 0
+        while (i < shards.size) {
+            shards.get(i).expireIdleEntries()
+            i += 1
+        }
+    }
+
+    override def expireIdleEntries[U](seed: U, func: Reducer[K, V, U]): U = {
+        var acc = root.expireIdleEntries(seed, func)
+        var i = 0
+        while (i < shards.size) {
+            acc = shards.get(i).expireIdleEntries(acc, func)
+            i += 1
+        }
+        acc
+    }
+
+    /**
+     * A view of the shared table for a packet worker. Lookups and updates
+     * operate directly on the shared table, whereas the shard keeps its own
+     * expiration queues for the entries it unreferences.
+     */
+    class FlowStateShard(val log: Logger) extends FlowStateTable[K, V] {
+
+        // Queues of the entries that must be checked for expiration, one per
+        // expiration period such that each queue is ordered by time.
+        private val expiring =
+            new ConcurrentHashMap[Long, ConcurrentLinkedQueue[Expiring[K, V]]]()
+
+        private[state] def schedule(entry: Entry[K, V], period: Long): Unit = {
+            var queue = expiring.get(period)
+            if (queue eq null) {
+                queue = new ConcurrentLinkedQueue[Expiring[K, V]]()
+                val oldQueue = expiring.putIfAbsent(period, queue)
+                if (oldQueue ne null)
+                    queue = oldQueue
+            }
+            queue.offer(new Expiring(entry, entry.expiration))
+        }
+
+        override def putAndRef(key: K, value: V): V =
+            ConcurrentFlowStateTable.this.putAndRef(key, value, log)
+
+        override def get(key: K): V = ConcurrentFlowStateTable.this.get(key)
+
+        override def ref(key: K): V = ConcurrentFlowStateTable.this.ref(key, log)
+
+        override def unref(key: K): Unit =
+            ConcurrentFlowStateTable.this.unref(key, this)
+
+        override def getRefCount(key: K): Int =
+            ConcurrentFlowStateTable.this.getRefCount(key)
+
+        override def touch(key: K, value: V): Unit = {
+            putAndRef(key, value)
+            unref(key)
+        }
+
+        override def fold[U](seed: U, func: Reducer[K, V, U]): U =
+            ConcurrentFlowStateTable.this.fold(seed, func)
+
+        override def expireIdleEntries(): Unit =
+            expireIdleEntries((), identityReducer)
+
+        override def expireIdleEntries[U](seed: U, func: Reducer[K, V, U]): U = {
+            val now = tickMillis
+            var acc = seed
+            val it = expiring.elements()
+            while (it.hasMoreElements) {
+                acc = expire(it.nextElement(), now, acc, func)
+            }
+            acc
+        }
+
+        private def expire[U](queue: ConcurrentLinkedQueue[Expiring[K, V]],
+                              now: Long, seed: U, func: Reducer[K, V, U]): U = {
+            var acc = seed
+            while (true) {
+                val expiring = queue.peek()
+                if ((expiring eq null) || expiring.expiration > now)
+                    return acc
+
+                // The entry may have been referenced again, or scheduled again
+                // by another shard, since it was added to this queue.
+                val entry = expiring.entry
+                if (entry.expiration <= now && entry.compareAndSet(0, -1)) {
+                    log.debug(s"Forgetting entry ${entry.key}")
+                    acc = func(acc, entry.key, entry.value)
+                    remove(entry)
+                }
+                queue.poll()
+            }
+            acc
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state
+
+import java.nio.ByteBuffer
+
+/**
+ * Encodes the keys and values of a flow state table as fixed-width records,
+ * such that they can be stored outside the heap. Two keys must have the same
+ * encoding if and only if they are equal.
+ *
+ * The decoding methods may be called on a record that is concurrently
+ * modified, in which case the result is discarded, and therefore they must
+ * not fail on arbitrary data.
+ */
+trait FlowStateCodec[K, V] {
+
+    /**
+     * The number of bytes of an encoded key.
+     */
+    def keySize: Int
+
+    /**
+     * The number of bytes of an encoded value.
+     */
+    def valueSize: Int
+
+    def encodeKey(key: K, buffer: ByteBuffer, offset: Int): Unit
+
+    def decodeKey(buffer: ByteBuffer, offset: Int): K
+
+    def encodeValue(value: V, buffer: ByteBuffer, offset: Int): Unit
+
+    def decodeValue(buffer: ByteBuffer, offset: Int): V
+}
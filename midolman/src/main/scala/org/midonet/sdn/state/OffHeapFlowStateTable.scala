@@ -0,0 +1,704 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state
+
+import java.nio.{ByteBuffer, ByteOrder}
+import java.util.concurrent.{CopyOnWriteArrayList, TimeUnit}
+import java.util.concurrent.locks.StampedLock
+import java.util.{ArrayList, Arrays}
+
+import scala.concurrent.duration.Duration
+
+import org.slf4j.LoggerFactory
+
+import org.midonet.Util
+import org.midonet.packets.FlowStateStore.IdleExpiration
+import org.midonet.util.collection.Reducer
+import org.midonet.util.concurrent.NanoClock
+import org.midonet.util.logging.Logger
+
+object OffHeapFlowStateTable {
+
+    final val DefaultStripes = 64
+    final val DefaultCapacity = 1 << 16
+
+    /**
+     * The expiration wheel of every stripe has a bucket for each interval of
+     * this many milliseconds, and covers a little over a minute, the default
+     * idle expiration of the flow state.
+     */
+    final val WheelResolutionMillis = 64L
+    final val WheelBuckets = 1024
+
+    // Layout of the record header, followed by the key and the value aligned
+    // to eight bytes.
+    private final val HashOffset = 0
+    private final val RefCountOffset = 4
+    private final val ExpirationOffset = 8
+    private final val ExpiresAfterOffset = 16
+    private final val PrevOffset = 24
+    private final val NextOffset = 28
+    private final val StateOffset = 32
+    private final val KeyOffset = 40
+
+    private final val Empty: Byte = 0
+    private final val Live: Byte = 1
+    private final val Expiring: Byte = 2
+    private final val Deleted: Byte = 3
+
+    private final val MaxLoadFactor = 0.75
+
+    @inline private def align(size: Int): Int = (size + 7) & ~7
+
+    /**
+     * A direct buffer with the records of a stripe. The buffer is replaced
+     * when the stripe is resized, such that a reader always probes a buffer
+     * consistent with its capacity.
+     */
+    private final class Segment(val capacity: Int, stride: Int) {
+        val mask = capacity - 1
+        val buffer = ByteBuffer.allocateDirect(capacity * stride)
+                               .order(ByteOrder.nativeOrder())
+    }
+}
+
+/**
+ * A per-flow state table that stores its entries as fixed-width records in
+ * direct memory, such that a large number of entries does not increase the
+ * size of the heap and the duration of the garbage collections. The keys and
+ * values are converted to and from records using a [[FlowStateCodec]], and
+ * only the values returned by the lookups, and the entries passed to the
+ * reducers, are allocated on the heap.
+ *
+ * The table is divided in stripes, selected by the upper bits of the hash of
+ * the encoded key. Each stripe is an open-addressing hash index with linear
+ * probing, which grows when it exceeds its load factor. Updates take the
+ * write lock of their stripe, whereas lookups use optimistic reads that only
+ * take the read lock if they raced with an update.
+ *
+ * Entries with no references are scheduled for expiration in a timing wheel,
+ * whose lists are linked through the records themselves. As for the
+ * [[org.midonet.util.concurrent.TimedExpirationMap]], the reducer is called
+ * for an expired entry before it is removed, and during this time the entry
+ * cannot be referenced or replaced.
+ *
+ * THREADING SEMANTICS:
+ *
+ * All operations are thread-safe. Each shard returned by `addShard` expires
+ * the entries of a subset of the stripes, and its expireIdleEntries() method
+ * is limited to one caller at a time. The expiration of the table itself
+ * must not be called concurrently with the expiration of its shards.
+ */
+class OffHeapFlowStateTable[K <: IdleExpiration, V >: Null]
+        (codec: FlowStateCodec[K, V],
+         val clock: NanoClock = NanoClock.DEFAULT,
+         capacity: Int = OffHeapFlowStateTable.DefaultCapacity,
+         numStripes: Int = OffHeapFlowStateTable.DefaultStripes)
+    extends ShardableFlowStateTable[K, V] {
+
+    import OffHeapFlowStateTable._
+
+    private val keyWords = align(codec.keySize) >> 3
+    private val valueOffset = KeyOffset + (keyWords << 3)
+    private val stride = valueOffset + align(codec.valueSize)
+    private val maxCapacity = Integer.highestOneBit(Int.MaxValue / stride)
+
+    private val stripeCount = Util.findNextPositivePowerOfTwo(numStripes)
+    private val stripeShift = 32 - Integer.numberOfTrailingZeros(stripeCount)
+    private val stripes = Array.fill(stripeCount)(new Stripe(
+        Util.findNextPositivePowerOfTwo(Math.max(16, capacity / stripeCount))))
+
+    private val scratch = new ThreadLocal[ByteBuffer] {
+        override def initialValue(): ByteBuffer =
+            ByteBuffer.allocate(keyWords << 3).order(ByteOrder.nativeOrder())
+    }
+
+    private val defaultLogger =
+        Logger(LoggerFactory.getLogger("org.midonet.state.table"))
+
+    private val identityReducer = new Reducer[K, V, Unit] {
+        override def apply(acc: Unit, key: K, value: V): Unit = ()
+    }
+
+    private val shards = new CopyOnWriteArrayList[FlowStateShard]()
+    private val root = new FlowStateShard(-1, defaultLogger)
+
+    override def addShard(log: Logger = defaultLogger): FlowStateShard = {
+        val shard = new FlowStateShard(shards.size, log)
+        shards.add(shard)
+        shard
+    }
+
+    private final class Stripe(initialCapacity: Int) {
+        val lock = new StampedLock
+        @volatile var segment = new Segment(initialCapacity, stride)
+        // The number of non-empty slots, and of live or expiring entries.
+        var used = 0
+        var size = 0
+        val heads = new Array[Int](WheelBuckets)
+        var wheelStarted = false
+        var wheelTick = 0L
+        Arrays.fill(heads, -1)
+    }
+
+    /**
+     * Encodes the key into the scratch buffer of the current thread, and
+     * returns its hash.
+     */
+    private def encode(key: K, buffer: ByteBuffer): Int = {
+        codec.encodeKey(key, buffer, 0)
+        var hash = 0L
+        var word = 0
+        while (word < keyWords) {
+            hash = hash * 0x9E3779B97F4A7C15L + buffer.getLong(word << 3)
+            word += 1
+        }
+        // The finalization step of MurmurHash3.
+        var h = (hash ^ (hash >>> 32)).toInt
+        h ^= h >>> 16
+        h *= 0x85ebca6b
+        h ^= h >>> 13
+        h *= 0xc2b2ae35
+        h ^ (h >>> 16)
+    }
+
+    @inline private def stripeOf(hash: Int): Stripe =
+        stripes(if (stripeShift == 32) 0 else hash >>> stripeShift)
+
+    /**
+     * Returns the slot of the live or expiring record for the encoded key,
+     * or -1 if there is no such record.
+     */
+    private def find(segment: Segment, hash: Int, key: ByteBuffer): Int = {
+        val buffer = segment.buffer
+        var slot = hash & segment.mask
+        var probes = 0
+        while (probes < segment.capacity) {
+            val base = slot * stride
+            val state = buffer.get(base + StateOffset)
+            if (state == Empty) {
+                return -1
+            }
+            if (state != Deleted && buffer.getInt(base + HashOffset) == hash &&
+                keyEquals(buffer, base + KeyOffset, key)) {
+                return slot
+            }
+            slot = (slot + 1) & segment.mask
+            probes += 1
+        }
+        -1
+    }
+
+    private def keyEquals(buffer: ByteBuffer, offset: Int,
+                          key: ByteBuffer): Boolean = {
+        var word = 0
+        while (word < keyWords) {
+            if (buffer.getLong(offset + (word << 3)) != key.getLong(word << 3)) {
+                return false
+            }
+            word += 1
+        }
+        true
+    }
+
+    private def state(segment: Segment, slot: Int): Byte =
+        segment.buffer.get(slot * stride + StateOffset)
+
+    private def refCount(segment: Segment, slot: Int): Int =
+        segment.buffer.getInt(slot * stride + RefCountOffset)
+
+    private def decodeKey(segment: Segment, slot: Int): K = {
+        val base = slot * stride
+        val key = codec.decodeKey(segment.buffer, base + KeyOffset)
+        val expiresAfter = segment.buffer.getLong(base + ExpiresAfterOffset)
+        if (key.expiresAfter.toMillis != expiresAfter) {
+            key.expiresAfter = Duration(expiresAfter, TimeUnit.MILLISECONDS)
+        }
+        key
+    }
+
+    private def decodeValue(segment: Segment, slot: Int): V =
+        codec.decodeValue(segment.buffer, slot * stride + valueOffset)
+
+    private def tickMillis = TimeUnit.NANOSECONDS.toMillis(clock.tick)
+
+    @inline private def bucketOf(expiration: Long): Int =
+        (Math.floorDiv(expiration, WheelResolutionMillis) &
+         (WheelBuckets - 1)).toInt
+
+    /**
+     * Links an unreferenced record into the expiration wheel. The caller must
+     * hold the write lock of the stripe.
+     */
+    private def schedule(stripe: Stripe, slot: Int, expiration: Long): Unit = {
+        val buffer = stripe.segment.buffer
+        val base = slot * stride
+        val bucket = bucketOf(expiration)
+        val next = stripe.heads(bucket)
+        buffer.putLong(base + ExpirationOffset, expiration)
+        buffer.putInt(base + PrevOffset, -1)
+        buffer.putInt(base + NextOffset, next)
+        if (next >= 0) {
+            buffer.putInt(next * stride + PrevOffset, slot)
+        }
+        stripe.heads(bucket) = slot
+    }
+
+    /**
+     * Unlinks a record from the expiration wheel. The caller must hold the
+     * write lock of the stripe.
+     */
+    private def unschedule(stripe: Stripe, slot: Int): Unit = {
+        val buffer = stripe.segment.buffer
+        val base = slot * stride
+        val prev = buffer.getInt(base + PrevOffset)
+        val next = buffer.getInt(base + NextOffset)
+        if (prev >= 0) {
+            buffer.putInt(prev * stride + NextOffset, next)
+        } else {
+            stripe.heads(bucketOf(buffer.getLong(base + ExpirationOffset))) = next
+        }
+        if (next >= 0) {
+            buffer.putInt(next * stride + PrevOffset, prev)
+        }
+        buffer.putLong(base + ExpirationOffset, Long.MaxValue)
+    }
+
+    /**
+     * Inserts a record for a key that is not in the stripe, growing the
+     * stripe if needed. The caller must hold the write lock of the stripe.
+     */
+    private def insert(stripe: Stripe, hash: Int, encodedKey: ByteBuffer,
+                       key: K, value: V, refs: Int): Unit = {
+        if (stripe.used + 1 > stripe.segment.capacity * MaxLoadFactor) {
+            val capacity = stripe.segment.capacity
+            resize(stripe, if ((stripe.size + 1) * 2 > capacity) capacity * 2
+                           else capacity)
+        }
+        val segment = stripe.segment
+        val buffer = segment.buffer
+        var slot = hash & segment.mask
+        var state = buffer.get(slot * stride + StateOffset)
+        while (state == Live || state == Expiring) {
+            slot = (slot + 1) & segment.mask
+            state = buffer.get(slot * stride + StateOffset)
+        }
+        if (state == Empty) {
+            stripe.used += 1
+        }
+        stripe.size += 1
+
+        val base = slot * stride
+        buffer.putInt(base + HashOffset, hash)
+        buffer.putInt(base + RefCountOffset, refs)
+        buffer.putLong(base + ExpirationOffset, Long.MaxValue)
+        buffer.putLong(base + ExpiresAfterOffset, key.expiresAfter.toMillis)
+        var word = 0
+        while (word < keyWords) {
+            buffer.putLong(base + KeyOffset + (word << 3),
+                           encodedKey.getLong(word << 3))
+            word += 1
+        }
+        codec.encodeValue(value, buffer, base + valueOffset)
+        buffer.put(base + StateOffset, Live)
+        if (refs == 0) {
+            schedule(stripe, slot,
+                     tickMillis + buffer.getLong(base + ExpiresAfterOffset))
+        }
+    }
+
+    /**
+     * Moves the records of a stripe to a new segment, dropping the deleted
+     * records, and rebuilds the expiration wheel.
+     */
+    private def resize(stripe: Stripe, capacity: Int): Unit = {
+        if (capacity > maxCapacity) {
+            throw new IllegalStateException(
+                s"Flow state table stripe exceeded $maxCapacity entries")
+        }
+        val oldBuffer = stripe.segment.buffer
+        val oldCapacity = stripe.segment.capacity
+        val segment = new Segment(capacity, stride)
+        val buffer = segment.buffer
+        Arrays.fill(stripe.heads, -1)
+
+        var oldSlot = 0
+        while (oldSlot < oldCapacity) {
+            val oldBase = oldSlot * stride
+            val state = oldBuffer.get(oldBase + StateOffset)
+            if (state == Live || state == Expiring) {
+                var slot = oldBuffer.getInt(oldBase + HashOffset) & segment.mask
+                while (buffer.get(slot * stride + StateOffset) != Empty) {
+                    slot = (slot + 1) & segment.mask
+                }
+                val base = slot * stride
+                var offset = 0
+                while (offset < stride) {
+                    buffer.putLong(base + offset,
+                                   oldBuffer.getLong(oldBase + offset))
+                    offset += 8
+                }
+            }
+            oldSlot += 1
+        }
+        stripe.segment = segment
+        stripe.used = stripe.size
+
+        var slot = 0
+        while (slot < capacity) {
+            if (state(segment, slot) == Live && refCount(segment, slot) == 0) {
+                schedule(stripe, slot,
+                         buffer.getLong(slot * stride + ExpirationOffset))
+            }
+            slot += 1
+        }
+    }
+
+    private def putAndRef(key: K, value: V, log: Logger): V = {
+        val encodedKey = scratch.get
+        val hash = encode(key, encodedKey)
+        val stripe = stripeOf(hash)
+        while (true) {
+            val stamp = stripe.lock.writeLock()
+            try {
+                val segment = stripe.segment
+                val slot = find(segment, hash, encodedKey)
+                if (slot < 0) {
+                    insert(stripe, hash, encodedKey, key, value, 1)
+                    log.debug(s"Incrementing reference count of $key to 1")
+                    return null
+                }
+                if (state(segment, slot) == Live) {
+                    val buffer = segment.buffer
+                    val base = slot * stride
+                    val oldValue = decodeValue(segment, slot)
+                    codec.encodeValue(value, buffer, base + valueOffset)
+                    val count = buffer.getInt(base + RefCountOffset)
+                    if (count == 0) {
+                        unschedule(stripe, slot)
+                    }
+                    buffer.putInt(base + RefCountOffset, count + 1)
+                    return oldValue
+                }
+            } finally {
+                stripe.lock.unlockWrite(stamp)
+            }
+            // Retry, the entry is being expired.
+            Thread.`yield`()
+        }
+        null // not reached
+    }
+
+    private def touchEntry(key: K, value: V): Unit = {
+        val encodedKey = scratch.get
+        val hash = encode(key, encodedKey)
+        val stripe = stripeOf(hash)
+        while (true) {
+            val stamp = stripe.lock.writeLock()
+            try {
+                val segment = stripe.segment
+                val slot = find(segment, hash, encodedKey)
+                if (slot < 0) {
+                    insert(stripe, hash, encodedKey, key, value, 0)
+                    return
+                }
+                if (state(segment, slot) == Live) {
+                    val buffer = segment.buffer
+                    val base = slot * stride
+                    codec.encodeValue(value, buffer, base + valueOffset)
+                    if (buffer.getInt(base + RefCountOffset) == 0) {
+                        val expiresAfter = key.expiresAfter.toMillis
+                        buffer.putLong(base + ExpiresAfterOffset, expiresAfter)
+                        unschedule(stripe, slot)
+                        schedule(stripe, slot, tickMillis + expiresAfter)
+                    }
+                    return
+                }
+            } finally {
+                stripe.lock.unlockWrite(stamp)
+            }
+            Thread.`yield`()
+        }
+    }
+
+    private def ref(key: K, log: Logger): V = {
+        val encodedKey = scratch.get
+        val hash = encode(key, encodedKey)
+        val stripe = stripeOf(hash)
+        val stamp = stripe.lock.writeLock()
+        try {
+            val segment = stripe.segment
+            val slot = find(segment, hash, encodedKey)
+            if (slot < 0 || state(segment, slot) != Live) {
+                return null
+            }
+            val count = refCount(segment, slot)
+            if (count == 0) {
+                unschedule(stripe, slot)
+            }
+            segment.buffer.putInt(slot * stride + RefCountOffset, count + 1)
+            log.debug(s"Incrementing reference count of $key to ${count + 1}")
+            decodeValue(segment, slot)
+        } finally {
+            stripe.lock.unlockWrite(stamp)
+        }
+    }
+
+    private def unref(key: K, log: Logger): Unit = {
+        val encodedKey = scratch.get
+        val hash = encode(key, encodedKey)
+        val stripe = stripeOf(hash)
+        val stamp = stripe.lock.writeLock()
+        try {
+            val segment = stripe.segment
+            val slot = find(segment, hash, encodedKey)
+            if (slot < 0 || state(segment, slot) != Live) {
+                return
+            }
+            val buffer = segment.buffer
+            val base = slot * stride
+            val count = buffer.getInt(base + RefCountOffset)
+            if (count <= 0) {
+                log.error(s"Decrement a ref count past 0 for $key")
+                return
+            }
+            buffer.putInt(base + RefCountOffset, count - 1)
+            log.debug(s"Decrementing reference count of $key to ${count - 1}")
+            if (count == 1) {
+                val expiresAfter = key.expiresAfter.toMillis
+                buffer.putLong(base + ExpiresAfterOffset, expiresAfter)
+                schedule(stripe, slot, tickMillis + expiresAfter)
+            }
+        } finally {
+            stripe.lock.unlockWrite(stamp)
+        }
+    }
+
+    /**
+     * Reads the value or the reference count of a key, using an optimistic
+     * read of the stripe that is retried with the read lock if the stripe was
+     * modified concurrently.
+     */
+    private def read(key: K, value: Boolean): AnyRef = {
+        val encodedKey = scratch.get
+        val hash = encode(key, encodedKey)
+        val stripe = stripeOf(hash)
+        var stamp = stripe.lock.tryOptimisticRead()
+        if (stamp != 0) {
+            val result = readSegment(stripe.segment, hash, encodedKey, value)
+            if (stripe.lock.validate(stamp)) {
+                return result
+            }
+        }
+        stamp = stripe.lock.readLock()
+        try {
+            readSegment(stripe.segment, hash, encodedKey, value)
+        } finally {
+            stripe.lock.unlockRead(stamp)
+        }
+    }
+
+    private def readSegment(segment: Segment, hash: Int, encodedKey: ByteBuffer,
+                            value: Boolean): AnyRef = {
+        val slot = find(segment, hash, encodedKey)
+        if (slot < 0 || state(segment, slot) != Live) {
+            if (value) null else Int.box(0)
+        } else if (value) {
+            decodeValue(segment, slot).asInstanceOf[AnyRef]
+        } else {
+            Int.box(refCount(segment, slot))
+        }
+    }
+
+    /**
+     * Expires the entries of a stripe whose expiration is due, calling the
+     * reducer for each of them before they are removed.
+     */
+    private def expire[U](stripe: Stripe, now: Long, seed: U,
+                          func: Reducer[K, V, U], keys: ArrayList[K],
+                          values: ArrayList[V]): U = {
+        var stamp = stripe.lock.writeLock()
+        try {
+            val segment = stripe.segment
+            val buffer = segment.buffer
+            val nowTick = Math.floorDiv(now, WheelResolutionMillis)
+            var tick =
+                if (!stripe.wheelStarted ||
+                    nowTick - stripe.wheelTick >= WheelBuckets) {
+                    nowTick - WheelBuckets + 1
+                } else {
+                    stripe.wheelTick
+                }
+            while (tick <= nowTick) {
+                val bucket = (tick & (WheelBuckets - 1)).toInt
+                var slot = stripe.heads(bucket)
+                while (slot >= 0) {
+                    val base = slot * stride
+                    val next = buffer.getInt(base + NextOffset)
+                    if (buffer.getLong(base + ExpirationOffset) <= now) {
+                        unschedule(stripe, slot)
+                        buffer.put(base + StateOffset, Expiring)
+                        keys.add(decodeKey(segment, slot))
+                        values.add(decodeValue(segment, slot))
+                    }
+                    slot = next
+                }
+                tick += 1
+            }
+            // The current tick is visited again by the next expiration.
+            stripe.wheelStarted = true
+            stripe.wheelTick = nowTick
+        } finally {
+            stripe.lock.unlockWrite(stamp)
+        }
+
+        if (keys.isEmpty) {
+            return seed
+        }
+
+        /* The following operations are ordered such that the entries cannot
+         * be referenced or replaced until the reducer has been called. */
+        var acc = seed
+        var index = 0
+        while (index < keys.size) {
+            acc = func(acc, keys.get(index), values.get(index))
+            index += 1
+        }
+
+        val encodedKey = scratch.get
+        stamp = stripe.lock.writeLock()
+        try {
+            index = 0
+            while (index < keys.size) {
+                val hash = encode(keys.get(index), encodedKey)
+                val segment = stripe.segment
+                val slot = find(segment, hash, encodedKey)
+                if (slot >= 0 && state(segment, slot) == Expiring) {
+                    segment.buffer.put(slot * stride + StateOffset, Deleted)
+                    stripe.size -= 1
+                }
+                index += 1
+            }
+        } finally {
+            stripe.lock.unlockWrite(stamp)
+        }
+        keys.clear()
+        values.clear()
+        acc
+    }
+
+    override def putAndRef(key: K, value: V): V =
+        putAndRef(key, value, defaultLogger)
+
+    override def get(key: K): V = read(key, value = true).asInstanceOf[V]
+
+    override def ref(key: K): V = ref(key, defaultLogger)
+
+    override def unref(key: K): Unit = unref(key, defaultLogger)
+
+    override def touch(key: K, value: V): Unit = touchEntry(key, value)
+
+    override def getRefCount(key: K): Int =
+        read(key, value = false).asInstanceOf[Integer].intValue()
+
+    override def fold[U](seed: U, func: Reducer[K, V, U]): U = {
+        // The reducer is called outside the lock of the stripe, such that it
+        // may access this table.
+        val keys = new ArrayList[K]()
+        val values = new ArrayList[V]()
+        var acc = seed
+        var i = 0
+        while (i < stripeCount) {
+            val stripe = stripes(i)
+            val stamp = stripe.lock.readLock()
+            try {
+                val segment = stripe.segment
+                var slot = 0
+                while (slot < segment.capacity) {
+                    if (state(segment, slot) == Live) {
+                        keys.add(decodeKey(segment, slot))
+                        values.add(decodeValue(segment, slot))
+                    }
+                    slot += 1
+                }
+            } finally {
+                stripe.lock.unlockRead(stamp)
+            }
+            var index = 0
+            while (index < keys.size) {
+                acc = func(acc, keys.get(index), values.get(index))
+                index += 1
+            }
+            keys.clear()
+            values.clear()
+            i += 1
+        }
+        acc
+    }
+
+    override def expireIdleEntries(): Unit = root.expireIdleEntries()
+
+    override def expireIdleEntries[U](seed: U, func: Reducer[K, V, U]): U =
+        root.expireIdleEntries(seed, func)
+
+    /**
+     * A view of the table for a packet worker, which expires the entries of
+     * the stripes assigned to the shard. The root shard expires all stripes.
+     */
+    class FlowStateShard(index: Int, log: Logger) extends FlowStateTable[K, V] {
+
+        private val expiredKeys = new ArrayList[K]()
+        private val expiredValues = new ArrayList[V]()
+
+        override def putAndRef(key: K, value: V): V =
+            OffHeapFlowStateTable.this.putAndRef(key, value, log)
+
+        override def get(key: K): V = OffHeapFlowStateTable.this.get(key)
+
+        override def ref(key: K): V = OffHeapFlowStateTable.this.ref(key, log)
+
+        override def unref(key: K): Unit =
+            OffHeapFlowStateTable.this.unref(key, log)
+
+        override def touch(key: K, value: V): Unit =
+            touchEntry(key, value)
+
+        override def getRefCount(key: K): Int =
+            OffHeapFlowStateTable.this.getRefCount(key)
+
+        override def fold[U](seed: U, func: Reducer[K, V, U]): U =
+            OffHeapFlowStateTable.this.fold(seed, func)
+
+        override def expireIdleEntries(): Unit =
+            expireIdleEntries((), identityReducer)
+
+        override def expireIdleEntries[U](seed: U, func: Reducer[K, V, U]): U = {
+            val now = tickMillis
+            val numShards = shards.size
+            var acc = seed
+            var i = 0
+            while (i < stripeCount) {
+                if (index < 0 || i % numShards == index) {
+                    acc = expire(stripes(i), now, acc, func, expiredKeys,
+                                 expiredValues)
+                }
+                i += 1
+            }
+            acc
+        }
+    }
+}
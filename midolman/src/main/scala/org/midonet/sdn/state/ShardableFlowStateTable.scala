@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state
+
+import org.midonet.packets.FlowStateStore.IdleExpiration
+import org.midonet.util.concurrent.NanoClock
+import org.midonet.util.logging.Logger
+
+object ShardableFlowStateTable {
+
+    final val Sharded = "sharded"
+    final val Concurrent = "concurrent"
+    final val OffHeap = "off_heap"
+
+    /**
+     * Creates the flow state table of the given type, which is either
+     * "sharded", "concurrent" or "off_heap". The capacity is the initial
+     * capacity of the concurrent and off-heap tables, where the concurrent
+     * table does not resize. The off-heap table requires a codec for its
+     * entries, and the concurrent table is used instead when there is none.
+     */
+    def create[K <: IdleExpiration, V >: Null](tableType: String,
+                                               clock: NanoClock,
+                                               capacity: Int,
+                                               codec: FlowStateCodec[K, V] = null)
+    : ShardableFlowStateTable[K, V] = tableType match {
+        case Sharded => new ShardedFlowStateTable[K, V](clock)
+        case Concurrent => new ConcurrentFlowStateTable[K, V](clock, capacity)
+        case OffHeap if codec ne null =>
+            new OffHeapFlowStateTable[K, V](codec, clock, capacity)
+        case OffHeap => new ConcurrentFlowStateTable[K, V](clock, capacity)
+        case _ => throw new IllegalArgumentException(
+            s"Unknown flow state table type: $tableType")
+    }
+}
+
+/**
+ * A per-flow state table accessed by a number of packet workers, each through
+ * its own shard.
+ */
+trait ShardableFlowStateTable[K, V] extends FlowStateTable[K, V] {
+
+    /**
+     * Adds a new shard to this table, to be owned by a single thread.
+     */
+    def addShard(log: Logger): FlowStateTable[K, V]
+}
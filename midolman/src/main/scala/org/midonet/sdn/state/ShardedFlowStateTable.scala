@@ -55,7 +55,8 @@ object ShardedFlowStateTable {
  * external thread or pool, not a shard-owning thread.
  */
 class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
-        (val clock: NanoClock = NanoClock.DEFAULT) extends FlowStateTable[K, V] {
+        (val clock: NanoClock = NanoClock.DEFAULT)
+        extends ShardableFlowStateTable[K, V] {
 
     private val shards = new ArrayList[FlowStateShard]()
     private val SHARD_NONE: Int = -1
@@ -63,7 +64,7 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
     private val defaultLogger =
         Logger(LoggerFactory.getLogger("org.midonet.state.table"))
 
-    def addShard(log: Logger = defaultLogger) = {
+    override def addShard(log: Logger = defaultLogger): FlowStateShard = {
         val s: FlowStateShard = new FlowStateShard(shards.size, log)
         shards.add(s)
         s
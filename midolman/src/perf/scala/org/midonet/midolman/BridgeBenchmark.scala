@@ -45,7 +45,6 @@ class BridgeBenchmark extends MidolmanBenchmark {
 
     @JmhSetup
     def setup(): Unit = {
-        newHost("myself", hostId)
         val clusterBridgeId: UUID = newBridge("bridge")
         leftPortId = newBridgePort(clusterBridgeId)
         rightPortId = newBridgePort(clusterBridgeId)
@@ -61,6 +60,8 @@ class BridgeBenchmark extends MidolmanBenchmark {
     }
 
     @Benchmark
-    def benchmarkBridge(bh: Blackhole): (SimulationResult, PacketContext) =
+    def benchmarkBridge(bh: Blackhole): (SimulationResult, PacketContext) = {
+        packetContext.prepareForSimulation()
         simulate(packetContext)
+    }
 }
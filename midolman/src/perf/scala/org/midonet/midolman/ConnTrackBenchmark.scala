@@ -78,7 +78,6 @@ class ConnTrackBenchmark extends MidolmanBenchmark {
 
     @JmhSetup
     def setup(): Unit = {
-        newHost("myself", hostId)
         val clusterBridgeId: UUID = newBridge("bridge")
         leftPortId = newBridgePort(clusterBridgeId)
         rightPortId = newBridgePort(clusterBridgeId)
@@ -108,6 +107,7 @@ class ConnTrackBenchmark extends MidolmanBenchmark {
 
     @Benchmark
     def benchmarkConntrack(bh: Blackhole): (SimulationResult, PacketContext) = {
+        packetContext.prepareForSimulation()
         val res = simulate(packetContext)
         replicator.accumulateNewKeys(packetContext)
         conntrackTx.flush()
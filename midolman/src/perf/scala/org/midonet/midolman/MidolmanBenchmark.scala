@@ -22,6 +22,7 @@ import com.google.inject.{AbstractModule, Guice, Injector}
 import com.typesafe.config.{Config, ConfigFactory}
 import org.openjdk.jmh.annotations.{Setup => JmhSetup, TearDown}
 
+import org.midonet.cluster.data.storage.InMemoryStorage
 import org.midonet.cluster.services.MidonetBackend
 import org.midonet.cluster.storage.MidonetBackendTestModule
 import org.midonet.conf.MidoTestConfigurator
@@ -50,6 +51,8 @@ trait MidolmanBenchmark extends MockMidolmanActors
                 .startAsync().awaitRunning()
         injector.getInstance(classOf[MidolmanService])
                 .startAsync().awaitRunning()
+        InMemoryStorage.namespaceId = hostId
+        simBackChannel
     }
 
     @TearDown
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.PacketWorkflow.{AddVirtualWildcardFlow, SimulationResult}
+import org.midonet.midolman.layer3.Route.NextHop
+import org.midonet.midolman.rules.{Condition, NatTarget, RuleResult}
+import org.midonet.midolman.simulation.{Bridge, PacketContext, Router}
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.NatState.NatKey
+import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
+import org.midonet.packets.NatState.NatBinding
+import org.midonet.packets._
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.sdn.state.{FlowStateTransaction, ShardedFlowStateTable}
+
+object PacketPipelineBenchmark {
+
+    final val Bridged = "bridge"
+    final val Chains = "chains"
+    final val Routed = "router"
+    final val Nat = "nat"
+    final val LoadBalancer = "loadbalancer"
+
+    /** Number of routes unrelated to the simulated packet, which make the
+      * routing table of the router topologies a deep trie. */
+    final val NumRoutes = 4096
+
+    /** Number of non-matching rules in the security group chain. */
+    final val NumRules = 64
+
+    final val NumBackends = 4
+}
+
+/**
+ * Measures the simulation of a packet through synthetic virtual topologies,
+ * one per @Param value:
+ *
+ *  - bridge: a MAC-learned bridge between two ports.
+ *  - chains: the same bridge, with an inbound chain jumping to a stateful
+ *    security group chain where the packet matches one of the last rules.
+ *  - router: a router between two subnets with a deep routing table.
+ *  - nat: the same router, with DNAT and SNAT rules.
+ *  - loadbalancer: the same router, with a load balancer and a VIP.
+ *
+ * The packet is the same for every invocation, so the stateful topologies
+ * measure the simulation of an established connection. Run with the GC
+ * profiler (enabled by default by the benchmarks task) to also report the
+ * allocation rate of the simulation.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class PacketPipelineBenchmark extends MidolmanBenchmark {
+
+    import PacketPipelineBenchmark._
+
+    @Param(Array(Bridged, Chains, Routed, Nat, LoadBalancer))
+    var topology: String = _
+
+    val leftMac = MAC.random
+    val rightMac = MAC.random
+    val leftGwMac = MAC.random
+    val rightGwMac = MAC.random
+
+    val leftIp = IPv4Addr("10.0.0.2")
+    val rightIp = IPv4Addr("10.0.1.2")
+    val natIp = IPv4Addr("1.1.1.1")
+    val vipIp = IPv4Addr("10.0.2.10")
+
+    val conntrackTable =
+        new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue]().addShard()
+    val natTable =
+        new ShardedFlowStateTable[NatKey, NatBinding]().addShard()
+    val traceTable =
+        new ShardedFlowStateTable[TraceKey, TraceContext]().addShard()
+    implicit val conntrackTx = new FlowStateTransaction(conntrackTable)
+    implicit val natTx = new FlowStateTransaction(natTable)
+    implicit val traceTx = new FlowStateTransaction(traceTable)
+
+    var packetContext: PacketContext = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        packetContext = topology match {
+            case Bridged => bridge(withChains = false)
+            case Chains => bridge(withChains = true)
+            case Routed => router()
+            case Nat => nat()
+            case LoadBalancer => loadBalancer()
+        }
+
+        val (result, _) = simulate(packetContext)
+        if (result != AddVirtualWildcardFlow) {
+            throw new IllegalStateException(
+                s"Unexpected simulation result $result for $topology")
+        }
+    }
+
+    @Benchmark
+    def simulatePacket(): (SimulationResult, PacketContext) = {
+        // Resets the per-run state, such as the count of traversed devices,
+        // as the packet workflow does before every simulation.
+        packetContext.prepareForSimulation()
+        simulate(packetContext)
+    }
+
+    private def bridge(withChains: Boolean): PacketContext = {
+        val bridgeId = newBridge("bridge")
+        val leftPortId = newBridgePort(bridgeId)
+        val rightPortId = newBridgePort(bridgeId)
+        materializePort(rightPortId, hostId, "port0")
+
+        if (withChains) {
+            val chainId = newInboundChainOnBridge("chain", bridgeId)
+            val sgChainId = newChain("security-group")
+            val returnFlow = new Condition()
+            returnFlow.matchReturnFlow = true
+            newLiteralRuleOnChain(sgChainId, 1, returnFlow,
+                                  RuleResult.Action.ACCEPT)
+            for (i <- 0 until NumRules) {
+                newTcpDstRuleOnChain(sgChainId, i + 2, 1000 + i,
+                                     RuleResult.Action.ACCEPT)
+            }
+            val dns = newCondition(nwProto = Some(UDP.PROTOCOL_NUMBER),
+                                   tpDst = Some(53))
+            dns.matchForwardFlow = true
+            newLiteralRuleOnChain(sgChainId, NumRules + 2, dns,
+                                  RuleResult.Action.ACCEPT)
+            newLiteralRuleOnChain(sgChainId, NumRules + 3, new Condition(),
+                                  RuleResult.Action.DROP)
+            newJumpRuleOnChain(chainId, 1, new Condition(), sgChainId)
+            fetchChains(chainId, sgChainId)
+        }
+        fetchPorts(leftPortId, rightPortId)
+
+        val bridge = fetchDevice[Bridge](bridgeId)
+        val macTable = bridge.vlanMacTableMap(0.toShort)
+        macTable.add(leftMac, leftPortId)
+        macTable.add(rightMac, rightPortId)
+
+        packetContextFor({ eth addr leftMac -> rightMac } <<
+                         { ip4 addr leftIp --> rightIp } <<
+                         { udp ports 5003 ---> 53 } << payload("payload"),
+                         leftPortId)
+    }
+
+    private def newRouterWithPorts(): (UUID, UUID, UUID) = {
+        val routerId = newRouter("router")
+        val leftPortId = newRouterPort(routerId, leftGwMac, "10.0.0.1",
+                                       "10.0.0.0", 24)
+        newRoute(routerId, "0.0.0.0", 0, "10.0.0.0", 24, NextHop.PORT,
+                 leftPortId, null, 10)
+        val rightPortId = newRouterPort(routerId, rightGwMac, "10.0.1.1",
+                                        "10.0.1.0", 24)
+        newRoute(routerId, "0.0.0.0", 0, "10.0.1.0", 24, NextHop.PORT,
+                 rightPortId, null, 10)
+        materializePort(leftPortId, hostId, "port0")
+        materializePort(rightPortId, hostId, "port1")
+
+        // Prefixes within 172.16.0.0/12, which none of the packets match.
+        val random = new Random(0)
+        for (i <- 0 until NumRoutes) {
+            val length = 16 + random.nextInt(15)
+            val address = (0xac100000 | (random.nextInt() & 0xfffff)) &
+                          (0xffffffff << (32 - length))
+            newRoute(routerId, "0.0.0.0", 0, IPv4Addr.intToString(address),
+                     length, NextHop.PORT, leftPortId, null, 10)
+        }
+        (routerId, leftPortId, rightPortId)
+    }
+
+    private def loadRouter(routerId: UUID, ports: UUID*): Router = {
+        fetchPorts(ports: _*)
+        val router = fetchDevice[Router](routerId)
+        feedArpTable(router, leftIp, leftMac)
+        feedArpTable(router, rightIp, rightMac)
+        router
+    }
+
+    private def router(): PacketContext = {
+        val (routerId, leftPortId, rightPortId) = newRouterWithPorts()
+        loadRouter(routerId, leftPortId, rightPortId)
+
+        packetContextFor({ eth addr leftMac -> leftGwMac } <<
+                         { ip4 addr leftIp --> rightIp } <<
+                         { udp ports 5003 ---> 53 } << payload("payload"),
+                         leftPortId)
+    }
+
+    private def nat(): PacketContext = {
+        val (routerId, leftPortId, rightPortId) = newRouterWithPorts()
+
+        val inChainId = newInboundChainOnRouter("in", routerId)
+        val outChainId = newOutboundChainOnRouter("out", routerId)
+        val dnatCond = newCondition(nwProto = Some(TCP.PROTOCOL_NUMBER),
+                                    tpDst = Some(80))
+        dnatCond.nwDstIp = new IPv4Subnet(natIp, 32)
+        newForwardNatRuleOnChain(inChainId, 1, dnatCond,
+                                 RuleResult.Action.ACCEPT,
+                                 Set(new NatTarget(rightIp.addr, rightIp.addr,
+                                                   81, 81)),
+                                 isDnat = true)
+        val snatCond = newCondition(nwProto = Some(TCP.PROTOCOL_NUMBER))
+        snatCond.nwSrcIp = new IPv4Subnet("10.0.0.0", 24)
+        newForwardNatRuleOnChain(outChainId, 1, snatCond,
+                                 RuleResult.Action.ACCEPT,
+                                 Set(new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                                   IPv4Addr("10.0.1.1").addr,
+                                                   11000, 30000)),
+                                 isDnat = false)
+        fetchChains(inChainId, outChainId)
+        loadRouter(routerId, leftPortId, rightPortId)
+
+        packetContextFor({ eth addr leftMac -> leftGwMac } <<
+                         { ip4 addr leftIp --> natIp } <<
+                         { tcp ports 12345 ---> 80 },
+                         leftPortId)
+    }
+
+    private def loadBalancer(): PacketContext = {
+        val (routerId, leftPortId, rightPortId) = newRouterWithPorts()
+
+        val loadBalancerId = newLoadBalancer()
+        setLoadBalancerOnRouter(loadBalancerId, routerId)
+        val poolId = newPool(loadBalancerId)
+        newVip(poolId, vipIp.toString, 80)
+        val backends = for (i <- 0 until NumBackends)
+            yield IPv4Addr.fromInt(rightIp.toInt + i)
+        for (backend <- backends) {
+            newPoolMember(poolId, backend.toString, 80)
+        }
+        val router = loadRouter(routerId, leftPortId, rightPortId)
+        for (backend <- backends) {
+            feedArpTable(router, backend, rightMac)
+        }
+
+        packetContextFor({ eth addr leftMac -> leftGwMac } <<
+                         { ip4 addr leftIp --> vipIp } <<
+                         { tcp ports 12345 ---> 80 },
+                         leftPortId)
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.cluster
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.cluster.data.ZoomConvert
+import org.midonet.cluster.models.Commons
+import org.midonet.cluster.models.Topology.{Route => TopologyRoute}
+import org.midonet.cluster.util.{IPAddressUtil, IPSubnetUtil, UUIDUtil}
+import org.midonet.midolman.layer3.Route
+import org.midonet.midolman.layer3.Route.NextHop
+import org.midonet.packets.{IPv4Addr, IPv4Subnet}
+
+/**
+ * Measures the conversion of a route between its Protocol Buffers message and
+ * its ZoomObject, using ZoomConvert and, as a baseline, using code written by
+ * hand for the route class.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class ZoomConvertBenchmark {
+
+    var proto: TopologyRoute = _
+    var route: Route = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        proto = TopologyRoute.newBuilder()
+            .setId(UUIDUtil.toProto(UUID.randomUUID()))
+            .setSrcSubnet(IPSubnetUtil.toProto("10.0.0.0/8"))
+            .setDstSubnet(IPSubnetUtil.toProto("192.168.1.0/24"))
+            .setNextHop(TopologyRoute.NextHop.PORT)
+            .setNextHopPortId(UUIDUtil.toProto(UUID.randomUUID()))
+            .setNextHopGateway(IPAddressUtil.toProto("10.0.0.1"))
+            .setWeight(100)
+            .setAttributes("attributes")
+            .setRouterId(UUIDUtil.toProto(UUID.randomUUID()))
+            .build()
+        route = ZoomConvert.fromProto(proto, classOf[Route])
+    }
+
+    @Benchmark
+    def zoomFromProto(): Route = {
+        ZoomConvert.fromProto(proto, classOf[Route])
+    }
+
+    @Benchmark
+    def zoomToProto(): TopologyRoute = {
+        ZoomConvert.toProto(route, classOf[TopologyRoute])
+    }
+
+    @Benchmark
+    def manualFromProto(): Route = {
+        val srcSubnet = subnetOf(proto.getSrcSubnet)
+        val dstSubnet = subnetOf(proto.getDstSubnet)
+        new Route(srcSubnet.getIntAddress, srcSubnet.getPrefixLen,
+                  dstSubnet.getIntAddress, dstSubnet.getPrefixLen,
+                  NextHop.valueOf(proto.getNextHop.name),
+                  UUIDUtil.fromProto(proto.getNextHopPortId),
+                  IPv4Addr.stringToInt(proto.getNextHopGateway.getAddress),
+                  proto.getWeight, proto.getAttributes,
+                  UUIDUtil.fromProto(proto.getRouterId))
+    }
+
+    @Benchmark
+    def manualToProto(): TopologyRoute = {
+        TopologyRoute.newBuilder()
+            .setSrcSubnet(IPSubnetUtil.toProto(
+                new IPv4Subnet(route.srcNetworkAddr, route.srcNetworkLength)))
+            .setDstSubnet(IPSubnetUtil.toProto(
+                new IPv4Subnet(route.dstNetworkAddr, route.dstNetworkLength)))
+            .setNextHop(route.nextHop.toProto)
+            .setNextHopPortId(UUIDUtil.toProto(route.nextHopPort))
+            .setNextHopGateway(
+                IPAddressUtil.toProto(IPv4Addr(route.nextHopGateway)))
+            .setWeight(route.weight)
+            .setAttributes(route.attributes)
+            .setRouterId(UUIDUtil.toProto(route.routerId))
+            .build()
+    }
+
+    private def subnetOf(subnet: Commons.IPSubnet): IPv4Subnet = {
+        IPSubnetUtil.fromProto(subnet).asInstanceOf[IPv4Subnet]
+    }
+}
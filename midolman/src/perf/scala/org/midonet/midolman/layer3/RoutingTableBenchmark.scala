@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3
+
+import java.util.{ArrayList, UUID}
+import java.util.concurrent.TimeUnit
+
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.midolman.layer3.Route.NextHop
+
+object RoutingTableBenchmark {
+    final val NumLookups = 1024
+}
+
+/**
+ * Compares the lookups in the legacy routes trie with the lookups in the
+ * compiled and persistent routing tables, for tables of increasing size whose
+ * prefixes have random lengths, such that the trie is deep. The update
+ * benchmarks compare adding and removing a route to and from the persistent
+ * table with compiling the table again.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class RoutingTableBenchmark {
+
+    import RoutingTableBenchmark._
+
+    @Param(Array("16", "1024", "65536"))
+    var routes: Int = _
+
+    val trie = new RoutingTable
+    var compiled: CompiledRoutingTable = _
+    var persistent: PersistentRoutingTable = _
+    var all: ArrayList[Route] = _
+    var extra: Route = _
+    val destinations = new Array[Int](NumLookups)
+    val result = new ArrayList[Route]()
+    var index = 0
+
+    @JmhSetup
+    def setup(): Unit = {
+        val random = new Random(0)
+        val routerId = UUID.randomUUID()
+        all = new ArrayList[Route](routes)
+        for (i <- 0 until routes) {
+            val length = 8 + random.nextInt(25)
+            val address = random.nextInt() & (0xffffffff << (32 - length))
+            val route = new Route(0, 0, address, length, NextHop.PORT,
+                                  UUID.randomUUID(), 0, random.nextInt(4),
+                                  null, routerId)
+            trie.addRoute(route)
+            all.add(route)
+        }
+        compiled = new CompiledRoutingTable(all)
+        persistent = PersistentRoutingTable.EMPTY.update(
+            all, new ArrayList[Route]())
+        extra = new Route(0, 0, 0x0a010100, 24, NextHop.PORT,
+                          UUID.randomUUID(), 0, 0, null, routerId)
+
+        // Half of the lookups hit one of the prefixes.
+        for (i <- 0 until NumLookups) {
+            val route = all.get(random.nextInt(routes))
+            val mask = 0xffffffff << (32 - route.dstNetworkLength)
+            destinations(i) =
+                if (i % 2 == 0) route.dstNetworkAddr | (random.nextInt() & ~mask)
+                else random.nextInt()
+        }
+    }
+
+    private def nextDestination(): Int = {
+        index = (index + 1) & (NumLookups - 1)
+        destinations(index)
+    }
+
+    @Benchmark
+    def lookupTrie(bh: Blackhole): Unit = {
+        bh.consume(trie.lookup(0x0a000001, nextDestination()))
+    }
+
+    @Benchmark
+    def lookupCompiled(bh: Blackhole): Unit = {
+        bh.consume(compiled.lookup(0x0a000001, nextDestination()))
+    }
+
+    @Benchmark
+    def lookupCompiledIntoBuffer(): Int = {
+        compiled.lookup(0x0a000001, nextDestination(), result)
+    }
+
+    @Benchmark
+    def lookupPersistent(bh: Blackhole): Unit = {
+        bh.consume(persistent.lookup(0x0a000001, nextDestination()))
+    }
+
+    @Benchmark
+    def updatePersistent(bh: Blackhole): Unit = {
+        bh.consume(persistent.add(extra).remove(extra))
+    }
+
+    @Benchmark
+    def updateCompiled(bh: Blackhole): Unit = {
+        bh.consume(new CompiledRoutingTable(all))
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+import org.slf4j.helpers.NOPLogger
+
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackCodec, ConnTrackKey, ConnTrackValue}
+import org.midonet.packets.IPv4Addr
+import org.midonet.util.concurrent.MockClock
+import org.midonet.util.logging.Logger
+
+object FlowStateTableBenchmark {
+
+    final val NumKeys = 1 << 14
+
+    @State(Scope.Benchmark)
+    class TableState {
+
+        @Param(Array(ShardableFlowStateTable.Sharded,
+                     ShardableFlowStateTable.Concurrent,
+                     ShardableFlowStateTable.OffHeap))
+        var tableType: String = _
+
+        @Param(Array("1", "4", "16"))
+        var workers: Int = _
+
+        var shards: Array[FlowStateTable[ConnTrackKey, ConnTrackValue]] = _
+        val keys = new Array[ConnTrackKey](NumKeys)
+        val nextShard = new AtomicInteger
+
+        @JmhSetup
+        def setup(): Unit = {
+            val table = ShardableFlowStateTable.create[ConnTrackKey, ConnTrackValue](
+                tableType, new MockClock, NumKeys * 4, ConnTrackCodec)
+            val log = Logger(NOPLogger.NOP_LOGGER)
+            shards = Array.fill(workers)(table.addShard(log))
+            val deviceId = UUID.randomUUID()
+            var i = 0
+            while (i < NumKeys) {
+                keys(i) = ConnTrackKey(IPv4Addr.random, 10000 + i,
+                                       IPv4Addr.random, 80, 6.toByte, deviceId)
+                // Each worker owns the keys of the flows it simulated.
+                shards(i % workers).putAndRef(keys(i), java.lang.Boolean.TRUE)
+                i += 1
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    class WorkerState {
+        var shard: FlowStateTable[ConnTrackKey, ConnTrackValue] = _
+        var index = 0
+
+        @JmhSetup
+        def setup(table: TableState): Unit = {
+            val worker = table.nextShard.getAndIncrement()
+            shard = table.shards(worker % table.workers)
+            index = worker * 7919
+        }
+
+        def nextKey(table: TableState): ConnTrackKey = {
+            index = (index + 1) & (NumKeys - 1)
+            table.keys(index)
+        }
+    }
+}
+
+/**
+ * Compares the sharded, concurrent and off-heap flow state tables for the
+ * operations performed by the packet workers during the simulation of a
+ * stateful flow, where the key was usually written by a different worker.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+class FlowStateTableBenchmark {
+
+    import FlowStateTableBenchmark._
+
+    @Benchmark
+    def get(table: TableState, worker: WorkerState, bh: Blackhole): Unit = {
+        bh.consume(worker.shard.get(worker.nextKey(table)))
+    }
+
+    @Benchmark
+    def refUnref(table: TableState, worker: WorkerState): Unit = {
+        val key = worker.nextKey(table)
+        worker.shard.ref(key)
+        worker.shard.unref(key)
+    }
+
+    @Benchmark
+    @Threads(4)
+    def getConcurrently(table: TableState, worker: WorkerState,
+                        bh: Blackhole): Unit = {
+        bh.consume(worker.shard.get(worker.nextKey(table)))
+    }
+
+    @Benchmark
+    @Threads(4)
+    def refUnrefConcurrently(table: TableState, worker: WorkerState): Unit = {
+        val key = worker.nextKey(table)
+        worker.shard.ref(key)
+        worker.shard.unref(key)
+    }
+}
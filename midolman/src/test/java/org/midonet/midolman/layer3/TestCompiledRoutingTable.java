@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.midolman.layer3.Route.NextHop;
+
+public class TestCompiledRoutingTable {
+
+    private static Route route(int src, int srcLength, int dst, int dstLength,
+                               int weight) {
+        return new Route(src, srcLength, dst, dstLength, NextHop.PORT,
+                         UUID.randomUUID(), 0, weight, null, null);
+    }
+
+    @Test
+    public void testEmptyRoutingTable() {
+        CompiledRoutingTable table = CompiledRoutingTable.EMPTY;
+        Assert.assertTrue(table.lookup(0x0a010108, 0x0a010106).isEmpty());
+        Assert.assertTrue(table.lookup(0x00000009, 0xfffffffe).isEmpty());
+        Assert.assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testDefaultRoute() {
+        Route rt = route(0, 0, 0x01020304, 0, 100);
+        List<Route> routes = new ArrayList<>();
+        routes.add(rt);
+        CompiledRoutingTable table = new CompiledRoutingTable(routes);
+        Assert.assertEquals(1, table.size());
+        Assert.assertEquals(rt, table.lookup(0x12345678, 0x0a000001).get(0));
+        Assert.assertEquals(rt, table.lookup(0x12345678, 0xffffffff).get(0));
+    }
+
+    @Test
+    public void testMostSpecificPrefix() {
+        Route rt1 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt2 = route(0, 0, 0x0a140000, 16, 100);
+        Route rt3 = route(0, 0, 0x0a140080, 25, 100);
+        Route rt4 = route(0, 0, 0x0a140085, 32, 100);
+        List<Route> routes = new ArrayList<>();
+        routes.add(rt4);
+        routes.add(rt3);
+        routes.add(rt2);
+        routes.add(rt1);
+        CompiledRoutingTable table = new CompiledRoutingTable(routes);
+
+        Assert.assertEquals(rt1, table.lookup(0, 0x0a0a0a0a).get(0));
+        Assert.assertEquals(rt2, table.lookup(0, 0x0a140001).get(0));
+        Assert.assertEquals(rt3, table.lookup(0, 0x0a140081).get(0));
+        Assert.assertEquals(rt4, table.lookup(0, 0x0a140085).get(0));
+        Assert.assertTrue(table.lookup(0, 0x0b000000).isEmpty());
+    }
+
+    @Test
+    public void testFallbackToLessSpecificPrefix() {
+        // The more specific route only applies to a source subnet.
+        Route rt1 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt2 = route(0xc0a80000, 16, 0x0a140000, 16, 100);
+        List<Route> routes = new ArrayList<>();
+        routes.add(rt1);
+        routes.add(rt2);
+        CompiledRoutingTable table = new CompiledRoutingTable(routes);
+
+        Assert.assertEquals(rt2, table.lookup(0xc0a80101, 0x0a140001).get(0));
+        Assert.assertEquals(rt1, table.lookup(0xc0a90101, 0x0a140001).get(0));
+    }
+
+    @Test
+    public void testLowestWeightAndSourceSubnets() {
+        Route rt1 = route(0, 0, 0x0a140000, 16, 200);
+        Route rt2 = route(0xc0a80000, 16, 0x0a140000, 16, 100);
+        Route rt3 = route(0xc0a80100, 24, 0x0a140000, 16, 100);
+        Route rt4 = route(0, 0, 0x0a140000, 16, 100);
+        List<Route> routes = new ArrayList<>();
+        routes.add(rt1);
+        routes.add(rt2);
+        routes.add(rt3);
+        CompiledRoutingTable table = new CompiledRoutingTable(routes);
+
+        Assert.assertEquals(asSet(rt2, rt3),
+                            asSet(table.lookup(0xc0a80101, 0x0a140001)));
+        Assert.assertEquals(asSet(rt2),
+                            asSet(table.lookup(0xc0a80201, 0x0a140001)));
+        Assert.assertEquals(asSet(rt1),
+                            asSet(table.lookup(0xc0a90101, 0x0a140001)));
+
+        routes.add(rt4);
+        table = new CompiledRoutingTable(routes);
+        Assert.assertEquals(asSet(rt2, rt3, rt4),
+                            asSet(table.lookup(0xc0a80101, 0x0a140001)));
+        Assert.assertEquals(asSet(rt4),
+                            asSet(table.lookup(0xc0a90101, 0x0a140001)));
+    }
+
+    @Test
+    public void testLookupReturnsSharedResults() {
+        List<Route> routes = new ArrayList<>();
+        routes.add(route(0, 0, 0x0a000000, 8, 100));
+        routes.add(route(0, 0, 0x0a000000, 8, 100));
+        CompiledRoutingTable table = new CompiledRoutingTable(routes);
+        Assert.assertSame(table.lookup(1, 0x0a000001),
+                          table.lookup(2, 0x0a0000ff));
+    }
+
+    @Test
+    public void testMatchesLegacyRoutingTable() {
+        Random random = new Random(0x5eed);
+        List<Route> routes = new ArrayList<>();
+        RoutingTable legacy = new RoutingTable();
+        for (int index = 0; index < 2000; index++) {
+            // Use few distinct addresses to have many overlapping prefixes.
+            int dst = random.nextInt(16) << 28 | random.nextInt(4) << 20 |
+                      random.nextInt();
+            int src = random.nextInt(4) << 30 | random.nextInt();
+            int srcLength = random.nextInt(4) == 0 ? random.nextInt(33) : 0;
+            Route rt = route(src, srcLength, dst, random.nextInt(33),
+                             random.nextInt(3));
+            routes.add(rt);
+            legacy.addRoute(rt);
+        }
+        CompiledRoutingTable table = new CompiledRoutingTable(routes);
+        Assert.assertEquals(routes.size(), table.size());
+
+        for (int index = 0; index < 20000; index++) {
+            Route rt = routes.get(random.nextInt(routes.size()));
+            int dst = random.nextBoolean()
+                      ? rt.dstNetworkAddr ^ random.nextInt(0x100)
+                      : random.nextInt();
+            int src = random.nextBoolean()
+                      ? rt.srcNetworkAddr ^ random.nextInt(0x100)
+                      : random.nextInt();
+            Assert.assertEquals(asSet(legacy.lookup(src, dst)),
+                                asSet(table.lookup(src, dst)));
+        }
+    }
+
+    private static HashSet<Route> asSet(Route... routes) {
+        HashSet<Route> set = new HashSet<>();
+        for (Route rt : routes)
+            set.add(rt);
+        return set;
+    }
+
+    private static HashSet<Route> asSet(List<Route> routes) {
+        return new HashSet<>(routes);
+    }
+}
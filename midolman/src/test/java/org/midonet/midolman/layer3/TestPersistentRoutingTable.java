@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.midolman.layer3.Route.NextHop;
+
+public class TestPersistentRoutingTable {
+
+    private static final List<Route> NONE = Collections.emptyList();
+
+    private static Route route(int src, int srcLength, int dst, int dstLength,
+                               int weight) {
+        return new Route(src, srcLength, dst, dstLength, NextHop.PORT,
+                         UUID.randomUUID(), 0, weight, null, null);
+    }
+
+    @Test
+    public void testEmptyRoutingTable() {
+        PersistentRoutingTable table = PersistentRoutingTable.EMPTY;
+        Assert.assertTrue(table.lookup(0x0a010108, 0x0a010106).isEmpty());
+        Assert.assertTrue(table.lookup(0x00000009, 0xfffffffe).isEmpty());
+        Assert.assertEquals(0, table.size());
+        Assert.assertTrue(table.routes().isEmpty());
+    }
+
+    @Test
+    public void testDefaultRoute() {
+        Route rt = route(0, 0, 0x01020304, 0, 100);
+        PersistentRoutingTable table = PersistentRoutingTable.EMPTY.add(rt);
+        Assert.assertEquals(1, table.size());
+        Assert.assertEquals(rt, table.lookup(0x12345678, 0x0a000001).get(0));
+        Assert.assertEquals(rt, table.lookup(0x12345678, 0xffffffff).get(0));
+    }
+
+    @Test
+    public void testMostSpecificPrefix() {
+        Route rt1 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt2 = route(0, 0, 0x0a140000, 16, 100);
+        Route rt3 = route(0, 0, 0x0a140080, 25, 100);
+        Route rt4 = route(0, 0, 0x0a140085, 32, 100);
+        PersistentRoutingTable table = PersistentRoutingTable.EMPTY
+            .add(rt4).add(rt3).add(rt2).add(rt1);
+
+        Assert.assertEquals(rt1, table.lookup(0, 0x0a0a0a0a).get(0));
+        Assert.assertEquals(rt2, table.lookup(0, 0x0a140001).get(0));
+        Assert.assertEquals(rt3, table.lookup(0, 0x0a140081).get(0));
+        Assert.assertEquals(rt4, table.lookup(0, 0x0a140085).get(0));
+        Assert.assertTrue(table.lookup(0, 0x0b000000).isEmpty());
+    }
+
+    @Test
+    public void testFallbackToLessSpecificPrefix() {
+        // The more specific route only applies to a source subnet.
+        Route rt1 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt2 = route(0xc0a80000, 16, 0x0a140000, 16, 100);
+        PersistentRoutingTable table =
+            PersistentRoutingTable.EMPTY.add(rt1).add(rt2);
+
+        Assert.assertEquals(rt2, table.lookup(0xc0a80101, 0x0a140001).get(0));
+        Assert.assertEquals(rt1, table.lookup(0xc0a90101, 0x0a140001).get(0));
+    }
+
+    @Test
+    public void testLowestWeightAndSourceSubnets() {
+        Route rt1 = route(0, 0, 0x0a140000, 16, 200);
+        Route rt2 = route(0xc0a80000, 16, 0x0a140000, 16, 100);
+        Route rt3 = route(0xc0a80100, 24, 0x0a140000, 16, 100);
+        Route rt4 = route(0, 0, 0x0a140000, 16, 100);
+        PersistentRoutingTable table =
+            PersistentRoutingTable.EMPTY.add(rt1).add(rt2).add(rt3);
+
+        Assert.assertEquals(asSet(rt2, rt3),
+                            asSet(table.lookup(0xc0a80101, 0x0a140001)));
+        Assert.assertEquals(asSet(rt2),
+                            asSet(table.lookup(0xc0a80201, 0x0a140001)));
+        Assert.assertEquals(asSet(rt1),
+                            asSet(table.lookup(0xc0a90101, 0x0a140001)));
+
+        table = table.add(rt4);
+        Assert.assertEquals(asSet(rt2, rt3, rt4),
+                            asSet(table.lookup(0xc0a80101, 0x0a140001)));
+        Assert.assertEquals(asSet(rt4),
+                            asSet(table.lookup(0xc0a90101, 0x0a140001)));
+    }
+
+    @Test
+    public void testUpdatesDoNotModifyPreviousVersions() {
+        Route rt1 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt2 = route(0, 0, 0x0a140000, 16, 100);
+        PersistentRoutingTable table1 = PersistentRoutingTable.EMPTY.add(rt1);
+        PersistentRoutingTable table2 = table1.add(rt2);
+        PersistentRoutingTable table3 = table2.remove(rt1);
+
+        Assert.assertEquals(rt1, table1.lookup(0, 0x0a140001).get(0));
+        Assert.assertEquals(rt2, table2.lookup(0, 0x0a140001).get(0));
+        Assert.assertEquals(rt1, table2.lookup(0, 0x0a0a0a0a).get(0));
+        Assert.assertEquals(rt2, table3.lookup(0, 0x0a140001).get(0));
+        Assert.assertTrue(table3.lookup(0, 0x0a0a0a0a).isEmpty());
+        Assert.assertEquals(1, table1.size());
+        Assert.assertEquals(2, table2.size());
+        Assert.assertEquals(1, table3.size());
+    }
+
+    @Test
+    public void testRedundantUpdatesReturnSameVersion() {
+        Route rt1 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt2 = route(0, 0, 0x0a140000, 16, 100);
+        PersistentRoutingTable table = PersistentRoutingTable.EMPTY.add(rt1);
+
+        Assert.assertSame(table, table.add(rt1));
+        Assert.assertSame(table, table.remove(rt2));
+        Assert.assertSame(table, table.update(NONE, NONE));
+        Assert.assertSame(PersistentRoutingTable.EMPTY,
+                          table.remove(rt1));
+    }
+
+    @Test
+    public void testUpdateRemovesBeforeAdding() {
+        Route rt1 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt2 = route(0, 0, 0x0a000000, 8, 50);
+        PersistentRoutingTable table = PersistentRoutingTable.EMPTY.add(rt1);
+
+        table = table.update(Collections.singletonList(rt2),
+                             Collections.singletonList(rt1));
+        Assert.assertEquals(1, table.size());
+        Assert.assertEquals(Collections.singletonList(rt2), table.routes());
+
+        table = table.update(Collections.singletonList(rt2),
+                             Collections.singletonList(rt2));
+        Assert.assertEquals(Collections.singletonList(rt2), table.routes());
+    }
+
+    @Test
+    public void testMatchesCompiledRoutingTable() {
+        Random random = new Random(0x5eed);
+        LinkedHashSet<Route> routes = new LinkedHashSet<>();
+        List<Route> all = new ArrayList<>();
+        PersistentRoutingTable table = PersistentRoutingTable.EMPTY;
+        for (int round = 0; round < 20; round++) {
+            // Add and remove a batch of routes, and compare the resulting
+            // version with a table compiled from the same routes.
+            List<Route> added = new ArrayList<>();
+            List<Route> removed = new ArrayList<>();
+            for (int index = 0; index < 200; index++) {
+                // Use few distinct addresses to have many overlapping
+                // prefixes.
+                int dst = random.nextInt(16) << 28 | random.nextInt(4) << 20 |
+                          random.nextInt();
+                int src = random.nextInt(4) << 30 | random.nextInt();
+                int srcLength =
+                    random.nextInt(4) == 0 ? random.nextInt(33) : 0;
+                added.add(route(src, srcLength, dst, random.nextInt(33),
+                                random.nextInt(3)));
+            }
+            for (Route rt : routes) {
+                if (random.nextInt(4) == 0) {
+                    removed.add(rt);
+                }
+            }
+            routes.removeAll(removed);
+            routes.addAll(added);
+            all.addAll(added);
+            table = table.update(added, removed);
+
+            CompiledRoutingTable compiled = new CompiledRoutingTable(routes);
+            Assert.assertEquals(routes.size(), table.size());
+            Assert.assertEquals(routes, new HashSet<>(table.routes()));
+
+            for (int index = 0; index < 2000; index++) {
+                Route rt = all.get(random.nextInt(all.size()));
+                int dst = random.nextBoolean()
+                          ? rt.dstNetworkAddr ^ random.nextInt(0x100)
+                          : random.nextInt();
+                int src = random.nextBoolean()
+                          ? rt.srcNetworkAddr ^ random.nextInt(0x100)
+                          : random.nextInt();
+                Assert.assertEquals(asSet(compiled.lookup(src, dst)),
+                                    asSet(table.lookup(src, dst)));
+            }
+        }
+    }
+
+    private static HashSet<Route> asSet(Route... routes) {
+        HashSet<Route> set = new HashSet<>();
+        for (Route rt : routes)
+            set.add(rt);
+        return set;
+    }
+
+    private static HashSet<Route> asSet(List<Route> routes) {
+        return new HashSet<>(routes);
+    }
+}
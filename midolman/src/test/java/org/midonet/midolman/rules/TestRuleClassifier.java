@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.rules;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.midolman.rules.RuleResult.Action;
+import org.midonet.midolman.simulation.PacketContext;
+import org.midonet.odp.FlowMatch;
+import org.midonet.odp.FlowMatch.Field;
+import org.midonet.packets.ARP;
+import org.midonet.packets.IPv4;
+import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv6;
+import org.midonet.util.Range;
+
+public class TestRuleClassifier {
+
+    private static FlowMatch packet(int etherType, int proto, int srcPort,
+                                    int dstPort) {
+        FlowMatch match = new FlowMatch();
+        match.setEtherType((short) etherType);
+        match.setNetworkSrc(IPv4Addr.fromString("10.0.0.1"));
+        match.setNetworkDst(IPv4Addr.fromString("10.0.0.2"));
+        match.setNetworkProto((byte) proto);
+        match.setSrcPort(srcPort);
+        match.setDstPort(dstPort);
+        return match;
+    }
+
+    private static Rule rule(Condition cond) {
+        return new LiteralRule(cond, Action.ACCEPT);
+    }
+
+    private static long candidates(RuleClassifier classifier, FlowMatch match,
+                                   int rule) {
+        return classifier.candidates(match, rule >>> 6) & (1L << rule);
+    }
+
+    @Test
+    public void testUnconstrainedRulesAreNotClassified() {
+        List<Rule> rules = new ArrayList<>();
+        rules.add(rule(Condition.TRUE));
+        Condition cond = new Condition();
+        cond.nwProto = 6;
+        cond.nwProtoInv = true;
+        rules.add(rule(cond));
+        Assert.assertNull(RuleClassifier.compile(rules));
+    }
+
+    @Test
+    public void testExactFields() {
+        List<Rule> rules = new ArrayList<>();
+        Condition tcp = new Condition();
+        tcp.etherType = (int) IPv4.ETHERTYPE;
+        tcp.nwProto = 6;
+        rules.add(rule(tcp));
+        Condition arp = new Condition();
+        arp.etherType = (int) ARP.ETHERTYPE;
+        rules.add(rule(arp));
+        rules.add(rule(Condition.TRUE));
+        Condition ipv6 = new Condition();
+        ipv6.etherType = (int) IPv6.ETHERTYPE;
+        rules.add(rule(ipv6));
+
+        RuleClassifier classifier = RuleClassifier.compile(rules);
+        Assert.assertEquals(1, classifier.words());
+        Assert.assertEquals(0x5L, classifier.candidates(
+            packet(IPv4.ETHERTYPE, 6, 1000, 80), 0));
+        Assert.assertEquals(0x4L, classifier.candidates(
+            packet(IPv4.ETHERTYPE, 17, 1000, 80), 0));
+        Assert.assertEquals(0x6L, classifier.candidates(
+            packet(ARP.ETHERTYPE, 0, 0, 0), 0));
+        Assert.assertEquals(0xcL, classifier.candidates(
+            packet(IPv6.ETHERTYPE, 6, 1000, 80), 0));
+    }
+
+    @Test
+    public void testPortRanges() {
+        List<Rule> rules = new ArrayList<>();
+        Condition ssh = new Condition();
+        ssh.tpDst = new Range<>(22);
+        rules.add(rule(ssh));
+        Condition high = new Condition();
+        high.tpDst = new Range<>(1024, null);
+        rules.add(rule(high));
+        Condition web = new Condition();
+        web.tpDst = new Range<>(80, 443);
+        web.tpSrc = new Range<>(null, 1023);
+        rules.add(rule(web));
+
+        RuleClassifier classifier = RuleClassifier.compile(rules);
+        Assert.assertEquals(0x1L, classifier.candidates(
+            packet(IPv4.ETHERTYPE, 6, 5000, 22), 0));
+        Assert.assertEquals(0x0L, classifier.candidates(
+            packet(IPv4.ETHERTYPE, 6, 5000, 23), 0));
+        Assert.assertEquals(0x0L, classifier.candidates(
+            packet(IPv4.ETHERTYPE, 6, 5000, 80), 0));
+        Assert.assertEquals(0x4L, classifier.candidates(
+            packet(IPv4.ETHERTYPE, 6, 1023, 443), 0));
+        Assert.assertEquals(0x2L, classifier.candidates(
+            packet(IPv4.ETHERTYPE, 6, 80, 65535), 0));
+    }
+
+    @Test
+    public void testOnlyConsultedFieldsAreSeen() {
+        List<Rule> rules = new ArrayList<>();
+        Condition udp = new Condition();
+        udp.nwProto = 17;
+        udp.tpDst = new Range<>(53);
+        rules.add(rule(udp));
+        RuleClassifier classifier = RuleClassifier.compile(rules);
+
+        FlowMatch match = packet(IPv4.ETHERTYPE, 6, 1000, 53);
+        match.doTrackSeenFields();
+        Assert.assertEquals(0L, classifier.candidates(match, 0));
+        Assert.assertTrue(match.isSeen(Field.NetworkProto));
+        Assert.assertFalse(match.isSeen(Field.DstPort));
+        Assert.assertFalse(match.isSeen(Field.EtherType));
+
+        match = packet(IPv4.ETHERTYPE, 17, 1000, 53);
+        match.doTrackSeenFields();
+        Assert.assertEquals(1L, classifier.candidates(match, 0));
+        Assert.assertTrue(match.isSeen(Field.NetworkProto));
+        Assert.assertTrue(match.isSeen(Field.DstPort));
+        Assert.assertFalse(match.isSeen(Field.SrcPort));
+    }
+
+    @Test
+    public void testClassifierMatchesConditions() {
+        Random random = new Random(0x5eed);
+        int[] etherTypes = { IPv4.ETHERTYPE, ARP.ETHERTYPE, IPv6.ETHERTYPE };
+        int[] protos = { 1, 6, 17, -124 };
+        List<Rule> rules = new ArrayList<>();
+        for (int index = 0; index < 300; index++) {
+            Condition cond = new Condition();
+            cond.fragmentPolicy = FragmentPolicy.ANY;
+            cond.conjunctionInv = random.nextInt(20) == 0;
+            if (random.nextBoolean()) {
+                cond.etherType = etherTypes[random.nextInt(etherTypes.length)];
+                cond.invDlType = random.nextInt(5) == 0;
+            }
+            if (random.nextBoolean()) {
+                cond.nwProto = (byte) protos[random.nextInt(protos.length)];
+                cond.nwProtoInv = random.nextInt(5) == 0;
+            }
+            if (random.nextInt(4) == 0) {
+                int start = random.nextInt(2000);
+                cond.tpSrc = new Range<>(start, start + random.nextInt(200));
+                cond.tpSrcInv = random.nextInt(5) == 0;
+            }
+            if (random.nextBoolean()) {
+                int start = random.nextInt(2000);
+                cond.tpDst = random.nextInt(3) == 0
+                    ? new Range<>(start)
+                    : new Range<>(random.nextBoolean() ? start : null,
+                                  random.nextBoolean()
+                                      ? start + random.nextInt(500) : null);
+                cond.tpDstInv = random.nextInt(5) == 0;
+            }
+            rules.add(rule(cond));
+        }
+        RuleClassifier classifier = RuleClassifier.compile(rules);
+        Assert.assertEquals(5, classifier.words());
+
+        int excluded = 0;
+        for (int iteration = 0; iteration < 2000; iteration++) {
+            FlowMatch match = packet(
+                etherTypes[random.nextInt(etherTypes.length)],
+                protos[random.nextInt(protos.length)],
+                random.nextInt(2500), random.nextInt(2500));
+            PacketContext context =
+                PacketContext.generatedForJava(1, null, match, null);
+            for (int index = 0; index < rules.size(); index++) {
+                boolean candidate = candidates(classifier, match, index) != 0;
+                boolean matches = rules.get(index).getCondition()
+                                                  .matches(context);
+                if (matches) {
+                    Assert.assertTrue(candidate);
+                }
+                if (!candidate) {
+                    excluded++;
+                }
+            }
+            Assert.assertEquals(0L, classifier.candidates(match, 4) >>> 44);
+        }
+        Assert.assertTrue(excluded > 0);
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import scala.concurrent.duration.Duration;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.helpers.NOPLogger;
+
+import org.midonet.packets.FlowStateStore;
+import org.midonet.util.collection.Reducer;
+import org.midonet.util.concurrent.MockClock;
+import org.midonet.util.logging.Logger$;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.midonet.sdn.state.FlowStateTableTest.IDLE_EXPIRATION;
+
+public class ConcurrentFlowStateTableTest {
+
+    static class HashedKey implements FlowStateStore.IdleExpiration {
+        private final int id;
+        private final int hash;
+
+        HashedKey(int id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public Duration expiresAfter() {
+            return IDLE_EXPIRATION;
+        }
+
+        @Override
+        public void expiresAfter_$eq(Duration expiresAfter) { }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof HashedKey && ((HashedKey) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return "HashedKey[" + id + "]";
+        }
+    }
+
+    private static HashedKey key(int id) {
+        return new HashedKey(id, id);
+    }
+
+    private final int SHARDS = 4;
+    private final MockClock clock = new MockClock();
+    private ConcurrentFlowStateTable<HashedKey, Integer> global;
+    private List<FlowStateTable<HashedKey, Integer>> shards = new ArrayList<>();
+
+    @Before
+    public void before() {
+        global = new ConcurrentFlowStateTable<>(clock, 1024);
+        for (int i = 0; i < SHARDS; i++) {
+            shards.add(global.addShard(
+                Logger$.MODULE$.apply(NOPLogger.NOP_LOGGER)));
+        }
+    }
+
+    private void expireAll() {
+        for (FlowStateTable<HashedKey, Integer> shard : shards) {
+            shard.expireIdleEntries();
+        }
+    }
+
+    @Test
+    public void testEntriesAreSharedByShards() {
+        for (int i = 0; i < 100; i++) {
+            assertThat(shards.get(i % SHARDS).putAndRef(key(i), i),
+                       nullValue());
+        }
+        for (int i = 0; i < 100; i++) {
+            for (FlowStateTable<HashedKey, Integer> shard : shards) {
+                assertThat(shard.get(key(i)), equalTo(i));
+            }
+            assertThat(global.getRefCount(key(i)), equalTo(1));
+        }
+
+        assertThat(shards.get(1).putAndRef(key(0), 1000), equalTo(0));
+        assertThat(shards.get(2).get(key(0)), equalTo(1000));
+        assertThat(shards.get(3).ref(key(0)), equalTo(1000));
+        assertThat(global.getRefCount(key(0)), equalTo(3));
+        assertThat(global.ref(key(1000)), nullValue());
+    }
+
+    @Test
+    public void testShardExpiresEntriesItUnreferenced() {
+        shards.get(0).putAndRef(key(1), 1);
+        shards.get(0).putAndRef(key(2), 2);
+        shards.get(1).unref(key(1));
+        shards.get(2).unref(key(2));
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        shards.get(0).expireIdleEntries();
+        assertThat(global.get(key(1)), equalTo(1));
+        assertThat(global.get(key(2)), equalTo(2));
+
+        Set<HashedKey> expired = shards.get(1).expireIdleEntries(
+            new HashSet<HashedKey>(), new KeyReducer());
+        assertThat(expired, contains(key(1)));
+        assertThat(global.get(key(1)), nullValue());
+        assertThat(global.get(key(2)), equalTo(2));
+    }
+
+    @Test
+    public void testReferencedEntriesAreNotExpired() {
+        shards.get(0).putAndRef(key(1), 1);
+        shards.get(0).unref(key(1));
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() / 2);
+        shards.get(1).ref(key(1));
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() * 2);
+        expireAll();
+        assertThat(global.get(key(1)), equalTo(1));
+
+        shards.get(1).unref(key(1));
+        expireAll();
+        assertThat(global.get(key(1)), equalTo(1));
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() * 3 + 1);
+        expireAll();
+        assertThat(global.get(key(1)), nullValue());
+        assertThat(global.getRefCount(key(1)), equalTo(0));
+    }
+
+    @Test
+    public void testExpiredEntriesCanBeInsertedAgain() {
+        for (int i = 0; i < 500; i++) {
+            shards.get(0).touch(key(i), i);
+        }
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        assertThat(global.expireIdleEntries(0, new CountReducer()),
+                   equalTo(500));
+
+        for (int i = 0; i < 500; i++) {
+            assertThat(global.get(key(i)), nullValue());
+            assertThat(shards.get(1).putAndRef(key(i), -i), nullValue());
+        }
+        for (int i = 0; i < 500; i++) {
+            assertThat(global.get(key(i)), equalTo(-i));
+        }
+        assertThat(global.fold(0, new CountReducer()), equalTo(500));
+    }
+
+    @Test
+    public void testKeysOutsideTheProbeWindowAreStored() {
+        int count = ConcurrentFlowStateTable.ProbeWindow() * 2;
+        for (int i = 0; i < count; i++) {
+            shards.get(0).putAndRef(new HashedKey(i, 7), i);
+        }
+        for (int i = 0; i < count; i++) {
+            HashedKey key = new HashedKey(i, 7);
+            assertThat(global.get(key), equalTo(i));
+            shards.get(1).unref(key);
+        }
+        assertThat(global.fold(0, new CountReducer()), equalTo(count));
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        assertThat(shards.get(1).expireIdleEntries(0, new CountReducer()),
+                   equalTo(count));
+        for (int i = 0; i < count; i++) {
+            assertThat(global.get(new HashedKey(i, 7)), nullValue());
+        }
+        assertThat(global.fold(0, new CountReducer()), equalTo(0));
+    }
+
+    @Test
+    public void testFullTableStoresAllKeys() {
+        // The table has 1024 slots and does not grow.
+        int count = 4096;
+        for (int i = 0; i < count; i++) {
+            assertThat(shards.get(i % SHARDS).putAndRef(key(i), i),
+                       nullValue());
+        }
+        for (int i = 0; i < count; i++) {
+            assertThat(global.get(key(i)), equalTo(i));
+            assertThat(global.getRefCount(key(i)), equalTo(1));
+            shards.get(0).unref(key(i));
+        }
+        assertThat(global.fold(0, new CountReducer()), equalTo(count));
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        assertThat(global.expireIdleEntries(0, new CountReducer()),
+                   equalTo(count));
+        assertThat(global.fold(0, new CountReducer()), equalTo(0));
+
+        for (int i = 0; i < count; i++) {
+            assertThat(shards.get(1).putAndRef(key(i), -i), nullValue());
+        }
+        for (int i = 0; i < count; i++) {
+            assertThat(global.get(key(i)), equalTo(-i));
+        }
+    }
+
+    @Test
+    public void testConcurrentReferenceCounts() throws Exception {
+        final int keys = 2000;
+        final int operations = 200000;
+        final int[][] refs = new int[SHARDS][keys];
+        final AtomicInteger expired = new AtomicInteger();
+        for (int i = 0; i < keys; i++) {
+            global.putAndRef(key(i), i);
+        }
+
+        Thread[] threads = new Thread[SHARDS];
+        for (int t = 0; t < SHARDS; t++) {
+            final int index = t;
+            final FlowStateTable<HashedKey, Integer> shard = shards.get(t);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom rand = ThreadLocalRandom.current();
+                    for (int i = 0; i < operations; i++) {
+                        int k = rand.nextInt(keys);
+                        if (refs[index][k] > 0 && rand.nextBoolean()) {
+                            shard.unref(key(k));
+                            refs[index][k]--;
+                        } else if (shard.ref(key(k)) != null) {
+                            refs[index][k]++;
+                        }
+                        if (i % 1000 == 0) {
+                            expired.addAndGet(shard.expireIdleEntries(
+                                0, new CountReducer()));
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // The initial references are held by the test, hence no entry can
+        // have been expired.
+        assertThat(expired.get(), equalTo(0));
+        for (int k = 0; k < keys; k++) {
+            int count = 1;
+            for (int t = 0; t < SHARDS; t++) {
+                count += refs[t][k];
+            }
+            assertThat(global.getRefCount(key(k)), equalTo(count));
+            assertThat(global.get(key(k)), equalTo(k));
+        }
+    }
+
+    class KeyReducer extends Reducer<HashedKey, Integer, Set<HashedKey>> {
+        @Override
+        public Set<HashedKey> apply(Set<HashedKey> seed, HashedKey key,
+                                    Integer value) {
+            seed.add(key);
+            return seed;
+        }
+    }
+
+    class CountReducer extends Reducer<HashedKey, Integer, Integer> {
+        @Override
+        public Integer apply(Integer seed, HashedKey key, Integer value) {
+            return seed + 1;
+        }
+    }
+}
@@ -27,6 +27,7 @@ import com.typesafe.scalalogging.Logger
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
+import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.flows.{ManagedFlow, FlowExpirationIndexer}
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.midolman.util.MidolmanSpec
@@ -41,17 +42,23 @@ class FlowControllerTest extends MidolmanSpec {
     var flowController: FlowController = _
 
     override def beforeTest(): Unit =
-        flowController = TestActorRef(new {
-             val workerId = 0
+        flowController = newFlowController(
+            0, config, new MockFlowTablePreallocation(config))
+
+    private def newFlowController(id: Int, conf: MidolmanConfig,
+                                  prealloc: FlowTablePreallocation)
+    : FlowController =
+        TestActorRef(new {
+             val workerId = id
              val flowProcessor = FlowControllerTest.this.flowProcessor
              val flowInvalidator = FlowControllerTest.this.simBackChannel
-             val config = FlowControllerTest.this.config
+             val config = conf
              val metrics = FlowControllerTest.this.metrics
              val clock = FlowControllerTest.this.clock
              val datapathId = 0
              implicit val system = FlowControllerTest.this.actorSystem
              val actor = TestProbe()(system).ref
-             val preallocation = new MockFlowTablePreallocation(config)
+             val preallocation = prealloc
         } with FlowController with Actor { def receive: Receive = { case _ => } }).underlyingActor
 
     feature("The flow controller processes flows") {
@@ -165,6 +172,41 @@ class FlowControllerTest extends MidolmanSpec {
         }
     }
 
+    feature("Flow marks identify the worker that owns the flow") {
+        scenario("The worker ID takes as many bits as needed") {
+            FlowController.indexShift(1) shouldBe 31
+            FlowController.indexShift(2) shouldBe 31
+            FlowController.indexShift(16) shouldBe 28
+            FlowController.indexShift(17) shouldBe 27
+            FlowController.indexShift(64) shouldBe 26
+        }
+
+        scenario("More than 16 workers have distinct marks") {
+            Given("The flow controllers of 48 workers")
+            val numWorkers = 48
+            val workersConfig = MidolmanConfig.forTests(
+                s"agent.midolman.simulation_threads = $numWorkers")
+            val preallocation = new MockFlowTablePreallocation(workersConfig)
+            val controllers = (0 until numWorkers) map { id =>
+                newFlowController(id, workersConfig, preallocation)
+            }
+
+            When("Each controller adds two flows")
+            val marks = controllers map { controller =>
+                flowController = controller
+                Seq(new TestableFlow().add().mark, new TestableFlow().add().mark)
+            }
+
+            Then("The marks of all flows are distinct")
+            marks.flatten.distinct should have size 2 * numWorkers
+
+            And("The marks identify the worker of each flow")
+            val shift = preallocation.indexShift
+            marks map { _ map { _ >>> shift } } shouldBe
+                (0 until numWorkers).map(id => Seq(id, id))
+        }
+    }
+
     final class TestableFlow(val fmatch: FlowMatch = new FlowMatch(),
                              val linked: FlowMatch = null) {
         var callbackCalled = false
@@ -17,6 +17,7 @@
 package org.midonet.midolman
 
 import scala.collection.mutable.Queue
+import scala.concurrent.duration._
 
 import com.typesafe.scalalogging.Logger
 import org.junit.runner.RunWith
@@ -26,6 +27,7 @@ import org.slf4j.helpers.NOPLogger
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.flows.{ManagedFlow, FlowExpirationIndexer, FlowIndexer}
 import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.odp.flows.FlowStats
 
 @RunWith(classOf[JUnitRunner])
 class FlowExpirationIndexerTest extends MidolmanSpec {
@@ -43,8 +45,31 @@ class FlowExpirationIndexerTest extends MidolmanSpec {
             flowsRemoved += flow
     }
 
+    class IdleFlowAddRemover(flowsRemoved: Queue[ManagedFlow])
+            extends FlowAddRemover(flowsRemoved) with FlowExpirationIndexer {
+        val statsRequests = Queue[ManagedFlow]()
+        var acceptRequests = true
+
+        protected override def idleExpirationNanos = IdleExpiration
+
+        protected override def requestFlowStats(flow: ManagedFlow): Boolean = {
+            if (acceptRequests)
+                statsRequests += flow
+            acceptRequests
+        }
+
+        def statsReceived(flow: ManagedFlow, packets: Long, now: Long): Unit =
+            flowStatsReceived(flow, new FlowStats(packets, packets * 100), now)
+
+        def statsFailed(flow: ManagedFlow, flowExists: Boolean,
+                        now: Long): Unit =
+            flowStatsFailed(flow, flowExists, now)
+    }
+
+    val IdleExpiration = (10 seconds).toNanos
     val removedFlows = Queue[ManagedFlow]()
     val flowExpiration = new FlowAddRemover(removedFlows) with FlowExpirationIndexer
+    val idleExpiration = new IdleFlowAddRemover(removedFlows)
 
     feature ("Flows are expired with a hard timeout") {
 
@@ -106,6 +131,144 @@ class FlowExpirationIndexerTest extends MidolmanSpec {
         }
     }
 
+    feature ("Flows are expired when idle") {
+
+        scenario ("An idle flow is removed") {
+            val flow = createActiveFlow(FlowExpirationIndexer.FLOW_EXPIRATION)
+            idleExpiration.registerFlow(flow)
+            flow.currentRefCount should be (2)
+
+            clock.time = IdleExpiration - 1
+            idleExpiration.checkFlowsExpiration(clock.tick)
+            idleExpiration.statsRequests should be (empty)
+
+            clock.time = IdleExpiration
+            idleExpiration.checkFlowsExpiration(clock.tick)
+            idleExpiration.statsRequests should have size 1
+            idleExpiration.statsRequests.dequeue() should be (flow)
+            removedFlows should be (empty)
+
+            idleExpiration.statsReceived(flow, 0, clock.tick)
+            removedFlows should have size 1
+            removedFlows.dequeue() should be (flow)
+            flow.currentRefCount should be (1)
+        }
+
+        scenario ("A flow in use is not removed") {
+            val flow = createActiveFlow(FlowExpirationIndexer.FLOW_EXPIRATION)
+            idleExpiration.registerFlow(flow)
+
+            When("The flow matches packets past its hard expiration")
+            clock.time = FlowExpirationIndexer.FLOW_EXPIRATION.value
+            idleExpiration.checkFlowsExpiration(clock.tick)
+            idleExpiration.statsRequests.dequeue() should be (flow)
+            idleExpiration.statsReceived(flow, 10, clock.tick)
+
+            Then("The flow is not removed")
+            removedFlows should be (empty)
+            flow.currentRefCount should be (2)
+
+            And("The flow is checked again after the idle expiration")
+            clock.time += IdleExpiration - 1
+            idleExpiration.checkFlowsExpiration(clock.tick)
+            idleExpiration.statsRequests should be (empty)
+
+            clock.time += 1
+            idleExpiration.checkFlowsExpiration(clock.tick)
+            idleExpiration.statsRequests.dequeue() should be (flow)
+
+            When("The flow did not match any packets since the last check")
+            idleExpiration.statsReceived(flow, 10, clock.tick)
+
+            Then("The flow is removed")
+            removedFlows should have size 1
+            removedFlows.dequeue() should be (flow)
+        }
+
+        scenario ("Flows with other expiration types have a hard timeout") {
+            val flow = createActiveFlow(
+                FlowExpirationIndexer.STATEFUL_FLOW_EXPIRATION)
+            idleExpiration.registerFlow(flow)
+
+            clock.time = FlowExpirationIndexer.STATEFUL_FLOW_EXPIRATION.value
+            idleExpiration.checkFlowsExpiration(clock.tick)
+            idleExpiration.statsRequests should be (empty)
+            removedFlows should have size 1
+            removedFlows.dequeue() should be (flow)
+        }
+
+        scenario ("Statistics requests are retried when rejected") {
+            val flow = createActiveFlow(FlowExpirationIndexer.FLOW_EXPIRATION)
+            idleExpiration.registerFlow(flow)
+
+            idleExpiration.acceptRequests = false
+            clock.time = IdleExpiration
+            idleExpiration.checkFlowsExpiration(clock.tick)
+            idleExpiration.statsRequests should be (empty)
+
+            idleExpiration.acceptRequests = true
+            idleExpiration.checkFlowsExpiration(clock.tick)
+            idleExpiration.statsRequests.dequeue() should be (flow)
+            idleExpiration.statsReceived(flow, 0, clock.tick)
+            removedFlows.dequeue() should be (flow)
+        }
+
+        scenario ("Statistics request failures") {
+            val flow = createActiveFlow(FlowExpirationIndexer.FLOW_EXPIRATION)
+            idleExpiration.registerFlow(flow)
+
+            When("The statistics request fails")
+            clock.time = IdleExpiration
+            idleExpiration.checkFlowsExpiration(clock.tick)
+            idleExpiration.statsFailed(idleExpiration.statsRequests.dequeue(),
+                                       flowExists = true, clock.tick)
+
+            Then("The flow is checked again after the idle expiration")
+            removedFlows should be (empty)
+            clock.time += IdleExpiration
+            idleExpiration.checkFlowsExpiration(clock.tick)
+
+            When("The flow does not exist in the datapath")
+            idleExpiration.statsFailed(idleExpiration.statsRequests.dequeue(),
+                                       flowExists = false, clock.tick)
+
+            Then("The flow is removed")
+            removedFlows.dequeue() should be (flow)
+            flow.currentRefCount should be (1)
+        }
+
+        scenario ("Removed flows are not checked") {
+            val flow = createActiveFlow(FlowExpirationIndexer.FLOW_EXPIRATION)
+            idleExpiration.registerFlow(flow)
+            flow.removed = true
+            flow.unref()
+
+            clock.time = IdleExpiration
+            idleExpiration.checkFlowsExpiration(clock.tick)
+            idleExpiration.statsRequests should be (empty)
+            flow.currentRefCount should be (0)
+        }
+
+        scenario ("Idle flows are evicted first") {
+            val flows = List(
+                createActiveFlow(FlowExpirationIndexer.ERROR_CONDITION_EXPIRATION),
+                createActiveFlow(FlowExpirationIndexer.STATEFUL_FLOW_EXPIRATION),
+                createActiveFlow(FlowExpirationIndexer.FLOW_EXPIRATION),
+                createActiveFlow(FlowExpirationIndexer.FLOW_EXPIRATION),
+                createActiveFlow(FlowExpirationIndexer.FLOW_EXPIRATION))
+            flows foreach idleExpiration.registerFlow
+            idleExpiration.checkFlowsExpiration(0)
+            removedFlows should have size 1
+            removedFlows.dequeue() should be (flows(2))
+        }
+    }
+
+    private def createActiveFlow(exp: FlowExpirationIndexer.Expiration) = {
+        val flow = createFlow(exp)
+        flow.removed = false
+        flow
+    }
+
     private def createFlow(exp: FlowExpirationIndexer.Expiration) = {
         val flow = new ManagedFlow(null)
         flow.ref()
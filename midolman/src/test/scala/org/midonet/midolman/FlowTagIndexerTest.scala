@@ -16,7 +16,10 @@
 
 package org.midonet.midolman
 
+import scala.collection.JavaConverters._
+import scala.collection.mutable
 import scala.collection.mutable.Queue
+import scala.util.Random
 
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
@@ -24,7 +27,8 @@ import org.scalatest.junit.JUnitRunner
 import org.slf4j.helpers.NOPLogger
 import com.typesafe.scalalogging.Logger
 
-import org.midonet.midolman.flows.{ManagedFlow, FlowTagIndexer, FlowIndexer}
+import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.flows.{FlowIndexer, FlowTagIndex, FlowTagIndexer, ManagedFlow}
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.sdn.flows.FlowTagger
 
@@ -32,6 +36,11 @@ import org.midonet.sdn.flows.FlowTagger
 class FlowTagIndexerTest extends MidolmanSpec {
 
     class FlowAddRemover(flowsRemoved: Queue[ManagedFlow]) extends FlowIndexer {
+        val preallocation = new MockFlowTablePreallocation(
+            MidolmanConfig.forTests) {
+            override val maxFlows = 4
+        }
+
         override def removeFlow(flow: ManagedFlow): Unit =
             flowsRemoved += flow
     }
@@ -131,4 +140,197 @@ class FlowTagIndexerTest extends MidolmanSpec {
         }
 
     }
+
+    feature ("The tag index does not depend on the number of tags") {
+        scenario ("A flow with more tags than the initial links") {
+            val flow = new ManagedFlow(null)
+            for (port <- 0 until 20) {
+                flow.tags.add(FlowTagger.tagForDpPort(port))
+            }
+            flowInvalidation.registerFlow(flow)
+
+            for (port <- 0 until 20) {
+                flowInvalidation.flowsFor(FlowTagger.tagForDpPort(port)) should
+                    contain only flow
+            }
+
+            flowInvalidation.invalidateFlowsFor(FlowTagger.tagForDpPort(10))
+            removedFlows should contain theSameElementsAs List(flow)
+
+            for (port <- 0 until 20) {
+                flowInvalidation.flowsFor(FlowTagger.tagForDpPort(port)) should
+                    be (null)
+            }
+        }
+
+        scenario ("A flow with duplicate tags") {
+            val flow = new ManagedFlow(null)
+            flow.tags.add(tag1)
+            flow.tags.add(tag2)
+            flow.tags.add(tag1)
+            flowInvalidation.registerFlow(flow)
+
+            flowInvalidation.invalidateFlowsFor(tag1)
+            removedFlows should contain theSameElementsAs List(flow)
+            flowInvalidation.flowsFor(tag1) should be (null)
+            flowInvalidation.flowsFor(tag2) should be (null)
+        }
+
+        scenario ("The index matches a reference multimap") {
+            val random = new Random(0x5eed)
+            val index = new FlowTagIndex(16)
+            val reference = new mutable.HashMap[Int, mutable.Set[ManagedFlow]]
+            val flows = mutable.ArrayBuffer[ManagedFlow]()
+
+            def check(): Unit = {
+                index.size shouldBe reference.size
+                for (port <- 0 until 200) {
+                    val tag = FlowTagger.tagForDpPort(port)
+                    reference.get(port) match {
+                        case Some(expected) =>
+                            index.count(tag) shouldBe expected.size
+                            index.flowsOf(tag).asScala shouldBe expected
+                        case None =>
+                            index.count(tag) shouldBe 0
+                            index.flowsOf(tag) shouldBe null
+                    }
+                }
+            }
+
+            for (iteration <- 0 until 2000) {
+                random.nextInt(3) match {
+                    case 0 | 1 =>
+                        val flow = new ManagedFlow(null)
+                        val ports = Seq.fill(1 + random.nextInt(12))(
+                            random.nextInt(200)).distinct
+                        for (port <- ports) {
+                            flow.tags.add(FlowTagger.tagForDpPort(port))
+                        }
+                        flow.ensureTagLinks()
+                        for (i <- ports.indices) {
+                            index.add(flow, i)
+                            reference.getOrElseUpdate(
+                                ports(i), mutable.Set[ManagedFlow]()) += flow
+                        }
+                        flows += flow
+                    case 2 if flows.nonEmpty =>
+                        val flow = flows.remove(random.nextInt(flows.size))
+                        for (i <- 0 until flow.tags.size()) {
+                            index.remove(flow, i) shouldBe true
+                            index.remove(flow, i) shouldBe false
+                            val port = flow.tags.get(i)
+                                .asInstanceOf[FlowTagger.DpPortTag].port.toInt
+                            reference(port) -= flow
+                            if (reference(port).isEmpty) {
+                                reference -= port
+                            }
+                        }
+                    case _ =>
+                }
+                if (iteration % 100 == 0) {
+                    check()
+                }
+            }
+            check()
+
+            for (port <- 0 until 200) {
+                val tag = FlowTagger.tagForDpPort(port)
+                var count = 0
+                while (index.removeFirst(tag) ne null) {
+                    count += 1
+                }
+                count shouldBe reference.get(port).map(_.size).getOrElse(0)
+            }
+            index.size shouldBe 0
+        }
+    }
+
+    feature ("Flows are invalidated in bulk") {
+        scenario ("A flow with several invalidated tags is removed once") {
+            val flow1 = new ManagedFlow(null)
+            flow1.tags.add(tag1)
+            flow1.tags.add(tag2)
+            val flow2 = new ManagedFlow(null)
+            flow2.tags.add(tag2)
+            flowInvalidation.registerFlow(flow1)
+            flowInvalidation.registerFlow(flow2)
+
+            flowInvalidation.invalidateFlowsFor(List(tag1, tag2).asJava)
+            removedFlows should contain theSameElementsAs List(flow1, flow2)
+            flowInvalidation.flowsFor(tag1) should be (null)
+            flowInvalidation.flowsFor(tag2) should be (null)
+        }
+
+        scenario ("Scheduled invalidations are rate limited") {
+            val limitedInvalidation = new FlowAddRemover(removedFlows)
+                                          with FlowTagIndexer {
+                override def maxInvalidationsPerRound = 2
+            }
+            val flows = for (port <- 0 until 5) yield {
+                val flow = new ManagedFlow(null)
+                flow.tags.add(tag1)
+                flow.tags.add(FlowTagger.tagForDpPort(10 + port))
+                limitedInvalidation.registerFlow(flow)
+                flow
+            }
+            val flow = new ManagedFlow(null)
+            flow.tags.add(tag2)
+            limitedInvalidation.registerFlow(flow)
+
+            limitedInvalidation.scheduleInvalidation(tag1)
+            limitedInvalidation.scheduleInvalidation(FlowTagger.tagForDpPort(10))
+            limitedInvalidation.scheduleInvalidation(tag2)
+            limitedInvalidation.hasPendingInvalidations shouldBe true
+            removedFlows shouldBe empty
+
+            limitedInvalidation.processPendingInvalidations() shouldBe 2
+            removedFlows should have size 2
+            limitedInvalidation.processPendingInvalidations() shouldBe 2
+            limitedInvalidation.processPendingInvalidations() shouldBe 2
+            limitedInvalidation.hasPendingInvalidations shouldBe true
+            limitedInvalidation.processPendingInvalidations() shouldBe 0
+            limitedInvalidation.hasPendingInvalidations shouldBe false
+
+            removedFlows should contain theSameElementsAs flows :+ flow
+        }
+
+        scenario ("Scheduled invalidations remove only the flows registered " +
+                  "before, oldest first") {
+            val limitedInvalidation = new FlowAddRemover(removedFlows)
+                                          with FlowTagIndexer {
+                override def maxInvalidationsPerRound = 2
+            }
+            def newFlow(): ManagedFlow = {
+                val flow = new ManagedFlow(null)
+                flow.tags.add(tag1)
+                limitedInvalidation.registerFlow(flow)
+                flow
+            }
+            val oldFlows = for (i <- 0 until 3) yield newFlow()
+            limitedInvalidation.scheduleInvalidation(tag1)
+
+            limitedInvalidation.processPendingInvalidations() shouldBe 2
+            removedFlows shouldBe oldFlows.take(2)
+
+            When("Registering flows while the invalidation is pending")
+            val newFlows = for (i <- 0 until 3) yield newFlow()
+
+            Then("The invalidation completes after removing the old flows")
+            limitedInvalidation.processPendingInvalidations() shouldBe 1
+            limitedInvalidation.hasPendingInvalidations shouldBe false
+            removedFlows shouldBe oldFlows
+            limitedInvalidation.flowsFor(tag1).asScala shouldBe newFlows.toSet
+        }
+
+        scenario ("Scheduled invalidations are not limited by default") {
+            for (port <- 0 until 100) {
+                val flow = new ManagedFlow(null)
+                flow.tags.add(tag1)
+                flowInvalidation.registerFlow(flow)
+            }
+            flowInvalidation.scheduleInvalidation(tag1)
+            flowInvalidation.processPendingInvalidations() shouldBe 100
+            flowInvalidation.hasPendingInvalidations shouldBe false
+        }
+    }
 }
@@ -19,7 +19,7 @@ package org.midonet.midolman
 import java.util.ArrayDeque
 
 import org.midonet.midolman.config.MidolmanConfig
-import org.midonet.midolman.flows.ManagedFlow
+import org.midonet.midolman.flows.{FlowTagIndex, ManagedFlow}
 import org.midonet.midolman.monitoring.MeterRegistry
 import org.midonet.util.collection.ArrayObjectPool
 
@@ -34,6 +34,8 @@ class MockFlowTablePreallocation(config: MidolmanConfig)
             maxFlows, new ManagedFlow(_))
     override def takeMeterRegistry(): MeterRegistry =
         new MeterRegistry(maxFlows)
+    override def takeFlowTagIndex(): FlowTagIndex =
+        new FlowTagIndex(maxFlows)
     override def takeErrorExpirationQueue(): ArrayDeque[ManagedFlow] =
         new ArrayDeque(maxFlows/3)
     override def takeFlowExpirationQueue(): ArrayDeque[ManagedFlow] =
@@ -42,4 +44,6 @@ class MockFlowTablePreallocation(config: MidolmanConfig)
         new ArrayDeque(maxFlows)
     override def takeTunnelFlowExpirationQueue(): ArrayDeque[ManagedFlow] =
         new ArrayDeque(maxFlows/3)
+    override def takeIdleFlowExpirationQueue(): ArrayDeque[ManagedFlow] =
+        new ArrayDeque(maxFlows)
 }
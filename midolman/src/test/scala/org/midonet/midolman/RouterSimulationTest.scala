@@ -30,6 +30,7 @@ import org.midonet.cluster.data.storage.StateTableEncoder.GatewayHostEncoder
 import org.midonet.cluster.models.Neutron.NeutronNetwork
 import org.midonet.cluster.services.MidonetBackend
 import org.midonet.midolman.PacketWorkflow._
+import org.midonet.midolman.layer3.Route
 import org.midonet.midolman.layer3.Route._
 import org.midonet.midolman.rules.{Condition, NatTarget, RuleResult}
 import org.midonet.midolman.simulation.Simulator.ToPortAction
@@ -126,6 +127,37 @@ class RouterSimulationTest extends MidolmanSpec {
         } toSet) should have size 1
     }
 
+    scenario("Flows are balanced over equal-cost routes") {
+        val routeDst = "21.31.41.51"
+        val gateways = List("180.0.1.40", "180.0.1.41", "180.0.1.42")
+        gateways foreach { gw =>
+            newRoute(router, "0.0.0.0", 0, routeDst, 32,
+                     NextHop.PORT, uplinkPort, gw, 1)
+        }
+
+        val rb = new RouteBalancer(simRouter.rTable)
+        val routes = new java.util.ArrayList[Route]()
+        val log = Logger(NOPLogger.NOP_LOGGER)
+        def flowMatch(srcPort: Int) = new FlowMatch()
+            .setNetworkSrc(IPv4Addr.fromString(uplinkPortAddr))
+            .setNetworkDst(IPv4Addr.fromString(routeDst))
+            .setNetworkProto(UDP.PROTOCOL_NUMBER)
+            .setSrcPort(srcPort)
+            .setDstPort(53)
+
+        val selected = (0 until 100) map { srcPort =>
+            val fmatch = flowMatch(srcPort)
+            fmatch.doTrackSeenFields()
+            val route = rb.lookup(fmatch, routes, log)
+            routes should have size gateways.size
+            fmatch.isSeen(FlowMatch.Field.SrcPort) shouldBe true
+            fmatch.isSeen(FlowMatch.Field.DstPort) shouldBe true
+            rb.lookup(flowMatch(srcPort), routes, log) shouldBe route
+            route.getNextHopGateway
+        }
+        selected.toSet should have size gateways.size
+    }
+
     scenario("Drops IPv6") {
         val pkt = { eth ether_type IPv6.ETHERTYPE src "01:02:03:04:05:06" dst fetchDevice[RouterPort](port1).portMac }
         simulate(packetContextFor(pkt, uplinkPort))._1 should be (Drop)
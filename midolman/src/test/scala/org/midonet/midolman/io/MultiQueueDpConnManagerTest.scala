@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.io
+
+import com.codahale.metrics.MetricRegistry
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.midolman.PacketWorker
+import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.monitoring.metrics.HtbMetrics
+import org.midonet.midolman.state.ReceivedFlowState
+import org.midonet.netlink.{BufferPool, MockNetlinkChannel}
+import org.midonet.odp.Packet
+import org.midonet.odp.ports.NetDevPort
+import org.midonet.odp.protos.OvsDatapathConnection
+import org.midonet.util.eventloop.SelectLoop
+import org.midonet.util.{Bucket, TokenBucketTestRate}
+
+@RunWith(classOf[JUnitRunner])
+class MultiQueueDpConnManagerTest extends FeatureSpec with Matchers
+                                  with BeforeAndAfter with GivenWhenThen {
+
+    private class TestWorker extends PacketWorker {
+        override def submit(packet: Packet): Boolean = true
+        override def submit(state: ReceivedFlowState): Boolean = true
+    }
+
+    /**
+      * A thread pair that runs its select loops, but whose connections use
+      * mock netlink channels with a distinct PID, such that the test does
+      * not require the datapath kernel module.
+      */
+    private class TestThreadPair(name: String, config: MidolmanConfig,
+                                 readOnly: Boolean)
+        extends SelectorThreadPair(name, config, false, readOnly,
+                                   new MetricRegistry) {
+        override def addConnection(bucket: Bucket, sendPool: BufferPool,
+                                   priority: SelectLoop.Priority)
+        : ManagedDatapathConnection = {
+            val conn = OvsDatapathConnection.createMock()
+            nextPid += 1
+            conn.getChannel.asInstanceOf[MockNetlinkChannel].setPid(nextPid)
+            new TrivialDatapathConnection(conn)
+        }
+    }
+
+    private class TestDpConnManager(config: MidolmanConfig,
+                                    workers: IndexedSeq[PacketWorker],
+                                    policy: TokenBucketPolicy)
+        extends MultiQueueDpConnManager(config, workers, policy,
+                                        new MetricRegistry) {
+        override def makeThreadPair(name: String, readOnly: Boolean) =
+            new TestThreadPair(name, config, readOnly)
+        def pids(conn: ManagedDatapathConnection) = upcallPids(conn)
+        def connect(name: String) = makeConnection(
+            name, policy.link(new NetDevPort(name), VirtualMachine),
+            VirtualMachine)
+        def disconnect(conn: ManagedDatapathConnection) = stopConnection(conn)
+    }
+
+    private val workerCount = 4
+    private var nextPid = 0
+    private var config: MidolmanConfig = _
+    private var manager: TestDpConnManager = _
+
+    before {
+        manager = newManager(
+            """
+              |agent.midolman.upcall_cpus = "0"
+            """.stripMargin)
+    }
+
+    private def newManager(conf: String): TestDpConnManager = {
+        config = MidolmanConfig.forTests(conf)
+        val policy = new TokenBucketPolicy(
+            config, new TokenBucketTestRate, 1, new Bucket(_, 1, null, 0, false),
+            new HtbMetrics(new MetricRegistry))
+        new TestDpConnManager(
+            config, IndexedSeq.fill(workerCount)(new TestWorker), policy)
+    }
+
+    after {
+        manager.threadPairs.foreach(_.stop())
+    }
+
+    feature("Each packet worker has its own upcall sockets") {
+        scenario("A port has one socket per worker") {
+            When("Creating the connections of two ports")
+            val conn1 = manager.connect("port1")
+                .asInstanceOf[MultiQueueDatapathConnection]
+            val conn2 = manager.connect("port2")
+                .asInstanceOf[MultiQueueDatapathConnection]
+
+            Then("Each port has one connection per worker")
+            conn1.queues should have size workerCount
+            conn2.queues should have size workerCount
+
+            And("The port PIDs are the sockets of the workers in order")
+            for (conn <- Seq(conn1, conn2)) {
+                manager.pids(conn) shouldBe conn.queues.map(
+                    _.getConnection.getChannel.getLocalAddress.getPid).toArray
+            }
+            val pids = manager.pids(conn1) ++ manager.pids(conn2)
+            pids.distinct should have size 2 * workerCount
+
+            And("The requests of the port are sent by the first worker")
+            conn1.getConnection shouldBe theSameInstanceAs (
+                conn1.queues.head.getConnection)
+
+            manager.disconnect(conn1)
+            manager.disconnect(conn2)
+        }
+
+        scenario("Only the first worker starts a write thread") {
+            When("Creating the connection of a port")
+            val conn = manager.connect("port")
+
+            Then("Only the first thread pair has a write loop")
+            manager.threadPairs.head.getWriteLoop should not be null
+            for (threadPair <- manager.threadPairs.tail) {
+                threadPair.isRunning shouldBe true
+                threadPair.getWriteLoop shouldBe null
+            }
+
+            manager.disconnect(conn)
+        }
+
+        scenario("The read threads are pinned to the CPUs of their workers") {
+            Given("The upcall CPUs and no worker CPUs")
+            Then("The read threads are pinned to the upcall CPUs")
+            for (threadPair <- manager.threadPairs) {
+                threadPair.getReadCpus.cpus shouldBe Seq(0)
+            }
+
+            Given("The worker CPUs")
+            manager = newManager(
+                """
+                  |agent.midolman.upcall_cpus = "0"
+                  |agent.midolman.worker_cpus = "2-5"
+                """.stripMargin)
+
+            Then("Each read thread is pinned to the CPU of its worker")
+            for ((threadPair, index) <- manager.threadPairs.zipWithIndex) {
+                threadPair.getReadCpus.cpus shouldBe Seq(2 + index)
+            }
+        }
+    }
+}
@@ -16,13 +16,17 @@
 
 package org.midonet.midolman.io
 
+import scala.collection.JavaConverters._
 import scala.concurrent.duration._
 
+import com.codahale.metrics.MetricRegistry
+
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 import org.scalatest.{OneInstancePerTest, ShouldMatchers, BeforeAndAfter, FeatureSpec}
 
 import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.monitoring.metrics.{HtbGauge, HtbMetrics}
 import org.midonet.odp.ports.{NetDevPort, VxLanTunnelPort, GreTunnelPort}
 import org.midonet.util._
 
@@ -32,6 +36,7 @@ class TokenBucketPolicyTest extends FeatureSpec
                             with ShouldMatchers
                             with OneInstancePerTest {
     var policy: TokenBucketPolicy = _
+    var registry: MetricRegistry = _
     val multiplier = 2
 
     before {
@@ -41,12 +46,16 @@ class TokenBucketPolicyTest extends FeatureSpec
               |agent.datapath.vm_incoming_burst_capacity = 1
               |agent.datapath.tunnel_incoming_burst_capacity = 8
               |agent.datapath.vtep_incoming_burst_capacity = 1
+              |agent.datapath.tunnel_incoming_weight = 4
+              |agent.datapath.vm_incoming_weight = 2
             """.stripMargin
 
+        registry = new MetricRegistry
         policy = new TokenBucketPolicy(
             MidolmanConfig.forTests(confStr),
             new TokenBucketTestRate, multiplier,
-            new Bucket(_, 1, null, 0, false))
+            new Bucket(_, 1, null, 0, false),
+            new HtbMetrics(registry))
     }
 
     feature("Buckets are correctly linked") {
@@ -69,6 +78,23 @@ class TokenBucketPolicyTest extends FeatureSpec
             tb.underlyingTokenBucket.getName should be ("midolman-root/vms/vm")
         }
 
+        scenario("Buckets are linked with the weight of their port type") {
+            val tbgre = policy link (new GreTunnelPort("gre"), OverlayTunnel)
+            val tbvtep = policy link (new VxLanTunnelPort("vtep"), VtepTunnel)
+            val tbvm = policy link (new NetDevPort("vm"), VirtualMachine)
+
+            tbgre.underlyingTokenBucket.getWeight should be (4)
+            tbvtep.underlyingTokenBucket.getWeight should be (1)
+            tbvm.underlyingTokenBucket.getWeight should be (1)
+            tbvm.underlyingTokenBucket.getParent.getWeight should be (2)
+        }
+
+        scenario("Linking the same port returns the same bucket") {
+            val port = new NetDevPort("vm")
+            val tb = policy link (port, VirtualMachine)
+            (policy link (port, VirtualMachine)) should be theSameInstanceAs tb
+        }
+
         scenario("The policy ensures the capacity of the root is greater or " +
                  "equal to the capacity of all leaf buckets") {
             val tb1 = policy link (new NetDevPort("vm1"), VirtualMachine)
@@ -103,6 +129,25 @@ class TokenBucketPolicyTest extends FeatureSpec
         }
     }
 
+    feature("Port buckets expose metrics") {
+        scenario("Metrics are registered and removed with the port") {
+            val port = new NetDevPort("vm")
+            val tb = policy link (port, VirtualMachine)
+
+            val prefix = classOf[HtbGauge].getName + ".vm."
+            registry.getGauges.keySet.asScala shouldBe Set(
+                prefix + "tokens", prefix + "refilled", prefix + "throttled")
+
+            tb.underlyingTokenBucket.addTokens(1)
+            tb.consumeToken() should be (true)
+            tb.consumeToken() should be (false)
+            registry.getGauges.get(prefix + "throttled").getValue should be (1L)
+
+            policy unlink port
+            registry.getGauges shouldBe empty
+        }
+    }
+
     feature("Full system simulation") {
         scenario("Token bucket simulation") {
             val confStr =
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.monitoring
+
+import java.io.{ByteArrayOutputStream, File, IOException}
+import java.nio.ByteBuffer
+import java.nio.channels.{Channels, WritableByteChannel}
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, Matchers}
+
+@RunWith(classOf[JUnitRunner])
+class FlowHistorySpoolTest extends FeatureSpec with Matchers
+                           with BeforeAndAfter {
+
+    private var file: File = _
+
+    before {
+        file = File.createTempFile("flow-history", ".spool")
+    }
+
+    after {
+        file.delete()
+    }
+
+    private def drain(spool: FlowHistorySpool): Array[Byte] = {
+        val out = new ByteArrayOutputStream()
+        spool.drainTo(Channels.newChannel(out))
+        out.toByteArray
+    }
+
+    feature("The spool keeps batches of records") {
+        scenario("Batches are drained in order") {
+            val spool = new FlowHistorySpool(file, 1024)
+            spool.isEmpty shouldBe true
+
+            spool.append(ByteBuffer.wrap(Array[Byte](1, 2, 3))) shouldBe true
+            spool.append(ByteBuffer.wrap(Array[Byte](4, 5))) shouldBe true
+            spool.length shouldBe 5
+
+            drain(spool) shouldBe Array[Byte](1, 2, 3, 4, 5)
+            spool.isEmpty shouldBe true
+            drain(spool) shouldBe empty
+        }
+
+        scenario("Batches are discarded when the spool is full") {
+            val spool = new FlowHistorySpool(
+                file, FlowHistorySpool.HeaderSize + 4)
+
+            spool.append(ByteBuffer.wrap(Array[Byte](1, 2, 3))) shouldBe true
+            spool.append(ByteBuffer.wrap(Array[Byte](4, 5))) shouldBe false
+            spool.append(ByteBuffer.wrap(Array[Byte](6))) shouldBe true
+
+            drain(spool) shouldBe Array[Byte](1, 2, 3, 6)
+        }
+
+        scenario("Records remain in the spool if draining fails") {
+            val spool = new FlowHistorySpool(file, 1024)
+            spool.append(ByteBuffer.wrap(Array[Byte](1, 2, 3))) shouldBe true
+
+            val failing = new WritableByteChannel {
+                override def write(src: ByteBuffer): Int =
+                    throw new IOException("Boom!")
+                override def isOpen: Boolean = true
+                override def close(): Unit = { }
+            }
+            an [IOException] should be thrownBy spool.drainTo(failing)
+
+            drain(spool) shouldBe Array[Byte](1, 2, 3)
+        }
+
+        scenario("Records survive reopening the spool") {
+            val spool1 = new FlowHistorySpool(file, 1024)
+            spool1.append(ByteBuffer.wrap(Array[Byte](1, 2, 3))) shouldBe true
+            spool1.force()
+
+            val spool2 = new FlowHistorySpool(file, 1024)
+            spool2.length shouldBe 3
+            drain(spool2) shouldBe Array[Byte](1, 2, 3)
+        }
+    }
+}
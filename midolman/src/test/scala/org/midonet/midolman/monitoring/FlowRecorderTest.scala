@@ -90,6 +90,61 @@ class FlowRecorderTest extends MidolmanSpec {
         }
     }
 
+    feature("flow sampling") {
+        scenario("one in every N simulations is recorded") {
+            val sampler = new FlowSampler(3, recordDrops = false, Set.empty)
+            val (recorder, sender) = createTestRecorder(config, sampler)
+
+            for (_ <- 0 until 9) {
+                recorder.record(newContext(), PacketWorkflow.NoOp)
+            }
+
+            Mockito.verify(sender, Mockito.times(3)).submit(recorder.buffer)
+        }
+        scenario("drops are always recorded") {
+            val sampler = new FlowSampler(100, recordDrops = true, Set.empty)
+            val (recorder, sender) = createTestRecorder(config, sampler)
+
+            recorder.record(newContext(), PacketWorkflow.NoOp)
+            recorder.record(newContext(), PacketWorkflow.Drop)
+            recorder.record(newContext(), PacketWorkflow.ErrorDrop)
+            recorder.record(newContext(), PacketWorkflow.ShortDrop)
+
+            Mockito.verify(sender, Mockito.times(3)).submit(recorder.buffer)
+        }
+        scenario("only the simulations of the given ports are recorded") {
+            val ctx1 = newContext()
+            val ctx2 = newContext()
+            ctx1.inputPort = UUID.randomUUID()
+            ctx2.inputPort = UUID.randomUUID()
+            val sampler = new FlowSampler(1, recordDrops = true,
+                                          Set(ctx1.inputPort))
+            val (recorder, sender) = createTestRecorder(config, sampler)
+
+            recorder.record(ctx2, PacketWorkflow.NoOp)
+            recorder.record(ctx2, PacketWorkflow.Drop)
+            Mockito.verify(sender, Mockito.never).submit(recorder.buffer)
+
+            recorder.record(ctx1, PacketWorkflow.NoOp)
+            Mockito.verify(sender).submit(recorder.buffer)
+        }
+        scenario("sampling is configured") {
+            val port = UUID.randomUUID()
+            val confStr =
+                s"""
+                   |agent.flow_history.sampling_rate=10
+                   |agent.flow_history.record_drops=false
+                   |agent.flow_history.ports="$port, "
+                """.stripMargin
+            val conf = MidolmanConfig.forTests(confStr)
+
+            conf.flowHistory.samplingRate shouldBe 10
+            conf.flowHistory.recordDrops shouldBe false
+            conf.flowHistory.ports shouldBe Set(port)
+            config.flowHistory.ports shouldBe empty
+        }
+    }
+
     feature("JSON flow recoder") {
         scenario("correct values are shipped, nulls are not") {
             val confStr =
@@ -233,9 +288,10 @@ class FlowRecorderTest extends MidolmanSpec {
         (recorder, senderWorker)
     }
 
-    private def createTestRecorder(config: MidolmanConfig) = {
+    private def createTestRecorder(config: MidolmanConfig,
+                                   sampler: FlowSampler = FlowSampler.all) = {
         val senderWorker = createMockedSenderWorker
-        val recorder = new TestFlowRecorder(senderWorker)
+        val recorder = new TestFlowRecorder(senderWorker, sampler)
 
         (recorder, senderWorker)
     }
@@ -254,8 +310,9 @@ class FlowRecorderTest extends MidolmanSpec {
         bytes
     }
 
-    class TestFlowRecorder(senderWorker: FlowSenderWorker)
-            extends AbstractFlowRecorder(senderWorker) {
+    class TestFlowRecorder(senderWorker: FlowSenderWorker,
+                           sampler: FlowSampler = FlowSampler.all)
+            extends AbstractFlowRecorder(senderWorker, sampler) {
         val buffer = ByteBuffer.allocate(0)
         override def encodeRecord(pktContext: PacketContext,
                                   simRes: SimulationResult): ByteBuffer = {
@@ -15,7 +15,7 @@
  */
 package org.midonet.midolman.monitoring
 
-import java.io.IOException
+import java.io.{File, IOException}
 import java.net.InetSocketAddress
 import java.nio.{BufferOverflowException, ByteBuffer}
 import java.util.concurrent.TimeUnit
@@ -324,6 +324,95 @@ class FlowSenderWorkerTest extends MidolmanSpec with MidonetEventually {
     }
 
 
+    feature("Flow sender batches and spools records") {
+        scenario("records of a batch are sent in a single write") {
+            val target = HostAndPort.fromString("localhost:50027")
+            val confStr =
+                s"""
+                   |agent.flow_history.endpoint_service="$EndpointServiceName"
+                """.stripMargin
+            val conf = MidolmanConfig.forTests(confStr)
+            var writes = 0
+            val sender = new FlowSender(conf.flowHistory, backend) {
+                override protected def sendRecord(buffer: ByteBuffer): Unit = {
+                    writes += 1
+                    super.sendRecord(buffer)
+                }
+            }
+
+            val observer = new TestAwaitableObserver[Array[Byte]]
+            val srv = getDelimBytesServer(50027, observer)
+            srv.startAsync().awaitRunning(Timeout.toMillis,
+                                          TimeUnit.MILLISECONDS)
+            sender.startAsync().awaitRunning()
+            backend.discovery.registerServiceInstance(EndpointServiceName,
+                                                      target)
+
+            try {
+                val bufs = (0 until 3) map { _ =>
+                    randomBytes(Random.nextInt(400) + 1)
+                }
+
+                sender.onEvent(ByteBuffer.wrap(bufs(0)), 0, endOfBatch = false)
+                sender.onEvent(ByteBuffer.wrap(bufs(1)), 1, endOfBatch = false)
+                writes shouldBe 0
+                sender.onEvent(ByteBuffer.wrap(bufs(2)), 2, endOfBatch = true)
+                writes shouldBe 1
+
+                observer.awaitOnNext(3, Timeout) shouldBe true
+                observer.getOnNextEvents.asScala.map(_.toSeq) shouldBe
+                    bufs.map(_.toSeq)
+            } finally {
+                srv.stopAsync().awaitTerminated(Timeout.toMillis,
+                                                TimeUnit.MILLISECONDS)
+                sender.stopAsync().awaitTerminated()
+            }
+        }
+        scenario("spooled records are sent when the endpoint is reachable") {
+            val target = HostAndPort.fromString("localhost:50028")
+            val spoolFile = File.createTempFile("flow-history", ".spool")
+            spoolFile.deleteOnExit()
+            val confStr =
+                s"""
+                   |agent.flow_history.endpoint_service="$EndpointServiceName"
+                   |agent.flow_history.connection_interval="0ms"
+                   |agent.flow_history.spool_file="${spoolFile.getPath}"
+                   |agent.flow_history.spool_size="1m"
+                """.stripMargin
+            val conf = MidolmanConfig.forTests(confStr)
+            val (sender, discovery) = createFlowSender(conf)
+
+            sender.startAsync().awaitRunning()
+
+            val buf1 = randomBytes(Random.nextInt(400) + 1)
+            val buf2 = randomBytes(Random.nextInt(400) + 1)
+            val buf3 = randomBytes(Random.nextInt(400) + 1)
+
+            // No endpoint: the records are kept in the spool
+            sender.endpoint shouldBe None
+            sender.onEvent(ByteBuffer.wrap(buf1), 0, endOfBatch = true)
+            sender.onEvent(ByteBuffer.wrap(buf2), 1, endOfBatch = true)
+
+            val observer = new TestAwaitableObserver[Array[Byte]]
+            val srv = getDelimBytesServer(50028, observer)
+            srv.startAsync().awaitRunning(Timeout.toMillis,
+                                          TimeUnit.MILLISECONDS)
+            discovery.registerServiceInstance(EndpointServiceName, target)
+
+            try {
+                sender.onEvent(ByteBuffer.wrap(buf3), 2, endOfBatch = true)
+
+                observer.awaitOnNext(3, Timeout) shouldBe true
+                observer.getOnNextEvents.asScala.map(_.toSeq) shouldBe
+                    Seq(buf1, buf2, buf3).map(_.toSeq)
+            } finally {
+                srv.stopAsync().awaitTerminated(Timeout.toMillis,
+                                                TimeUnit.MILLISECONDS)
+                sender.stopAsync().awaitTerminated()
+            }
+        }
+    }
+
     feature("Disruptor flow sender worker") {
         scenario("messages sent correctly") {
             val target = HostAndPort.fromString("localhost:50023")
@@ -17,8 +17,15 @@ package org.midonet.midolman.simulation
 
 import org.midonet.midolman.rules._
 import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.HappyGoLuckyLeaser
+import org.midonet.midolman.state.NatState.NatKey
+import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
 import org.midonet.odp.FlowMatch
-import org.midonet.packets.IPAddr
+import org.midonet.packets.NatState.NatBinding
+import org.midonet.packets.{IPAddr, IPv4, IPv4Addr, TCP}
+import org.midonet.sdn.state.{FlowStateTransaction, ShardedFlowStateTable}
+import org.midonet.util.Range
 
 import java.util.UUID
 import org.junit.runner.RunWith
@@ -272,6 +279,39 @@ class ChainTest extends Suite
         applyChain(innerAndOuterChain).action should be (Action.REJECT)
     }
 
+    def testRulesAfterDnatMatchTheRewrittenDestination(): Unit = {
+        pktMatch.setEtherType(IPv4.ETHERTYPE)
+        pktMatch.setNetworkSrc(IPAddr.fromString("10.0.0.1"))
+        pktMatch.setNetworkProto(TCP.PROTOCOL_NUMBER)
+        pktMatch.setSrcPort(4321)
+        pktMatch.setDstPort(80)
+        pktCtx = PacketContext.generated(1, null, pktMatch)
+        pktCtx.initialize(
+            new FlowStateTransaction(ShardedFlowStateTable
+                .create[ConnTrackKey, ConnTrackValue]().addShard()),
+            new FlowStateTransaction(ShardedFlowStateTable
+                .create[NatKey, NatBinding]().addShard()),
+            HappyGoLuckyLeaser,
+            new FlowStateTransaction(ShardedFlowStateTable
+                .create[TraceKey, TraceContext]().addShard()))
+
+        val dnatCond = new Condition()
+        dnatCond.tpDst = new Range(80)
+        val target = IPv4Addr.fromString("10.0.0.2").toInt
+        val dnatRule = new DynamicForwardNatRule(
+            dnatCond, Action.CONTINUE, null, true,
+            Set(new NatTarget(target, target, 8080, 8080)).asJava)
+        val acceptCond = new Condition()
+        acceptCond.tpDst = new Range(8080)
+        val acceptDnatRule = new LiteralRule(acceptCond, Action.ACCEPT)
+
+        // The accept rule only matches the destination rewritten by the
+        // DNAT rule, which continues.
+        val c = makeChain(List(dnatRule, acceptDnatRule, rejectRule))
+        applyChain(c).action should be (Action.ACCEPT)
+        pktCtx.wcmatch.getDstPort should be (8080)
+    }
+
     private def applyChain(c: Chain) = {
         pktCtx.currentDevice = ownerId
         if (c ne null)
@@ -19,6 +19,7 @@ import java.util.UUID
 
 import scala.collection.JavaConversions._
 import scala.concurrent.duration._
+import scala.util.Random
 
 import akka.util.Timeout
 import org.junit.runner.RunWith
@@ -27,8 +28,9 @@ import org.scalatest.junit.JUnitRunner
 import org.midonet.midolman.PacketWorkflow.{AddVirtualWildcardFlow, SimulationResult}
 import org.midonet.midolman.layer3.Route
 import org.midonet.midolman.state.NatState.NatKey
-import org.midonet.midolman.state.l4lb.LBStatus
+import org.midonet.midolman.state.l4lb.{LBStatus, PoolLBMethod, SessionPersistence}
 import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.odp.FlowMatch
 import org.midonet.odp.flows.{FlowActionSetKey, FlowKeyIPv4}
 import org.midonet.packets.NatState.NatBinding
 import org.midonet.packets._
@@ -543,6 +545,64 @@ class PoolTest extends MidolmanSpec {
         }
     }
 
+    feature("Consistent selection of pool members") {
+        scenario("Pools select the same member regardless of the member order") {
+            Given("Two pools with the same members in a different order")
+            val members = (0 until 10) map { i => memberOf(i, weight = i + 1) }
+            val pool1 = poolOf(members)
+            val pool2 = poolOf(Random.shuffle(members))
+
+            Then("Both pools select the same member for each connection")
+            for (i <- 0 until 1000) {
+                val context = connection(i)
+                pool1.selectMember(context, stickySourceIP = false) shouldBe
+                    pool2.selectMember(context, stickySourceIP = false)
+                pool1.selectMember(context, stickySourceIP = true) shouldBe
+                    pool2.selectMember(context, stickySourceIP = true)
+            }
+        }
+
+        scenario("Many heavy members receive connections by their weight") {
+            Given("A pool of 20 members with weights 255 and 256")
+            val members = (0 until 20) map { i =>
+                memberOf(i, weight = 255 + i % 2)
+            }
+            val pool = poolOf(members)
+
+            When("Selecting the members of many connections")
+            val connections = 20000
+            val counts = (0 until connections) map { i =>
+                pool.selectMember(connection(i), stickySourceIP = false)
+            } groupBy identity mapValues { _.size }
+
+            Then("Every member receives its share of the connections")
+            val total = members.map(_.weight).sum
+            for (member <- members) {
+                val expected = connections * member.weight / total
+                counts.getOrElse(member, 0) shouldBe expected +- expected / 5
+            }
+        }
+    }
+
+    private def memberOf(index: Int, weight: Int): PoolMember =
+        new PoolMember(UUID.randomUUID(), true, LBStatus.ACTIVE,
+                       IPv4Addr.fromString(s"10.1.0.${index + 1}"), 80, weight)
+
+    private def poolOf(members: Seq[PoolMember]): Pool =
+        new Pool(UUID.randomUUID(), true, PoolLBMethod.ROUND_ROBIN, null, null,
+                 SessionPersistence.SOURCE_IP, members.toArray, members.toArray,
+                 Array.empty, Array.empty)
+
+    private def connection(index: Int): PacketContext = {
+        val random = new Random(index)
+        PacketContext.generated(1, null, new FlowMatch()
+            .setNetworkSrc(IPv4Addr(random.nextInt()))
+            .setSrcPort(random.nextInt(65536))
+            .setNetworkDst(vipIp.getAddress)
+            .setDstPort(vipPort)
+            .setNetworkProto(TCP.PROTOCOL_NUMBER))
+    }
+
     feature("Sticky source IP attribute in VIP affects how subsequent connections are balanced") {
         scenario("Without sticky source IP") {
             Given("VIP has sticky source IP disabled")
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.net.{DatagramPacket, DatagramSocket}
+import java.util.{ArrayList, UUID}
+
+import scala.collection.JavaConversions._
+
+import com.typesafe.config.ConfigFactory
+import com.typesafe.scalalogging.Logger
+
+import org.junit.runner.RunWith
+import org.mockito.Mockito.{never, times, verify}
+import org.mockito.{Mockito, Matchers => mockito}
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+import org.slf4j.helpers.NOPLogger
+
+import org.midonet.midolman.PacketWorker
+import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.datapath.StatePacketExecutor
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.NatState.NatKey
+import org.midonet.odp.{FlowMatches, Packet}
+import org.midonet.packets.NatState.{FWD_SNAT, NatBinding}
+import org.midonet.packets._
+import org.midonet.packets.util.PacketBuilder._
+
+@RunWith(classOf[JUnitRunner])
+class FlowStateDispatcherTest extends FeatureSpec
+                                      with ShouldMatchers
+                                      with GivenWhenThen
+                                      with OneInstancePerTest {
+
+    import FlowStateAgentPackets._
+
+    implicit def stringToIp(str: String): IPv4Addr = IPv4Addr.fromString(str)
+
+    val NumWorkers = 4
+
+    class TestableWorker extends PacketWorker {
+        var accepting = true
+        var states = List[ReceivedFlowState]()
+        override def submit(packet: Packet) = accepting
+        override def submit(state: ReceivedFlowState) = {
+            if (accepting) states :+= state
+            accepting
+        }
+    }
+
+    val workers = IndexedSeq.fill(NumWorkers)(new TestableWorker)
+
+    def config(localPushState: Boolean) = MidolmanConfig.forTests(
+        ConfigFactory.parseString(
+            s"agent.minions.flow_state.local_push_state : $localPushState"))
+
+    class TestableFlowStateDispatcher(config: MidolmanConfig)
+        extends FlowStateDispatcher(workers, config) {
+        override val flowStateSocket = Mockito.mock(classOf[DatagramSocket])
+    }
+
+    val statePacketExecutor = new StatePacketExecutor {
+        val log = Logger(NOPLogger.NOP_LOGGER)
+    }
+
+    val connTrackKeys = for (i <- 0 until 8)
+        yield ConnTrackKey("10.0.0.1", 1000 + i, "10.0.0.2", 80,
+                           TCP.PROTOCOL_NUMBER, UUID.randomUUID())
+
+    val natMappings = for (i <- 0 until 8)
+        yield NatKey(FWD_SNAT, "192.168.10.1", 10000 + i, "17.16.15.1", 443,
+                     TCP.PROTOCOL_NUMBER, UUID.randomUUID()) ->
+              NatBinding("1.2.3.4", 20000 + i)
+
+    def statePacket(conntrack: Seq[ConnTrackKey],
+                    nat: Seq[(NatKey, NatBinding)]): Packet = {
+        val buffer = new Array[Byte](
+            FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH)
+        val encoder = new SbeEncoder()
+        val message = encoder.encodeTo(buffer)
+        uuidToSbe(UUID.randomUUID(), message.sender)
+        val conntrackIter = message.conntrackCount(conntrack.size)
+        conntrack foreach { k => connTrackKeyToSbe(k, conntrackIter.next()) }
+        val natIter = message.natCount(nat.size)
+        nat foreach { case (k, v) => natToSbe(k, v, natIter.next()) }
+        message.traceCount(0)
+        message.traceRequestIdsCount(0)
+        portIdsToSbe(UUID.randomUUID(), new ArrayList[UUID](),
+                     message.portIdsCount(1).next)
+        statePacketExecutor.prepareStatePacket(buffer, encoder.encodedLength)
+    }
+
+    def workerFor(eth: Ethernet): Int =
+        PacketWorker.indexOf(FlowMatches.fromEthernetPacket(eth).connectionHash,
+                             NumWorkers)
+
+    feature("Received flow state is dispatched to the owning workers") {
+        scenario("Each entry is written by a single worker") {
+            Given("A dispatcher")
+            val dispatcher = new TestableFlowStateDispatcher(config(false))
+
+            When("Dispatching a state message and ending the batch")
+            dispatcher.dispatch(statePacket(connTrackKeys, natMappings)) shouldBe true
+            dispatcher.flush()
+
+            Then("Every conntrack key is received by a single worker")
+            val states = workers flatMap { _.states }
+            val conntrack = states flatMap { _.conntrackKeys }
+            conntrack should have size connTrackKeys.size
+            conntrack.toSet shouldBe connTrackKeys.toSet
+
+            And("Every nat key is received by a single worker")
+            val nat = states flatMap { s => s.natKeys zip s.natBindings }
+            nat should have size natMappings.size
+            nat.toSet shouldBe natMappings.toSet
+
+            And("All workers invalidate the flows of every key")
+            workers foreach { worker =>
+                worker.states should have size 1
+                worker.states.head.invalidations.toSet shouldBe
+                    (connTrackKeys ++ natMappings.map(_._1)).toSet
+            }
+        }
+
+        scenario("Entries go to the worker handling the packets of their flow") {
+            Given("A dispatcher")
+            val dispatcher = new TestableFlowStateDispatcher(config(false))
+
+            When("Dispatching a state message and ending the batch")
+            dispatcher.dispatch(statePacket(connTrackKeys, natMappings))
+            dispatcher.flush()
+
+            Then("Conntrack keys go to the worker handling the return flow")
+            for (k <- connTrackKeys) {
+                val src = k.networkDst.asInstanceOf[IPv4Addr]
+                val dst = k.networkSrc.asInstanceOf[IPv4Addr]
+                val srcPort = k.icmpIdOrTransportDst.toShort
+                val dstPort = k.icmpIdOrTransportSrc.toShort
+                val returnPacket =
+                    { eth src MAC.random() dst MAC.random() } <<
+                    { ip4 src src dst dst } << { tcp src srcPort dst dstPort }
+                workers(workerFor(returnPacket)).states.head
+                    .conntrackKeys should contain (k)
+            }
+
+            And("Nat keys go to the worker handling the flow they match")
+            for ((k, _) <- natMappings) {
+                val srcPort = k.transportSrc.toShort
+                val dstPort = k.transportDst.toShort
+                val packet =
+                    { eth src MAC.random() dst MAC.random() } <<
+                    { ip4 src k.networkSrc dst k.networkDst } <<
+                    { tcp src srcPort dst dstPort }
+                workers(workerFor(packet)).states.head
+                    .natKeys should contain (k)
+            }
+        }
+
+        scenario("A single worker returns the tokens of the batch") {
+            Given("A dispatcher")
+            val dispatcher = new TestableFlowStateDispatcher(config(false))
+
+            When("Dispatching several state messages in the same batch")
+            dispatcher.dispatch(statePacket(connTrackKeys.take(4), Nil))
+            dispatcher.dispatch(statePacket(Nil, natMappings.take(4)))
+            dispatcher.dispatch(statePacket(Nil, Nil))
+            dispatcher.flush()
+
+            Then("The tokens of all messages are returned once")
+            val states = workers flatMap { _.states }
+            states.map(_.statePackets).sum shouldBe 3
+            states.count(_.statePackets > 0) shouldBe 1
+
+            And("Ending an empty batch submits nothing")
+            dispatcher.flush()
+            (workers flatMap { _.states }) should have size states.size
+        }
+
+        scenario("Tokens are retained while the workers are busy") {
+            Given("A dispatcher whose workers have their queues full")
+            val dispatcher = new TestableFlowStateDispatcher(config(false))
+            workers foreach { _.accepting = false }
+
+            When("Dispatching a state message and ending the batch")
+            dispatcher.dispatch(statePacket(connTrackKeys, Nil)) shouldBe true
+            dispatcher.flush()
+
+            Then("The workers received nothing")
+            (workers flatMap { _.states }) shouldBe empty
+
+            When("The workers accept state again")
+            workers foreach { _.accepting = true }
+            dispatcher.dispatch(statePacket(Nil, Nil))
+            dispatcher.flush()
+
+            Then("The tokens of both messages are returned")
+            (workers flatMap { _.states } map { _.statePackets }).sum shouldBe 2
+        }
+
+        scenario("Released states are reused by the next batch") {
+            Given("A dispatcher")
+            val dispatcher = new TestableFlowStateDispatcher(config(false))
+
+            When("Dispatching a state message and ending the batch")
+            dispatcher.dispatch(statePacket(connTrackKeys, natMappings))
+            dispatcher.flush()
+            val first = workers map { _.states.last }
+
+            And("The workers release their states")
+            first foreach { _.release() }
+
+            And("Dispatching another state message")
+            dispatcher.dispatch(statePacket(connTrackKeys.take(1), Nil))
+            dispatcher.flush()
+
+            Then("The workers receive the same states with the new entries")
+            val second = workers filter { _.states.size == 2 } map { _.states.last }
+            second should not be empty
+            second foreach { state => first.exists(_ eq state) shouldBe true }
+            (second flatMap { _.conntrackKeys }) shouldBe connTrackKeys.take(1)
+            (second flatMap { _.natKeys }) shouldBe empty
+            second foreach { _.invalidations should have size 1 }
+        }
+
+        scenario("States are not reused while held by the workers") {
+            Given("A dispatcher")
+            val dispatcher = new TestableFlowStateDispatcher(config(false))
+
+            When("Dispatching two state messages in separate batches")
+            dispatcher.dispatch(statePacket(connTrackKeys, Nil))
+            dispatcher.flush()
+            val first = workers flatMap { _.states }
+            dispatcher.dispatch(statePacket(connTrackKeys, Nil))
+            dispatcher.flush()
+
+            Then("The states of the first batch are not modified")
+            val second = workers flatMap { _.states } filterNot { s =>
+                first.exists(_ eq s) }
+            second should not be empty
+            (first flatMap { _.conntrackKeys }) should have size connTrackKeys.size
+            first.map(_.statePackets).sum shouldBe 1
+        }
+
+        scenario("Unexpected packets are rejected") {
+            Given("A dispatcher")
+            val dispatcher = new TestableFlowStateDispatcher(config(false))
+
+            When("Dispatching a packet that is not a flow state message")
+            val frame: Ethernet = { eth src MAC.random() dst MAC.random() } <<
+                                  { ip4 src "10.0.0.1" dst "10.0.0.2" } <<
+                                  { udp src 1234 dst 5678 }
+            val packet = new Packet(frame, FlowMatches.fromEthernetPacket(frame))
+
+            Then("The packet is rejected, so the caller returns its token")
+            dispatcher.dispatch(packet) shouldBe false
+            dispatcher.flush()
+            (workers flatMap { _.states }) shouldBe empty
+        }
+    }
+
+    feature("Connections are owned by a single worker") {
+        scenario("The worker index is never negative") {
+            PacketWorker.indexOf(Int.MinValue, NumWorkers) shouldBe 0
+            PacketWorker.indexOf(Int.MinValue, 3) shouldBe 0
+            PacketWorker.indexOf(-1, NumWorkers) shouldBe 3
+            PacketWorker.indexOf(5, NumWorkers) shouldBe 1
+        }
+    }
+
+    feature("Received flow state is pushed to the local minion") {
+        scenario("Each message is pushed once") {
+            Given("A dispatcher pushing state to the local minion")
+            val dispatcher = new TestableFlowStateDispatcher(config(true))
+
+            When("Dispatching a state message")
+            dispatcher.dispatch(statePacket(connTrackKeys, natMappings))
+            dispatcher.flush()
+
+            Then("The message is sent once regardless of the workers")
+            verify(dispatcher.flowStateSocket, times(1))
+                .send(mockito.any(classOf[DatagramPacket]))
+        }
+
+        scenario("Messages are not pushed when disabled") {
+            Given("A dispatcher not pushing state to the local minion")
+            val dispatcher = new TestableFlowStateDispatcher(config(false))
+
+            When("Dispatching a state message")
+            dispatcher.dispatch(statePacket(connTrackKeys, natMappings))
+
+            Then("The message is not sent")
+            verify(dispatcher.flowStateSocket, never())
+                .send(mockito.any(classOf[DatagramPacket]))
+        }
+    }
+}
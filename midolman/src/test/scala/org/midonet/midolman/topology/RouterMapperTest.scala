@@ -1032,6 +1032,30 @@ class RouterMapperTest extends MidolmanSpec with TopologyBuilder
             device.rTable.lookup(flowOf("1.0.0.0", "2.0.0.0")) should contain only route1.asJava
             device.rTable.lookup(flowOf("1.0.0.0", "3.0.0.0")) should contain only route2.asJava
         }
+
+        scenario("Mapper emits the routes added together as a batch") {
+            val obs = createObserver()
+            val router = testRouterCreated(obs)._1
+
+            When("Adding several routes to the router in one transaction")
+            val routes = for (index <- 1 to 10) yield {
+                createRoute(srcNetwork = "1.0.0.0/24",
+                            dstNetwork = s"$index.0.0.0/24",
+                            routerId = Some(router.getId))
+            }
+            store.multi(routes.map(CreateOp))
+
+            Then("The observer should receive a router with all routes")
+            obs.awaitOnNext(2, timeout) shouldBe true
+            val device = obs.getOnNextEvents.get(1)
+            for (index <- 1 to 10) {
+                device.rTable.lookup(flowOf("1.0.0.0", s"$index.0.0.0")) should
+                    contain only routes(index - 1).asJava
+            }
+
+            And("The observer should not receive other notifications")
+            obs.getOnNextEvents should have size 2
+        }
     }
 
     feature("Test learned route updates") {
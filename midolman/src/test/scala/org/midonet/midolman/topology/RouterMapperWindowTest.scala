@@ -0,0 +1,227 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.topology
+
+import java.util.concurrent.{ExecutorService, Executors, ThreadFactory}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.concurrent.duration._
+
+import com.codahale.metrics.MetricRegistry
+import com.typesafe.config.{Config, ConfigValueFactory}
+
+import org.junit.runner.RunWith
+import org.scalatest.concurrent.Eventually
+import org.scalatest.junit.JUnitRunner
+
+import rx.Observable
+
+import org.midonet.cluster.data.storage.Storage
+import org.midonet.cluster.models.Topology.{Route => TopologyRoute, Router => TopologyRouter}
+import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.state.RoutingTableStorage._
+import org.midonet.cluster.topology.{TopologyBuilder, TopologyMatchers}
+import org.midonet.cluster.util.UUIDUtil._
+import org.midonet.midolman.simulation.{Router => SimulationRouter}
+import org.midonet.midolman.topology.TopologyTest.DeviceObserver
+import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.midolman.util.mock.MockRuleLogEventChannel
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.{IPAddr, IPSubnet}
+
+@RunWith(classOf[JUnitRunner])
+class RouterMapperWindowTest extends MidolmanSpec with TopologyBuilder
+                                     with TopologyMatchers with Eventually {
+
+    import TopologyBuilder._
+
+    private var store: Storage = _
+    private var vt: VirtualTopology = _
+    private var executor: ExecutorService = _
+
+    private final val timeout = 5 seconds
+
+    override def fillConfig(config: Config) = {
+        super.fillConfig(config.withValue("agent.router.route_update_window",
+                                          ConfigValueFactory
+                                              .fromAnyRef("1s"))
+                               .withValue("agent.router.route_compile_delay",
+                                          ConfigValueFactory
+                                              .fromAnyRef("2s")))
+    }
+
+    protected override def beforeTest(): Unit = {
+        // The route updates are published from a timer, which requires a
+        // virtual topology with a dedicated executor thread.
+        @volatile var vtThread: Thread = null
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory {
+            override def newThread(r: Runnable): Thread = {
+                vtThread = new Thread(r, "devices-service")
+                vtThread
+            }
+        })
+        val backend = injector.getInstance(classOf[MidonetBackend])
+        vt = new VirtualTopology(backend, config, simBackChannel,
+                                 new MockRuleLogEventChannel,
+                                 new MetricRegistry, executor, executor,
+                                 () => Thread.currentThread() eq vtThread)
+        store = backend.store
+    }
+
+    protected override def afterTest(): Unit = {
+        executor.shutdownNow()
+    }
+
+    implicit def asIPSubnet(str: String): IPSubnet[_] = IPSubnet.fromCidr(str)
+
+    private def lookup(device: SimulationRouter, dstAddress: String) = {
+        device.rTable.lookup(flowOf("1.0.0.1", dstAddress)).asScala
+    }
+
+    private def isCompiled(device: SimulationRouter): Boolean = {
+        device.rTable.asInstanceOf[RouterMapper.RouterRoutingTable]
+              .compiled ne null
+    }
+
+    private def flowOf(srcAddress: String, dstAddress: String): FlowMatch = {
+        new FlowMatch()
+            .setNetworkSrc(IPAddr.fromString(srcAddress))
+            .setNetworkDst(IPAddr.fromString(dstAddress))
+    }
+
+    private def testRouterCreated()
+    : (TopologyRouter, DeviceObserver[SimulationRouter]) = {
+        Given("A router and a router mapper")
+        val router = createRouter()
+        store.create(router)
+        val mapper = new RouterMapper(router.getId, vt, mutable.Map())
+
+        And("An observer subscribed to the mapper")
+        val obs = new DeviceObserver[SimulationRouter](vt)
+        Observable.create(mapper).subscribe(obs)
+        obs.awaitOnNext(1, timeout) shouldBe true
+
+        When("Adding a first route to the router")
+        val route = createRoute(srcNetwork = "1.0.0.0/24",
+                                dstNetwork = "10.0.0.0/8",
+                                routerId = Some(router.getId))
+        store.create(route)
+
+        Then("The route is published immediately")
+        eventually(timeout(timeout)) {
+            val device = obs.getOnNextEvents.asScala.last
+            lookup(device, "10.0.0.1") should contain only route.asJava
+        }
+
+        (router, obs)
+    }
+
+    feature("Router mapper coalesces route updates") {
+        scenario("Routes added within the window are published together") {
+            val (router, obs) = testRouterCreated()
+
+            When("Adding three routes to the router")
+            val routes = for (index <- 1 to 3) yield {
+                createRoute(srcNetwork = "1.0.0.0/24",
+                            dstNetwork = s"$index.0.0.0/24",
+                            routerId = Some(router.getId))
+            }
+            routes foreach store.create
+
+            Then("The observer should receive a router with all routes")
+            eventually(timeout(timeout)) {
+                val device = obs.getOnNextEvents.asScala.last
+                for (index <- 1 to 3) {
+                    lookup(device, s"$index.0.0.1") should contain only
+                        routes(index - 1).asJava
+                }
+            }
+
+            And("No router should have only some of the routes")
+            for (device <- obs.getOnNextEvents.asScala) {
+                val count = (1 to 3).count { index =>
+                    lookup(device, s"$index.0.0.1").nonEmpty
+                }
+                Set(0, 3) should contain (count)
+            }
+        }
+
+        scenario("Routes added and removed within the window") {
+            val (router, obs) = testRouterCreated()
+
+            When("Adding and removing a route, and adding another route")
+            val route1 = createRoute(srcNetwork = "1.0.0.0/24",
+                                     dstNetwork = "2.0.0.0/24",
+                                     routerId = Some(router.getId))
+            val route2 = createRoute(srcNetwork = "1.0.0.0/24",
+                                     dstNetwork = "3.0.0.0/24",
+                                     routerId = Some(router.getId))
+            store.create(route1)
+            store.delete(classOf[TopologyRoute], route1.getId)
+            store.create(route2)
+
+            Then("The observer should receive a router with the last route")
+            eventually(timeout(timeout)) {
+                val device = obs.getOnNextEvents.asScala.last
+                lookup(device, "3.0.0.1") should contain only route2.asJava
+            }
+
+            And("No router should have the removed route")
+            for (device <- obs.getOnNextEvents.asScala) {
+                lookup(device, "2.0.0.1") shouldBe empty
+            }
+        }
+    }
+
+    feature("Router mapper compiles the stable routing table") {
+        scenario("The routing table is compiled after the compile delay") {
+            val (router, obs) = testRouterCreated()
+            val device1 = obs.getOnNextEvents.asScala.last
+            isCompiled(device1) shouldBe false
+
+            Then("The routing table is compiled after the delay")
+            eventually(timeout(timeout)) {
+                isCompiled(device1) shouldBe true
+            }
+
+            And("The compiled table returns the same routes")
+            lookup(device1, "10.0.0.1") should have size 1
+            lookup(device1, "11.0.0.1") shouldBe empty
+
+            When("Adding a route to the router")
+            val route = createRoute(srcNetwork = "1.0.0.0/24",
+                                    dstNetwork = "11.0.0.0/8",
+                                    routerId = Some(router.getId))
+            store.create(route)
+
+            Then("The new version is published before it is compiled")
+            eventually(timeout(timeout)) {
+                val device = obs.getOnNextEvents.asScala.last
+                lookup(device, "11.0.0.1") should contain only route.asJava
+            }
+            val device2 = obs.getOnNextEvents.asScala.last
+            isCompiled(device2) shouldBe false
+
+            And("The new version is compiled after the delay")
+            eventually(timeout(timeout)) {
+                isCompiled(device2) shouldBe true
+            }
+            lookup(device2, "10.0.0.1") should have size 1
+            lookup(device2, "11.0.0.1") should contain only route.asJava
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.topology
+
+import java.io.{File, FileOutputStream}
+import java.util.UUID
+
+import scala.concurrent.duration._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import rx.observers.TestObserver
+
+import org.midonet.cluster.data.storage.Storage
+import org.midonet.cluster.models.Topology.Network
+import org.midonet.cluster.topology.TopologyBuilder
+import org.midonet.cluster.util.UUIDUtil._
+import org.midonet.midolman.topology.TopologySnapshot.Key
+import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.util.reactivex.AwaitableObserver
+
+@RunWith(classOf[JUnitRunner])
+class TopologySnapshotTest extends MidolmanSpec with TopologyBuilder {
+
+    private val timeout = 5 seconds
+    private var store: Storage = _
+    private var file: File = _
+
+    protected override def beforeTest(): Unit = {
+        store = injector.getInstance(classOf[VirtualTopology]).backend.store
+        file = File.createTempFile("topology", ".snapshot")
+        file.delete()
+    }
+
+    protected override def afterTest(): Unit = {
+        file.delete()
+    }
+
+    private def keyOf(network: Network): Key =
+        Key(classOf[Network], network.getId.asJava.toString)
+
+    private def observe(storage: Storage, id: UUID)
+    : TestObserver[Network] with AwaitableObserver[Network] = {
+        val obs = new TestObserver[Network] with AwaitableObserver[Network]
+        storage.observable(classOf[Network], id).subscribe(obs)
+        obs
+    }
+
+    feature("Snapshot files") {
+        scenario("Objects are written and read") {
+            val network1 = createBridge(name = Some("network-1"))
+            val network2 = createBridge(name = Some("network-2"))
+
+            val objects = Seq(keyOf(network1) -> network1,
+                              keyOf(network2) -> network2)
+            TopologySnapshot.write(file, objects) shouldBe 2
+
+            val read = TopologySnapshot.read(file)
+            read should have size 2
+            Network.parseFrom(read.get(keyOf(network1))) shouldBe network1
+            Network.parseFrom(read.get(keyOf(network2))) shouldBe network2
+        }
+
+        scenario("A missing file is an empty snapshot") {
+            TopologySnapshot.read(file) shouldBe empty
+            new TopologySnapshot(file).pendingCount shouldBe 0
+        }
+
+        scenario("An invalid file is ignored") {
+            val out = new FileOutputStream(file)
+            try out.write(Array[Byte](1, 2, 3, 4, 5, 6, 7, 8, 9, 10))
+            finally out.close()
+
+            an [IllegalArgumentException] should be thrownBy
+                TopologySnapshot.read(file)
+            new TopologySnapshot(file).pendingCount shouldBe 0
+        }
+
+        scenario("A truncated file is ignored") {
+            val network = createBridge()
+            TopologySnapshot.write(file, Seq(keyOf(network) -> network))
+            val length = file.length()
+            val raf = new java.io.RandomAccessFile(file, "rw")
+            try raf.setLength(length - 1) finally raf.close()
+
+            an [IllegalArgumentException] should be thrownBy
+                TopologySnapshot.read(file)
+        }
+    }
+
+    feature("Snapshot storage") {
+        scenario("Serves the snapshot object when unchanged") {
+            val network = createBridge()
+            store.create(network)
+            TopologySnapshot.write(file, Seq(keyOf(network) -> network))
+
+            val snapshot = new TopologySnapshot(file)
+            snapshot.pendingCount shouldBe 1
+            val storage = new SnapshotStorage(store, snapshot)
+
+            val obs = observe(storage, network.getId.asJava)
+            obs.awaitOnNext(1, timeout)
+            obs.getOnNextEvents should contain only network
+
+            // The object is validated by the storage.
+            snapshot.pendingCount shouldBe 0
+
+            val updated = network.toBuilder.setName("updated").build()
+            store.update(updated)
+            obs.awaitOnNext(2, timeout)
+            obs.getOnNextEvents should contain theSameElementsInOrderAs
+                Seq(network, updated)
+        }
+
+        scenario("Serves the storage object when changed") {
+            val network = createBridge(name = Some("old"))
+            val updated = network.toBuilder.setName("new").build()
+            store.create(updated)
+            TopologySnapshot.write(file, Seq(keyOf(network) -> network))
+
+            val snapshot = new TopologySnapshot(file)
+            val storage = new SnapshotStorage(store, snapshot)
+
+            val obs = observe(storage, network.getId.asJava)
+            obs.awaitOnNext(2, timeout)
+            obs.getOnNextEvents should contain theSameElementsInOrderAs
+                Seq(network, updated)
+            snapshot.pendingCount shouldBe 0
+        }
+
+        scenario("Notifies the deletion of the snapshot object") {
+            val network = createBridge()
+            TopologySnapshot.write(file, Seq(keyOf(network) -> network))
+
+            val snapshot = new TopologySnapshot(file)
+            val storage = new SnapshotStorage(store, snapshot)
+
+            val obs = observe(storage, network.getId.asJava)
+            obs.awaitCompletion(timeout)
+            obs.getOnNextEvents should contain only network
+            obs.getOnErrorEvents should have size 1
+            snapshot.pendingCount shouldBe 0
+        }
+
+        scenario("Writes the objects with subscribers") {
+            val network1 = createBridge()
+            val network2 = createBridge()
+            store.create(network1)
+            store.create(network2)
+
+            val snapshot = new TopologySnapshot(file)
+            val storage = new SnapshotStorage(store, snapshot)
+
+            val obs1 = observe(storage, network1.getId.asJava)
+            val obs2 = new TestObserver[Network]
+                           with AwaitableObserver[Network]
+            val sub2 = storage.observable(classOf[Network],
+                                          network2.getId.asJava).subscribe(obs2)
+            obs1.awaitOnNext(1, timeout)
+            obs2.awaitOnNext(1, timeout)
+
+            snapshot.write()
+            TopologySnapshot.read(file).keySet should contain only (
+                keyOf(network1), keyOf(network2))
+
+            sub2.unsubscribe()
+            snapshot.write()
+            TopologySnapshot.read(file).keySet should contain only
+                keyOf(network1)
+        }
+    }
+}
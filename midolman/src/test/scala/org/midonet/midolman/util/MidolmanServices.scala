@@ -27,7 +27,7 @@ import com.google.inject.Injector
 
 import org.midonet.cluster.services.MidonetBackend
 import org.midonet.cluster.state.PortStateStorage._
-import org.midonet.midolman.ShardedSimulationBackChannel
+import org.midonet.midolman.{MockFlowTablePreallocation, ShardedSimulationBackChannel}
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.{DatapathChannel, FlowProcessor}
 import org.midonet.midolman.flows.FlowTagIndexer
@@ -98,7 +98,10 @@ trait MidolmanServices {
     lazy val simBackChannel = injector.getInstance(
         classOf[ShardedSimulationBackChannel]).registerProcessor
 
-    val mockFlowInvalidation = new FlowTagIndexer() {
+    val mockFlowInvalidation = new {
+        val preallocation =
+            new MockFlowTablePreallocation(MidolmanConfig.forTests)
+    } with FlowTagIndexer {
         var tags = List[FlowTag]()
 
         def getAndClear() = {
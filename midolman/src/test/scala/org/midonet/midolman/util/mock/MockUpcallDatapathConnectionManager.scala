@@ -23,6 +23,7 @@ import org.slf4j.LoggerFactory
 import org.midonet.midolman.PacketWorker
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.io._
+import org.midonet.midolman.state.ReceivedFlowState
 import org.midonet.odp.protos.OvsDatapathConnection
 import org.midonet.odp._
 import org.midonet.util._
@@ -39,6 +40,7 @@ class MockUpcallDatapathConnectionManager(config: MidolmanConfig)
 
     object NullPacketWorker extends PacketWorker {
         override def submit(packet: Packet) = true
+        override def submit(state: ReceivedFlowState) = true
     }
 
     def initialize()(implicit ec: ExecutionContext, as: ActorSystem) {
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state
+
+import java.nio.ByteBuffer
+import java.util.UUID
+import java.util.concurrent.{CountDownLatch, ThreadLocalRandom, TimeUnit}
+
+import scala.concurrent.duration._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers}
+import org.slf4j.helpers.NOPLogger
+
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackCodec, ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.NatState.{NatCodec, NatKey}
+import org.midonet.packets.NatState.{FWD_SNAT, NatBinding, REV_STICKY_DNAT}
+import org.midonet.packets.{IPv4Addr, IPv6Addr}
+import org.midonet.util.collection.Reducer
+import org.midonet.util.concurrent.MockClock
+import org.midonet.util.logging.Logger
+
+@RunWith(classOf[JUnitRunner])
+class OffHeapFlowStateTableTest extends FeatureSpec with Matchers
+                                with GivenWhenThen {
+
+    private val log = Logger(NOPLogger.NOP_LOGGER)
+    private val deviceId = UUID.randomUUID()
+
+    private def key(port: Int): ConnTrackKey =
+        ConnTrackKey(IPv4Addr.fromString("10.0.0.1"), port,
+                     IPv4Addr.fromString("10.0.0.2"), 80, 6.toByte, deviceId)
+
+    private def newTable(clock: MockClock, capacity: Int = 1024,
+                         stripes: Int = 4) =
+        new OffHeapFlowStateTable[ConnTrackKey, ConnTrackValue](
+            ConnTrackCodec, clock, capacity, stripes)
+
+    private class KeyReducer
+        extends Reducer[ConnTrackKey, ConnTrackValue, Set[ConnTrackKey]] {
+        override def apply(acc: Set[ConnTrackKey], key: ConnTrackKey,
+                           value: ConnTrackValue): Set[ConnTrackKey] =
+            acc + key
+    }
+
+    feature("Codecs encode the flow state as fixed-width records") {
+        scenario("Connection tracking keys and values") {
+            val buffer = ByteBuffer.allocate(64)
+            val keys = Seq(
+                key(1000),
+                ConnTrackKey(IPv4Addr.fromString("255.255.255.255"), -1,
+                             IPv4Addr.fromString("0.0.0.0"), 0, 1.toByte, null),
+                ConnTrackKey(IPv6Addr.fromString("fe80::1"), 2000,
+                             IPv4Addr.fromString("10.0.0.1"), 22, 17.toByte,
+                             deviceId),
+                ConnTrackKey(IPv4Addr.fromString("10.0.0.1"), 22,
+                             IPv6Addr.fromString("::a00:1"), 2000, 17.toByte,
+                             deviceId))
+            for (k <- keys) {
+                ConnTrackCodec.encodeKey(k, buffer, 0)
+                ConnTrackCodec.decodeKey(buffer, 0) shouldBe k
+            }
+
+            for (v <- Seq(java.lang.Boolean.TRUE, java.lang.Boolean.FALSE, null)) {
+                ConnTrackCodec.encodeValue(v, buffer, 8)
+                ConnTrackCodec.decodeValue(buffer, 8) shouldBe v
+            }
+        }
+
+        scenario("NAT keys and bindings") {
+            val buffer = ByteBuffer.allocate(64)
+            val keys = Seq(
+                NatKey(FWD_SNAT, IPv4Addr.fromString("10.0.0.1"), 5000,
+                       IPv4Addr.fromString("1.2.3.4"), 80, 6.toByte, deviceId),
+                NatKey(REV_STICKY_DNAT, IPv4Addr.fromString("1.2.3.4"), 0,
+                       IPv4Addr.fromString("10.0.0.1"), 65535, 17.toByte, null))
+            for (k <- keys) {
+                NatCodec.encodeKey(k, buffer, 0)
+                NatCodec.decodeKey(buffer, 0) shouldBe k
+            }
+
+            val binding = NatBinding(IPv4Addr.fromString("172.16.0.1"), 40000)
+            NatCodec.encodeValue(binding, buffer, 40)
+            NatCodec.decodeValue(buffer, 40) shouldBe binding
+            NatCodec.encodeValue(null, buffer, 40)
+            NatCodec.decodeValue(buffer, 40) shouldBe null
+        }
+    }
+
+    feature("The table stores reference counted entries") {
+        scenario("Entries are shared by all shards") {
+            Given("A table with two shards")
+            val table = newTable(new MockClock)
+            val shard1 = table.addShard(log)
+            val shard2 = table.addShard(log)
+
+            When("Adding entries in the first shard")
+            shard1.putAndRef(key(1), java.lang.Boolean.TRUE) shouldBe null
+            shard1.putAndRef(key(2), java.lang.Boolean.FALSE) shouldBe null
+
+            Then("The entries are visible from the second shard")
+            shard2.get(key(1)) shouldBe java.lang.Boolean.TRUE
+            shard2.get(key(2)) shouldBe java.lang.Boolean.FALSE
+            shard2.get(key(3)) shouldBe null
+
+            When("Updating and referencing the entries from the second shard")
+            shard2.putAndRef(key(1), java.lang.Boolean.FALSE) shouldBe
+                java.lang.Boolean.TRUE
+            shard2.ref(key(2)) shouldBe java.lang.Boolean.FALSE
+            shard2.ref(key(3)) shouldBe null
+
+            Then("The reference counts are shared")
+            table.getRefCount(key(1)) shouldBe 2
+            shard1.getRefCount(key(2)) shouldBe 2
+            table.getRefCount(key(3)) shouldBe 0
+            table.get(key(1)) shouldBe java.lang.Boolean.FALSE
+
+            And("Folding the table returns all entries")
+            table.fold(Set.empty[ConnTrackKey], new KeyReducer) shouldBe
+                Set(key(1), key(2))
+        }
+
+        scenario("Stripes grow to accommodate new entries") {
+            Given("A table with a small capacity")
+            val clock = new MockClock
+            val table = newTable(clock, capacity = 16, stripes = 2)
+
+            When("Adding many entries")
+            for (port <- 0 until 20000) {
+                table.putAndRef(key(port), java.lang.Boolean.TRUE)
+            }
+
+            Then("All entries are in the table")
+            for (port <- 0 until 20000) {
+                table.get(key(port)) shouldBe java.lang.Boolean.TRUE
+                table.getRefCount(key(port)) shouldBe 1
+            }
+
+            When("Expiring half of the entries")
+            for (port <- 0 until 20000 by 2) {
+                table.unref(key(port))
+            }
+            clock.time = 61.seconds.toNanos
+            table.expireIdleEntries(0, new Reducer[ConnTrackKey, ConnTrackValue, Int] {
+                override def apply(acc: Int, key: ConnTrackKey,
+                                   value: ConnTrackValue): Int = acc + 1
+            }) shouldBe 10000
+
+            And("Adding new entries that reuse the deleted slots")
+            for (port <- 20000 until 30000) {
+                table.touch(key(port), java.lang.Boolean.FALSE)
+            }
+
+            Then("The table contains the remaining entries")
+            for (port <- 0 until 30000) {
+                table.get(key(port)) shouldBe (
+                    if (port >= 20000) java.lang.Boolean.FALSE
+                    else if (port % 2 == 1) java.lang.Boolean.TRUE
+                    else null)
+            }
+        }
+    }
+
+    feature("Idle entries are expired") {
+        scenario("Entries expire after their idle expiration") {
+            Given("A table with a shard")
+            val clock = new MockClock
+            val table = newTable(clock)
+            val shard = table.addShard(log)
+
+            When("Adding entries with different idle expirations")
+            val short = key(1)
+            short.expiresAfter = 5.seconds
+            shard.putAndRef(short, java.lang.Boolean.TRUE)
+            shard.putAndRef(key(2), java.lang.Boolean.TRUE)
+            shard.putAndRef(key(3), java.lang.Boolean.TRUE)
+
+            And("Releasing all references")
+            shard.unref(short)
+            shard.unref(key(2))
+            shard.unref(key(3))
+
+            And("Referencing one entry again")
+            clock.time = 30.seconds.toNanos
+            shard.ref(key(3)) shouldBe java.lang.Boolean.TRUE
+
+            Then("The entry with the short expiration expires first")
+            val expired1 = shard.expireIdleEntries(Set.empty[ConnTrackKey],
+                                                   new KeyReducer)
+            expired1 shouldBe Set(short)
+            expired1.head.expiresAfter shouldBe 5.seconds
+            shard.get(short) shouldBe null
+
+            And("The unreferenced entry expires after its expiration")
+            clock.time = 60.seconds.toNanos - 1
+            shard.expireIdleEntries(Set.empty[ConnTrackKey],
+                                    new KeyReducer) shouldBe Set.empty
+            clock.time = 60.seconds.toNanos
+            shard.expireIdleEntries(Set.empty[ConnTrackKey],
+                                    new KeyReducer) shouldBe Set(key(2))
+
+            And("The referenced entry does not expire")
+            clock.time = 600.seconds.toNanos
+            shard.expireIdleEntries(Set.empty[ConnTrackKey],
+                                    new KeyReducer) shouldBe Set.empty
+            shard.get(key(3)) shouldBe java.lang.Boolean.TRUE
+        }
+
+        scenario("Touching an entry resets its expiration") {
+            val clock = new MockClock
+            val table = newTable(clock)
+            table.touch(key(1), java.lang.Boolean.TRUE)
+            table.touch(key(2), java.lang.Boolean.TRUE)
+            table.getRefCount(key(1)) shouldBe 0
+
+            clock.time = 30.seconds.toNanos
+            table.touch(key(1), java.lang.Boolean.FALSE)
+
+            clock.time = 61.seconds.toNanos
+            table.expireIdleEntries()
+            table.get(key(1)) shouldBe java.lang.Boolean.FALSE
+            table.get(key(2)) shouldBe null
+
+            clock.time = 91.seconds.toNanos
+            table.expireIdleEntries()
+            table.get(key(1)) shouldBe null
+        }
+
+        scenario("Each shard expires the entries of its stripes") {
+            val clock = new MockClock
+            val table = newTable(clock, stripes = 8)
+            val shards = Seq.fill(3)(table.addShard(log))
+            for (port <- 0 until 1000) {
+                shards(port % 3).touch(key(port), java.lang.Boolean.TRUE)
+            }
+
+            clock.time = 61.seconds.toNanos
+            val expired = shards map {
+                _.expireIdleEntries(Set.empty[ConnTrackKey], new KeyReducer)
+            }
+            expired.map(_.size).sum shouldBe 1000
+            expired.reduce(_ ++ _) shouldBe (0 until 1000).map(key).toSet
+        }
+
+        scenario("Entries cannot be replaced while being expired") {
+            Given("An idle entry")
+            val clock = new MockClock
+            val table = newTable(clock)
+            table.touch(key(1), java.lang.Boolean.TRUE)
+            clock.time = 61.seconds.toNanos
+
+            val started = new CountDownLatch(1)
+            val finished = new CountDownLatch(1)
+            val thread = new Thread() {
+                override def run(): Unit = {
+                    started.countDown()
+                    table.putAndRef(key(1), java.lang.Boolean.FALSE)
+                    finished.countDown()
+                }
+            }
+
+            Then("The entry is not visible while the reducer is called")
+            table.expireIdleEntries(0, new Reducer[ConnTrackKey, ConnTrackValue, Int] {
+                override def apply(acc: Int, k: ConnTrackKey,
+                                   value: ConnTrackValue): Int = {
+                    table.get(k) shouldBe null
+                    table.ref(k) shouldBe null
+                    thread.start()
+                    started.await()
+                    finished.await(100, TimeUnit.MILLISECONDS) shouldBe false
+                    table.get(k) shouldBe null
+                    acc + 1
+                }
+            }) shouldBe 1
+
+            And("The entry can be added once it has been removed")
+            finished.await(5, TimeUnit.SECONDS) shouldBe true
+            table.get(key(1)) shouldBe java.lang.Boolean.FALSE
+            table.getRefCount(key(1)) shouldBe 1
+        }
+    }
+
+    feature("The table is thread-safe") {
+        scenario("Concurrent reference counting") {
+            val clock = new MockClock
+            val table = newTable(clock, capacity = 64)
+            val numKeys = 2000
+            val numThreads = 4
+            for (port <- 0 until numKeys) {
+                table.putAndRef(key(port), java.lang.Boolean.TRUE)
+            }
+            val shards = Seq.fill(numThreads)(table.addShard(log))
+            val refs = Array.ofDim[Int](numThreads, numKeys)
+
+            val threads = for (index <- 0 until numThreads) yield new Thread() {
+                override def run(): Unit = {
+                    val rand = ThreadLocalRandom.current()
+                    val shard = shards(index)
+                    var i = 0
+                    while (i < 100000) {
+                        val port = rand.nextInt(numKeys)
+                        if (refs(index)(port) > 0 && rand.nextBoolean()) {
+                            shard.unref(key(port))
+                            refs(index)(port) -= 1
+                        } else if (rand.nextInt(10) == 0) {
+                            // New keys that are expired by the other threads.
+                            val idle = key(numKeys + port)
+                            idle.expiresAfter = Duration.Zero
+                            shard.touch(idle, java.lang.Boolean.FALSE)
+                        } else if (shard.ref(key(port)) ne null) {
+                            refs(index)(port) += 1
+                        }
+                        if (i % 1000 == 0) {
+                            shard.expireIdleEntries()
+                        }
+                        i += 1
+                    }
+                }
+            }
+            clock.time = 61.seconds.toNanos
+            threads.foreach(_.start())
+            threads.foreach(_.join())
+
+            for (port <- 0 until numKeys) {
+                table.getRefCount(key(port)) shouldBe
+                    1 + (0 until numThreads).map(refs(_)(port)).sum
+                table.get(key(port)) shouldBe java.lang.Boolean.TRUE
+            }
+        }
+    }
+}
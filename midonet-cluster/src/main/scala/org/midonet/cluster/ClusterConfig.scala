@@ -115,6 +115,7 @@ class C3POConfig(val conf: Config) extends ScheduledMinionConfig[C3POMinion] {
     def jdbcDriver = conf.getString(s"$prefix.jdbc_driver_class")
     def user = conf.getString(s"$prefix.user")
     def password = conf.getString(s"$prefix.password")
+    def batchSize = conf.getInt(s"$prefix.batch_size")
 }
 
 class HeartbeatConfig(val conf: Config) extends ScheduledMinionConfig[Heartbeat] {
@@ -169,6 +170,10 @@ class RestApiConfig(val conf: Config) extends MinionConfig[RestApi] {
         conf.getDuration(s"$prefix.http_idle_timeout", TimeUnit.MILLISECONDS)
     def httpsIdleTimeoutMs =
         conf.getDuration(s"$prefix.https_idle_timeout", TimeUnit.MILLISECONDS)
+    def objectCacheEnabled = conf.getBoolean(s"$prefix.object_cache_enabled")
+    def objectCacheWriteTimeoutMs =
+        conf.getDuration(s"$prefix.object_cache_write_timeout",
+                         TimeUnit.MILLISECONDS)
 }
 
 class ContainersConfig(val conf: Config) extends MinionConfig[ContainerService] {
@@ -65,6 +65,11 @@ object ResourceUris {
     val VTEP_BINDINGS: String = "vtep_bindings"
     val VXLAN_PORTS: String = "vxlan_ports"
     val TENANT_ID_PARAM: String = "tenant_id"
+    val DEVICE_ID_PARAM: String = "device_id"
+    val HOST_ID_PARAM: String = "host_id"
+    val LIMIT_PARAM: String = "limit"
+    val MARKER_PARAM: String = "marker"
+    val FIELDS_PARAM: String = "fields"
 
     def macToUri(mac: String): String = {
         mac.replace(':', '-')
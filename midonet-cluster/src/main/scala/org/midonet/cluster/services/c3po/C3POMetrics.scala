@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.c3po
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit.NANOSECONDS
+
+import com.codahale.metrics.MetricRegistry.name
+import com.codahale.metrics.{MetricRegistry, Timer}
+
+/**
+  * Class names to publish the Neutron importer metrics, acting as markers to
+  * organize the metrics when exported via JMX.
+  */
+trait C3POTimer
+trait C3POHistogram
+
+/**
+  * Metrics of the Neutron importer. For every translator, a timer measures
+  * the rate of the translated Neutron operations and their translation
+  * latency. The transaction timer measures the storage transactions, from
+  * translation to commit, and the batch histogram the number of Neutron tasks
+  * committed in each of them.
+  */
+class C3POMetrics(registry: MetricRegistry) {
+
+    private val translatorTimers = new ConcurrentHashMap[Class[_], Timer]()
+
+    private val transactionTimer =
+        registry.timer(name(classOf[C3POTimer], "transaction"))
+    private val batchHistogram =
+        registry.histogram(name(classOf[C3POHistogram], "batchTasks"))
+
+    def addTranslationLatency(clazz: Class[_], latencyInNanos: Long): Unit = {
+        var timer = translatorTimers.get(clazz)
+        if (timer eq null) {
+            timer = registry.timer(name(classOf[C3POTimer], "translator",
+                                        clazz.getSimpleName))
+            translatorTimers.putIfAbsent(clazz, timer)
+        }
+        timer.update(latencyInNanos, NANOSECONDS)
+    }
+
+    def addTransactionLatency(tasks: Int, latencyInNanos: Long): Unit = {
+        transactionTimer.update(latencyInNanos, NANOSECONDS)
+        batchHistogram.update(tasks)
+    }
+
+}
@@ -17,11 +17,15 @@
 package org.midonet.cluster.services.c3po
 
 import java.sql.Driver
+import java.util.concurrent.Executors
 
 import javax.sql.DataSource
 
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, ExecutionContext, Future}
 import scala.util.control.NonFatal
 
+import com.codahale.metrics.MetricRegistry
 import com.google.inject.Inject
 import com.google.protobuf.Message
 
@@ -40,6 +44,7 @@ import org.midonet.cluster.{C3POConfig, C3poLog, ClusterConfig}
 import org.midonet.minion.MinionService.TargetNode
 import org.midonet.minion.ScheduledMinion.checkConfigParamDefined
 import org.midonet.minion.{Context, MinionService, ScheduledMinion}
+import org.midonet.util.concurrent.NamedThreadFactory
 
 /** The service that translates and imports neutron models into the MidoNet
   * backend storage.
@@ -50,6 +55,7 @@ import org.midonet.minion.{Context, MinionService, ScheduledMinion}
   * @param backend The MidoNet backend service
   * @param curator API for access to ZK for internal uses of the C3PO service
   * @param backendCfg the Backend configuration
+  * @param metrics the registry of the Cluster Node metrics
   */
 @MinionService(name = "neutron-importer", runsOn = TargetNode.CLUSTER)
 class C3POMinion @Inject()(nodeContext: Context,
@@ -57,7 +63,8 @@ class C3POMinion @Inject()(nodeContext: Context,
                            dataSrc: DataSource,
                            backend: MidonetBackend,
                            curator: CuratorFramework,
-                           backendCfg: MidonetBackendConfig)
+                           backendCfg: MidonetBackendConfig,
+                           metrics: MetricRegistry)
     extends ScheduledMinion(nodeContext, config.c3po) {
 
     protected override val log = LoggerFactory.getLogger(C3poLog)
@@ -68,7 +75,15 @@ class C3POMinion @Inject()(nodeContext: Context,
     private val seqDispenser = new SequenceDispenser(curator, backendCfg)
     private val dataMgr = C3POMinion.initDataManager(config,
                                                      backend,
-                                                     seqDispenser)
+                                                     seqDispenser,
+                                                     metrics)
+
+    // Deserializes the next batch of Neutron tasks while the current batch is
+    // translated and committed.
+    private val deserializerExecutor = Executors.newSingleThreadExecutor(
+        new NamedThreadFactory("c3po-deserializer", isDaemon = true))
+    private val deserializerContext =
+        ExecutionContext.fromExecutor(deserializerExecutor)
 
     private val LEADER_LATCH_PATH = backendCfg.rootKey + "/leader-latch"
     private val leaderLatch = new LeaderLatch(curator, LEADER_LATCH_PATH,
@@ -87,6 +102,7 @@ class C3POMinion @Inject()(nodeContext: Context,
             log.info("Non leader shutting down, removing myself from pool")
         }
         leaderLatch.close()
+        deserializerExecutor.shutdown()
         super.doStop()
     }
 
@@ -110,13 +126,18 @@ class C3POMinion @Inject()(nodeContext: Context,
             val txns = neutronImporter.getTasksSince(lastTaskId)
             log.debug(".. {} transaction(s) to import: {}", txns.size, txns)
 
-            for (txn <- txns) {
-                if (txn.isFlushTxn) {
+            val batches = C3POMinion.batches(txns, config.c3po.batchSize)
+            var next = deserializeBatch(batches, 0)
+            for (index <- batches.indices) {
+                val current = next
+                next = deserializeBatch(batches, index + 1)
+                if (batches(index).head.isFlushTxn) {
                     log.info(".. flushing storage")
                     dataMgr.flushTopology()
-                    neutronImporter.deleteTask(txn.lastTaskId)
+                    neutronImporter.deleteTask(batches(index).head.lastTaskId)
                 } else {
-                    dataMgr.interpretAndExecTxn(translateTxn(txn))
+                    dataMgr.interpretAndExecTxns(
+                        Await.result(current, Duration.Inf))
                 }
             }
 
@@ -130,6 +151,17 @@ class C3POMinion @Inject()(nodeContext: Context,
         }
     }
 
+    /** Deserializes the Neutron objects of the batch at the given index,
+      * unless the index is out of bounds or the batch is a flush. */
+    private def deserializeBatch(batches: IndexedSeq[Seq[importer.Transaction]],
+                                 index: Int): Future[Seq[Transaction]] = {
+        if (index >= batches.size || batches(index).head.isFlushTxn) {
+            Future.successful(Seq.empty)
+        } else {
+            Future(batches(index).map(translateTxn))(deserializerContext)
+        }
+    }
+
     private def translateTxn(txn: importer.Transaction) =
         Transaction(txn.id, txn.tasks.map(translateTask))
 
@@ -187,10 +219,38 @@ object C3POMinion {
 
     def initDataManager(config: ClusterConfig,
                         backend: MidonetBackend,
-                        sequenceDispenser: SequenceDispenser): C3POStorageManager = {
-        val manager = new C3POStorageManager(config, backend, sequenceDispenser)
+                        sequenceDispenser: SequenceDispenser,
+                        metrics: MetricRegistry): C3POStorageManager = {
+        val manager = new C3POStorageManager(config, backend, sequenceDispenser,
+                                             new C3POMetrics(metrics))
         manager.init()
         manager
     }
+
+    /** Groups consecutive Neutron transactions into batches of at most
+      * `batchSize` tasks, which are committed in a single storage
+      * transaction. A transaction is never split across batches, and flush
+      * transactions are always in a batch of their own. */
+    def batches(txns: Seq[importer.Transaction], batchSize: Int)
+    : IndexedSeq[Seq[importer.Transaction]] = {
+        val result = IndexedSeq.newBuilder[Seq[importer.Transaction]]
+        var batch = Vector.empty[importer.Transaction]
+        var tasks = 0
+        for (txn <- txns) {
+            if (batch.nonEmpty &&
+                (txn.isFlushTxn || batch.head.isFlushTxn ||
+                 tasks + txn.tasks.size > batchSize)) {
+                result += batch
+                batch = Vector.empty
+                tasks = 0
+            }
+            batch :+= txn
+            tasks += txn.tasks.size
+        }
+        if (batch.nonEmpty) {
+            result += batch
+        }
+        result.result()
+    }
 }
 
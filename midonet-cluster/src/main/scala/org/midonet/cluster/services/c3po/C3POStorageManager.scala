@@ -22,12 +22,13 @@ import scala.concurrent.Await
 import scala.concurrent.duration.Duration
 import scala.util.control.NonFatal
 
+import com.codahale.metrics.MetricRegistry
 import com.google.protobuf.Message
 
 import org.slf4j.LoggerFactory
 
 import org.midonet.cluster.data.ZoomMetadata.ZoomOwner
-import org.midonet.cluster.data.storage._
+import org.midonet.cluster.data.storage.{Transaction => ZoomTransaction, _}
 import org.midonet.cluster.services.MidonetBackend
 import org.midonet.cluster.services.c3po.NeutronTranslatorManager.Operation
 import org.midonet.cluster.services.c3po.translators.TranslationException
@@ -77,7 +78,9 @@ object OpType extends Enumeration {
   */
 class C3POStorageManager(config: ClusterConfig,
                          backend: MidonetBackend,
-                         sequenceDispenser: SequenceDispenser)
+                         sequenceDispenser: SequenceDispenser,
+                         metrics: C3POMetrics =
+                             new C3POMetrics(new MetricRegistry))
     extends NeutronTranslatorManager(config, backend, sequenceDispenser) {
     import org.midonet.cluster.services.c3po.C3POStorageManager._
 
@@ -170,15 +173,7 @@ class C3POStorageManager(config: ClusterConfig,
         // this in the future, but it will likely involve significant changes to
         // Storage interface and implementing classes.
         for (task <- txn.tasks) try {
-            val newState = C3POState.at(task.taskId)
-            val tx = backend.store.transaction(ZoomOwner.ClusterNeutron)
-            try {
-                translate(tx, task.op)
-                tx.update(newState)
-                tx.commit()
-            } finally {
-                tx.close()
-            }
+            execute(Seq(task))
             log.info(s"Executed a C3PO task with ID: ${task.taskId}.")
         } catch {
             case te: TranslationException => throw new ProcessingException(
@@ -192,4 +187,64 @@ class C3POStorageManager(config: ClusterConfig,
                 s"in transaction ${txn.txnId}.", e)
         }
     }
+
+    /** Interprets a batch of transactions of external model operations,
+      * translating and executing the operations of all transactions in a
+      * single storage transaction. Since the translators read the objects
+      * within the context of the storage transaction, every task sees the
+      * changes of the preceding tasks in the batch.
+      *
+      * If the batch fails, none of its tasks are committed, and the
+      * transactions are executed again one task at a time, such that the
+      * preceding tasks are committed and the failure is reported for the task
+      * that caused it. */
+    @throws[ProcessingException]
+    def interpretAndExecTxns(txns: Seq[Transaction]): Unit = {
+        assert(initialized)
+
+        val tasks = txns.flatMap(_.tasks)
+        if (tasks.size <= 1) {
+            txns foreach interpretAndExecTxn
+            return
+        }
+
+        try {
+            execute(tasks)
+            log.info(s"Executed ${tasks.size} C3PO tasks with IDs from " +
+                     s"${tasks.head.taskId} to ${tasks.last.taskId} in " +
+                     s"${txns.size} transaction(s).")
+        } catch {
+            case NonFatal(e) =>
+                log.warn(s"Failed to execute ${tasks.size} C3PO tasks with " +
+                         s"IDs from ${tasks.head.taskId} to " +
+                         s"${tasks.last.taskId}: executing tasks one at a time",
+                         e)
+                txns foreach interpretAndExecTxn
+        }
+    }
+
+    override def translate[T <: Message](tx: ZoomTransaction,
+                                         op: Operation[T]): Unit = {
+        val start = System.nanoTime()
+        super.translate(tx, op)
+        metrics.addTranslationLatency(modelClassOf(op),
+                                      System.nanoTime() - start)
+    }
+
+    /** Translates the given tasks and commits them in a single storage
+      * transaction, together with the ID of the last task. */
+    private def execute(tasks: Seq[Task[_ <: Message]]): Unit = {
+        val start = System.nanoTime()
+        val tx = backend.store.transaction(ZoomOwner.ClusterNeutron)
+        try {
+            for (task <- tasks) {
+                translate(tx, task.op)
+            }
+            tx.update(C3POState.at(tasks.last.taskId))
+            tx.commit()
+        } finally {
+            tx.close()
+        }
+        metrics.addTransactionLatency(tasks.size, System.nanoTime() - start)
+    }
 }
@@ -147,11 +147,7 @@ class NeutronTranslatorManager(config: ClusterConfig,
       */
     @throws[TranslationException]
     def translate[T <: Message](tx: Transaction, op: Operation[T]): Unit = {
-        val clazz = op match {
-            case Create(model) => model.getClass
-            case Update(model, _) => model.getClass
-            case Delete(c, _) => c
-        }
+        val clazz = modelClassOf(op)
 
         translatorOf(clazz).getOrElse({
             throw new TranslationException(op, cause = null,
@@ -162,6 +158,15 @@ class NeutronTranslatorManager(config: ClusterConfig,
             .foreach(_.apply(tx))
     }
 
+    /**
+      * Returns the Neutron object class of the specified operation.
+      */
+    protected def modelClassOf(op: Operation[_]): Class[_] = op match {
+        case Create(model) => model.getClass
+        case Update(model, _) => model.getClass
+        case Delete(c, _) => c
+    }
+
     /**
       * Returns a Neutron translator instance for the specified Neutron object
       * class. Derived classes may modify the returned translators by overriding
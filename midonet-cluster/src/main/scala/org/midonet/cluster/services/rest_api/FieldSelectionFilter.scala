@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.rest_api
+
+import java.util.{ArrayList => JArrayList, List => JList}
+
+import javax.ws.rs.HttpMethod
+
+import scala.collection.JavaConverters._
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.node.ObjectNode
+import com.sun.jersey.spi.container.{ContainerRequest, ContainerResponse, ContainerResponseFilter}
+
+import org.midonet.cluster.rest_api.ResourceUris.FIELDS_PARAM
+import org.midonet.cluster.rest_api.serialization.ObjectMapperProvider
+import org.midonet.cluster.rest_api.version.VersionParser
+
+/**
+  * Applies the sparse field selection requested with the `fields` query
+  * parameter to the responses of the list requests. The parameter contains a
+  * comma-separated list of JSON property names, and the filter removes all
+  * other properties from every resource in the list.
+  *
+  * The resources are serialized with the object mapper of the API version
+  * requested in the Accept header, such that the selected properties are
+  * the same as those of the complete response.
+  */
+class FieldSelectionFilter extends ContainerResponseFilter {
+
+    private val mapperProvider = new ObjectMapperProvider
+    private val versionParser = new VersionParser
+
+    override def filter(request: ContainerRequest,
+                        response: ContainerResponse): ContainerResponse = {
+        val fields = request.getQueryParameters.getFirst(FIELDS_PARAM)
+        if ((fields eq null) || request.getMethod != HttpMethod.GET) {
+            return response
+        }
+        response.getEntity match {
+            case resources: JList[_] =>
+                val names = fields.split(',').map(_.trim).filter(_.nonEmpty)
+                val mapper = mapperProvider.get(version(request))
+                val selected = new JArrayList[JsonNode](resources.size)
+                for (resource <- resources.asScala) {
+                    mapper.valueToTree[JsonNode](resource) match {
+                        case node: ObjectNode =>
+                            selected.add(node.retain(names.toSeq.asJava))
+                        case node => selected.add(node)
+                    }
+                }
+                response.setEntity(selected)
+            case _ =>
+        }
+        response
+    }
+
+    private def version(request: ContainerRequest): Int = {
+        val versions = request.getAcceptableMediaTypes.asScala
+                              .map(versionParser.getVersion)
+                              .filter(_ > 0)
+        if (versions.isEmpty) 1 else versions.head
+    }
+
+}
@@ -0,0 +1,528 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.rest_api
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.{Set => JSet}
+import java.util.concurrent.TimeUnit.MILLISECONDS
+
+import scala.collection.JavaConverters._
+import scala.concurrent.Future
+import scala.util.{Failure, Success}
+
+import com.google.protobuf.Descriptors.Descriptor
+import com.google.protobuf.Message
+import com.typesafe.scalalogging.Logger
+
+import org.slf4j.LoggerFactory
+
+import rx.subscriptions.CompositeSubscription
+import rx.{Observable, Observer, Subscriber}
+
+import org.midonet.cluster.data.ZoomMetadata.ZoomOwner
+import org.midonet.cluster.data.storage.{NotFoundException, ReadOnlyStorage, Storage, Transaction}
+import org.midonet.cluster.data.{Obj, ObjId, getIdString}
+import org.midonet.cluster.{RestApiConfig, RestApiLog}
+import org.midonet.util.concurrent.CallingThreadExecutionContext
+
+object ObjectCache {
+
+    private final val IdField = "id"
+
+    /**
+      * The fields by which the class caches index their objects, for the
+      * classes whose objects have them: the tenant of an object, the host
+      * of a port, and the bridge or router of a port.
+      */
+    final val IndexedFields = Set("tenant_id", "host_id", "network_id",
+                                  "router_id")
+
+    /**
+      * An object written by a transaction of this node, and not yet received
+      * by the cache watchers. The value is `None` for a deleted object.
+      */
+    private case class LocalWrite(value: Option[Obj], timestamp: Long)
+
+    /** Returns whether the class caches index the objects of the given
+      * class by the given field. */
+    def hasIndex(clazz: Class[_], field: String): Boolean = {
+        IndexedFields.contains(field) && {
+            val descriptor = clazz.getMethod("getDescriptor").invoke(null)
+                                  .asInstanceOf[Descriptor]
+                                  .findFieldByName(field)
+            (descriptor ne null) && !descriptor.isRepeated
+        }
+    }
+
+    /** Returns the value of a field of the object as a string, or null if
+      * the object does not have the field or the field is not set. */
+    private def fieldValue(obj: Obj, field: String): String = {
+        val message = obj.asInstanceOf[Message]
+        val descriptor = message.getDescriptorForType.findFieldByName(field)
+        if ((descriptor ne null) && message.hasField(descriptor))
+            getIdString(message.getField(descriptor))
+        else null
+    }
+
+}
+
+/**
+  * A read-through cache of the NSDB objects that serves the reads of the REST
+  * API from memory. The cache for an object class is created on the first
+  * read, and it is maintained by the watchers of the class observable of the
+  * storage, such that it shares the same class subscription cache used by the
+  * storage to notify all other subscribers.
+  *
+  * A class cache serves reads only after it received all objects that existed
+  * when it was created. Until then, and for the objects not found in memory,
+  * the reads are served from the storage.
+  *
+  * The watchers are notified asynchronously, after the transaction commits.
+  * Therefore, the cache records the objects modified by the transactions of
+  * this node, executed with [[ObjectCache.tryTransaction]], and it reads
+  * them from the storage until the watchers receive the same value, or until
+  * the write timeout expires. This guarantees that clients of this node read
+  * their own writes, while the writes of other nodes become visible when the
+  * watchers are notified.
+  *
+  * Every class cache also maintains secondary indexes of its objects by the
+  * [[ObjectCache.IndexedFields]] of the class, such that the objects of a
+  * tenant or of a device are listed without scanning the class.
+  */
+class ObjectCache(store: Storage, config: RestApiConfig,
+                  metrics: ObjectCacheMetrics) extends ReadOnlyStorage {
+
+    import ObjectCache._
+
+    private val log = Logger(LoggerFactory.getLogger(RestApiLog))
+    private val caches = new ConcurrentHashMap[Class[_], ClassCache]
+    private val writeTimeoutNanos =
+        MILLISECONDS.toNanos(config.objectCacheWriteTimeoutMs)
+
+    @volatile private var closed = false
+
+    /**
+      * Caches the objects of a class. The `objects` map contains the objects
+      * received by the watchers, and the `writes` map the objects written by
+      * this node that the watchers did not receive yet.
+      */
+    private class ClassCache(clazz: Class[_]) {
+
+        private val objects = new ConcurrentHashMap[String, Obj]
+        private val writes = new ConcurrentHashMap[String, LocalWrite]
+        // The identifiers of the objects by the value of each indexed field.
+        // The sets of the values no longer used are not removed, such that
+        // the index is updated without locking.
+        private val indexes = IndexedFields.filter(hasIndex(clazz, _))
+            .map(_ -> new ConcurrentHashMap[String, JSet[String]]).toMap
+        private val subscriptions = new CompositeSubscription
+
+        // The identifiers of the objects that existed when the cache was
+        // created, and those received by the watchers until the cache is
+        // ready.
+        @volatile private var expected: Seq[String] = null
+        @volatile private var expectedTimestamp = 0L
+        private val received = ConcurrentHashMap.newKeySet[String]()
+        @volatile private var ready = false
+
+        /**
+          * Receives the notifications of an object, and completes when the
+          * object is deleted.
+          */
+        private class ObjectSubscriber extends Subscriber[Obj] {
+            private var id: String = null
+
+            override def onNext(obj: Obj): Unit = {
+                if (id eq null) {
+                    id = idOf(obj)
+                    if (!ready) received.add(id)
+                }
+                put(id, obj)
+                confirm(id, Some(obj))
+            }
+
+            override def onCompleted(): Unit = {
+                if (id ne null) {
+                    remove(id)
+                    confirm(id, None)
+                }
+                subscriptions.remove(this)
+            }
+
+            /** A [[NotFoundException]], such as that of an object deleted
+              * before it was received, removes only that object from the
+              * cache. Any other error, such as a storage disconnection,
+              * means the object may still exist and the watcher stopped
+              * receiving its updates, and it invalidates the class cache. */
+            override def onError(e: Throwable): Unit = e match {
+                case nfe: NotFoundException =>
+                    val objId = if (id ne null) id else getIdString(nfe.id)
+                    log.debug(s"Object cache for ${clazz.getSimpleName}: " +
+                              s"object $objId not found", e)
+                    remove(objId)
+                    confirm(objId, None)
+                    if (!ready) received.add(objId)
+                    subscriptions.remove(this)
+                case _ =>
+                    log.debug(s"Object cache for ${clazz.getSimpleName} failed " +
+                              s"for object $id", e)
+                    subscriptions.remove(this)
+                    invalidate()
+            }
+        }
+
+        def start(): Unit = {
+            subscriptions.add(store.observable(clazz.asInstanceOf[Class[Obj]])
+                                   .subscribe(new Observer[Observable[Obj]] {
+                override def onNext(observable: Observable[Obj]): Unit = {
+                    val subscriber = new ObjectSubscriber
+                    subscriptions.add(subscriber)
+                    observable.subscribe(subscriber)
+                }
+                override def onCompleted(): Unit = invalidate()
+                override def onError(e: Throwable): Unit = {
+                    log.debug(s"Object cache for ${clazz.getSimpleName} " +
+                              "failed", e)
+                    invalidate()
+                }
+            }))
+
+            load()
+        }
+
+        /** Loads the objects after subscribing: the cache is ready when the
+          * watchers have received all of them. */
+        private def load(): Unit = {
+            store.getAll(clazz.asInstanceOf[Class[Obj]]).onComplete {
+                case Success(objs) =>
+                    expectedTimestamp = System.nanoTime()
+                    expected = objs.map(idOf)
+                case Failure(e) =>
+                    log.debug(s"Loading the objects of ${clazz.getSimpleName} " +
+                              "failed", e)
+                    invalidate()
+            } (CallingThreadExecutionContext)
+        }
+
+        def close(): Unit = {
+            subscriptions.unsubscribe()
+        }
+
+        def isReady: Boolean = {
+            if (!ready) {
+                val ids = expected
+                if ((ids ne null) && ids.forall(received.contains)) {
+                    ready = true
+                    expected = null
+                    received.clear()
+                } else if ((ids ne null) && System.nanoTime() -
+                           expectedTimestamp > writeTimeoutNanos) {
+                    // An object may have been deleted before the watchers
+                    // received it: load the objects again.
+                    expected = null
+                    load()
+                }
+            }
+            ready
+        }
+
+        /** Returns the cached object, or `null` if it is not in memory or if
+          * it has been written by this node and the watchers have not been
+          * notified yet. */
+        def get(id: String): Obj = {
+            if (isStale(id)) {
+                metrics.stale()
+                return null
+            }
+            objects.get(id)
+        }
+
+        /** Returns all cached objects, or `None` if this node has written
+          * objects of this class not yet received by the watchers. */
+        def getAll: Option[Seq[Obj]] = {
+            if (hasStaleWrites) None
+            else Some(objects.values.asScala.toVector)
+        }
+
+        /** Returns the cached objects whose field has the given value, or
+          * `None` if the field is not indexed or if this node has written
+          * objects of this class not yet received by the watchers. */
+        def getAllBy(field: String, value: String): Option[Seq[Obj]] = {
+            val index = indexes.getOrElse(field, null)
+            if ((index eq null) || hasStaleWrites) {
+                return None
+            }
+            val ids = index.get(value)
+            if (ids eq null) {
+                return Some(Vector.empty)
+            }
+            val builder = Vector.newBuilder[Obj]
+            val it = ids.iterator()
+            while (it.hasNext) {
+                // The object may have changed since the index was read.
+                val obj = objects.get(it.next())
+                if ((obj ne null) && value == fieldValue(obj, field)) {
+                    builder += obj
+                }
+            }
+            Some(builder.result())
+        }
+
+        /** Records an object written by this node. */
+        def write(id: String, value: Option[Obj]): Unit = {
+            val write = LocalWrite(value, System.nanoTime())
+            writes.put(id, write)
+            // The watchers may have received the object before recording
+            // the write.
+            if (Option(objects.get(id)) == value) {
+                writes.remove(id, write)
+            }
+        }
+
+        private def hasStaleWrites: Boolean = {
+            val it = writes.keySet.iterator()
+            while (it.hasNext) {
+                if (isStale(it.next())) {
+                    metrics.stale()
+                    return true
+                }
+            }
+            false
+        }
+
+        /** Stores an object and updates its entries in the indexes. The
+          * object is added to the new value of a field before it is removed
+          * from the previous one, such that it is always indexed. */
+        private def put(id: String, obj: Obj): Unit = {
+            val previous = objects.put(id, obj)
+            for ((field, index) <- indexes) {
+                val value = fieldValue(obj, field)
+                val previousValue =
+                    if (previous eq null) null else fieldValue(previous, field)
+                if (value != previousValue) {
+                    if (value ne null) {
+                        var ids = index.get(value)
+                        if (ids eq null) {
+                            ids = ConcurrentHashMap.newKeySet[String]()
+                            val current = index.putIfAbsent(value, ids)
+                            if (current ne null)
+                                ids = current
+                        }
+                        ids.add(id)
+                    }
+                    if (previousValue ne null) {
+                        unindex(index, previousValue, id)
+                    }
+                }
+            }
+        }
+
+        /** Removes an object and its entries in the indexes. */
+        private def remove(id: String): Unit = {
+            val previous = objects.remove(id)
+            if (previous ne null) {
+                for ((field, index) <- indexes) {
+                    val value = fieldValue(previous, field)
+                    if (value ne null) {
+                        unindex(index, value, id)
+                    }
+                }
+            }
+        }
+
+        private def unindex(index: ConcurrentHashMap[String, JSet[String]],
+                            value: String, id: String): Unit = {
+            val ids = index.get(value)
+            if (ids ne null) {
+                ids.remove(id)
+            }
+        }
+
+        private def confirm(id: String, value: Option[Obj]): Unit = {
+            val write = writes.get(id)
+            if ((write ne null) && write.value == value &&
+                writes.remove(id, write)) {
+                metrics.addWatcherLatency(System.nanoTime() - write.timestamp)
+            }
+        }
+
+        private def isStale(id: String): Boolean = {
+            val write = writes.get(id)
+            if (write eq null) {
+                false
+            } else if (System.nanoTime() - write.timestamp > writeTimeoutNanos) {
+                writes.remove(id, write)
+                false
+            } else {
+                true
+            }
+        }
+
+        private def invalidate(): Unit = {
+            if (caches.remove(clazz, this)) {
+                close()
+            }
+        }
+    }
+
+    /**
+      * @see [[Storage.tryTransaction]] Executes the transaction with the
+      *      underlying storage, and records the objects modified by the
+      *      committed transaction.
+      */
+    def tryTransaction[R](owner: ZoomOwner)(f: (Transaction) => R): R = {
+        var committed: Transaction = null
+        val result = store.tryTransaction(owner) { tx =>
+            committed = tx
+            f(tx)
+        }
+        if (config.objectCacheEnabled && (committed ne null)) {
+            for ((clazz, id, value) <- committed.modifiedObjects) {
+                val cache = caches.get(clazz)
+                if (cache ne null) {
+                    cache.write(id, value)
+                }
+            }
+        }
+        result
+    }
+
+    override def get[T](clazz: Class[T], id: ObjId): Future[T] = {
+        val cache = classCache(clazz)
+        if (cache ne null) {
+            val obj = cache.get(getIdString(id))
+            if (obj ne null) {
+                metrics.hit()
+                return Future.successful(obj.asInstanceOf[T])
+            }
+        }
+        miss()
+        store.get(clazz, id)
+    }
+
+    override def getAll[T](clazz: Class[T], ids: Seq[_ <: ObjId])
+    : Future[Seq[T]] = {
+        val cache = classCache(clazz)
+        if (cache ne null) {
+            val objs = ids.map(id => cache.get(getIdString(id)))
+            if (!objs.contains(null)) {
+                metrics.hit()
+                return Future.successful(objs.asInstanceOf[Seq[T]])
+            }
+        }
+        miss()
+        store.getAll(clazz, ids)
+    }
+
+    override def getAll[T](clazz: Class[T]): Future[Seq[T]] = {
+        val cache = classCache(clazz)
+        if (cache ne null) {
+            cache.getAll match {
+                case Some(objs) =>
+                    metrics.hit()
+                    return Future.successful(objs.asInstanceOf[Seq[T]])
+                case None =>
+            }
+        }
+        miss()
+        store.getAll(clazz)
+    }
+
+    /**
+      * Returns the objects of the class whose `field` has the given value,
+      * from the index of the class cache when it is ready, or by filtering
+      * all the objects of the class read from the storage otherwise. The
+      * field should be one of the [[ObjectCache.IndexedFields]] of the
+      * class, as given by [[ObjectCache.hasIndex]].
+      */
+    def getAllBy[T](clazz: Class[T], field: String, value: String)
+    : Future[Seq[T]] = {
+        val cache = classCache(clazz)
+        if (cache ne null) {
+            cache.getAllBy(field, value) match {
+                case Some(objs) =>
+                    metrics.hit()
+                    return Future.successful(objs.asInstanceOf[Seq[T]])
+                case None =>
+            }
+        }
+        miss()
+        store.getAll(clazz).map(_.filter { obj =>
+            value == fieldValue(obj.asInstanceOf[Obj], field)
+        })(CallingThreadExecutionContext)
+    }
+
+    override def exists(clazz: Class[_], id: ObjId): Future[Boolean] = {
+        val cache = classCache(clazz)
+        if ((cache ne null) && (cache.get(getIdString(id)) ne null)) {
+            metrics.hit()
+            return Future.successful(true)
+        }
+        miss()
+        store.exists(clazz, id)
+    }
+
+    /** Stops all watchers and clears the cache. */
+    def close(): Unit = {
+        closed = true
+        val it = caches.values.iterator()
+        while (it.hasNext) {
+            it.next().close()
+        }
+        caches.clear()
+    }
+
+    /**
+      * Returns the cache for the given class if it is ready, or null
+      * otherwise. The method creates the class cache on the first call.
+      */
+    private def classCache(clazz: Class[_]): ClassCache = {
+        if (!config.objectCacheEnabled || closed) {
+            return null
+        }
+        var cache = caches.get(clazz)
+        if (cache eq null) {
+            cache = new ClassCache(clazz)
+            val current = caches.putIfAbsent(clazz, cache)
+            if (current eq null) {
+                try cache.start() catch {
+                    case e: Exception =>
+                        log.warn("Failed to start the object cache for " +
+                                 s"${clazz.getSimpleName}", e)
+                        caches.remove(clazz, cache)
+                        cache.close()
+                }
+                return null
+            }
+            cache = current
+        }
+        if (cache.isReady) cache else null
+    }
+
+    private def miss(): Unit = {
+        if (config.objectCacheEnabled) {
+            metrics.miss()
+        }
+    }
+
+    private def idOf(obj: Obj): String = {
+        val message = obj.asInstanceOf[Message]
+        getIdString(message.getField(
+            message.getDescriptorForType.findFieldByName(IdField)))
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.rest_api
+
+import java.util.concurrent.TimeUnit.NANOSECONDS
+
+import com.codahale.metrics.MetricRegistry.name
+import com.codahale.metrics.MetricRegistry
+
+/**
+  * Class names to publish the object cache metrics, acting as markers to
+  * organize the metrics when exported via JMX.
+  */
+trait ObjectCacheCounter
+trait ObjectCacheTimer
+
+/**
+  * Metrics of the REST API object cache. The hit and miss counters measure
+  * the reads served from memory and from the storage, respectively. The stale
+  * counter measures the reads served from the storage because the cache had
+  * not yet been notified of an object written by this node, and the watcher
+  * timer the delay between committing the object and receiving the
+  * notification.
+  */
+class ObjectCacheMetrics(registry: MetricRegistry) {
+
+    private val hitCounter =
+        registry.counter(name(classOf[ObjectCacheCounter], "hits"))
+    private val missCounter =
+        registry.counter(name(classOf[ObjectCacheCounter], "misses"))
+    private val staleCounter =
+        registry.counter(name(classOf[ObjectCacheCounter], "stale"))
+    private val watcherTimer =
+        registry.timer(name(classOf[ObjectCacheTimer], "watcherLatency"))
+
+    def hit(): Unit = hitCounter.inc()
+
+    def miss(): Unit = missCounter.inc()
+
+    def stale(): Unit = staleCounter.inc()
+
+    def addWatcherLatency(latencyInNanos: Long): Unit = {
+        watcherTimer.update(latencyInNanos, NANOSECONDS)
+    }
+
+    def hits: Long = hitCounter.getCount
+
+    def misses: Long = missCounter.getCount
+
+    def staleReads: Long = staleCounter.getCount
+
+}
@@ -26,6 +26,7 @@ import scala.collection.JavaConverters._
 import scala.concurrent.ExecutionContext
 import scala.util.control.NonFatal
 
+import com.codahale.metrics.MetricRegistry
 import com.google.inject.Guice._
 import com.google.inject.servlet.{GuiceFilter, GuiceServletContextListener}
 import com.google.inject.{Inject, Injector}
@@ -66,6 +67,8 @@ object RestApi {
         "com.sun.jersey.spi.container.ContainerResponseFilters"
     final val LoggingFilterClass =
         "com.sun.jersey.api.container.filter.LoggingFilter"
+    final val FieldSelectionFilterClass =
+        classOf[FieldSelectionFilter].getName
     final val GzipFilterClass =
         "com.sun.jersey.api.container.filter.GZIPContentEncodingFilter"
     final val PojoMappingFeatureClass =
@@ -74,6 +77,7 @@ object RestApi {
     def servletModule(backend: MidonetBackend, ec: ExecutionContext,
                       curator: CuratorFramework, config: ClusterConfig,
                       reflections: Reflections, authService: AuthService,
+                      objectCache: ObjectCache,
                       log: Logger) = new JerseyServletModule {
 
         val resProvider = new ResourceProvider(reflections, log)
@@ -94,6 +98,7 @@ object RestApi {
             bind(classOf[MidonetBackend]).toInstance(backend)
             bind(classOf[MidonetBackendConfig]).toInstance(config.backend)
             bind(classOf[SequenceDispenser]).toInstance(sequenceDispenser)
+            bind(classOf[ObjectCache]).toInstance(objectCache)
             bind(classOf[MidoNodeConfigurator])
                 .toInstance(MidoNodeConfigurator(
                 curator.usingNamespace(config.backend.rootKey.stripPrefix("/")),
@@ -116,7 +121,8 @@ object RestApi {
                 ContainerRequestFiltersClass ->
                     s"$GzipFilterClass;$LoggingFilterClass",
                 ContainerResponseFiltersClass ->
-                    s"$GzipFilterClass;$LoggingFilterClass",
+                    (s"$FieldSelectionFilterClass;$GzipFilterClass;" +
+                     s"$LoggingFilterClass"),
                 PojoMappingFeatureClass -> "true"
             )
             serve("/*").`with`(classOf[GuiceContainer], initParams.asJava)
@@ -130,7 +136,8 @@ class RestApi @Inject()(nodeContext: Context,
                         curator: CuratorFramework,
                         reflections: Reflections,
                         authService: AuthService,
-                        config: ClusterConfig)
+                        config: ClusterConfig,
+                        metrics: MetricRegistry)
     extends Minion(nodeContext) {
 
     import RestApi._
@@ -139,6 +146,8 @@ class RestApi @Inject()(nodeContext: Context,
     private val log = Logger(LoggerFactory.getLogger(RestApiLog))
     private val executor = createThreadPool()
     private val executionContext = ExecutionContext.fromExecutor(executor)
+    private val objectCache = new ObjectCache(backend.store, config.restApi,
+                                              new ObjectCacheMetrics(metrics))
 
     override def isEnabled = config.restApi.isEnabled
 
@@ -167,6 +176,7 @@ class RestApi @Inject()(nodeContext: Context,
     }
 
     override def doStop(): Unit = {
+        objectCache.close()
         try {
             if (server ne null) {
                 server.stop()
@@ -195,7 +205,8 @@ class RestApi @Inject()(nodeContext: Context,
         context.addEventListener(new GuiceServletContextListener {
             override def getInjector: Injector = {
                 createInjector(servletModule(backend, executionContext, curator,
-                                             config, reflections, authService, log))
+                                             config, reflections, authService,
+                                             objectCache, log))
             }
         })
         val allDispatchers = util.EnumSet.allOf(classOf[DispatcherType])
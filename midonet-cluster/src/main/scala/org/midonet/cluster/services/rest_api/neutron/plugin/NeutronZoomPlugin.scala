@@ -73,7 +73,8 @@ class NeutronZoomPlugin @Inject()(resourceContext: ResourceContext,
     private def tryRead[T](f: => T): T = tryStorageOp(f)
 
     private def tryWrite(f: (Transaction) => Unit): Unit = {
-        tryStorageOp(store.tryTransaction(ZoomOwner.ClusterNeutron)(f))
+        tryStorageOp(resourceContext.objectCache
+                         .tryTransaction(ZoomOwner.ClusterNeutron)(f))
     }
 
     /** Transform StorageExceptions to appropriate HTTP exceptions. */
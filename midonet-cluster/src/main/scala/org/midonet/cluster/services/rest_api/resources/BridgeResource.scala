@@ -102,14 +102,6 @@ class BridgeResource @Inject()(resContext: ResourceContext,
         tx.delete(classOf[Bridge], id)
     }
 
-
-    protected override def listFilter(bridges: Seq[Bridge]): Seq[Bridge] = {
-        val tenantId = resContext.uriInfo
-            .getQueryParameters.getFirst("tenant_id")
-        if (tenantId eq null) bridges
-        else bridges filter { _.tenantId == tenantId }
-    }
-
     protected override def createFilter(bridge: Bridge,
                                         tx: ResourceTransaction): Unit = {
         if (bridge.vxLanPortIds != null) {
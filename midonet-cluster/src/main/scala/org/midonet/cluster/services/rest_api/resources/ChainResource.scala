@@ -49,13 +49,6 @@ class ChainResource @Inject()(resContext: ResourceContext)
         new ChainRuleResource(id, resContext)
     }
 
-    protected override def listFilter(chains: Seq[Chain]): Seq[Chain] = {
-        val tenantId = resContext.uriInfo.getQueryParameters
-                                         .getFirst("tenant_id")
-        if (tenantId eq null) chains
-        else chains filter { _.tenantId == tenantId }
-    }
-
     protected override def deleteFilter(chainId: String,
                                         tx: ResourceTransaction): Unit = {
         val chain = tx.get(classOf[Chain], chainId)
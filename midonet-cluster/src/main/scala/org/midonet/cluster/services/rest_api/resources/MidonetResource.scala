@@ -26,6 +26,7 @@ import javax.ws.rs.core.Response.Status._
 import javax.ws.rs.core._
 
 import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
 import scala.concurrent._
 import scala.concurrent.duration._
 import scala.reflect.ClassTag
@@ -39,15 +40,17 @@ import org.eclipse.jetty.http.HttpStatus.METHOD_NOT_ALLOWED_405
 import org.slf4j.LoggerFactory.getLogger
 
 import org.midonet.cluster._
-import org.midonet.cluster.data.ZoomConvert
+import org.midonet.cluster.data.{ZoomConvert, getIdString}
 import org.midonet.cluster.data.ZoomConvert.ConvertException
 import org.midonet.cluster.data.ZoomMetadata.ZoomOwner
 import org.midonet.cluster.data.storage._
+import org.midonet.cluster.rest_api.ResourceUris._
 import org.midonet.cluster.rest_api.ResponseUtils.buildErrorResponse
 import org.midonet.cluster.rest_api._
 import org.midonet.cluster.rest_api.annotation.{AllowCreate, AllowGet, AllowList, AllowUpdate}
 import org.midonet.cluster.rest_api.models.UriResource
 import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.services.rest_api.ObjectCache
 import org.midonet.cluster.services.rest_api.resources.MidonetResource._
 import org.midonet.cluster.util.SequenceDispenser
 import org.midonet.cluster.util.logging.ProtoTextPrettifier.makeReadable
@@ -63,6 +66,17 @@ object MidonetResource {
         Response.created(uri).entity(entity).build()
     }
 
+    final val IdField = "id"
+    final val TenantIdField = "tenant_id"
+
+    /**
+      * The limit and the marker of a paginated list request. The page
+      * includes up to `limit` resources that follow the resource with the
+      * `marker` identifier, in the order of the identifiers returned by
+      * `listIds`, or otherwise in the order of their identifiers.
+      */
+    case class ListPage(limit: Int, marker: String)
+
     final val DefaultHandler: PartialFunction[Response, Response] = {
         case r => r
     }
@@ -131,7 +145,8 @@ object MidonetResource {
                                           executionContext: ExecutionContext,
                                           uriInfo: UriInfo,
                                           validator: Validator,
-                                          seqDispenser: SequenceDispenser)
+                                          seqDispenser: SequenceDispenser,
+                                          objectCache: ObjectCache)
 
 }
 
@@ -154,7 +169,7 @@ abstract class MidonetResource[T >: Null <: UriResource]
         Logger(getLogger(restApiResourceLog(getClass)))
 
     private def validator = resContext.validator
-    private def store = resContext.backend.store
+    private def objectCache = resContext.objectCache
     protected def stateStore = resContext.backend.stateStore
     protected def stateTableStore = resContext.backend.stateTableStore
     protected def uriInfo = resContext.uriInfo
@@ -214,14 +229,25 @@ abstract class MidonetResource[T >: Null <: UriResource]
         getFilter(getResource(tag.runtimeClass.asInstanceOf[Class[T]], id))
     }
 
+    /**
+      * Lists the resources of this class, or those returned by `listIds`.
+      * The request may filter the resources by tenant, in which case the
+      * filter applies to the stored messages before their conversion, and
+      * it may request a page of the resources with the `limit` and `marker`
+      * query parameters. For a paginated request, only the resources of the
+      * page are converted and passed through the `listFilter`, such that
+      * the filter must apply to each resource independently of the others.
+      */
     @GET
     def list(@HeaderParam("Accept") accept: String): JList[T] = {
         validateMediaType(accept, getAnnotation(classOf[AllowList]).value())
+        val clazz = tag.runtimeClass.asInstanceOf[Class[T]]
         val ids = listIds
-        val list = if (ids eq null) {
-            listFilter(listResources(tag.runtimeClass.asInstanceOf[Class[T]]))
+        val page = listPage
+        val list = if (page ne null) {
+            listResourcesPage(clazz, ids, page)
         } else {
-            listFilter(listResources(tag.runtimeClass.asInstanceOf[Class[T]], ids))
+            listFilter(listMessages(clazz, ids).map(fromProto(_, clazz)))
         }
         list.asJava
     }
@@ -289,6 +315,9 @@ abstract class MidonetResource[T >: Null <: UriResource]
 
     protected def listIds: Seq[Any] = null
 
+    /** Filters the listed resources. The filter may receive any subset of
+      * the resources, in the order of the list, and therefore it must not
+      * depend on the position of a resource in the given list. */
     protected def listFilter(list: Seq[T]): Seq[T] = list
 
     protected def createFilter(t: T, tx: ResourceTransaction): Unit = {
@@ -327,31 +356,31 @@ abstract class MidonetResource[T >: Null <: UriResource]
 
     protected def listResources[U >: Null <: UriResource](clazz: Class[U])
     : Seq[U] = {
-        store.getAll(UriResource.getZoomClass(clazz))
-             .map(_.map(fromProto(_, clazz)))
-             .getOrThrow
+        objectCache.getAll(UriResource.getZoomClass(clazz))
+                   .map(_.map(fromProto(_, clazz)))
+                   .getOrThrow
     }
 
     protected def listResources[U >: Null <: UriResource](clazz: Class[U],
                                                           ids: Seq[Any])
     : Seq[U] = {
-        store.getAll(UriResource.getZoomClass(clazz), ids)
-             .map(_.map(fromProto(_, clazz)))
-             .getOrThrow
+        objectCache.getAll(UriResource.getZoomClass(clazz), ids)
+                   .map(_.map(fromProto(_, clazz)))
+                   .getOrThrow
     }
 
     protected def getResource[U >: Null <: UriResource](clazz: Class[U], id: Any)
     : U = {
-        store.get(UriResource.getZoomClass(clazz), id)
-             .map(fromProto(_, clazz))
-             .getOrThrow
+        objectCache.get(UriResource.getZoomClass(clazz), id)
+                   .map(fromProto(_, clazz))
+                   .getOrThrow
     }
 
     protected def getResources[U >: Null <: UriResource](clazz: Class[U], ids: Seq[Any])
     : Seq[U] = {
-        store.getAll(UriResource.getZoomClass(clazz), ids)
-             .map { r => r.map(fromProto(_, clazz)) }
-             .getOrThrow
+        objectCache.getAll(UriResource.getZoomClass(clazz), ids)
+                   .map { r => r.map(fromProto(_, clazz)) }
+                   .getOrThrow
     }
 
     protected def getResourceState[U >: Null <: UriResource](host: String,
@@ -363,6 +392,126 @@ abstract class MidonetResource[T >: Null <: UriResource]
                   .getOrThrow
     }
 
+    /**
+      * Returns the pagination parameters of the current request, or null if
+      * the request does not specify them.
+      */
+    private def listPage: ListPage = {
+        val params = uriInfo.getQueryParameters
+        val limitParam = params.getFirst(LIMIT_PARAM)
+        val marker = params.getFirst(MARKER_PARAM)
+        if ((limitParam eq null) && (marker eq null)) {
+            return null
+        }
+        val limit = if (limitParam eq null) Int.MaxValue else {
+            try limitParam.toInt catch {
+                case e: NumberFormatException =>
+                    throw new BadRequestHttpException(
+                        s"Invalid limit $limitParam")
+            }
+        }
+        if (limit <= 0) {
+            throw new BadRequestHttpException(s"Invalid limit $limitParam")
+        }
+        ListPage(limit, marker)
+    }
+
+    /**
+      * Returns whether the message matches the filters of the current
+      * request that apply to the stored messages. Currently, this filters
+      * the messages that have a tenant by the `tenant_id` query parameter.
+      */
+    private def queryFilter(tenantId: String)(message: Message): Boolean = {
+        val field = message.getDescriptorForType.findFieldByName(TenantIdField)
+        (field eq null) ||
+        (message.hasField(field) && tenantId == message.getField(field))
+    }
+
+    /**
+      * Lists the messages of the given resource class, or those with the
+      * given identifiers, filtered by the query filter. The messages of a
+      * class filtered by tenant are read from the tenant index of the
+      * object cache.
+      */
+    private def listMessages(clazz: Class[_ <: UriResource], ids: Seq[Any])
+    : Seq[Message] = {
+        val zoomClass = UriResource.getZoomClass(clazz)
+        val tenantId = uriInfo.getQueryParameters.getFirst(TENANT_ID_PARAM)
+        if ((ids eq null) && (tenantId ne null) &&
+            ObjectCache.hasIndex(zoomClass, TenantIdField)) {
+            return objectCache.getAllBy(zoomClass, TenantIdField, tenantId)
+                              .getOrThrow
+        }
+        val messages =
+            if (ids eq null) objectCache.getAll(zoomClass).getOrThrow
+            else objectCache.getAll(zoomClass, ids).getOrThrow
+        if (tenantId eq null) messages
+        else messages filter queryFilter(tenantId)
+    }
+
+    /**
+      * Returns the identifiers of the stored objects of the given resource
+      * class whose field has the given value, in identifier order, from the
+      * index of the object cache. The field must be one of the
+      * [[ObjectCache.IndexedFields]] of the class.
+      */
+    protected def listIdsBy(clazz: Class[_ <: UriResource], field: String,
+                            value: Any): Seq[String] = {
+        objectCache.getAllBy(UriResource.getZoomClass(clazz), field,
+                             getIdString(value))
+                   .getOrThrow
+                   .map(idOf)
+                   .sorted
+    }
+
+    /**
+      * Lists a page of resources. If the identifiers are known in advance,
+      * the method keeps their order, and loads only the messages that follow
+      * the position of the marker. Otherwise, it loads all messages of the
+      * class and converts only those of the page, in the order of their
+      * identifiers. In both cases, the method converts the messages in
+      * batches of `limit` until the `listFilter` has returned enough
+      * resources for the page.
+      */
+    private def listResourcesPage(clazz: Class[T], ids: Seq[Any],
+                                  page: ListPage): Seq[T] = {
+        val batches: Iterator[Seq[Message]] = if (ids eq null) {
+            val messages = listMessages(clazz, null)
+                .map(message => (idOf(message), message))
+                .filter(entry => (page.marker eq null) ||
+                                 entry._1.compareTo(page.marker) > 0)
+                .sortBy(_._1)
+                .map(_._2)
+            messages.iterator.grouped(batchSize(page, messages.size))
+        } else {
+            val pageIds = if (page.marker eq null) ids else {
+                val index = ids.indexWhere(getIdString(_) == page.marker)
+                if (index < 0) {
+                    throw new BadRequestHttpException(
+                        s"Invalid marker ${page.marker}")
+                }
+                ids.drop(index + 1)
+            }
+            pageIds.iterator.grouped(batchSize(page, pageIds.size))
+                   .map(batch => listMessages(clazz, batch))
+        }
+
+        val resources = new ArrayBuffer[T]
+        while (resources.size < page.limit && batches.hasNext) {
+            resources ++= listFilter(batches.next().map(fromProto(_, clazz)))
+        }
+        resources.take(page.limit)
+    }
+
+    private def batchSize(page: ListPage, count: Int): Int = {
+        Math.max(1, Math.min(page.limit, count))
+    }
+
+    private def idOf(message: Message): String = {
+        getIdString(message.getField(
+            message.getDescriptorForType.findFieldByName(IdField)))
+    }
+
     private def fromProto[U >: Null <: UriResource](message: Message,
                                                     clazz: Class[U]): U = {
         val resource = try {
@@ -405,7 +554,7 @@ abstract class MidonetResource[T >: Null <: UriResource]
 
     protected def tryTx(f: (ResourceTransaction) => Response): Response = {
         try {
-            store.tryTransaction(ZoomOwner.ClusterApi) { tx =>
+            objectCache.tryTransaction(ZoomOwner.ClusterApi) { tx =>
                 f(new ResourceTransaction(tx))
             }
         } catch {
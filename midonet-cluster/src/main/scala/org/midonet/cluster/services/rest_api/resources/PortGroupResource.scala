@@ -47,16 +47,8 @@ class PortGroupResource @Inject()(resContext: ResourceContext)
     protected override def listFilter(portGroups: Seq[PortGroup]): Seq[PortGroup] = {
         val portIdStr = uriInfo.getQueryParameters.getFirst("port_id")
         val portId = if (portIdStr == null) null else UUID.fromString(portIdStr)
-        val tenantId = uriInfo.getQueryParameters.getFirst("tenant_id")
-        if ((portId ne null) && (tenantId ne null))
-            portGroups filter { portGroup =>
-            portGroup.portIds.contains(portId) &&
-            portGroup.tenantId == tenantId
-        }
-        else if (portId ne null)
+        if (portId ne null)
             portGroups filter { _.portIds.contains(portId) }
-        else if (tenantId ne null)
-            portGroups filter { _.tenantId == tenantId }
         else
             portGroups
     }
@@ -144,6 +144,39 @@ class PortResource @Inject()(resContext: ResourceContext)
         new PortPortGroupResource(id, resContext)
     }
 
+    /** Lists the ports bound to the host given by the `host_id` parameter,
+      * and/or belonging to the bridge or router given by the `device_id`
+      * parameter, from the host and device indexes of the object cache.
+      * Otherwise, lists all ports. */
+    protected override def listIds: Seq[Any] = {
+        val params = uriInfo.getQueryParameters
+        val hostId = parseId(params.getFirst(ResourceUris.HOST_ID_PARAM))
+        val deviceId = parseId(params.getFirst(ResourceUris.DEVICE_ID_PARAM))
+        (hostId, deviceId) match {
+            case (null, null) => null
+            case (_, null) => hostPortIds(hostId)
+            case (null, _) => devicePortIds(deviceId)
+            case _ => hostPortIds(hostId) intersect devicePortIds(deviceId)
+        }
+    }
+
+    private def parseId(id: String): UUID = {
+        if (id eq null) null
+        else try UUID.fromString(id) catch {
+            case e: IllegalArgumentException =>
+                throw new BadRequestHttpException(s"Invalid identifier $id")
+        }
+    }
+
+    private def hostPortIds(hostId: UUID): Seq[String] = {
+        listIdsBy(classOf[Port], "host_id", hostId)
+    }
+
+    private def devicePortIds(deviceId: UUID): Seq[String] = {
+        (listIdsBy(classOf[Port], "network_id", deviceId) ++
+         listIdsBy(classOf[Port], "router_id", deviceId)).sorted
+    }
+
     protected override def deleteFilter(id: String,
                                         tx: ResourceTransaction): Unit = {
         val port = tx.get(classOf[VxLanPort], id)
@@ -68,13 +68,6 @@ class RouterResource @Inject()(resContext: ResourceContext)
         new RouterBgpPeerResource(id, resContext)
     }
 
-    protected override def listFilter(routers: Seq[Router]): Seq[Router] = {
-        val tenantId = resContext.uriInfo.getQueryParameters
-                                         .getFirst("tenant_id")
-        if (tenantId eq null) routers
-        else routers filter { _.tenantId == tenantId }
-    }
-
     protected override def createFilter(router: Router, tx: ResourceTransaction)
     : Unit = {
         tx.create(router)
@@ -79,12 +79,17 @@ class RuleResource @Inject()(resContext: ResourceContext)
 class ChainRuleResource @Inject()(chainId: UUID, resContext: ResourceContext)
     extends MidonetResource[Rule](resContext) {
 
-    protected override def listIds: Seq[Any] = {
+    private lazy val ruleIds =
         getResource(classOf[Chain], chainId).ruleIds.asScala
-    }
+
+    // The position of each rule in the chain, since the list filter may
+    // receive only a page of the rules.
+    private lazy val positions = ruleIds.zipWithIndex.toMap
+
+    protected override def listIds: Seq[Any] = ruleIds
 
     protected override def listFilter(rules: Seq[Rule]): Seq[Rule] = {
-        for (index <- rules.indices) rules(index).position = index + 1
+        for (rule <- rules) rule.position = positions(rule.id) + 1
         rules
     }
 
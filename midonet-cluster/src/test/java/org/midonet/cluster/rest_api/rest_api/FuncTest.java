@@ -54,6 +54,8 @@ import org.midonet.cluster.rest_api.serialization.MidonetObjectMapper;
 import org.midonet.cluster.rest_api.serialization.ObjectMapperProvider;
 import org.midonet.cluster.services.MidonetBackend;
 import org.midonet.cluster.services.MidonetBackendService;
+import org.midonet.cluster.services.rest_api.ObjectCache;
+import org.midonet.cluster.services.rest_api.ObjectCacheMetrics;
 import org.midonet.cluster.services.rest_api.RestApi;
 import org.midonet.cluster.storage.ArpStateTable;
 import org.midonet.cluster.storage.Ip4MacStateTable;
@@ -184,6 +186,9 @@ public class FuncTest {
             FuncTest._injector = Guice.createInjector(
                 RestApi.servletModule(
                     backend, ec, curator, cfg, reflections, authService,
+                    new ObjectCache(backend.store(), cfg.restApi(),
+                                    new ObjectCacheMetrics(
+                                        new MetricRegistry())),
                     Logger.apply(getLogger(getClass()))),
                 new AbstractModule() {
                     @Override
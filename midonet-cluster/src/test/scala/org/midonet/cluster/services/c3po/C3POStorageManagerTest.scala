@@ -25,10 +25,11 @@ import org.mockito.ArgumentMatcher
 import org.mockito.Matchers.{anyObject, argThat, notNull, eq => mockEq}
 import org.mockito.Mockito._
 import org.scalatest.junit.JUnitRunner
-import org.scalatest.{BeforeAndAfterEach, FlatSpec}
+import org.scalatest.{BeforeAndAfterEach, FlatSpec, Matchers}
 
 import org.midonet.cluster.ClusterConfig
 import org.midonet.cluster.data.ZoomMetadata.ZoomOwner
+import org.midonet.cluster.data.neutron.{NeutronResourceType, importer}
 import org.midonet.cluster.data.storage.{PersistenceOp, Storage, StorageException, UpdateValidator, Transaction => ZoomTransaction}
 import org.midonet.cluster.models.Commons
 import org.midonet.cluster.models.Neutron.{NeutronNetwork, NeutronPort, NeutronRoute}
@@ -52,7 +53,8 @@ object C3POStorageManagerTest {
 }
 
 @RunWith(classOf[JUnitRunner])
-class C3POStorageManagerTest extends FlatSpec with BeforeAndAfterEach {
+class C3POStorageManagerTest extends FlatSpec with BeforeAndAfterEach
+                             with Matchers {
     import org.midonet.cluster.services.c3po.C3POStorageManager._
     val networkId = randomUuidProto
     val portId = randomUuidProto
@@ -241,6 +243,78 @@ class C3POStorageManagerTest extends FlatSpec with BeforeAndAfterEach {
         verify(mockExtraTranslator, never()).translate(anyObject(), anyObject())
     }
 
+    "Neutron transaction batch" should "execute all tasks in a single " +
+                                      "multi call" in {
+        when(mockNetworkTranslator
+                .translateOp(transaction, Create(neutronNetwork)))
+                .thenReturn(List(Create(neutronNetwork),
+                                 Create(midoNetwork)))
+        when(mockPortTranslator
+                .translateOp(transaction, Create(neutronNetworkPort)))
+                .thenReturn(List(Create(neutronNetworkPort),
+                                 Create(midoPort)))
+
+        buildManager(Map(classOf[NeutronNetwork] -> mockNetworkTranslator,
+                         classOf[NeutronPort] -> mockPortTranslator))
+
+        storageManager.interpretAndExecTxns(Seq(
+            txn("txn1", c3poCreate(2, neutronNetwork)),
+            txn("txn2", c3poCreate(3, neutronNetworkPort))))
+
+        verify(transaction).create(neutronNetwork)
+        verify(transaction).create(midoNetwork)
+        verify(transaction).create(neutronNetworkPort)
+        verify(transaction).create(midoPort)
+        verify(transaction, never()).update(C3POState.at(2), null)
+        verify(transaction).update(C3POState.at(3), null)
+        verify(transaction, times(1)).commit()
+    }
+
+    "Failed Neutron transaction batch" should "execute each task as a " +
+                                             "separate multi call" in {
+        when(mockNetworkTranslator
+                .translateOp(transaction, Create(neutronNetwork)))
+                .thenReturn(List(Create(neutronNetwork),
+                                 Create(midoNetwork)))
+        when(mockPortTranslator
+                .translateOp(transaction, Create(neutronNetworkPort)))
+                .thenThrow(new TranslationException(
+                    Create(neutronNetworkPort), null, "Batch failure test"))
+                .thenReturn(List(Create(neutronNetworkPort),
+                                 Create(midoPort)))
+
+        buildManager(Map(classOf[NeutronNetwork] -> mockNetworkTranslator,
+                         classOf[NeutronPort] -> mockPortTranslator))
+
+        storageManager.interpretAndExecTxns(Seq(
+            txn("txn1", c3poCreate(2, neutronNetwork)),
+            txn("txn2", c3poCreate(3, neutronNetworkPort))))
+
+        verify(transaction).update(C3POState.at(2), null)
+        verify(transaction).update(C3POState.at(3), null)
+        verify(transaction, times(2)).commit()
+    }
+
+    "Neutron transactions" should "be grouped in batches" in {
+        def neutronTxn(id: String, taskIds: Int*) =
+            new importer.Transaction(id, taskIds.map(taskId =>
+                importer.Create(taskId, NeutronResourceType.Network, "{}"))
+                .toList)
+        val flush = new importer.Transaction("flush",
+                                             List(importer.Flush(1)))
+        val txns = List(neutronTxn("t1", 2), neutronTxn("t2", 3, 4),
+                        neutronTxn("t3", 5, 6, 7), flush,
+                        neutronTxn("t4", 8), neutronTxn("t5", 9))
+
+        C3POMinion.batches(txns, 1).map(_.map(_.id)) shouldBe Seq(
+            Seq("t1"), Seq("t2"), Seq("t3"), Seq("flush"), Seq("t4"),
+            Seq("t5"))
+        C3POMinion.batches(txns, 3).map(_.map(_.id)) shouldBe Seq(
+            Seq("t1", "t2"), Seq("t3"), Seq("flush"), Seq("t4", "t5"))
+        C3POMinion.batches(txns, 100).map(_.map(_.id)) shouldBe Seq(
+            Seq("t1", "t2", "t3"), Seq("flush"), Seq("t4", "t5"))
+    }
+
     "Model translation failure" should "throw C3PODataManagerException" in {
         doThrow(new TranslationException(Create(neutronNetwork),
                                          null, "Translation failure test"))
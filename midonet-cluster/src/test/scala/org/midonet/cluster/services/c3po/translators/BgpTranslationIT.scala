@@ -20,9 +20,15 @@ package org.midonet.cluster.services.c3po.translators
 import java.util.UUID
 
 import org.junit.runner.RunWith
+import com.fasterxml.jackson.databind.JsonNode
+import com.google.protobuf.Message
+
 import org.midonet.cluster.C3POMinionTestBase
+import org.midonet.cluster.data.ZoomMetadata.ZoomOwner
 import org.midonet.cluster.data.neutron.NeutronResourceType.{BgpPeer => BgpPeerType, BgpSpeaker => BgpSpeakerType, Port => PortType, Router => RouterType}
-import org.midonet.cluster.models.Neutron.{NeutronBgpPeer, NeutronRoute, NeutronRouter}
+import org.midonet.cluster.models.Neutron.{NeutronBgpPeer, NeutronRoute, NeutronRouter, NeutronRouterInterface}
+import org.midonet.cluster.services.c3po.NeutronDeserializer
+import org.midonet.cluster.services.c3po.NeutronTranslatorManager.{Create, Update}
 import org.midonet.cluster.models.Topology._
 import org.midonet.cluster.services.c3po.translators.PortManager.routerInterfacePortPeerId
 import org.midonet.cluster.services.c3po.translators.RouteManager.extraRouteId
@@ -360,6 +366,37 @@ class BgpTranslationIT extends C3POMinionTestBase {
         }
     }
 
+    "RouterTranslator" should "add bgp networks for the extra routes when " +
+                              "the bgp peer is created in the same " +
+                              "storage transaction" in {
+        val sub1 = "10.0.0.0/24"
+        val rId = createRouter(10)
+        val nwId = createTenantNetwork(20)
+        val snId = createSubnet(30, nwId, sub1)
+        val rifPortId = createRouterInterfacePort(
+            40, nwId, List(IPAlloc("10.0.0.1", snId)), rId)
+
+        val route1 = makeRoute("10.0.2.0/24", "10.0.0.3")
+        val route2 = makeRoute("10.0.1.0/24", "10.0.0.3")
+        val rtrWithRoutes = routerJson(rId, routes = List(route1, route2))
+
+        // Translate the router interface, the peer and the router update in
+        // a single storage transaction, as the importer does for a batch.
+        storage.tryTransaction(ZoomOwner.None) { tx =>
+            manager.translate(tx, Create(toMessage(
+                routerInterfaceJson(rId, rifPortId, snId, null, Seq(snId)),
+                classOf[NeutronRouterInterface])))
+            manager.translate(tx, Create(toMessage(
+                bgpPeerJson("10.0.0.2", bgpSpeakerJson(rId)),
+                classOf[NeutronBgpPeer])))
+            manager.translate(tx, Update(toMessage(
+                rtrWithRoutes, classOf[NeutronRouter])))
+        }
+
+        checkBgpNetwork(rId, rifPortId, sub1)
+        checkRoutesAndNetworks(rId, 2)
+    }
+
     "BgpPeerTranslator" should "not add external networks to " +
                                "the list of peer networks" in {
         val rtrId = createRouter(10)
@@ -518,6 +555,10 @@ class BgpTranslationIT extends C3POMinionTestBase {
         routes foreach (checkBgpNetwork(rId, _, exists))
     }
 
+    private def toMessage[T <: Message](json: JsonNode, clazz: Class[T]): T = {
+        NeutronDeserializer.toMessage(json.toString, clazz)
+    }
+
     private def makeRoute(sub: String, gw: String) = {
         NeutronRoute.newBuilder()
           .setDestination(IPSubnetUtil.toProto(sub))
@@ -80,7 +80,7 @@ class ConfResourceTest extends FeatureSpec
         backend.startAsync().awaitRunning()
         api = new RestApi(context, backend, zkClient, reflections,
                           new MockAuthService(config),
-                          new ClusterConfig(config))
+                          new ClusterConfig(config), new MetricRegistry)
         api.startAsync().awaitRunning()
     }
 
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.rest_api
+
+import scala.concurrent.duration._
+
+import com.codahale.metrics.MetricRegistry
+import com.typesafe.config.ConfigFactory
+
+import org.junit.runner.RunWith
+import org.scalatest.concurrent.Eventually
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.time.{Millis, Span}
+import org.scalatest.{BeforeAndAfter, FeatureSpec, GivenWhenThen, Matchers}
+
+import rx.Observable
+import rx.schedulers.TestScheduler
+
+import org.midonet.cluster.ClusterConfig
+import org.midonet.cluster.data.ZoomMetadata.ZoomOwner
+import org.midonet.cluster.data.storage.{InMemoryStorage, NotFoundException}
+import org.midonet.cluster.models.Commons
+import org.midonet.cluster.models.Topology.Network
+import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.topology.TopologyBuilder
+import org.midonet.cluster.util.NodeCacheDisconnected
+import org.midonet.util.concurrent.toFutureOps
+import org.midonet.util.functors.makeFunc1
+
+@RunWith(classOf[JUnitRunner])
+class ObjectCacheTest extends FeatureSpec with Matchers with BeforeAndAfter
+                      with GivenWhenThen with Eventually with TopologyBuilder {
+
+    /**
+      * A storage that delivers the object notifications to the watchers
+      * only when the test scheduler triggers them. The watchers of the
+      * networks in `failingIds` receive a [[NotFoundException]] instead, as
+      * if the networks were deleted before the watchers subscribed, and
+      * those of the networks in `disconnectedIds` a [[NodeCacheDisconnected]]
+      * error.
+      */
+    private class DelayedStorage extends InMemoryStorage {
+        val scheduler = new TestScheduler
+        var failingIds = Set.empty[Commons.UUID]
+        var disconnectedIds = Set.empty[Commons.UUID]
+
+        override def observable[T](clazz: Class[T])
+        : Observable[Observable[T]] = {
+            super.observable(clazz).map[Observable[T]](makeFunc1 {
+                o: Observable[T] => o.flatMap(makeFunc1 { obj: T =>
+                    obj match {
+                        case network: Network
+                            if failingIds.contains(network.getId) =>
+                            Observable.error[T](new NotFoundException(
+                                clazz, network.getId))
+                        case network: Network
+                            if disconnectedIds.contains(network.getId) =>
+                            Observable.error[T](new NodeCacheDisconnected(
+                                network.getId.toString))
+                        case _ => Observable.just(obj)
+                    }
+                }).observeOn(scheduler)
+            })
+        }
+    }
+
+    private var store: DelayedStorage = _
+    private var metrics: ObjectCacheMetrics = _
+    private var cache: ObjectCache = _
+    private val timeout = 5 seconds
+
+    private implicit val patience =
+        PatienceConfig(timeout = Span(5000, Millis))
+
+    before {
+        store = new DelayedStorage
+        MidonetBackend.setupBindings(store, store)
+        metrics = new ObjectCacheMetrics(new MetricRegistry)
+        cache = newCache(enabled = true)
+    }
+
+    after {
+        cache.close()
+    }
+
+    private def newCache(enabled: Boolean): ObjectCache = {
+        val config = ClusterConfig.forTests(ConfigFactory.parseString(
+            s"""
+               |cluster.rest_api.object_cache_enabled : $enabled
+               |cluster.rest_api.object_cache_write_timeout : 500ms
+             """.stripMargin))
+        new ObjectCache(store, config.restApi, metrics)
+    }
+
+    /** Creates the class cache and delivers the notifications of the
+      * existing networks. */
+    private def loadNetworks(): Unit = {
+        cache.getAll(classOf[Network]).await(timeout)
+        store.scheduler.triggerActions()
+    }
+
+    private def get(id: Any): Network = {
+        cache.get(classOf[Network], id).await(timeout)
+    }
+
+    feature("The cache serves reads from memory") {
+        scenario("The cache is disabled") {
+            Given("A disabled cache and a network")
+            cache = newCache(enabled = false)
+            val network = createBridge(name = Some("network"))
+            store.create(network)
+
+            Then("Reading the network is served by the storage")
+            get(network.getId) shouldBe network
+            store.scheduler.triggerActions()
+            get(network.getId) shouldBe network
+            metrics.hits shouldBe 0
+            metrics.misses shouldBe 0
+        }
+
+        scenario("Reads after the cache is loaded") {
+            Given("Two networks")
+            val network1 = createBridge(name = Some("network1"))
+            val network2 = createBridge(name = Some("network2"))
+            store.create(network1)
+            store.create(network2)
+
+            When("Reading the networks before the cache is loaded")
+            cache.getAll(classOf[Network]).await(timeout) should (
+                contain theSameElementsAs Seq(network1, network2))
+
+            Then("The read is served by the storage")
+            metrics.misses shouldBe 1
+            metrics.hits shouldBe 0
+
+            When("The watchers receive the networks")
+            store.scheduler.triggerActions()
+
+            Then("The reads are served from memory")
+            cache.getAll(classOf[Network]).await(timeout) should (
+                contain theSameElementsAs Seq(network1, network2))
+            get(network1.getId) shouldBe network1
+            cache.getAll(classOf[Network], Seq(network1.getId, network2.getId))
+                 .await(timeout) shouldBe Seq(network1, network2)
+            cache.exists(classOf[Network], network2.getId)
+                 .await(timeout) shouldBe true
+            metrics.hits shouldBe 4
+            metrics.misses shouldBe 1
+        }
+
+        scenario("Reads of objects not in memory") {
+            Given("A loaded cache")
+            loadNetworks()
+
+            When("Another node creates a network")
+            val network = createBridge(name = Some("network"))
+            store.create(network)
+
+            Then("Reading the network is served by the storage")
+            get(network.getId) shouldBe network
+            metrics.misses shouldBe 2
+
+            And("Reading a non-existing network fails")
+            intercept[NotFoundException] {
+                get(createBridge().getId)
+            }
+        }
+    }
+
+    feature("The watchers update the cache") {
+        scenario("Updates and deletions of other nodes") {
+            Given("A network in a loaded cache")
+            val network1 = createBridge(name = Some("network1"))
+            store.create(network1)
+            loadNetworks()
+            get(network1.getId) shouldBe network1
+
+            When("Another node updates the network")
+            val network2 = network1.toBuilder.setName("network2").build()
+            store.update(network2)
+
+            Then("The cache returns the previous network")
+            get(network1.getId) shouldBe network1
+
+            When("The watchers receive the update")
+            store.scheduler.triggerActions()
+
+            Then("The cache returns the updated network")
+            get(network1.getId) shouldBe network2
+
+            When("Another node deletes the network")
+            store.delete(classOf[Network], network1.getId)
+            store.scheduler.triggerActions()
+
+            Then("Reading the network fails")
+            intercept[NotFoundException] {
+                get(network1.getId)
+            }
+            cache.getAll(classOf[Network]).await(timeout) shouldBe empty
+        }
+    }
+
+    feature("The cache handles watcher errors") {
+        scenario("An object is deleted before the watchers receive it") {
+            Given("Two networks, one failing with a not found error")
+            val network1 = createBridge(name = Some("network1"))
+            val network2 = createBridge(name = Some("network2"))
+            store.create(network1)
+            store.create(network2)
+            store.failingIds = Set(network2.getId)
+
+            When("The watchers receive the networks")
+            loadNetworks()
+
+            Then("The cache is ready without the failed network")
+            cache.getAll(classOf[Network]).await(timeout) shouldBe
+                Seq(network1)
+            get(network1.getId) shouldBe network1
+            metrics.hits shouldBe 2
+
+            When("Another node updates the first network")
+            val network3 = network1.toBuilder.setName("network3").build()
+            store.update(network3)
+            store.scheduler.triggerActions()
+
+            Then("The cache is still maintained by the watchers")
+            get(network1.getId) shouldBe network3
+            metrics.hits shouldBe 3
+        }
+
+        scenario("The watcher of an object fails with another error") {
+            Given("Two networks, one failing with a disconnection error")
+            val network1 = createBridge(name = Some("network1"))
+            val network2 = createBridge(name = Some("network2"))
+            store.create(network1)
+            store.create(network2)
+            store.disconnectedIds = Set(network2.getId)
+
+            When("The watchers receive the networks")
+            loadNetworks()
+            metrics.misses shouldBe 1
+
+            Then("The class cache is invalidated and reads use the storage")
+            store.disconnectedIds = Set.empty
+            cache.getAll(classOf[Network]).await(timeout) should (
+                contain theSameElementsAs Seq(network1, network2))
+            metrics.misses shouldBe 2
+            metrics.hits shouldBe 0
+
+            When("The watchers of the new class cache receive the networks")
+            store.scheduler.triggerActions()
+
+            Then("The reads are served from memory")
+            get(network2.getId) shouldBe network2
+            cache.getAll(classOf[Network]).await(timeout) should (
+                contain theSameElementsAs Seq(network1, network2))
+            metrics.hits shouldBe 2
+        }
+    }
+
+    feature("The cache indexes the objects") {
+        scenario("The indexed fields") {
+            ObjectCache.hasIndex(classOf[Network], "tenant_id") shouldBe true
+            ObjectCache.hasIndex(classOf[Network], "name") shouldBe false
+            ObjectCache.hasIndex(classOf[Network], "port_ids") shouldBe false
+        }
+
+        scenario("Objects listed by tenant") {
+            Given("Three networks of two tenants")
+            val network1 = createBridge(tenantId = Some("tenant1"))
+            val network2 = createBridge(tenantId = Some("tenant2"))
+            val network3 = createBridge(tenantId = Some("tenant1"))
+            Seq(network1, network2, network3) foreach store.create
+
+            Then("Listing the networks of a tenant is served by the storage")
+            cache.getAllBy(classOf[Network], "tenant_id", "tenant1")
+                 .await(timeout) should contain theSameElementsAs Seq(
+                network1, network3)
+            metrics.misses shouldBe 1
+
+            When("The watchers receive the networks")
+            store.scheduler.triggerActions()
+
+            Then("Listing the networks of a tenant is served from memory")
+            cache.getAllBy(classOf[Network], "tenant_id", "tenant1")
+                 .await(timeout) should contain theSameElementsAs Seq(
+                network1, network3)
+            cache.getAllBy(classOf[Network], "tenant_id", "tenant2")
+                 .await(timeout) shouldBe Seq(network2)
+            cache.getAllBy(classOf[Network], "tenant_id", "tenant3")
+                 .await(timeout) shouldBe empty
+            metrics.hits shouldBe 3
+
+            When("Another node moves a network to the first tenant")
+            val network4 = network2.toBuilder.setTenantId("tenant1").build()
+            store.update(network4)
+            store.scheduler.triggerActions()
+
+            Then("The index is updated")
+            cache.getAllBy(classOf[Network], "tenant_id", "tenant1")
+                 .await(timeout) should contain theSameElementsAs Seq(
+                network1, network4, network3)
+            cache.getAllBy(classOf[Network], "tenant_id", "tenant2")
+                 .await(timeout) shouldBe empty
+
+            When("Another node deletes a network")
+            store.delete(classOf[Network], network1.getId)
+            store.scheduler.triggerActions()
+
+            Then("The network is removed from the index")
+            cache.getAllBy(classOf[Network], "tenant_id", "tenant1")
+                 .await(timeout) should contain theSameElementsAs Seq(
+                network4, network3)
+            metrics.hits shouldBe 6
+        }
+    }
+
+    feature("Clients read their own writes") {
+        scenario("Objects updated by this node") {
+            Given("A network in a loaded cache")
+            val network1 = createBridge(name = Some("network1"))
+            store.create(network1)
+            loadNetworks()
+
+            When("Updating the network with a transaction of this node")
+            val network2 = network1.toBuilder.setName("network2").build()
+            cache.tryTransaction(ZoomOwner.ClusterApi) { tx =>
+                tx.update(network2)
+            }
+
+            Then("The updated network is read from the storage")
+            get(network1.getId) shouldBe network2
+            cache.getAll(classOf[Network]).await(timeout) shouldBe Seq(network2)
+            metrics.staleReads shouldBe 2
+
+            When("The watchers receive the update")
+            store.scheduler.triggerActions()
+
+            Then("The updated network is read from memory")
+            val hits = metrics.hits
+            get(network1.getId) shouldBe network2
+            metrics.hits shouldBe hits + 1
+            metrics.staleReads shouldBe 2
+        }
+
+        scenario("Objects created and deleted by this node") {
+            Given("A loaded cache")
+            loadNetworks()
+
+            When("Creating a network with a transaction of this node")
+            val network = createBridge(name = Some("network"))
+            cache.tryTransaction(ZoomOwner.ClusterApi) { tx =>
+                tx.create(network)
+            }
+
+            Then("The network is listed before the watchers receive it")
+            cache.getAll(classOf[Network]).await(timeout) shouldBe Seq(network)
+
+            When("Deleting the network with a transaction of this node")
+            store.scheduler.triggerActions()
+            cache.tryTransaction(ZoomOwner.ClusterApi) { tx =>
+                tx.delete(classOf[Network], network.getId)
+            }
+
+            Then("The network is not read before the watchers are notified")
+            intercept[NotFoundException] {
+                get(network.getId)
+            }
+            cache.getAll(classOf[Network]).await(timeout) shouldBe empty
+        }
+
+        scenario("The watchers are not notified before the timeout") {
+            Given("A network in a loaded cache")
+            val network1 = createBridge(name = Some("network1"))
+            store.create(network1)
+            loadNetworks()
+
+            When("Updating the network with a transaction of this node")
+            val network2 = network1.toBuilder.setName("network2").build()
+            cache.tryTransaction(ZoomOwner.ClusterApi) { tx =>
+                tx.update(network2)
+            }
+            get(network1.getId) shouldBe network2
+
+            Then("The cache returns its own network after the timeout")
+            eventually {
+                get(network1.getId) shouldBe network1
+            }
+        }
+    }
+}
@@ -36,6 +36,7 @@ import org.midonet.cluster.models.{Commons, Topology}
 import org.midonet.cluster.rest_api.neutron.models._
 import org.midonet.cluster.rest_api.{BadRequestHttpException, ConflictHttpException, NotFoundHttpException}
 import org.midonet.cluster.services.c3po.NeutronTranslatorManager
+import org.midonet.cluster.services.rest_api.{ObjectCache, ObjectCacheMetrics}
 import org.midonet.cluster.services.rest_api.neutron.plugin.NeutronZoomPlugin
 import org.midonet.cluster.services.rest_api.resources.MidonetResource.ResourceContext
 import org.midonet.cluster.services.{MidonetBackend, MidonetBackendService}
@@ -80,7 +81,12 @@ class NeutronZoomPluginTest extends FeatureSpec
                                          executionContext = null,
                                          uriInfo = null,
                                          validator = null,
-                                         seqDispenser = null)
+                                         seqDispenser = null,
+                                         objectCache = new ObjectCache(
+                                             backend.store,
+                                             clusterConfig.restApi,
+                                             new ObjectCacheMetrics(
+                                                 new MetricRegistry)))
         val sequenceDispenser = new SequenceDispenser(curator,
                                                       clusterConfig.backend)
         val manager = new NeutronTranslatorManager(clusterConfig,
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.rest_api.resources
+
+import scala.collection.JavaConverters._
+
+import com.fasterxml.jackson.databind.{JsonNode, ObjectMapper}
+import com.sun.jersey.api.client.ClientResponse
+import com.sun.jersey.api.client.ClientResponse.Status
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.client.dto.{DtoBridge, DtoBridgePort, DtoRule, DtoRuleChain}
+import org.midonet.cluster.rest_api.ResourceUris
+import org.midonet.cluster.rest_api.rest_api.{DtoWebResource, FuncJerseyTest, Topology}
+import org.midonet.cluster.services.rest_api.MidonetMediaTypes._
+
+@RunWith(classOf[JUnitRunner])
+class TestListPagination extends FeatureSpec
+                         with Matchers
+                         with BeforeAndAfter
+                         with GivenWhenThen {
+
+    private var jerseyTest: FuncJerseyTest = _
+    private var topology: Topology = _
+    private val mapper = new ObjectMapper
+
+    before {
+        jerseyTest = new FuncJerseyTest
+        jerseyTest.setUp()
+
+        val builder =
+            new Topology.Builder(new DtoWebResource(jerseyTest.resource()))
+        for (index <- 0 until 5) {
+            val bridge = new DtoBridge()
+            bridge.setName(s"bridge$index")
+            bridge.setTenantId(if (index < 3) "tenant0" else "tenant1")
+            builder.create(s"bridge$index", bridge)
+        }
+        for (index <- 0 until 3) {
+            builder.create("bridge0", s"port$index", new DtoBridgePort())
+        }
+        builder.create("bridge1", "port3", new DtoBridgePort())
+        val chain = new DtoRuleChain()
+        chain.setName("chain0")
+        builder.create("chain0", chain)
+        topology = builder.build()
+    }
+
+    after {
+        jerseyTest.tearDown()
+    }
+
+    private def list(path: String, mediaType: String,
+                     params: (String, String)*): Seq[JsonNode] = {
+        val response = get(path, mediaType, params: _*)
+        response.getStatus shouldBe Status.OK.getStatusCode
+        mapper.readTree(response.getEntity(classOf[String])).asScala.toSeq
+    }
+
+    private def get(path: String, mediaType: String,
+                    params: (String, String)*): ClientResponse = {
+        var resource = jerseyTest.resource().path(path)
+        for ((key, value) <- params) {
+            resource = resource.queryParam(key, value)
+        }
+        resource.accept(mediaType).get(classOf[ClientResponse])
+    }
+
+    private def listBridges(params: (String, String)*): Seq[JsonNode] = {
+        list(ResourceUris.BRIDGES, APPLICATION_BRIDGE_COLLECTION_JSON_V4,
+             params: _*)
+    }
+
+    private def listPorts(params: (String, String)*): Seq[JsonNode] = {
+        list(ResourceUris.PORTS, APPLICATION_PORT_V3_COLLECTION_JSON,
+             params: _*)
+    }
+
+    private def listRules(params: (String, String)*): Seq[JsonNode] = {
+        var resource = jerseyTest.resource()
+            .uri(topology.getChain("chain0").getRules)
+        for ((key, value) <- params) {
+            resource = resource.queryParam(key, value)
+        }
+        val response = resource.accept(APPLICATION_RULE_COLLECTION_JSON_V2)
+                               .get(classOf[ClientResponse])
+        response.getStatus shouldBe Status.OK.getStatusCode
+        mapper.readTree(response.getEntity(classOf[String])).asScala.toSeq
+    }
+
+    private def ids(nodes: Seq[JsonNode]): Seq[String] = {
+        nodes.map(_.get("id").asText())
+    }
+
+    feature("List requests support pagination") {
+        scenario("Pages are ordered by identifier") {
+            val all = ids(listBridges()).sorted
+
+            Then("The pages should contain the bridges in order")
+            val page1 = ids(listBridges("limit" -> "2"))
+            page1 shouldBe all.slice(0, 2)
+
+            val page2 = ids(listBridges("limit" -> "2",
+                                        "marker" -> page1.last))
+            page2 shouldBe all.slice(2, 4)
+
+            val page3 = ids(listBridges("limit" -> "2",
+                                        "marker" -> page2.last))
+            page3 shouldBe all.slice(4, 5)
+
+            ids(listBridges("limit" -> "2",
+                            "marker" -> page3.last)) shouldBe empty
+
+            And("A marker without a limit returns the remaining bridges")
+            ids(listBridges("marker" -> all.head)) shouldBe all.tail
+        }
+
+        scenario("Pages of chain rules keep the order of the chain") {
+            Given("A chain with rules inserted at the first position")
+            val dtoResource = new DtoWebResource(jerseyTest.resource())
+            for (index <- 0 until 5) {
+                val rule = new DtoRule()
+                rule.setPosition(1)
+                rule.setType(DtoRule.Accept)
+                dtoResource.postAndVerifyCreated(
+                    topology.getChain("chain0").getRules,
+                    APPLICATION_RULE_JSON_V2, rule, classOf[DtoRule])
+            }
+            val all = ids(listRules())
+            all should have size 5
+
+            Then("The pages should contain the rules in the chain order")
+            val page1 = listRules("limit" -> "2")
+            ids(page1) shouldBe all.slice(0, 2)
+            val page2 = listRules("limit" -> "2",
+                                  "marker" -> ids(page1).last)
+            ids(page2) shouldBe all.slice(2, 4)
+            val page3 = listRules("limit" -> "2",
+                                  "marker" -> ids(page2).last)
+            ids(page3) shouldBe all.slice(4, 5)
+
+            And("The rules should have their position in the chain")
+            (page1 ++ page2 ++ page3).map(_.get("position").asInt()) shouldBe
+                (1 to 5)
+        }
+
+        scenario("Invalid limits are rejected") {
+            for (limit <- Seq("0", "-1", "none")) {
+                get(ResourceUris.BRIDGES, APPLICATION_BRIDGE_COLLECTION_JSON_V4,
+                    "limit" -> limit).getStatus shouldBe
+                    Status.BAD_REQUEST.getStatusCode
+            }
+        }
+
+        scenario("Pages of filtered resources") {
+            val tenant0 = ids(listBridges("tenant_id" -> "tenant0")).sorted
+            tenant0 should have size 3
+
+            Then("The pages should contain only the tenant bridges")
+            val page1 = ids(listBridges("tenant_id" -> "tenant0",
+                                        "limit" -> "2"))
+            page1 shouldBe tenant0.slice(0, 2)
+            val page2 = ids(listBridges("tenant_id" -> "tenant0",
+                                        "limit" -> "2",
+                                        "marker" -> page1.last))
+            page2 shouldBe tenant0.slice(2, 3)
+        }
+    }
+
+    feature("List requests support filters") {
+        scenario("Filtering ports by device") {
+            val bridge0 = topology.getBridge("bridge0").getId.toString
+            val bridge1 = topology.getBridge("bridge1").getId.toString
+            val bridge2 = topology.getBridge("bridge2").getId.toString
+
+            ids(listPorts()) should have size 4
+            val ports = (0 until 3).map { index =>
+                topology.getBridgePort(s"port$index").getId.toString
+            }
+            ids(listPorts("device_id" -> bridge0)) should
+                contain theSameElementsAs ports
+            ids(listPorts("device_id" -> bridge1)) shouldBe
+                Seq(topology.getBridgePort("port3").getId.toString)
+            ids(listPorts("device_id" -> bridge2)) shouldBe empty
+
+            And("Pagination applies to the filtered ports, in device order")
+            val page = ids(listPorts("device_id" -> bridge0, "limit" -> "2"))
+            page shouldBe ids(listPorts("device_id" -> bridge0)).take(2)
+        }
+
+        scenario("Filtering ports by an invalid device identifier") {
+            get(ResourceUris.PORTS, APPLICATION_PORT_V3_COLLECTION_JSON,
+                "device_id" -> "invalid").getStatus shouldBe
+                Status.BAD_REQUEST.getStatusCode
+        }
+    }
+
+    feature("List requests support field selection") {
+        scenario("Only the selected fields are returned") {
+            val bridges = listBridges("fields" -> "id,name", "limit" -> "3")
+            bridges should have size 3
+            for (bridge <- bridges) {
+                bridge.fieldNames().asScala.toSet shouldBe Set("id", "name")
+            }
+        }
+    }
+}
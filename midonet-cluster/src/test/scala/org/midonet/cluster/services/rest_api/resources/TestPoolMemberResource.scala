@@ -24,6 +24,8 @@ import javax.ws.rs.core.UriInfo
 import scala.collection.JavaConverters._
 import scala.concurrent.ExecutionContext
 
+import com.codahale.metrics.MetricRegistry
+import com.sun.jersey.core.util.MultivaluedMapImpl
 import com.typesafe.config.ConfigFactory
 
 import org.junit.runner.RunWith
@@ -38,6 +40,7 @@ import org.midonet.cluster.models.Commons.{LBStatus => PLBStatus}
 import org.midonet.cluster.models.Topology.{PoolMember => PPoolMember}
 import org.midonet.cluster.services.MidonetBackend
 import org.midonet.cluster.services.MidonetBackend.StatusKey
+import org.midonet.cluster.services.rest_api.{ObjectCache, ObjectCacheMetrics}
 import org.midonet.cluster.services.rest_api.MidonetMediaTypes.{APPLICATION_POOL_MEMBER_COLLECTION_JSON, APPLICATION_POOL_MEMBER_JSON}
 import org.midonet.cluster.services.rest_api.resources.MidonetResource.ResourceContext
 import org.midonet.cluster.storage.MidonetTestBackend
@@ -72,9 +75,14 @@ class TestPoolMemberResource extends FlatSpec
 
         val mockUriInfo = Mockito.mock(classOf[UriInfo])
         Mockito.when(mockUriInfo.getBaseUri).thenReturn(new URI("http://test"))
+        Mockito.when(mockUriInfo.getQueryParameters)
+               .thenReturn(new MultivaluedMapImpl)
 
+        val objectCache = new ObjectCache(backend.store, config.restApi,
+                                          new ObjectCacheMetrics(
+                                              new MetricRegistry))
         val resCtx = ResourceContext(config.restApi, backend, executionCtx,
-                                     mockUriInfo, null, null)
+                                     mockUriInfo, null, null, objectCache)
         resource = new PoolMemberResource(resCtx)
     }
 
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.jna;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Native;
+import com.sun.jna.Platform;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * JNA implementation of the CPU affinity functions from the sched.h header.
+ * Unlike {@link CLibrary}, failing to bind these functions does not stop the
+ * process: callers must check {@link #isAvailable()}, because the functions
+ * are Linux specific.
+ */
+@SuppressWarnings("unused")
+public final class Sched {
+
+    private static final Logger log = LoggerFactory.getLogger("org.midonet.jna");
+
+    private static final boolean available;
+
+    static {
+        boolean registered = false;
+        try {
+            Native.register(Platform.C_LIBRARY_NAME);
+            registered = true;
+        } catch (NoClassDefFoundError | UnsatisfiedLinkError | NoSuchMethodError e) {
+            log.warn("CPU affinity native calls are not available");
+        }
+        available = registered;
+    }
+
+    private Sched() {}
+
+    /**
+     * Returns whether the native functions are available.
+     */
+    public static boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * Sets the CPU affinity mask of a thread.
+     * @param pid The thread identifier, or zero for the calling thread.
+     * @param cpusetsize The size in bytes of the CPU mask.
+     * @param mask The CPU mask, where the bit i % 64 of the word i / 64 is set
+     *             if the thread may run on the CPU i.
+     * @return Zero, if the method is successful. On error, it throws a
+     * {@code LastErrorException}.
+     */
+    public static native int sched_setaffinity(int pid,
+                                               int cpusetsize,
+                                               long[] mask)
+        throws LastErrorException;
+
+    /**
+     * Returns the number of the CPU on which the calling thread is running.
+     * On error, it throws a {@code LastErrorException}.
+     */
+    public static native int sched_getcpu() throws LastErrorException;
+
+}
@@ -59,7 +59,8 @@ public class Bucket {
     }
 
     /* Tries to consume a token from the bucket, returning true or
-     * false accordingly.
+     * false accordingly. A failure is recorded as a throttling event of the
+     * underlying token bucket.
      */
     public boolean consumeToken() {
         if (tokens > 0) {
@@ -76,6 +77,7 @@ public class Bucket {
             return true;
         }
 
+        tb.recordThrottled();
         return false;
     }
 
@@ -16,6 +16,8 @@
 
 package org.midonet.util;
 
+import java.util.concurrent.atomic.LongAdder;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,6 +30,10 @@ import static java.util.Arrays.copyOf;
  * recursively among the root's children. When all the buckets in a level of
  * the hierarchy are full, they accumulate in the parent bucket. Tokens can
  * only be retrieved from the leaf buckets.
+ *
+ * Every bucket has a weight, which is the number of tokens it receives in
+ * each round of the distribution among its siblings, such that the tokens
+ * are shared among the children of a bucket in proportion to their weights.
  */
 public class TokenBucket {
     public static final int UNLINKED = -1;
@@ -37,6 +43,7 @@ public class TokenBucket {
 
     final PaddedAtomicInteger numTokens = new PaddedAtomicInteger();
     protected final String name;
+    protected final int weight;
     private final RootTokenBucket root;
     private final TokenBucket parent;
 
@@ -58,11 +65,28 @@ public class TokenBucket {
     private int reservedTokens;
     // This field enables round-robin distributions, needed for fairness
     private int distributionIndex;
+    /* The tokens this bucket may still receive in the current round of the
+     * distribution among its siblings, such that a bucket keeps its turn
+     * across distributions until it has received as many tokens as its
+     * weight, even when every distribution has fewer tokens.
+     */
+    private int credit;
+
+    /* The number of tokens added to this leaf bucket, which is only updated
+     * under the distribution lock, and the number of times a consumer found
+     * the bucket empty, which is updated concurrently by the consumers without
+     * contending on a single memory location.
+     */
+    private volatile long refilledTokens;
+    private final LongAdder throttled = new LongAdder();
 
-    TokenBucket(int capacity, String name, TokenBucket parent) {
+    TokenBucket(int capacity, String name, TokenBucket parent, int weight) {
+        if (weight < 1)
+            throw new IllegalArgumentException("Weight must be positive");
         this.capacity = capacity;
         this.name = name;
         this.parent = parent;
+        this.weight = weight;
         TokenBucket tb;
         for (tb = this; tb.parent != null; tb = tb.parent) ;
         root = (RootTokenBucket)tb;
@@ -88,10 +112,17 @@ public class TokenBucket {
     /* Creates a new TokenBucket and links it as a child of this bucket.
      */
     public final TokenBucket link(int capacity, String name) {
+        return link(capacity, name, 1);
+    }
+
+    /* Creates a new TokenBucket with the specified weight and links it as a
+     * child of this bucket.
+     */
+    public final TokenBucket link(int capacity, String name, int weight) {
         root.lock();
         try {
             String n = this.name + "/" + name;
-            TokenBucket ntb = new TokenBucket(capacity, n, this);
+            TokenBucket ntb = new TokenBucket(capacity, n, this, weight);
             int idx = findFreeIndex();
             if (idx < 0) {
                 idx = children.length;
@@ -163,6 +194,29 @@ public class TokenBucket {
         return numTokens.get();
     }
 
+    public final int getWeight() {
+        return weight;
+    }
+
+    /* Returns the total number of tokens added to this leaf bucket.
+     */
+    public final long getRefilledTokens() {
+        return refilledTokens;
+    }
+
+    /* Returns the number of times a consumer found this bucket empty.
+     */
+    public final long getThrottledCount() {
+        return throttled.sum();
+    }
+
+    /* Records that a consumer found this bucket empty. The method is
+     * thread-safe and does not contend with other consumers.
+     */
+    public final void recordThrottled() {
+        throttled.increment();
+    }
+
     /* Tries to get the specified amount of tokens from this leaf bucket. It
      * returns the amount of tokens actually retrieved in the closed interval
      * [0, tokens]. The method is thread-safe and wait-free.
@@ -242,13 +296,22 @@ public class TokenBucket {
             hasNonFullChildren = false;
             for (int i = 0; i < children.length; ++i) {
                 TokenBucket tb = children[(distributionIndex + i) & mask];
-                if (tb != null && tb.reserve()) {
+                if (tb == null)
+                    continue;
+                // Each child gets up to as many tokens as its weight per
+                // round, and the round only moves to the next child when
+                // the current one has used its credit or is full.
+                if (tb.credit == 0)
+                    tb.credit = tb.weight;
+                while (tb.credit > 0 && tb.reserve()) {
                     hasNonFullChildren = true;
+                    tb.credit -= 1;
                     if ((tokens -= 1) == 0) {
-                        distributionIndex += i + 1;
+                        distributionIndex += tb.credit > 0 ? i : i + 1;
                         return 0;
                     }
                 }
+                tb.credit = 0;
             }
         } while (hasNonFullChildren);
         return tokens;
@@ -302,6 +365,7 @@ public class TokenBucket {
             }
             else {
                 numTokens.addAndGet(reservedTokens);
+                refilledTokens += reservedTokens;
             }
 
             reservedTokens = 0;
@@ -417,7 +481,7 @@ final class RootTokenBucket extends TokenBucket {
     private final PaddedAtomicInteger distributionInProgress;
 
     RootTokenBucket(int capacity, String name, TokenBucketFillRate rate) {
-        super(capacity, name, null);
+        super(capacity, name, null, 1);
         this.rate = rate;
         distributionInProgress = new PaddedAtomicInteger();
     }
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection
+
+import scala.annotation.tailrec
+import scala.reflect.ClassTag
+
+/**
+ * Constructs a MaglevSelector for a collection of objects with weights, each
+ * identified by a key that must be the same on every host building the
+ * selector for the same objects.
+ *
+ * Throws an IllegalArgumentException if ts has no element with weight > 0,
+ * or if the size is not a prime number.
+ */
+object MaglevSelector {
+
+    /** The default size of the lookup table. It is a prime number, such that
+      * the preferences of every object are a permutation of the table, and
+      * large enough relative to the number of objects of a typical pool to
+      * keep their share of the table within a few percent of their weight. */
+    final val DefaultSize = 4093
+
+    def apply[T <: HasWeight : ClassTag](ts: Traversable[T], key: T => Long,
+                                         size: Int = DefaultSize)
+    : MaglevSelector[T] = {
+        if (!BigInt(size).isProbablePrime(32))
+            throw new IllegalArgumentException(s"Size $size is not prime")
+
+        // Sorting the objects by key makes the table independent of the
+        // order in which the objects are given.
+        val objs = ts.filter(_.weight > 0).toArray.sortBy(key)
+        if (objs.isEmpty)
+            throw new IllegalArgumentException(
+                "Ts must have at least one element with weight > 0.")
+
+        val divisor = objs.map(_.weight).reduce(gcd)
+        val weights = objs.map(_.weight / divisor)
+        val offsets = objs.map(t => (mix(key(t), OffsetSeed) % size).toInt)
+        val skips = objs.map(t => (mix(key(t), SkipSeed) % (size - 1)).toInt + 1)
+        val next = new Array[Int](objs.length)
+
+        // Each round credits every object with its weight relative to the
+        // heaviest object, and an object claims one entry per whole credit,
+        // taking the next free entry in its preference order. Thus no
+        // object claims more than one entry per round, and the objects
+        // ordered last still get their share when the weights add up to
+        // more than the size of the table.
+        val maxWeight = weights.max
+        val credits = new Array[Int](objs.length)
+        val table = Array.fill(size)(-1)
+        var filled = 0
+        while (filled < size) {
+            var i = 0
+            while (i < objs.length && filled < size) {
+                credits(i) += weights(i)
+                if (credits(i) >= maxWeight) {
+                    credits(i) -= maxWeight
+                    var entry = preference(offsets(i), skips(i), next(i), size)
+                    while (table(entry) >= 0) {
+                        next(i) += 1
+                        entry = preference(offsets(i), skips(i), next(i), size)
+                    }
+                    table(entry) = i
+                    next(i) += 1
+                    filled += 1
+                }
+                i += 1
+            }
+        }
+
+        new MaglevSelector[T](objs, table)
+    }
+
+    private final val OffsetSeed = 0x2545f4914f6cdd1dL
+    private final val SkipSeed = 0x9e3779b97f4a7c15L
+
+    private def preference(offset: Int, skip: Int, index: Int, size: Int): Int =
+        ((offset + index.toLong * skip) % size).toInt
+
+    /** A hash of the key that is the same on every JVM. */
+    private def mix(key: Long, seed: Long): Long = {
+        var z = key + seed
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL
+        (z ^ (z >>> 31)) & Long.MaxValue
+    }
+
+    @tailrec
+    private def gcd(a: Int, b: Int): Int = if (b == 0) a else gcd(b, a % b)
+}
+
+/**
+ * Performs weighted consistent-hash selection from a Maglev lookup table,
+ * in which every object owns a number of entries proportional to its
+ * weight. Since the table only depends on the keys and weights of the
+ * objects, hosts building it for the same objects select the same object
+ * for the same hash, and adding or removing an object only moves a small
+ * fraction of the entries of the other objects. Constructor is private; use
+ * companion object to create instances.
+ */
+class MaglevSelector[T] private (objs: Array[T], table: Array[Int]) {
+
+    def size = table.length
+
+    /**
+     * Selects the object for the given hash, such as the hash of the
+     * connection or of the source address of a packet.
+     */
+    def select(hash: Int): T = objs(table((hash & Int.MaxValue) % table.length))
+}
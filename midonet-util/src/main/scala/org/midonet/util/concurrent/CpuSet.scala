@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import scala.util.control.NonFatal
+
+import org.slf4j.LoggerFactory
+
+import org.midonet.jna.Sched
+
+object CpuSet {
+
+    private val log = LoggerFactory.getLogger("org.midonet.cpu-affinity")
+
+    val Empty = new CpuSet(IndexedSeq.empty)
+
+    /**
+     * Parses a set of CPUs in the Linux cpuset list format, a comma separated
+     * list of CPU numbers and ranges, such as "0-3,8,10-11". An empty string
+     * is the empty set.
+     */
+    @throws[IllegalArgumentException]
+    def apply(list: String): CpuSet = {
+        val trimmed = list.trim
+        if (trimmed.isEmpty)
+            return Empty
+        val cpus = trimmed.split(",") flatMap { item =>
+            val range = item.trim.split("-", -1)
+            try {
+                range match {
+                    case Array(cpu) => Seq(cpu.toInt)
+                    case Array(first, last) if first.toInt <= last.toInt =>
+                        first.toInt to last.toInt
+                    case _ => throw new NumberFormatException(item)
+                }
+            } catch {
+                case e: NumberFormatException =>
+                    throw new IllegalArgumentException(
+                        s"Invalid CPU list $list", e)
+            }
+        }
+        if (cpus.exists(_ < 0))
+            throw new IllegalArgumentException(s"Invalid CPU list $list")
+        new CpuSet(cpus.distinct.sorted.toIndexedSeq)
+    }
+}
+
+/**
+ * A set of CPUs to which threads can be pinned, such that the threads of a
+ * pipeline do not migrate across cores and sockets, and the memory they
+ * allocate on first touch stays local to their NUMA node.
+ */
+final class CpuSet(val cpus: IndexedSeq[Int]) {
+
+    import CpuSet.log
+
+    def isEmpty = cpus.isEmpty
+
+    def size = cpus.size
+
+    /**
+     * Returns the set with the single CPU for the thread with the given index
+     * in a group of threads, assigning the CPUs round robin.
+     */
+    def single(index: Int): CpuSet =
+        if (isEmpty) this
+        else new CpuSet(IndexedSeq(cpus(index % cpus.size)))
+
+    /** Returns the CPU affinity mask, as expected by sched_setaffinity. */
+    def mask: Array[Long] = {
+        val mask = new Array[Long](if (isEmpty) 1 else cpus.last / 64 + 1)
+        for (cpu <- cpus) {
+            mask(cpu / 64) |= 1L << (cpu % 64)
+        }
+        mask
+    }
+
+    /**
+     * Restricts the calling thread to run on the CPUs of this set. It does
+     * nothing for the empty set. Returns whether the thread was pinned, such
+     * that failing to set the affinity, for instance because a CPU is not
+     * available, only affects performance.
+     */
+    def pinCurrentThread(): Boolean = {
+        if (isEmpty)
+            return false
+        if (!Sched.isAvailable) {
+            log.warn(s"Cannot pin thread ${Thread.currentThread().getName} " +
+                     s"to CPUs $this: CPU affinity is not supported")
+            return false
+        }
+        try {
+            val mask = this.mask
+            Sched.sched_setaffinity(0, mask.length * 8, mask)
+            log.info(s"Thread ${Thread.currentThread().getName} pinned to " +
+                     s"CPUs $this")
+            true
+        } catch {
+            case NonFatal(e) =>
+                log.warn(s"Failed to pin thread " +
+                         s"${Thread.currentThread().getName} to CPUs $this", e)
+                false
+        }
+    }
+
+    override def equals(other: Any): Boolean = other match {
+        case set: CpuSet => set.cpus == cpus
+        case _ => false
+    }
+
+    override def hashCode: Int = cpus.hashCode
+
+    override def toString: String = cpus.mkString(",")
+}
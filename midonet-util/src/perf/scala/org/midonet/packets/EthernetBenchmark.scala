@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.packets
+
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import org.midonet.packets.util.PacketBuilder._
+
+/**
+ * Measures the deserialization of the frames received by the agent with an
+ * upcall, and the serialization of the generated packets.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class EthernetBenchmark {
+
+    @Param(Array("tcp", "udp", "icmp", "vlan"))
+    var packet: String = _
+
+    var data: Array[Byte] = _
+    var buffer: ByteBuffer = _
+    var frame: Ethernet = _
+
+    @Setup
+    def setup(): Unit = {
+        val ethernet = eth addr MAC.random() -> MAC.random()
+        val ip = ip4 addr "10.0.0.2" --> "10.0.1.2"
+        frame = packet match {
+            case "tcp" => ethernet << ip << { tcp ports 12345 ---> 80 } <<
+                          payload("payload")
+            case "udp" => ethernet << ip << { udp ports 5003 ---> 53 } <<
+                          payload("payload")
+            case "icmp" => ethernet << ip << { icmp.echo id 1 seq 1 }
+            case "vlan" => { ethernet vlan 10 } << ip <<
+                           { tcp ports 12345 ---> 80 } << payload("payload")
+        }
+        data = frame.serialize()
+        buffer = ByteBuffer.allocate(data.length)
+    }
+
+    @Benchmark
+    def deserialize(): Ethernet = Ethernet.deserialize(data)
+
+    @Benchmark
+    def serialize(): Int = {
+        buffer.clear()
+        frame.serialize(buffer)
+    }
+}
@@ -295,6 +295,90 @@ class TokenBucketTest extends FeatureSpec with Matchers {
             privateCounters.sum / multiplier - totalTokens should be < multiplier.toLong
         }
     }
+
+    feature("TokenBucket shares tokens by weight") {
+        scenario("Siblings get tokens in proportion to their weights") {
+            val rate = new TokenBucketTestRate
+            val root = TokenBucket.create(100, "root", rate)
+            val heavy = root.link(100, "heavy", 3)
+            val light = root.link(100, "light")
+
+            heavy.getWeight should be (3)
+            light.getWeight should be (1)
+
+            rate.setNewTokens(40)
+            heavy.tryGet(1) should be (1)
+
+            heavy.getNumTokens should be (29)
+            light.getNumTokens should be (10)
+        }
+
+        scenario("A full sibling does not limit the others") {
+            val rate = new TokenBucketTestRate
+            val root = TokenBucket.create(100, "root", rate)
+            val heavy = root.link(5, "heavy", 3)
+            val light = root.link(100, "light")
+
+            rate.setNewTokens(40)
+            light.tryGet(1) should be (1)
+
+            heavy.getNumTokens should be (5)
+            light.getNumTokens should be (34)
+        }
+
+        scenario("Siblings keep their weights when refilled one token at a time") {
+            val rate = new TokenBucketTestRate
+            val root = TokenBucket.create(1000, "root", rate)
+            val heavy = root.link(1000, "heavy", 3)
+            val light = root.link(1000, "light")
+            // An empty bucket that never receives tokens, and only triggers
+            // a distribution every time it is read.
+            val trigger = root.link(0, "trigger")
+
+            for (i <- 0 until 400) {
+                rate.setNewTokens(1)
+                trigger.tryGet(1) should be (0)
+            }
+
+            heavy.getNumTokens should be (300)
+            light.getNumTokens should be (100)
+        }
+
+        scenario("Weights must be positive") {
+            val root = TokenBucket.create(100, "root", new TokenBucketTestRate)
+            an [IllegalArgumentException] should be thrownBy
+                root.link(100, "bucket", 0)
+        }
+    }
+
+    feature("TokenBucket accounts refills and throttling") {
+        scenario("Refilled tokens are counted for leaf buckets") {
+            val rate = new TokenBucketTestRate
+            val root = TokenBucket.create(100, "root", rate)
+            val tb = root.link(100, "bucket")
+
+            rate.setNewTokens(10)
+            tb.tryGet(4) should be (4)
+            tb.getRefilledTokens should be (10)
+
+            rate.setNewTokens(4)
+            tb.tryGet(10) should be (10)
+            tb.getRefilledTokens should be (14)
+        }
+
+        scenario("Empty buckets record the throttled consumers") {
+            val rate = new TokenBucketTestRate
+            val tb = TokenBucket.create(100, "root", rate).link(100, "bucket")
+            val bucket = new org.midonet.util.Bucket(tb, 1, null, 0, false)
+
+            tb.addTokens(1)
+            bucket.consumeToken() should be (true)
+            bucket.consumeToken() should be (false)
+            bucket.consumeToken() should be (false)
+
+            tb.getThrottledCount should be (2)
+        }
+    }
 }
 
 object TokenBucketTest {
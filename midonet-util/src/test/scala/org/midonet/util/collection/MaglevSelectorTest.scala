@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection
+
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class MaglevSelectorTest extends FeatureSpec with Matchers {
+
+    private case class Backend(id: Long, weight: Int) extends HasWeight
+
+    private def selector(backends: Seq[Backend], size: Int = 4093) =
+        MaglevSelector[Backend](backends, _.id, size)
+
+    private def shares(ms: MaglevSelector[Backend]): Map[Backend, Int] =
+        (0 until ms.size) map ms.select groupBy identity mapValues { _.size }
+
+    feature("Building the lookup table") {
+        scenario("Invalid arguments") {
+            intercept[IllegalArgumentException] {
+                selector(Seq())
+            }
+            intercept[IllegalArgumentException] {
+                selector(Seq(Backend(1, 0)))
+            }
+            intercept[IllegalArgumentException] {
+                selector(Seq(Backend(1, 1)), size = 4096)
+            }
+        }
+
+        scenario("Objects with weight 0 are never selected") {
+            val backends = Seq(Backend(1, 1), Backend(2, 0), Backend(3, 1))
+            shares(selector(backends)).keySet shouldBe Set(backends(0),
+                                                           backends(2))
+        }
+
+        scenario("Objects own entries proportional to their weight") {
+            val backends = Seq(Backend(1, 1), Backend(2, 2), Backend(3, 4))
+            val table = shares(selector(backends))
+            table(backends(0)) shouldBe 585 +- 4
+            table(backends(1)) shouldBe 1169 +- 4
+            table(backends(2)) shouldBe 2339 +- 4
+        }
+
+        scenario("Many heavy objects own entries proportional to their weight") {
+            // The weights add up to more than the size of the table, such
+            // that the objects ordered last must not be starved.
+            val backends = (1 to 20) map { i => Backend(i, 255 + i % 2) }
+            val table = shares(selector(backends))
+            val total = backends.map(_.weight).sum
+            for (backend <- backends) {
+                table(backend) shouldBe 4093 * backend.weight / total +- 2
+            }
+        }
+
+        scenario("Many objects with different weights") {
+            val backends = (1 to 40) map { i => Backend(i * 7919L, i) }
+            val table = shares(selector(backends))
+            val total = backends.map(_.weight).sum
+            for (backend <- backends) {
+                table(backend) shouldBe 4093 * backend.weight / total +- 2
+            }
+        }
+
+        scenario("The table does not depend on the order of the objects") {
+            val backends = (1 to 10) map { i => Backend(Random.nextLong(), i) }
+            val ms1 = selector(backends)
+            val ms2 = selector(Random.shuffle(backends))
+            (0 until ms1.size) foreach { i => ms1.select(i) shouldBe ms2.select(i) }
+        }
+    }
+
+    feature("Consistent selection") {
+        scenario("Negative hashes") {
+            val ms = selector(Seq(Backend(1, 1), Backend(2, 1)))
+            ms.select(Int.MinValue) shouldBe ms.select(0)
+            ms.select(-1) shouldBe ms.select(Int.MaxValue)
+        }
+
+        scenario("Removing an object only moves its own entries") {
+            val backends = (1 to 10) map { i => Backend(i * 7919L, 1) }
+            val before = selector(backends)
+            val after = selector(backends.filterNot(_ == backends(3)))
+
+            var moved = 0
+            for (i <- 0 until before.size) {
+                if (before.select(i) != backends(3) &&
+                    before.select(i) != after.select(i))
+                    moved += 1
+            }
+            // The Maglev population is near minimal: only a small fraction
+            // of the entries of the remaining objects change owner.
+            moved.toDouble / before.size should be < 0.05
+        }
+    }
+}
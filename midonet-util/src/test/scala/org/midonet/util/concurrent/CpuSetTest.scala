@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class CpuSetTest extends FeatureSpec with Matchers {
+
+    feature("CPU lists are parsed") {
+        scenario("Empty lists") {
+            CpuSet("") shouldBe CpuSet.Empty
+            CpuSet("  ").isEmpty shouldBe true
+        }
+
+        scenario("Single CPUs and ranges") {
+            CpuSet("3").cpus shouldBe Seq(3)
+            CpuSet("0-3").cpus shouldBe Seq(0, 1, 2, 3)
+            CpuSet("8, 0-2,10-11").cpus shouldBe Seq(0, 1, 2, 8, 10, 11)
+            CpuSet("1,1-2").cpus shouldBe Seq(1, 2)
+        }
+
+        scenario("Invalid lists") {
+            for (list <- Seq("a", "1-", "3-1", "1,,2", "-1", "1-2-3")) {
+                intercept[IllegalArgumentException] {
+                    CpuSet(list)
+                }
+            }
+        }
+    }
+
+    feature("Threads are assigned CPUs") {
+        scenario("Round robin") {
+            val set = CpuSet("2-3,6")
+            (0 until 6) map { set.single(_).cpus } shouldBe
+                Seq(Seq(2), Seq(3), Seq(6), Seq(2), Seq(3), Seq(6))
+            CpuSet.Empty.single(1) shouldBe CpuSet.Empty
+        }
+
+        scenario("Affinity mask") {
+            CpuSet("0-1,63").mask shouldBe Array(0x8000000000000003L)
+            CpuSet("64,130").mask shouldBe Array(0L, 1L, 4L)
+        }
+
+        scenario("The empty set does not pin the thread") {
+            CpuSet.Empty.pinCurrentThread() shouldBe false
+        }
+    }
+}
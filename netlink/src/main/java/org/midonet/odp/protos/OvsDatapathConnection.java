@@ -458,6 +458,31 @@ public abstract class OvsDatapathConnection extends AbstractNetlinkConnection {
                                            @Nonnull Callback<DpPort> callback,
                                            long timeoutMillis);
 
+    /**
+     * Callback based api for adding a new port to a datapath, whose upcalls
+     * are sent to any of the netlink sockets with the given PIDs. The
+     * datapath selects the socket of each upcall by the hash of the packet,
+     * such that the packets of a flow are always received by the same socket.
+     *
+     * @param datapath   the datapath we want to add the port to.
+     * @param port       the specification of the port we want to create.
+     * @param upcallPids the PIDs of the sockets receiving the upcalls.
+     * @param callback   the callback that will be notified by the reply.
+     */
+    public void portsCreate(@Nonnull Datapath datapath, @Nonnull DpPort port,
+                            @Nonnull int[] upcallPids,
+                            @Nonnull Callback<DpPort> callback) {
+        _doPortsCreate(datapath, port, upcallPids, callback, DEF_REPLY_TIMEOUT);
+    }
+
+    protected void _doPortsCreate(@Nonnull Datapath datapath,
+                                  @Nonnull DpPort port,
+                                  @Nonnull int[] upcallPids,
+                                  @Nonnull Callback<DpPort> callback,
+                                  long timeoutMillis) {
+        _doPortsCreate(datapath, port, callback, timeoutMillis);
+    }
+
     /**
      * Callback based api for enumerating flows.
      *
@@ -46,6 +46,8 @@ import org.midonet.odp.Packet;
 import org.midonet.odp.family.PacketFamily;
 import org.midonet.odp.flows.FlowAction;
 import org.midonet.odp.flows.FlowKey;
+import org.midonet.odp.flows.FlowKeyEncap;
+import org.midonet.odp.flows.FlowKeyICMP;
 import org.midonet.odp.flows.FlowKeys;
 import org.midonet.packets.Ethernet;
 import org.midonet.util.BatchCollector;
@@ -73,26 +75,53 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
         packetFamily = ovsNetlinkFamilies.packetFamily();
     }
 
+    /**
+     * Builds the packets of the upcalls. The builder and its flow key handler
+     * are reused for every upcall read by the connection, and the keys
+     * computed in userspace are added only to the matches that need them.
+     */
     static class PacketBuilder implements AttributeHandler {
         private ArrayList<FlowKey> keys = new ArrayList<>(16);
         private Ethernet eth;
         private Long userData;
         private int packetLen = 0;
 
+        private final AttributeHandler keysBuilder = new AttributeHandler() {
+            @Override
+            public void use(ByteBuffer buffer, short id) {
+                FlowKey key = FlowKeys.newBlankInstance(id);
+                if (key == null)
+                    return;
+                key.deserializeFrom(buffer);
+                keys.add(key);
+            }
+        };
+
         public Packet buildFrom(ByteBuffer buf) {
             int datapathIndex = buf.getInt(); // ignored
             NetlinkMessage.scanAttributes(buf, this);
-            if (eth == null) {
+            try {
+                if (eth == null)
+                    return null;
+                if (needsUserspaceKeys())
+                    FlowKeys.addUserspaceKeys(eth, keys);
+                Packet p = new Packet(eth, new FlowMatch(keys), packetLen);
+                p.setUserData(userData);
+                return p;
+            } finally {
+                eth = null;
                 keys.clear();
-                return null;
+                userData = null;
             }
-            FlowKeys.addUserspaceKeys(eth, keys);
-            Packet p = new Packet(eth, new FlowMatch(keys), packetLen);
-            p.setUserData(userData);
-            eth = null;
-            keys.clear();
-            userData = null;
-            return p;
+        }
+
+        private boolean needsUserspaceKeys() {
+            for (int i = 0; i < keys.size(); i++) {
+                FlowKey key = keys.get(i);
+                if (key instanceof FlowKeyICMP || key instanceof FlowKeyEncap)
+                    return true;
+            }
+            return false;
         }
 
         @Override
@@ -113,7 +142,7 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
                     break;
 
                 case OpenVSwitch.Packet.Attr.Key:
-                    FlowKeys.buildFrom(buffer, keys);
+                    NetlinkMessage.scanAttributes(buffer, keysBuilder);
                     break;
 
                 case OpenVSwitch.Packet.Attr.Userdata:
@@ -321,6 +350,17 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
         sendNetlinkMessage(buf, callback, DpPort.deserializer, timeoutMillis);
     }
 
+    @Override
+    protected void _doPortsCreate(@Nonnull final Datapath datapath,
+                                  @Nonnull DpPort port,
+                                  @Nonnull int[] upcallPids,
+                                  @Nonnull Callback<DpPort> callback,
+                                  long timeoutMillis) {
+        ByteBuffer buf = getBuffer();
+        protocol.prepareDpPortCreate(datapath.getIndex(), port, upcallPids, buf);
+        sendNetlinkMessage(buf, callback, DpPort.deserializer, timeoutMillis);
+    }
+
     @Override
     protected void _doFlowsEnumerate(@Nonnull Datapath datapath,
                                      @Nonnull Callback<Set<Flow>> callback,
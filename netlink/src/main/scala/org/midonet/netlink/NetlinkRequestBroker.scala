@@ -71,7 +71,10 @@ object NetlinkRequestBroker {
  *
  * The writer thread, starting at writtenSequence, writes all the subsequent
  * requests that have been published. After it's done, it updates that sequence
- * so that waiting publisher threads can progress.
+ * so that waiting publisher threads can progress. When a write batch size is
+ * set, the writer coalesces consecutive requests into multi-message writes of
+ * up to that size, which the kernel processes in order, replying to each
+ * message individually.
  *
  * The reader thread reads the replies from the kernel. We optimize for the case
  * where the requests are received in the order they are written. A publisher
@@ -106,7 +109,8 @@ final class NetlinkRequestBroker(writer: NetlinkBlockingWriter,
                                  maxRequestSize: Int,
                                  readBuf: ByteBuffer,
                                  clock: NanoClock,
-                                 val timeout: Duration = 1 minute) {
+                                 val timeout: Duration = 1 minute,
+                                 writeBatchSize: Int = 0) {
     import NetlinkRequestBroker._
 
     val capacity = Util.findNextPositivePowerOfTwo(maxPendingRequests)
@@ -179,6 +183,16 @@ final class NetlinkRequestBroker(writer: NetlinkBlockingWriter,
     private val expirations = Array.fill(capacity)(Long.MaxValue)
     private val timeoutNanos = timeout.toNanos
 
+    /**
+     * The buffer into which the writer thread coalesces consecutive requests,
+     * or null if each request is written individually.
+     */
+    private val batchBuf =
+        if (writeBatchSize > 0)
+            BytesUtil.instance.allocateDirect(
+                Math.max(writeBatchSize, maxRequestSize))
+        else null
+
     def hasRequestsToWrite: Boolean =
         isAvailable(writtenSequence)
 
@@ -230,21 +244,18 @@ final class NetlinkRequestBroker(writer: NetlinkBlockingWriter,
      * Writes all the new published requests. Returns the number of
      * bytes written.
      */
-    def writePublishedRequests(): Int = {
+    def writePublishedRequests(): Int =
+        if (batchBuf eq null) writeEachRequest()
+        else writeRequestBatches()
+
+    private def writeEachRequest(): Int = {
         var seq = writtenSequence
         var nbytes = 0
         while (isAvailable(seq)) {
             val pos = position(seq)
             val buf = buffers(pos)
             try {
-                expirations(pos) = {
-                    val timeout = clock.tick + timeoutNanos
-                    if (timeout == NO_TIMEOUT)
-                        timeout + 1
-                    else
-                        timeout
-                }
-                buf.putInt(buf.position() + NetlinkMessage.NLMSG_SEQ_OFFSET, pos)
+                prepareRequest(pos, buf)
                 nbytes += writer.write(buf)
             } catch { case e: Throwable =>
                 val obs = observers(pos)
@@ -261,6 +272,62 @@ final class NetlinkRequestBroker(writer: NetlinkBlockingWriter,
         nbytes
     }
 
+    private def writeRequestBatches(): Int = {
+        var seq = writtenSequence
+        var batchStart = seq
+        var nbytes = 0
+        while (isAvailable(seq)) {
+            val pos = position(seq)
+            val buf = buffers(pos)
+            prepareRequest(pos, buf)
+            if (buf.remaining() > batchBuf.remaining()) {
+                nbytes += writeBatch(batchStart, seq)
+                batchStart = seq
+            }
+            batchBuf.put(buf)
+            buf.clear()
+            seq += 1
+        }
+        nbytes += writeBatch(batchStart, seq)
+        writtenSequence = seq
+        nbytes
+    }
+
+    /**
+     * Writes the requests in the [from, until) sequence range, which have been
+     * coalesced into the batch buffer. If the write fails, all the requests
+     * in the batch complete with the error.
+     */
+    private def writeBatch(from: Long, until: Long): Int =
+        if (from == until) {
+            0
+        } else try {
+            batchBuf.flip()
+            writer.write(batchBuf)
+        } catch { case e: Throwable =>
+            var seq = from
+            while (seq < until) {
+                val pos = position(seq)
+                val obs = observers(pos)
+                freeObserver(pos)
+                obs.onError(e)
+                seq += 1
+            }
+            0
+        } finally {
+            batchBuf.clear()
+        }
+
+    private def prepareRequest(pos: Int, buf: ByteBuffer): Unit = {
+        expirations(pos) = {
+            val timeout = clock.tick + timeoutNanos
+            if (timeout == NO_TIMEOUT)
+                timeout + 1
+            else
+                timeout
+        }
+        buf.putInt(buf.position() + NetlinkMessage.NLMSG_SEQ_OFFSET, pos)
+    }
 
     /**
      * Processes a reply - a stream of ByteBuffers - if one is available.
@@ -51,6 +51,9 @@ class OvsConnectionOps(val ovsCon: OvsDatapathConnection) {
     def createPort(port: DpPort, dp: Datapath) =
         toFuture[DpPort] { ovsCon portsCreate(dp, port, _) }
 
+    def createPort(port: DpPort, dp: Datapath, upcallPids: Array[Int]) =
+        toFuture[DpPort] { ovsCon portsCreate(dp, port, upcallPids, _) }
+
     def setPort(port: DpPort, dp: Datapath) =
         toFuture[DpPort] { ovsCon portsSet(port, dp, _) }
 
@@ -116,6 +116,15 @@ sealed class OvsProtocol(pid: Int,
                             buf: ByteBuffer): Unit =
         portRequest(buf, datapathId, port, portFamily.contextNew)
 
+    /**
+     * Prepares the creation of a datapath port whose upcalls are sent to any
+     * of the given netlink sockets, which the datapath selects by the hash of
+     * the packet, instead of to the socket of this connection.
+     */
+    def prepareDpPortCreate(datapathId: Int, port: DpPort,
+                            upcallPids: Array[Int], buf: ByteBuffer): Unit =
+        portRequest(buf, datapathId, port, portFamily.contextNew, upcallPids)
+
     def prepareDpPortSet(datapathId: Int, port: DpPort,
                          buf: ByteBuffer): Unit =
         portRequest(buf, datapathId, port, portFamily.contextSet)
@@ -125,12 +134,17 @@ sealed class OvsProtocol(pid: Int,
         portRequest(buf, datapathId, port, portFamily.contextDel)
 
     private def portRequest(buf: ByteBuffer, datapathId: Int, port: DpPort,
-                            ctx: NetlinkRequestContext): Unit = {
+                            ctx: NetlinkRequestContext,
+                            upcallPids: Array[Int] = null): Unit = {
         import org.midonet.odp.OpenVSwitch.Port.Attr
 
         val message = messageFor(buf, datapathId, ctx,
             (NLFlag.REQUEST | NLFlag.ECHO).toShort)
-        NetlinkMessage.writeIntAttr(buf, Attr.UpcallPID, pid)
+        if (upcallPids eq null) {
+            NetlinkMessage.writeIntAttr(buf, Attr.UpcallPID, pid)
+        } else {
+            NetlinkMessage.writeIntArrayAttr(buf, Attr.UpcallPID, upcallPids)
+        }
         port.serializeInto(buf)
         message.finalize(pid)
     }
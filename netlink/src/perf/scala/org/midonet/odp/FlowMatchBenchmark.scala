@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.odp
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import org.midonet.odp.flows.FlowKeys
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.packets.{Ethernet, MAC}
+
+/**
+ * Measures the operations on the flow match of every packet: building it
+ * from the packet, hashing it and comparing it with an equal match, as done
+ * when indexing the packets and flows by their match.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class FlowMatchBenchmark {
+
+    var packet: Ethernet = _
+    var template: FlowMatch = _
+    var flowMatch: FlowMatch = _
+    var other: FlowMatch = _
+
+    @Setup
+    def setup(): Unit = {
+        packet = { eth addr MAC.random() -> MAC.random() } <<
+                 { ip4 addr "10.0.0.2" --> "10.0.1.2" } <<
+                 { tcp ports 12345 ---> 80 } << payload("payload")
+        template = FlowMatches.fromEthernetPacket(packet)
+        template.setInputPortNumber(1)
+        flowMatch = new FlowMatch()
+        flowMatch.reset(template)
+        other = FlowMatches.fromEthernetPacket(packet)
+        other.setInputPortNumber(1)
+    }
+
+    @Benchmark
+    def fromPacket(): FlowMatch =
+        new FlowMatch(FlowKeys.fromEthernetPacket(packet))
+
+    /**
+     * The hash code is cached by the match, and invalidated by the reset,
+     * so this measures both.
+     */
+    @Benchmark
+    def resetAndHash(): Int = {
+        flowMatch.reset(template)
+        flowMatch.hashCode()
+    }
+
+    @Benchmark
+    def resetAndConnectionHash(): Int = {
+        flowMatch.reset(template)
+        flowMatch.connectionHash()
+    }
+
+    @Benchmark
+    def equalMatches(): Boolean = flowMatch.equals(other)
+}
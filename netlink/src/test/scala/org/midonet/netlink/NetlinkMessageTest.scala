@@ -88,6 +88,18 @@ class NetlinkMessageTest extends Suite with Matchers {
         (Random shuffle data.toSeq) foreach (IntHelper checkMessage buf)
     }
 
+    def testWritingReadingIntArrays() {
+        val buf = makeBuffer()
+        val values = Array(7, 11, 13)
+        NetlinkMessage writeIntArrayAttr (buf, 5.toShort, values) shouldBe 16
+        NetlinkMessage writeIntArrayAttr (buf, 6.toShort, Array(17)) shouldBe 8
+        buf.flip
+        buf.getShort() shouldBe 16 // len=2b + id=2b + values=3x4b
+        buf.getShort() shouldBe 5
+        values foreach { buf.getInt() shouldBe _ }
+        buf getInt (NetlinkMessage seekAttribute (buf, 6.toShort)) shouldBe 17
+    }
+
     def testWritingReadingLongs() {
         val buf = makeBuffer()
         val data = LongHelper makeData 4
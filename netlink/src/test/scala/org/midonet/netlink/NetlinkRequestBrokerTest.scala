@@ -280,6 +280,59 @@ class NetlinkRequestBrokerTest extends FeatureSpec
         }
     }
 
+    feature ("Requests are coalesced into batched writes") {
+        val batchWriter = new MockNetlinkWriter {
+            var writes = List.empty[Seq[Int]]
+
+            override def write(src: ByteBuffer): Int = {
+                val nbytes = super.write(src)
+                var seqs = Vector.empty[Int]
+                var start = src.position()
+                while (start < src.limit()) {
+                    seqs :+= src.getInt(start + NetlinkMessage.NLMSG_SEQ_OFFSET)
+                    start += src.getInt(start + NetlinkMessage.NLMSG_LEN_OFFSET)
+                }
+                writes :+= seqs
+                nbytes
+            }
+        }
+        val broker = new NetlinkRequestBroker(batchWriter, reader, maxRequests,
+                                              512, ByteBuffer.allocate(1024),
+                                              clock, writeBatchSize = 1024)
+
+        def publish(obs: Observer[ByteBuffer], size: Int): Long = {
+            val seq = broker.nextSequence()
+            val buf = broker.get(seq)
+            NetlinkMessage.writeHeader(buf, size, 256, 0, 0, 0, 0, 0)
+            buf.limit(size)
+            broker.publishRequest(seq, obs)
+            seq
+        }
+
+        scenario ("Consecutive requests are written together") {
+            val obs = new CountingObserver
+            (0 until 4) foreach { _ => publish(obs, 100) }
+            broker.writePublishedRequests() should be (400)
+            batchWriter.writes should be (List(Seq(0, 1, 2, 3)))
+        }
+
+        scenario ("Batches are bounded by the batch size") {
+            val obs = new CountingObserver
+            (0 until 5) foreach { _ => publish(obs, 300) }
+            broker.writePublishedRequests() should be (1500)
+            batchWriter.writes should be (List(Seq(0, 1, 2), Seq(3, 4)))
+        }
+
+        scenario ("Errors are communicated to all requests in the batch") {
+            batchWriter.shouldThrow = true
+            val obs = new CountingObserver
+            (0 until 3) foreach { _ => publish(obs, 100) }
+            broker.writePublishedRequests() should be (0)
+            obs.onErrorCalls should be (3)
+            broker.hasRequestsToWrite should be (false)
+        }
+    }
+
     feature ("Requests expire") {
         scenario ("Expirations are processed after a reply") {
             val obs = new CountingObserver
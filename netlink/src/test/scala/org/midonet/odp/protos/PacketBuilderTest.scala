@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.odp.protos
+
+import java.nio.ByteBuffer
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.netlink.{BytesUtil, NetlinkMessage}
+import org.midonet.odp.{FlowMatch, OpenVSwitch}
+import org.midonet.odp.flows.{FlowKey, FlowKeyICMPEcho, FlowKeys}
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.packets.{Ethernet, MAC}
+
+@RunWith(classOf[JUnitRunner])
+class PacketBuilderTest extends FeatureSpec with Matchers with GivenWhenThen {
+
+    val udpFrame: Ethernet =
+        { eth addr MAC.random() -> MAC.random() } <<
+        { ip4 addr "10.0.0.1" --> "10.0.0.2" } <<
+        { udp ports 5003 ---> 53 } << payload("payload")
+
+    val icmpFrame: Ethernet =
+        { eth addr MAC.random() -> MAC.random() } <<
+        { ip4 addr "10.0.0.1" --> "10.0.0.2" } <<
+        { icmp.echo id 7.toShort }
+
+    def upcall(frame: Array[Byte], keys: Seq[FlowKey]): ByteBuffer = {
+        val buf = BytesUtil.instance.allocate(4096)
+        buf.putInt(1)
+        NetlinkMessage.writeRawAttribute(buf, OpenVSwitch.Packet.Attr.Packet,
+                                         frame)
+        NetlinkMessage.writeAttrSeq(buf, OpenVSwitch.Packet.Attr.Key, keys,
+                                    FlowKeys.writer)
+        buf.flip()
+        buf
+    }
+
+    feature("Packets are built from upcalls") {
+        scenario("The match is built from the flow keys") {
+            val builder = new OvsDatapathConnectionImpl.PacketBuilder
+            val keys = FlowKeys.fromEthernetPacket(udpFrame)
+
+            val packet = builder.buildFrom(upcall(udpFrame.serialize(), keys))
+
+            packet.packetLen shouldBe udpFrame.length
+            packet.getMatch shouldBe new FlowMatch(keys)
+            packet.getEthernet shouldBe udpFrame
+        }
+
+        scenario("ICMP frames are parsed to compute the userspace keys") {
+            val builder = new OvsDatapathConnectionImpl.PacketBuilder
+            val keys = FlowKeys.fromEthernetPacket(icmpFrame)
+
+            val packet = builder.buildFrom(upcall(icmpFrame.serialize(), keys))
+
+            packet.getEthernet.serialize() shouldBe icmpFrame.serialize()
+            packet.getMatch.getKeys.exists(_.isInstanceOf[FlowKeyICMPEcho]) shouldBe true
+            packet.getMatch.getIcmpIdentifier shouldBe 7
+        }
+
+        scenario("The builder is reused across upcalls") {
+            val builder = new OvsDatapathConnectionImpl.PacketBuilder
+            val icmpKeys = FlowKeys.fromEthernetPacket(icmpFrame)
+            val udpKeys = FlowKeys.fromEthernetPacket(udpFrame)
+
+            builder.buildFrom(upcall(icmpFrame.serialize(), icmpKeys))
+            val packet = builder.buildFrom(upcall(udpFrame.serialize(), udpKeys))
+
+            packet.getMatch shouldBe new FlowMatch(udpKeys)
+            packet.getEthernet shouldBe udpFrame
+        }
+
+        scenario("Malformed frames are dropped") {
+            val builder = new OvsDatapathConnectionImpl.PacketBuilder
+            val frame = Array[Byte](1, 2, 3)
+
+            Given("A frame whose match does not need userspace keys")
+            Then("The packet is dropped when built")
+            builder.buildFrom(
+                upcall(frame, FlowKeys.fromEthernetPacket(udpFrame))) shouldBe null
+
+            Given("A frame whose match needs userspace keys")
+            Then("The packet is dropped when built")
+            builder.buildFrom(
+                upcall(frame, FlowKeys.fromEthernetPacket(icmpFrame))) shouldBe null
+
+            And("The builder builds the next packet")
+            val keys = FlowKeys.fromEthernetPacket(udpFrame)
+            builder.buildFrom(upcall(udpFrame.serialize(), keys))
+                   .getMatch shouldBe new FlowMatch(keys)
+        }
+    }
+}
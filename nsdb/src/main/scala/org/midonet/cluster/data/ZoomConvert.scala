@@ -24,7 +24,7 @@ import scala.collection.JavaConversions._
 import scala.collection.concurrent.TrieMap
 
 import com.google.common.base.Defaults
-import com.google.protobuf.Descriptors.{EnumDescriptor, EnumValueDescriptor}
+import com.google.protobuf.Descriptors.{Descriptor, EnumDescriptor, EnumValueDescriptor, FieldDescriptor}
 import com.google.protobuf.GeneratedMessage.Builder
 import com.google.protobuf.{ByteString, Descriptors, Message}
 
@@ -42,6 +42,11 @@ import org.midonet.cluster.util.UUIDUtil
  *
  * The Java object class must extend the [[ZoomObject]] class, and provide a
  * parameter-less constructor.
+ *
+ * The reflective metadata needed to convert a class, such as its annotated
+ * fields, constructors, converters and message field descriptors, is resolved
+ * once per class and cached, such that a conversion only reads and writes the
+ * fields through their accessible [[Field]] objects.
  */
 object ZoomConvert {
 
@@ -61,10 +66,96 @@ object ZoomConvert {
     private type ProtoBuilder = Builder[_ <: Builder[_ <: AnyRef]]
 
     private case class ConverterKey(clazz: Class[_], converter: Class[_])
-    private case class FieldInfo(field: Field, zoomField: ZoomField)
-    private case class ClassInfo(clazz: Class[_], zoomClass: ZoomClass,
-                                 zoomOneOf: ZoomOneOf,
-                                 fieldsInfo: Seq[FieldInfo])
+
+    /**
+     * The conversion metadata for an annotated field or constructor
+     * parameter. The converter is resolved on first use, since it depends on
+     * whether the message field is repeated.
+     */
+    private final class FieldInfo(val field: Field, val zoomField: ZoomField,
+                                  val fieldType: Class[_],
+                                  val genericType: Type) {
+
+        @volatile private var converter: (Boolean, Converter[_,_]) = null
+
+        def converterFor(protoField: FieldDescriptor): Converter[_,_] = {
+            val current = converter
+            if ((current ne null) && current._1 == protoField.isRepeated) {
+                current._2
+            } else {
+                val newConverter = getConverter(fieldType, genericType,
+                                                protoField, zoomField)
+                converter = (protoField.isRepeated, newConverter)
+                newConverter
+            }
+        }
+    }
+
+    /**
+     * The conversion metadata for a class in a Java object inheritance
+     * hierarchy. The message field descriptors are cached for the last
+     * message descriptor, which is the same for all conversions of a class.
+     */
+    private final class ClassInfo(val clazz: Class[_]) {
+
+        val zoomClass = clazz.getAnnotation(classOf[ZoomClass])
+        val zoomOneOf = clazz.getAnnotation(classOf[ZoomOneOf])
+        val convertSuper = clazz != classOf[ZoomObject] &&
+                           clazz.getSuperclass != classOf[ZoomObject] &&
+                           (zoomClass == null || !zoomClass.skipSuper)
+
+        val fields: Array[FieldInfo] =
+            for (field <- clazz.getDeclaredFields;
+                 zoomField = field.getAnnotation(classOf[ZoomField])
+                 if zoomField ne null) yield {
+                field.setAccessible(true)
+                new FieldInfo(field, zoomField, field.getType,
+                              field.getGenericType)
+            }
+
+        @volatile private var protoFields: (Descriptor, Array[FieldDescriptor]) =
+            null
+
+        lazy val defaultConstructor: Constructor[_] =
+            getDefaultConstructor(clazz)
+
+        lazy val zoomConstructor: (Constructor[_], Array[FieldInfo]) = {
+            val constructor = getZoomConstructor(clazz)
+            val paramTypes = constructor.getParameterTypes
+            val paramGenericTypes = constructor.getGenericParameterTypes
+            val paramAnnotations = constructor.getParameterAnnotations
+            val params = for (index <- paramTypes.indices) yield {
+                val zoomField = paramAnnotations(index)
+                    .find(_.annotationType() == classOf[ZoomField])
+                    .getOrElse(throw new ConvertException(
+                        s"Constructor parameter $index requires a ZoomField " +
+                        s"annotation"))
+                    .asInstanceOf[ZoomField]
+                new FieldInfo(null, zoomField, paramTypes(index),
+                              paramGenericTypes(index))
+            }
+            (constructor, params.toArray)
+        }
+
+        /** Returns the message field descriptors for the fields of this
+          * class, where a descriptor is null if the message does not have
+          * the field. */
+        def protoFieldsOf(descriptor: Descriptor,
+                          fields: Array[FieldInfo]): Array[FieldDescriptor] = {
+            val current = protoFields
+            if ((current ne null) && (current._1 eq descriptor)) {
+                current._2
+            } else {
+                val newProtoFields =
+                    fields.map(f => descriptor.findFieldByName(f.zoomField.name))
+                protoFields = (descriptor, newProtoFields)
+                newProtoFields
+            }
+        }
+    }
+
+    private val classes = new TrieMap[Class[_], ClassInfo]
+    private val builderMethods = new TrieMap[Class[_], Method]
 
     private val converters =
         new TrieMap[Class[_ <: Converter[_,_]], Converter[_,_]]
@@ -123,9 +214,12 @@ object ZoomConvert {
             return null
         }
         val clazz = newFactory(proto, pojoClass)
-        val defaultConstructor = getDefaultConstructor(clazz)
+        val defaultConstructor = classInfo(clazz).defaultConstructor
         if (defaultConstructor ne null) {
-            val pojo = clazz.newInstance().asInstanceOf[T]
+            // Rethrow the constructor exceptions as Class.newInstance does.
+            val pojo = try defaultConstructor.newInstance().asInstanceOf[T]
+                       catch { case e: InvocationTargetException =>
+                           throw e.getCause }
             from(proto, pojo, pojo.getClass)
             pojo.afterFromProto(proto)
             pojo
@@ -186,19 +280,16 @@ object ZoomConvert {
     private def to[T <: ZoomObject, U <: Message](
             pojo: T, clazz: Class[_], topBuilder: ProtoBuilder): ProtoBuilder = {
 
-        val zoomClass = clazz.getAnnotation(classOf[ZoomClass])
+        val info = classInfo(clazz)
         // Recursively iterate over all superclasses in the objects inheritance
         // hierarchy, and get the corresponding Protocol Buffers message.
         val superBuilder =
-            if (clazz != classOf[ZoomObject] &&
-                clazz.getSuperclass != classOf[ZoomObject] &&
-                (zoomClass == null || !zoomClass.skipSuper))
-                to(pojo, clazz.getSuperclass, topBuilder)
+            if (info.convertSuper) to(pojo, clazz.getSuperclass, topBuilder)
             else topBuilder
 
         // If the class has a one-of annotation, get the builder from the one-of
         // field.
-        val zoomOneOf = clazz.getAnnotation(classOf[ZoomOneOf])
+        val zoomOneOf = info.zoomOneOf
         val thisBuilder = if (zoomOneOf ne null) {
             val superDescriptor = superBuilder.getDescriptorForType
             val oneOfField = superDescriptor.findFieldByName(zoomOneOf.name)
@@ -212,11 +303,15 @@ object ZoomConvert {
 
         // Get the descriptor for the current builder.
         val descriptor = thisBuilder.getDescriptorForType
+        val protoFields = info.protoFieldsOf(descriptor, info.fields)
 
-        for (pojoField <- clazz.getDeclaredFields;
-             zoomField = pojoField.getAnnotation(classOf[ZoomField])
-             if zoomField ne null) {
-            val protoField = descriptor.findFieldByName(zoomField.name)
+        var index = 0
+        while (index < info.fields.length) {
+            val fieldInfo = info.fields(index)
+            val pojoField = fieldInfo.field
+            val zoomField = fieldInfo.zoomField
+            val protoField = protoFields(index)
+            index += 1
 
             // Verify the field exists.
             if (protoField eq null) {
@@ -226,14 +321,12 @@ object ZoomConvert {
             }
             try {
                 // Get the field value.
-                val pojoValue = pojo.getField(pojoField)
+                val pojoValue = pojoField.get(pojo)
                 // Ignore the null fields.
                 if (null != pojoValue) {
-                    val converter = getConverter(pojoField.getType,
-                                                 pojoField.getGenericType,
-                                                 protoField, zoomField)
+                    val converter = fieldInfo.converterFor(protoField)
                     val protoValue = converter.to(pojoValue,
-                                                  pojoField.getGenericType)
+                                                  fieldInfo.genericType)
                     thisBuilder.setField(protoField, protoValue)
                 }
             } catch {
@@ -269,15 +362,12 @@ object ZoomConvert {
      */
     private def from[T <: ZoomObject, U <: Message]
                     (proto: U, pojo: T, clazz: Class[_]): Message = {
-        val zoomClass = clazz.getAnnotation(classOf[ZoomClass])
+        val info = classInfo(clazz)
 
         // Recursively iterate over all superclasses in the objects inheritance
         // hierarchy, and get the corresponding Protocol Buffers message.
         var message =
-            if (clazz != classOf[ZoomObject] &&
-                clazz.getSuperclass != classOf[ZoomObject] &&
-                (zoomClass == null || !zoomClass.skipSuper))
-                from(proto, pojo, clazz.getSuperclass)
+            if (info.convertSuper) from(proto, pojo, clazz.getSuperclass)
             else proto
 
         // Get the descriptor for the current message.
@@ -285,7 +375,7 @@ object ZoomConvert {
 
         // If the class has a one-of annotation, extract the message from
         // the one-of field.
-        val zoomOneOf = clazz.getAnnotation(classOf[ZoomOneOf])
+        val zoomOneOf = info.zoomOneOf
         if (zoomOneOf ne null) {
             val oneOfField = descriptor.findFieldByName(zoomOneOf.name)
             message = if (oneOfField eq null) {
@@ -304,10 +394,15 @@ object ZoomConvert {
             }
         }
 
-        for (pojoField <- clazz.getDeclaredFields;
-             zoomField = pojoField.getAnnotation(classOf[ZoomField])
-             if zoomField ne null) {
-            val protoField = descriptor.findFieldByName(zoomField.name)
+        val protoFields = info.protoFieldsOf(descriptor, info.fields)
+
+        var index = 0
+        while (index < info.fields.length) {
+            val fieldInfo = info.fields(index)
+            val pojoField = fieldInfo.field
+            val zoomField = fieldInfo.zoomField
+            val protoField = protoFields(index)
+            index += 1
 
             // Verify the field exists.
             if (protoField eq null) {
@@ -320,12 +415,10 @@ object ZoomConvert {
                 // Java object field set to the its type-default value.
                 try {
                     val protoValue = message.getField(protoField)
-                    val converter = getConverter(pojoField.getType,
-                                                 pojoField.getGenericType,
-                                                 protoField, zoomField)
+                    val converter = fieldInfo.converterFor(protoField)
                     val pojoValue = converter.from(protoValue,
-                                                   pojoField.getGenericType)
-                    pojo.setField(pojoField, pojoValue)
+                                                   fieldInfo.genericType)
+                    pojoField.set(pojo, pojoValue)
                 } catch {
                     case e @ (_ : InstantiationException |
                               _ : IllegalAccessException |
@@ -353,25 +446,19 @@ object ZoomConvert {
      */
     private def fromNew[T <: ZoomObject, U <: Message]
                        (proto: U, clazz: Class[T]): T = {
-        val constructor = getZoomConstructor(clazz)
+        val info = classInfo(clazz)
+        val (constructor, paramsInfo) = info.zoomConstructor
 
         // Get the descriptor for the current message.
         val descriptor = proto.getDescriptorForType
+        val protoFields = info.protoFieldsOf(descriptor, paramsInfo)
 
-        val paramTypes = constructor.getParameterTypes
-        val paramGenericTypes = constructor.getGenericParameterTypes
-        val paramAnnotations = constructor.getParameterAnnotations
-        val params = new Array[Object](paramTypes.length)
+        val params = new Array[Object](paramsInfo.length)
 
         for (index <- params.indices) {
-            val zoomField = paramAnnotations(index)
-                .find(_.annotationType() == classOf[ZoomField])
-                .getOrElse(throw new ConvertException(
-                    s"Constructor parameter $index requires a ZoomField " +
-                    s"annotation"))
-                .asInstanceOf[ZoomField]
-
-            val protoField = descriptor.findFieldByName(zoomField.name)
+            val paramInfo = paramsInfo(index)
+            val zoomField = paramInfo.zoomField
+            val protoField = protoFields(index)
 
             // Verify the field exists.
             if (protoField eq null) {
@@ -384,11 +471,9 @@ object ZoomConvert {
                 // Java object field set to the its type-default value.
                 try {
                     val protoValue = proto.getField(protoField)
-                    val converter = getConverter(paramTypes(index),
-                                                 paramGenericTypes(index),
-                                                 protoField, zoomField)
+                    val converter = paramInfo.converterFor(protoField)
                     params(index) = converter.from(protoValue,
-                                                   paramGenericTypes(index))
+                                                   paramInfo.genericType)
                                              .asInstanceOf[AnyRef]
                 } catch {
                     case e @ (_ : InstantiationException |
@@ -399,10 +484,10 @@ object ZoomConvert {
                             s"Class $clazz failed to convert constructor" +
                             s"parameter ${zoomField.name} from Protocol Buffers " +
                             s"type ${protoField.getType} to Java type " +
-                            s"${paramTypes(index)}", e)
+                            s"${paramInfo.fieldType}", e)
                 }
             } else {
-                params(index) = Defaults.defaultValue(paramTypes(index))
+                params(index) = Defaults.defaultValue(paramInfo.fieldType)
                                         .asInstanceOf[Object]
             }
         }
@@ -417,7 +502,8 @@ object ZoomConvert {
      */
     private def newBuilder[U <: Message](clazz: Class[U]): ProtoBuilder = {
         try {
-            clazz.getMethod(ZoomConvert.BuilderMethod)
+            builderMethods.getOrElseUpdate(
+                    clazz, clazz.getMethod(ZoomConvert.BuilderMethod))
                 .invoke(null).asInstanceOf[ProtoBuilder]
         } catch {
             case e @ (_ : NoSuchMethodException |
@@ -441,7 +527,7 @@ object ZoomConvert {
     private def newFactory[T <: ZoomObject, U <: Message]
                           (proto: U, clazz: Class[_]): Class[_] = {
         var factory = clazz
-        val zoomClass = clazz.getAnnotation(classOf[ZoomClass])
+        val zoomClass = classInfo(clazz).zoomClass
 
         if (null != zoomClass &&
             !zoomClass.factory().equals(classOf[DefaultFactory])) {
@@ -457,6 +543,14 @@ object ZoomConvert {
         factory
     }
 
+    /**
+     * Returns the cached conversion metadata for the given class.
+     */
+    @inline
+    private def classInfo(clazz: Class[_]): ClassInfo = {
+        classes.getOrElseUpdate(clazz, new ClassInfo(clazz))
+    }
+
     /**
      * Returns the default constructor for the given class.
      */
@@ -663,6 +757,11 @@ object ZoomConvert {
      * - list of primitive types and strings
      */
     protected[data] class DefaultConverter extends Converter[Any, Any] {
+
+        // Caches the enumeration values converted so far, in both directions.
+        private val protoEnums = new TrieMap[Enum[_], Any]
+        private val pojoEnums = new TrieMap[Class[_], TrieMap[Any, Any]]
+
         override def toProto(pojoValue: Any, clazz: Type): Any = clazz match {
             case ByteClass => pojoValue.asInstanceOf[Byte].toInt
             case JByteClass => pojoValue.asInstanceOf[JByte].toInt
@@ -671,40 +770,9 @@ object ZoomConvert {
                 ByteString.copyFrom(pojoValue.asInstanceOf[Array[Byte]])
             case UuidClass => UUIDUtil.toProto(pojoValue.asInstanceOf[UUID])
             case enumClass: Class[_] if enumClass.isEnum =>
-                val protoEnum =
-                    enumClass.getAnnotation(classOf[ZoomEnum]) match {
-                        case zoomEnum: ZoomEnum => zoomEnum.clazz
-                        case _ => throw new ConvertException(
-                            s"Enumeration $clazz requires a ZoomEnum " +
-                            s"annotation or a custom converter")
-                    }
-                val pojoEnumVal = pojoValue.asInstanceOf[Enum[_]]
-                val enumValue = enumClass.getField(pojoEnumVal.name) match {
-                    case field: Field =>
-                        field.getAnnotation(classOf[ZoomEnumValue]) match {
-                            case zoomValue: ZoomEnumValue => zoomValue.value
-                            case _ => throw new ConvertException(
-                                s"Enumeration $clazz field $pojoValue does " +
-                                s"not have a ZoomEnumValue annotation")
-                        }
-                    case _ => throw new ConvertException(
-                        s"Enumeration $clazz does not have field $pojoValue")
-                }
-                try {
-                    protoEnum.getMethod(ZoomConvert.DescriptorMethod)
-                             .invoke(null)
-                             .asInstanceOf[EnumDescriptor]
-                             .findValueByName(enumValue)
-                } catch {
-                    case e @ (_ : NoSuchMethodException |
-                              _ : IllegalAccessException |
-                              _ : ClassCastException |
-                              _ : NullPointerException) =>
-                        throw new ConvertException(
-                            s"Enumeration $clazz cannot convert field " +
-                            s"$pojoValue because the message is not an " +
-                            s"enumeration or does not contain the value");
-                }
+                protoEnums.getOrElseUpdate(
+                    pojoValue.asInstanceOf[Enum[_]],
+                    enumToProto(pojoValue, enumClass))
             case _ => pojoValue
         }
 
@@ -715,35 +783,78 @@ object ZoomConvert {
             case ByteArrayClass => protoValue.asInstanceOf[ByteString].toByteArray
             case UuidClass => UUIDUtil.fromProto(protoValue.asInstanceOf[Commons.UUID])
             case enumClass: Class[_] if enumClass.isEnum =>
-                val protoEnum =
-                    enumClass.getAnnotation(classOf[ZoomEnum]) match {
-                        case zoomEnum: ZoomEnum => zoomEnum.clazz
-                        case _ => throw new ConvertException(
-                            s"Enumeration $clazz requires a ZoomEnum " +
-                            s"annotation or a custom converter")
-                    }
-                val protoEnumName = protoValue match {
-                    case value: EnumValueDescriptor => value.getName
+                pojoEnums.getOrElseUpdate(enumClass, new TrieMap[Any, Any])
+                         .getOrElseUpdate(protoValue,
+                                          enumFromProto(protoValue, enumClass))
+            case _ => protoValue
+        }
+
+        private def enumToProto(pojoValue: Any, enumClass: Class[_]): Any = {
+            val protoEnum =
+                enumClass.getAnnotation(classOf[ZoomEnum]) match {
+                    case zoomEnum: ZoomEnum => zoomEnum.clazz
                     case _ => throw new ConvertException(
-                        s"Cannot convert $protoValue to enumeration $clazz " +
-                        s"because is not a Protocol Buffers enum value")
+                        s"Enumeration $enumClass requires a ZoomEnum " +
+                        s"annotation or a custom converter")
                 }
-                enumClass.getFields.find(field => {
-                    field.isEnumConstant &&
-                    (field.getAnnotation(classOf[ZoomEnumValue]) match {
-                        case zoomValue: ZoomEnumValue =>
-                            zoomValue.value.equals(protoEnumName)
+            val pojoEnumVal = pojoValue.asInstanceOf[Enum[_]]
+            val enumValue = enumClass.getField(pojoEnumVal.name) match {
+                case field: Field =>
+                    field.getAnnotation(classOf[ZoomEnumValue]) match {
+                        case zoomValue: ZoomEnumValue => zoomValue.value
                         case _ => throw new ConvertException(
-                            s"Enumeration $clazz field $field does not have " +
-                            s"a ZoomEnumValue annotation")
-                    })
-                }) match {
-                    case Some(pojoField) => pojoField.get(null)
-                    case None => throw new ConvertException(
-                        s"Enumeration $clazz does not have a field matching " +
-                        s"value $protoValue of Protocol Buffers $protoEnum")
+                            s"Enumeration $enumClass field $pojoValue does " +
+                            s"not have a ZoomEnumValue annotation")
+                    }
+                case _ => throw new ConvertException(
+                    s"Enumeration $enumClass does not have field $pojoValue")
+            }
+            try {
+                protoEnum.getMethod(ZoomConvert.DescriptorMethod)
+                         .invoke(null)
+                         .asInstanceOf[EnumDescriptor]
+                         .findValueByName(enumValue)
+            } catch {
+                case e @ (_ : NoSuchMethodException |
+                          _ : IllegalAccessException |
+                          _ : ClassCastException |
+                          _ : NullPointerException) =>
+                    throw new ConvertException(
+                        s"Enumeration $enumClass cannot convert field " +
+                        s"$pojoValue because the message is not an " +
+                        s"enumeration or does not contain the value");
+            }
+        }
+
+        private def enumFromProto(protoValue: Any, enumClass: Class[_]): Any = {
+            val protoEnum =
+                enumClass.getAnnotation(classOf[ZoomEnum]) match {
+                    case zoomEnum: ZoomEnum => zoomEnum.clazz
+                    case _ => throw new ConvertException(
+                        s"Enumeration $enumClass requires a ZoomEnum " +
+                        s"annotation or a custom converter")
                 }
-            case _ => protoValue
+            val protoEnumName = protoValue match {
+                case value: EnumValueDescriptor => value.getName
+                case _ => throw new ConvertException(
+                    s"Cannot convert $protoValue to enumeration $enumClass " +
+                    s"because is not a Protocol Buffers enum value")
+            }
+            enumClass.getFields.find(field => {
+                field.isEnumConstant &&
+                (field.getAnnotation(classOf[ZoomEnumValue]) match {
+                    case zoomValue: ZoomEnumValue =>
+                        zoomValue.value.equals(protoEnumName)
+                    case _ => throw new ConvertException(
+                        s"Enumeration $enumClass field $field does not have " +
+                        s"a ZoomEnumValue annotation")
+                })
+            }) match {
+                case Some(pojoField) => pojoField.get(null)
+                case None => throw new ConvertException(
+                    s"Enumeration $enumClass does not have a field matching " +
+                    s"value $protoValue of Protocol Buffers $protoEnum")
+            }
         }
     }
 
@@ -755,7 +866,7 @@ object ZoomConvert {
 
         override def toProto(value: ZoomObject, clazz: Type): Message = clazz match {
             case c: Class[_] if classOf[ZoomObject].isAssignableFrom(c) =>
-                val protoClass = c.getAnnotation(classOf[ZoomClass]).clazz()
+                val protoClass = classInfo(c).zoomClass.clazz()
                 val builder = newBuilder(protoClass)
                 value.beforeToProto()
                 ZoomConvert.to(value.asInstanceOf[ZoomObject], c, builder)
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.cluster.data.storage
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import scala.concurrent.{Future, Promise}
+import scala.util.control.NonFatal
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.framework.api.{BackgroundCallback, CuratorEvent}
+
+/**
+ * Reads the data of a sequence of nodes from ZooKeeper, pipelining the
+ * requests over the ZooKeeper session such that at most `window` requests
+ * are outstanding at any time. Every response is converted by the `result`
+ * function on the Curator event thread, and a new request is sent for the
+ * next node, such that the requests and responses overlap without queuing
+ * the requests for all nodes of a large class in the client and the server.
+ *
+ * The `result` function also receives the latency of the request, measured
+ * from the time the request for that node was sent.
+ *
+ * The returned future completes with the results in the order of the paths,
+ * excluding the null results, or fails with the first exception thrown by the
+ * `result` function, in which case no further requests are sent.
+ */
+private[storage] object BulkLoader {
+
+    def load[T](curator: CuratorFramework, paths: IndexedSeq[String],
+                window: Int)(result: (CuratorEvent, Long) => T)
+    : Future[Seq[T]] = {
+        if (paths.isEmpty) {
+            return Future.successful(Seq.empty)
+        }
+
+        val promise = Promise[Seq[T]]()
+        val results = new Array[Any](paths.length)
+        val starts = new Array[Long](paths.length)
+        val next = new AtomicInteger()
+        val pending = new AtomicInteger(paths.length)
+
+        def request(): Unit = {
+            val index = next.getAndIncrement()
+            if (index < paths.length && !promise.isCompleted) {
+                try {
+                    starts(index) = System.nanoTime()
+                    curator.getData.inBackground(callback, Int.box(index))
+                           .forPath(paths(index))
+                } catch {
+                    case NonFatal(e) =>
+                        promise tryFailure new InternalObjectMapperException(e)
+                }
+            }
+        }
+
+        lazy val callback: BackgroundCallback = new BackgroundCallback {
+            override def processResult(client: CuratorFramework,
+                                       event: CuratorEvent): Unit = {
+                val index = event.getContext.asInstanceOf[Integer].intValue
+                try {
+                    results(index) =
+                        result(event, System.nanoTime() - starts(index))
+                } catch {
+                    case NonFatal(e) => promise tryFailure e
+                }
+                if (pending.decrementAndGet() == 0) {
+                    promise trySuccess results.filter(_ != null)
+                                              .toSeq.asInstanceOf[Seq[T]]
+                } else {
+                    request()
+                }
+            }
+        }
+
+        var count = 0
+        while (count < window.max(1) && count < paths.length) {
+            request()
+            count += 1
+        }
+        promise.future
+    }
+
+}
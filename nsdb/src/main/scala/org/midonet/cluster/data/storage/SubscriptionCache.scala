@@ -131,6 +131,16 @@ class ClassSubscriptionCache[T](val clazz: Class[T],
 
     val observable = pathCache.map[Observable[T]](deserializer)
 
+    /**
+     * Returns the observable of the data of the child node at the given path,
+     * which is served from the cache of this class without setting a new
+     * watch, or null if the child is not known to the cache.
+     */
+    def childObservable(path: String): Observable[ChildData] = {
+        if (pathCache.hasChild(path)) pathCache.observableChild(path)
+        else null
+    }
+
     def close() = pathCache.close()
 
     def isStarted = pathCache.isStarted
@@ -94,6 +94,13 @@ trait Transaction extends Closeable {
     /** Deletes a data node as part of the current transaction. */
     def deleteNode(path: String, idempotent: Boolean = true): Unit
 
+    /** Returns the objects created, updated or deleted by the current
+      * transaction, including the objects modified to maintain the
+      * referential integrity of the bindings. For every object, the sequence
+      * contains its class, its identifier and its new value, or `None` if
+      * the object is deleted. */
+    def modifiedObjects: Seq[(Class[_], String, Option[Obj])]
+
     /** Commits the operations from the current transaction to the storage
       * backend. */
     @throws[InternalObjectMapperException]
@@ -197,11 +197,20 @@ abstract class TransactionManager(classes: ClassesMap, bindings: BindingsMap)
     /** Gets all objects of the specified class within the context of the
       * current transaction. The objects are either guaranteed to not be
       * modified until the transaction is committed, or the transaction will
-      * fail with a [[ConcurrentModificationException]]. */
+      * fail with a [[ConcurrentModificationException]]. The result includes
+      * the objects created, and excludes the objects deleted, earlier in the
+      * same transaction. */
     @throws[InternalObjectMapperException]
     @throws[ConcurrentModificationException]
     override def getAll[T](clazz: Class[T]): Seq[T] = {
-        getAll(clazz, getIds(clazz))
+        val ids = getIds(clazz)
+        val existing = ids.map(getIdString).toSet
+        val created = ops.collect {
+            case (Key(`clazz`, id), TxCreate(_, _)) if !existing.contains(id) =>
+                id
+        }
+        for (id <- ids ++ created; snapshot <- cachedGet(clazz, id))
+            yield snapshot.obj.asInstanceOf[T]
     }
 
     /** Gets the specified objects within the context of the current transaction.
@@ -445,6 +454,17 @@ abstract class TransactionManager(classes: ClassesMap, bindings: BindingsMap)
         list
     }
 
+    /**
+      * @see [[Transaction.modifiedObjects]]
+      */
+    override def modifiedObjects: Seq[(Class[_], String, Option[Obj])] = {
+        ops.toSeq.collect {
+            case (Key(clazz, id), TxCreate(obj, _)) => (clazz, id, Some(obj))
+            case (Key(clazz, id), TxUpdate(obj, _, _)) => (clazz, id, Some(obj))
+            case (Key(clazz, id), TxDelete(_, _)) => (clazz, id, None)
+        }
+    }
+
     /** Creates a new data node as part of the current transaction. */
     @throws[StorageNodeExistsException]
     override def createNode(path: String, value: String): Unit = {
@@ -18,11 +18,11 @@ package org.midonet.cluster.data.storage
 import java.util.ConcurrentModificationException
 import java.util.concurrent.Executors._
 import java.util.concurrent.TimeUnit
-import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger, AtomicLong}
 
 import scala.annotation.tailrec
 import scala.collection.JavaConverters._
-import scala.collection.{breakOut, mutable}
+import scala.collection.mutable
 import scala.collection.concurrent.TrieMap
 import scala.concurrent.{Future, Promise}
 import scala.util.control.NonFatal
@@ -33,6 +33,7 @@ import com.google.common.util.concurrent.SettableFuture
 import org.apache.curator.framework.CuratorFramework
 import org.apache.curator.framework.api.transaction.CuratorTransactionFinal
 import org.apache.curator.framework.api.{BackgroundCallback, CuratorEvent, CuratorEventType}
+import org.apache.curator.framework.recipes.cache.ChildData
 import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex
 import org.apache.curator.utils.ZKPaths
 import org.apache.zookeeper.KeeperException._
@@ -47,15 +48,15 @@ import rx.{Notification, Observable, Subscriber}
 
 import org.midonet.cluster.data.ZoomMetadata.ZoomOwner
 import org.midonet.cluster.data.storage.TransactionManager._
-import org.midonet.cluster.data.storage.ZoomSerializer.{createProvenance, deserialize, deserializerOf, serialize, updateProvenance}
+import org.midonet.cluster.data.storage.ZoomSerializer.{convert, createProvenance, deserialize, deserializerOf, serialize, updateProvenance}
 import org.midonet.cluster.data.storage.metrics.StorageMetrics
 import org.midonet.cluster.data.{Obj, ObjId, getIdString}
 import org.midonet.cluster.services.state.client.StateTableClient
 import org.midonet.cluster.storage.MidonetBackendConfig
-import org.midonet.cluster.util.{NodeObservable, NodeObservableClosedException, PathCacheClosedException}
+import org.midonet.cluster.util.{ChildNotExistsException, NodeObservable, NodeObservableClosedException, PathCacheClosedException}
 import org.midonet.util.concurrent.{CallingThreadExecutionContext, NamedThreadFactory}
 import org.midonet.util.eventloop.Reactor
-import org.midonet.util.functors.makeFunc1
+import org.midonet.util.functors.{makeAction0, makeFunc1}
 import org.midonet.util.{ImmediateRetriable, Retriable}
 
 /**
@@ -127,6 +128,8 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
     private[storage] val objectsPath = zoomPath + s"/objects"
     @volatile private var lockFree = false
 
+    private val binarySerialization = config.binarySerialization
+
     private val executor = newSingleThreadExecutor(
         new NamedThreadFactory("zoom", isDaemon = true))
 
@@ -173,6 +176,8 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
         classObservables.count(_._2.cache.isStarted)
     private[storage] def objectObservableCount(clazz: Class[_]): Int =
         objectObservables.count(_._1.clazz == clazz)
+    private[storage] def multiplexedObservableCount: Int =
+        objectObservables.count(_._2.nodeObservable eq null)
     private[storage] def connectionState: String =
         curator.getZookeeperClient.getZooKeeper.getState.toString
     private[storage] def failFastConnectionState: String =
@@ -308,7 +313,7 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
                 case TxCreate(obj, change) =>
                     var path = objectPath(key.clazz, key.id)
                     Log.debug(s"Create: $path")
-                    txn.create.forPath(path, serialize(obj))
+                    txn.create.forPath(path, serialize(obj, binarySerialization))
 
                     path = altObjectPath(key.clazz, key.id)
                     Log.debug(s"Create: $path")
@@ -317,7 +322,8 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
                 case TxUpdate(obj, ver, change) =>
                     var path = objectPath(key.clazz, key.id)
                     Log.debug(s"Update ($ver): $path")
-                    txn.setData().withVersion(ver).forPath(path, serialize(obj))
+                    txn.setData().withVersion(ver)
+                       .forPath(path, serialize(obj, binarySerialization))
 
                     path = altObjectPath(key.clazz, key.id)
                     raw.get(key) match {
@@ -660,16 +666,30 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
         p.future
     }
 
+    /**
+     * Gets the instances of the specified class with the given identifiers
+     * from Zookeeper, pipelining the reads with the configured window. The
+     * future fails with a [[NotFoundException]] if any of the objects does
+     * not exist.
+     */
     @throws[ServiceUnavailableException]
     override def getAll[T](clazz: Class[T], ids: Seq[_ <: ObjId])
     : Future[Seq[T]] = {
         assertBuilt()
         assertRegistered(clazz)
-        Future.sequence(ids.map(get(clazz, _)))(breakOut, CallingThreadExecutionContext)
+        val idSeq = ids.toIndexedSeq
+        BulkLoader.load(curator, idSeq.map(objectPath(clazz, _)),
+                        config.bulkReadWindow) { (event, latency) =>
+            metrics.performance.addLatency(event.getType, latency)
+            val index = event.getContext.asInstanceOf[Integer].intValue
+            tryDeserialize(clazz, idSeq(index), event)
+        }
     }
 
     /**
-     * Gets all instances of the specified class from Zookeeper.
+     * Gets all instances of the specified class from Zookeeper. The objects
+     * are read with the configured window of pipelined requests, and the
+     * objects deleted while the class is being read are not included.
      */
     @throws[ServiceUnavailableException]
     override def getAll[T](clazz: Class[T]): Future[Seq[T]] = {
@@ -684,7 +704,16 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
                 val end = System.nanoTime()
                 metrics.performance.addReadChildrenLatency(end - start)
                 assert(CuratorEventType.CHILDREN == evt.getType)
-                getAll(clazz, evt.getChildren.asScala).onComplete {
+                val ids = evt.getChildren.asScala.toIndexedSeq
+                BulkLoader.load(curator, ids.map(evt.getPath + "/" + _),
+                                config.bulkReadWindow) { (event, latency) =>
+                    metrics.performance.addLatency(event.getType, latency)
+                    val index = event.getContext.asInstanceOf[Integer].intValue
+                    if (event.getResultCode == Code.NONODE.intValue())
+                        null.asInstanceOf[T]
+                    else
+                        tryDeserialize(clazz, ids(index), event)
+                }.onComplete {
                     case Success(l) => all trySuccess l
                     case Failure(t) => all tryFailure t
                 } (CallingThreadExecutionContext)
@@ -801,9 +830,12 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
     /**
       * Returns a cache-able, recoverable observable for the specified object.
       * If an observable for the object already exists in the cache, then
-      * the method returns the same observable. Otherwise, the method creates
-      * a new [[NodeObservable]] with an error handler and caches it, where the
-      * close handler removes it from the cache.
+      * the method returns the same observable. Otherwise, if there is a class
+      * observable watching the object, the method creates an observable that
+      * multiplexes the updates of the class cache, such that the object does
+      * not require a watch of its own. Otherwise, the method creates a new
+      * [[NodeObservable]] with an error handler. In both cases the observable
+      * is cached, where the close handler removes it from the cache.
       */
     protected override def internalObservable[T](clazz: Class[T], id: ObjId,
                                                  onClose: => Unit)
@@ -814,33 +846,99 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
         objectObservables.getOrElse(key, {
             val ref = objectObservableRef.getAndIncrement()
 
-            val nodeObservable = NodeObservable.create(
-                curator, path, metrics, completeOnDelete = true, {
-                    objectObservables.remove(key, ObjectObservable(ref))
-                    onClose
-                })
-
-            val objectObservable = nodeObservable
-                .map[Notification[T]](deserializerOf(clazz))
-                .dematerialize().asInstanceOf[Observable[T]]
-                .onErrorResumeNext(makeFunc1((t: Throwable) => t match {
-                    case e: NodeObservableClosedException =>
-                        metrics.error.objectObservableClosedCounter.inc()
-                        internalObservable(clazz, id, OnCloseDefault)
-                    case e: NoNodeException =>
-                        metrics.error.objectNotFoundExceptionCounter.inc()
-                        Observable.error(new NotFoundException(clazz, id))
-                    case e: Throwable =>
-                        metrics.error.objectObservableErrorCounter.inc()
-                        Observable.error(e)
-                }))
-
-            val entry = ObjectObservable(ref, nodeObservable, objectObservable)
+            val childObservable = classObservables.get(clazz) match {
+                case Some(classObservable) =>
+                    classObservable.cache.childObservable(path)
+                case None => null
+            }
+            val entry =
+                if (childObservable ne null) {
+                    multiplexedObservable(clazz, id, key, ref, childObservable,
+                                          onClose)
+                } else {
+                    nodeObjectObservable(clazz, id, key, ref, path, onClose)
+                }
 
             objectObservables.putIfAbsent(key, entry).getOrElse(entry)
         }).objectObservable.asInstanceOf[Observable[T]]
     }
 
+    /**
+      * Creates an object observable from a new [[NodeObservable]] for the
+      * object node.
+      */
+    private def nodeObjectObservable[T](clazz: Class[T], id: ObjId, key: Key,
+                                        ref: Long, path: String,
+                                        onClose: => Unit)
+    : ObjectObservable = {
+        val nodeObservable = NodeObservable.create(
+            curator, path, metrics, completeOnDelete = true, {
+                objectObservables.remove(key, ObjectObservable(ref))
+                onClose
+            })
+
+        val objectObservable = nodeObservable
+            .map[Notification[T]](deserializerOf(clazz))
+            .dematerialize().asInstanceOf[Observable[T]]
+            .onErrorResumeNext(makeFunc1((t: Throwable) => t match {
+                case e: NodeObservableClosedException =>
+                    metrics.error.objectObservableClosedCounter.inc()
+                    internalObservable(clazz, id, OnCloseDefault)
+                case e: NoNodeException =>
+                    metrics.error.objectNotFoundExceptionCounter.inc()
+                    Observable.error(new NotFoundException(clazz, id))
+                case e: Throwable =>
+                    metrics.error.objectObservableErrorCounter.inc()
+                    Observable.error(e)
+            }))
+
+        ObjectObservable(ref, nodeObservable, objectObservable)
+    }
+
+    /**
+      * Creates an object observable from the child observable of a class
+      * cache. Like a [[NodeObservable]], the observable is closed when it
+      * has no more subscribers, or when it terminates because the object was
+      * deleted or the class cache was closed, in which case it recovers with
+      * a new object observable.
+      */
+    private def multiplexedObservable[T](clazz: Class[T], id: ObjId, key: Key,
+                                         ref: Long,
+                                         childObservable: Observable[ChildData],
+                                         onClose: => Unit)
+    : ObjectObservable = {
+        val subscriberCount = new AtomicInteger()
+        val closed = new AtomicBoolean()
+        val close = makeAction0 {
+            if (closed.compareAndSet(false, true)) {
+                objectObservables.remove(key, ObjectObservable(ref))
+                onClose
+            }
+        }
+
+        val objectObservable = childObservable
+            .map[Notification[T]](deserializerOf(clazz))
+            .dematerialize().asInstanceOf[Observable[T]]
+            .doOnSubscribe(makeAction0 { subscriberCount.incrementAndGet() })
+            .doOnUnsubscribe(makeAction0 {
+                if (subscriberCount.decrementAndGet() == 0) close.call()
+            })
+            .doOnTerminate(close)
+            .onErrorResumeNext(makeFunc1((t: Throwable) => t match {
+                case e: PathCacheClosedException =>
+                    metrics.error.objectObservableClosedCounter.inc()
+                    internalObservable(clazz, id, OnCloseDefault)
+                case e: ChildNotExistsException =>
+                    metrics.error.objectNotFoundExceptionCounter.inc()
+                    Observable.error(new NotFoundException(clazz, id))
+                case e: Throwable =>
+                    metrics.error.objectObservableErrorCounter.inc()
+                    Observable.error(e)
+            }))
+
+        ObjectObservable(ref, objectObservable = objectObservable)
+    }
+
     /**
      * Refer to the interface documentation for functionality.
      *
@@ -904,6 +1002,43 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
         }
     }
 
+    /**
+      * Converts the stored objects of the given class to the binary or text
+      * serialization format. Every object is converted individually using a
+      * versioned update, such that the conversion can run while the storage
+      * is in use: objects modified or deleted concurrently are skipped, since
+      * they are written by the concurrent update using the format configured
+      * for the writer. The method returns the number of converted objects and
+      * the number of skipped objects.
+      */
+    @throws[ServiceUnavailableException]
+    def convertSerialization(clazz: Class[_], binary: Boolean): (Int, Int) = {
+        assertBuilt()
+        assertRegistered(clazz)
+
+        var converted = 0
+        var skipped = 0
+        val path = classPath(clazz)
+        for (id <- curator.getChildren.forPath(path).asScala) {
+            val objPath = path + "/" + id
+            try {
+                val stat = new Stat
+                val data = curator.getData.storingStatIn(stat).forPath(objPath)
+                val newData = convert(data, clazz, binary)
+                if (newData ne null) {
+                    curator.setData().withVersion(stat.getVersion)
+                           .forPath(objPath, newData)
+                    converted += 1
+                }
+            } catch {
+                case _: NoNodeException | _: BadVersionException =>
+                    Log.debug(s"Object $objPath modified during conversion")
+                    skipped += 1
+            }
+        }
+        (converted, skipped)
+    }
+
     @inline
     protected[cluster] def classPath(clazz: Class[_]): String = {
         modelPath + "/" + clazz.getSimpleName
@@ -26,7 +26,7 @@ import scala.util.control.NonFatal
 
 import com.fasterxml.jackson.core.JsonFactory
 import com.fasterxml.jackson.databind.ObjectMapper
-import com.google.protobuf.{Message, TextFormat}
+import com.google.protobuf.{CodedOutputStream, Message, TextFormat}
 
 import org.apache.curator.framework.recipes.cache.ChildData
 
@@ -40,24 +40,65 @@ import org.midonet.util.functors.makeFunc1
 
 private[storage] object ZoomSerializer {
 
+    /**
+      * Protocol Buffers messages stored in the binary format start with a
+      * header byte that has the most significant bit set, which is never the
+      * case for messages stored in the legacy text format, followed by the
+      * binary format version in the remaining seven bits.
+      */
+    final val BinaryFormatFlag = 0x80
+    final val BinaryFormatVersion = 1
+    private final val BinaryFormatHeader =
+        (BinaryFormatFlag | BinaryFormatVersion).toByte
+
     private val JsonFactory = new JsonFactory(new ObjectMapper())
     private val ProtoParser = createProtoParser
     private val Utf8 = Charset.forName("UTF-8")
 
     private val Deserializers =
         new TrieMap[Class[_], Func1[ChildData, Notification[_]]]
+    private val Prototypes = new TrieMap[Class[_], Message]
 
     /**
-      * Serializes an object to a byte array for writing to storage.
+      * Serializes an object to a byte array for writing to storage. Protocol
+      * Buffers messages are serialized using the binary format when `binary`
+      * is true, and using the text format otherwise, such that nodes that do
+      * not support the binary format can read them.
       */
     @throws[InternalObjectMapperException]
-    def serialize(obj: Obj): Array[Byte] = {
+    def serialize(obj: Obj, binary: Boolean = false): Array[Byte] = {
         obj match {
+            case message: Message if binary => serializeBinaryMessage(message)
             case message: Message => serializeMessage(message)
             case _ => serializeJava(obj)
         }
     }
 
+    /**
+      * Indicates whether the data read from storage is a message serialized
+      * using the binary format.
+      */
+    def isBinary(data: Array[Byte]): Boolean = {
+        (data ne null) && data.length > 0 && (data(0) & BinaryFormatFlag) != 0
+    }
+
+    /**
+      * Converts the data of a stored message of the given class to the binary
+      * or text format. The method returns null if the data is already in the
+      * requested format, or if the class is not a message class.
+      */
+    @throws[InternalObjectMapperException]
+    @Nullable
+    def convert(data: Array[Byte], clazz: Class[_], binary: Boolean)
+    : Array[Byte] = {
+        if (!classOf[Message].isAssignableFrom(clazz) ||
+            isBinary(data) == binary) {
+            null
+        } else {
+            serialize(deserializeMessage(data, clazz).asInstanceOf[Obj], binary)
+        }
+    }
+
     /**
       * Deserializes an object from a byte array read from storage.
       */
@@ -183,11 +224,22 @@ private[storage] object ZoomSerializer {
         builder.toString.getBytes(Utf8)
     }
 
+    @inline
+    private def serializeBinaryMessage(message: Message): Array[Byte] = {
+        val data = new Array[Byte](message.getSerializedSize + 1)
+        data(0) = BinaryFormatHeader
+        val output = CodedOutputStream.newInstance(data, 1, data.length - 1)
+        message.writeTo(output)
+        output.checkNoSpaceLeft()
+        data
+    }
+
     @throws[InternalObjectMapperException]
     private def deserializeMessage[T](data: Array[Byte], clazz: Class[T]): T = {
-        try {
-            val builder = clazz.getMethod("newBuilder").invoke(null)
-                .asInstanceOf[Message.Builder]
+        if (isBinary(data)) {
+            deserializeBinaryMessage(data, clazz)
+        } else try {
+            val builder = prototypeOf(clazz).newBuilderForType()
             ProtoParser.merge(new String(data, Utf8), builder)
             builder.build().asInstanceOf[T]
         } catch {
@@ -198,6 +250,37 @@ private[storage] object ZoomSerializer {
         }
     }
 
+    @throws[InternalObjectMapperException]
+    private def deserializeBinaryMessage[T](data: Array[Byte], clazz: Class[T])
+    : T = {
+        val version = data(0) & ~BinaryFormatFlag & 0xff
+        if (version != BinaryFormatVersion) {
+            throw new InternalObjectMapperException(
+                s"Unsupported binary format version $version for " +
+                s"${clazz.getSimpleName} data from ZooKeeper")
+        }
+        try {
+            prototypeOf(clazz).getParserForType
+                .parseFrom(data, 1, data.length - 1).asInstanceOf[T]
+        } catch {
+            case NonFatal(e) =>
+                throw new InternalObjectMapperException(
+                    s"Could not parse binary ${clazz.getSimpleName} data " +
+                    "from ZooKeeper", e)
+        }
+    }
+
+    /**
+      * Returns the default instance for the given message class, which
+      * provides the builder and the parser for that class. The instance is
+      * loaded using reflection once per class.
+      */
+    private def prototypeOf(clazz: Class[_]): Message = {
+        Prototypes.getOrElseUpdate(clazz, clazz.getMethod("getDefaultInstance")
+                                               .invoke(null)
+                                               .asInstanceOf[Message])
+    }
+
     private def createProtoParser: TextFormat.Parser = {
         val builder = TextFormat.Parser.newBuilder()
         val builderClass = builder.getClass
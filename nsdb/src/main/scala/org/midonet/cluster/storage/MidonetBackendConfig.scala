@@ -67,6 +67,8 @@ class MidonetBackendConfig(val conf: Config,
     def stateClient = new StateProxyClientConfig(conf)
     def lockTimeoutMs = conf.getDuration("zookeeper.lock_timeout", TimeUnit.MILLISECONDS)
     def transactionAttempts = conf.getInt("zookeeper.transaction_attempts")
+    def binarySerialization = conf.getBoolean("zookeeper.binary_serialization")
+    def bulkReadWindow = conf.getInt("zookeeper.bulk_read_window")
 }
 
 class CassandraConfig(val conf: Config) {
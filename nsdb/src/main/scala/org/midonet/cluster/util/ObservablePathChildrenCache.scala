@@ -347,6 +347,14 @@ class OnSubscribeToPathChildren(zk: CuratorFramework, path: String,
         )
     }
 
+    /** Returns whether there is an observable for the given child. */
+    def hasChild(path: String): Boolean = {
+        val streams = childStreams
+        !isFailed && (streams ne null) && withReadLock(childrenLock) {
+            streams.contains(path)
+        }
+    }
+
     /** Expose a view of the latest known state of all children */
     def allChildren: Seq[ChildData] = {
         if (isFailed) {
@@ -389,6 +397,9 @@ class ObservablePathChildrenCache(onSubscribe: OnSubscribeToPathChildren)
       * an UnknownChild exception. */
     def observableChild(path: String) = onSubscribe.observableChild(path)
 
+    /** Returns true if there is an Observable for the given child. */
+    def hasChild(path: String) = onSubscribe.hasChild(path)
+
     /** Returns a view of all children currently known to the cache */
     def allChildren: Seq[ChildData] = onSubscribe.allChildren
 
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.management
+
+import scala.util.control.NonFatal
+
+import com.codahale.metrics.MetricRegistry
+import com.typesafe.config.ConfigValueFactory
+
+import org.apache.curator.framework.CuratorFrameworkFactory
+import org.apache.curator.retry.ExponentialBackoffRetry
+import org.rogach.scallop._
+
+import org.midonet.cluster.data.storage.ZookeeperObjectMapper
+import org.midonet.cluster.data.storage.metrics.StorageMetrics
+import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.services.MidonetBackend.ClusterNamespaceId
+import org.midonet.cluster.services.state.client.StateTableClient.DisabledStateTableClient
+import org.midonet.cluster.storage.MidonetBackendConfig
+import org.midonet.conf.MidoNodeConfigurator
+import org.midonet.util.eventloop.TryCatchReactor
+
+/**
+  * Converts the topology objects stored in the NSDB between the text and the
+  * binary serialization formats. The conversion can be performed while the
+  * cluster is running: when migrating to the binary format, all nodes must be
+  * upgraded and configured with `zookeeper.binary_serialization` enabled
+  * before running the tool, such that objects written concurrently use the
+  * same format.
+  */
+object ZoomMigrate extends App {
+
+    System.setProperty("logback.configurationFile", "logback-disabled.xml")
+
+    val opts = new ScallopConf(args) {
+        val format = opt[String]("format", short = 'f',
+                                 default = Some("binary"),
+                                 descr = "Target serialization format: " +
+                                         "binary or text")
+        val zk = opt[String]("zk", short = 'z', default = None,
+                             descr = "ZooKeeper connection string, " +
+                                     "overriding the bootstrap configuration")
+
+        printedName = "mn-zoom-migrate"
+
+        footer("Copyright (c) 2016 Midokura SARL, All Rights Reserved.")
+    }
+
+    val ERROR = s"[\033[31m${opts.printedName}\033[0m]"
+    val INFO = s"[\033[32m${opts.printedName}\033[0m]"
+
+    val binary = opts.format() match {
+        case "binary" => true
+        case "text" => false
+        case format =>
+            System.err.println(s"$ERROR Unknown serialization format: $format")
+            System.exit(1)
+            false
+    }
+
+    val bootstrap = opts.zk.get match {
+        case Some(hosts) =>
+            MidoNodeConfigurator.bootstrapConfig().withValue(
+                "zookeeper.zookeeper_hosts", ConfigValueFactory.fromAnyRef(hosts))
+        case None =>
+            MidoNodeConfigurator.bootstrapConfig()
+    }
+
+    val exitCode = try {
+        val configurator = MidoNodeConfigurator(bootstrap)
+        val config = new MidonetBackendConfig(
+            bootstrap.withFallback(configurator.mergedSchemas()),
+            enableDiscovery = false)
+
+        val curator = CuratorFrameworkFactory.newClient(
+            config.hosts,
+            new ExponentialBackoffRetry(config.retryMs.toInt,
+                                        config.maxRetries))
+        curator.start()
+
+        val store = new ZookeeperObjectMapper(
+            config, ClusterNamespaceId.toString, curator, curator,
+            DisabledStateTableClient, new TryCatchReactor("nsdb", 1),
+            new StorageMetrics(new MetricRegistry))
+        MidonetBackend.setupBindings(store, store)
+
+        var total = 0
+        for (clazz <- store.objectClasses.keys.toSeq.sortBy(_.getSimpleName)) {
+            val (converted, skipped) =
+                store.convertSerialization(clazz, binary)
+            println(s"$INFO ${clazz.getSimpleName}: converted $converted " +
+                    s"objects, skipped $skipped modified objects")
+            total += converted
+        }
+        println(s"$INFO Converted $total objects to the ${opts.format()} " +
+                "format")
+        curator.close()
+        0
+    } catch {
+        case NonFatal(e) =>
+            System.err.println(s"$ERROR Conversion failed: ${e.getMessage}")
+            2
+    }
+
+    System.exit(exitCode)
+}
@@ -15,7 +15,13 @@
  */
 package org.midonet.cluster.data;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
@@ -438,6 +444,36 @@ public class ZoomConvertTest {
         assertEquals(top.baseEnum, obj.baseEnum);
     }
 
+    /**
+     * Concurrent conversions of objects from different classes in the same
+     * hierarchy should succeed when sharing the cached class metadata.
+     */
+    @Test
+    public void testConcurrentConversions() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int index = 0; index < 100; index++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        Base obj = random.nextBoolean() ? new FirstDerived()
+                                                        : new SecondDerived();
+                        TestFlatMessage proto =
+                            ZoomConvert.toProto(obj, TestFlatMessage.class);
+                        return obj.compare(proto) && obj.equals(
+                            ZoomConvert.fromProto(proto, Base.class));
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     public static abstract class AbstractBase extends ZoomObject {
         @ZoomField(name = "abstract_base_int")
         protected int abstractBaseInt = random.nextInt();
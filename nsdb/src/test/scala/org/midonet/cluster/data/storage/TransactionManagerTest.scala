@@ -140,6 +140,30 @@ class TransactionManagerTest extends FeatureSpec with Matchers
             manager.getSnapshotCount shouldBe 1
         }
 
+        scenario("Transaction manager handles getAll() after modifications") {
+            Given("A transaction manager")
+            val manager = new TestableTransactionManager
+
+            When("Creating an object")
+            manager.create(notFoundDevice)
+
+            Then("Requesting all objects returns the created object")
+            manager.getAll(classOf[FakeDevice]) shouldBe Seq(defaultDevice,
+                                                             notFoundDevice)
+
+            When("Deleting an existing object")
+            manager.delete(classOf[FakeDevice], defaultId)
+
+            Then("Requesting all objects does not return the deleted object")
+            manager.getAll(classOf[FakeDevice]) shouldBe Seq(notFoundDevice)
+
+            When("Deleting the created object")
+            manager.delete(classOf[FakeDevice], notFoundId)
+
+            Then("Requesting all objects returns no objects")
+            manager.getAll(classOf[FakeDevice]) shouldBe empty
+        }
+
         scenario("Transaction manager handles getAll() with identifiers") {
             Given("A transaction manager")
             val manager = new TestableTransactionManager
@@ -530,4 +554,34 @@ class TransactionManagerTest extends FeatureSpec with Matchers
         }
     }
 
+    feature("Transaction manager reports the modified objects") {
+        scenario("Created, updated and deleted objects") {
+            Given("A transaction manager")
+            val manager = new TestableTransactionManager
+
+            Then("The manager reports no modified objects")
+            manager.modifiedObjects shouldBe empty
+
+            When("Creating and updating objects")
+            manager.create(notFoundDevice)
+            manager.update(defaultDevice)
+
+            Then("The manager reports the new objects")
+            manager.modifiedObjects should contain theSameElementsAs Seq(
+                (classOf[FakeDevice], getIdString(notFoundId),
+                    Some(notFoundDevice)),
+                (classOf[FakeDevice], getIdString(defaultId),
+                    Some(defaultDevice)))
+
+            When("Deleting an object")
+            manager.delete(classOf[FakeDevice], defaultId)
+
+            Then("The manager reports the deleted object")
+            manager.modifiedObjects should contain theSameElementsAs Seq(
+                (classOf[FakeDevice], getIdString(notFoundId),
+                    Some(notFoundDevice)),
+                (classOf[FakeDevice], getIdString(defaultId), None))
+        }
+    }
+
 }
@@ -20,6 +20,7 @@ import java.util.{ConcurrentModificationException, UUID}
 import scala.concurrent.duration._
 
 import com.codahale.metrics.MetricRegistry
+import com.typesafe.config.ConfigFactory
 
 import org.apache.curator.utils.ZKPaths
 import org.junit.runner.RunWith
@@ -33,7 +34,9 @@ import rx.observers.TestObserver
 import org.midonet.cluster.data.ZoomMetadata.{ZoomChange, ZoomOwner}
 import org.midonet.cluster.data.storage.StorageTestClasses._
 import org.midonet.cluster.data.storage.metrics.StorageMetrics
+import org.midonet.cluster.models.Topology.Network
 import org.midonet.cluster.models.Zoom.ZoomObject
+import org.midonet.cluster.storage.MidonetBackendConfig
 import org.midonet.cluster.util.MidonetBackendTest
 import org.midonet.cluster.util.UUIDUtil._
 import org.midonet.util.reactivex.{AwaitableObserver, TestAwaitableObserver}
@@ -64,6 +67,7 @@ class ZookeeperObjectMapperTest extends StorageTest with MidonetBackendTest
         """
           |zookeeper.lock_timeout : 60s
           |zookeeper.transaction_attempts : 1000
+          |zookeeper.bulk_read_window : 2
         """.stripMargin
 
     feature("Test subscribe") {
@@ -274,6 +278,119 @@ class ZookeeperObjectMapperTest extends StorageTest with MidonetBackendTest
             And("The storage returns the same observable instance")
             storage.observable(classOf[PojoBridge]) eq obs shouldBe true
         }
+
+        scenario("Test object observable is served from the class cache") {
+            Given("A bridge")
+            val bridge = createPojoBridge(name = "bridge0")
+            storage.create(bridge)
+
+            And("A class observer receiving the bridge")
+            val classObserver =
+                new TestAwaitableObserver[Observable[PojoBridge]]
+            val classSub = storage.observable(classOf[PojoBridge])
+                                  .subscribe(classObserver)
+            classObserver.awaitOnNext(1, timeout)
+
+            When("An observer subscribes to the bridge observable")
+            val observer = new TestAwaitableObserver[PojoBridge]
+            storage.observable(classOf[PojoBridge], bridge.id)
+                   .subscribe(observer)
+
+            Then("The observer receives the current bridge")
+            observer.awaitOnNext(1, timeout)
+            observer.getOnNextEvents.get(0).name shouldBe "bridge0"
+
+            And("The object observable does not use its own watch")
+            zoom.objectObservableCount shouldBe 1
+            zoom.multiplexedObservableCount shouldBe 1
+
+            When("The bridge is updated")
+            bridge.name = "bridge1"
+            storage.update(bridge)
+
+            Then("The observer receives the update")
+            observer.awaitOnNext(2, timeout)
+            observer.getOnNextEvents.get(1).name shouldBe "bridge1"
+
+            When("The class observer unsubscribes")
+            classSub.unsubscribe()
+
+            Then("The object observable recovers with its own watch")
+            observer.awaitOnNext(3, timeout)
+            observer.getOnNextEvents.get(2).name shouldBe "bridge1"
+            zoom.objectObservableCount shouldBe 1
+            zoom.multiplexedObservableCount shouldBe 0
+
+            When("The bridge is deleted")
+            storage.delete(classOf[PojoBridge], bridge.id)
+
+            Then("The observable should complete")
+            observer.awaitCompletion(timeout)
+            zoom.objectObservableCount shouldBe 0
+        }
+
+        scenario("Test class-served object observable is removed on delete") {
+            Given("A bridge")
+            val bridge = createPojoBridge()
+            storage.create(bridge)
+
+            And("A class observer receiving the bridge")
+            val classObserver =
+                new TestAwaitableObserver[Observable[PojoBridge]]
+            storage.observable(classOf[PojoBridge]).subscribe(classObserver)
+            classObserver.awaitOnNext(1, timeout)
+
+            When("Two observers subscribe to the bridge observable")
+            val observer1 = new TestAwaitableObserver[PojoBridge]
+            val observer2 = new TestAwaitableObserver[PojoBridge]
+            val sub1 = storage.observable(classOf[PojoBridge], bridge.id)
+                              .subscribe(observer1)
+            storage.observable(classOf[PojoBridge], bridge.id)
+                   .subscribe(observer2)
+            observer1.awaitOnNext(1, timeout)
+            observer2.awaitOnNext(1, timeout)
+
+            Then("The storage caches one observable")
+            zoom.multiplexedObservableCount shouldBe 1
+
+            When("The first observer unsubscribes")
+            sub1.unsubscribe()
+
+            Then("The storage still caches the observable")
+            zoom.multiplexedObservableCount shouldBe 1
+
+            When("The bridge is deleted")
+            storage.delete(classOf[PojoBridge], bridge.id)
+
+            Then("The second observer completes")
+            observer2.awaitCompletion(timeout)
+
+            And("The observable should be removed")
+            zoom.objectObservableCount shouldBe 0
+        }
+
+        scenario("Test get all pipelines the reads") {
+            Given("More bridges than the read window")
+            val bridges = for (index <- 0 until 10) yield {
+                createPojoBridge(name = s"bridge$index")
+            }
+            for (bridge <- bridges) storage.create(bridge)
+
+            Then("Get all returns all bridges")
+            await(storage.getAll(classOf[PojoBridge]))
+                .map(_.id).toSet shouldBe bridges.map(_.id).toSet
+
+            And("Get all by identifiers returns the bridges in order")
+            val ids = bridges.reverse.map(_.id)
+            await(storage.getAll(classOf[PojoBridge], ids))
+                .map(_.id) shouldBe ids
+
+            And("Get all by identifiers fails if a bridge does not exist")
+            intercept[NotFoundException] {
+                await(storage.getAll(classOf[PojoBridge],
+                                     ids :+ UUID.randomUUID()))
+            }
+        }
     }
 
     feature("Test transactions") {
@@ -1028,4 +1145,74 @@ class ZookeeperObjectMapperTest extends StorageTest with MidonetBackendTest
             obj.getProvenance(2).getChangeType shouldBe ZoomChange.Data.id
         }
     }
+
+    feature("Test serialization format") {
+        scenario("Storage writes objects using the binary format") {
+            Given("A storage using the binary format")
+            val binaryConfig = new MidonetBackendConfig(
+                ConfigFactory.parseString("zookeeper.binary_serialization : true")
+                             .withFallback(config.conf))
+            val binaryZoom = new ZookeeperObjectMapper(
+                binaryConfig, hostId, curator, curator, stateTables, reactor,
+                new StorageMetrics(new MetricRegistry))
+            initAndBuildStorage(binaryZoom)
+
+            When("Creating a network")
+            val network = createProtoNetwork()
+            binaryZoom.create(network)
+
+            Then("The network is stored using the binary format")
+            val path = zoom.objectPath(classOf[Network], network.getId.asJava)
+            ZoomSerializer.isBinary(curator.getData.forPath(path)) shouldBe true
+
+            And("A storage using the text format can read the network")
+            await(zoom.get(classOf[Network], network.getId.asJava)) shouldBe
+                network
+
+            When("Updating the network using the text format")
+            val network2 = network.toBuilder.setName("network").build()
+            zoom.update(network2)
+
+            Then("The network is stored using the text format")
+            ZoomSerializer.isBinary(curator.getData.forPath(path)) shouldBe false
+
+            And("The storage using the binary format can read the network")
+            await(binaryZoom.get(classOf[Network], network.getId.asJava)) shouldBe
+                network2
+        }
+
+        scenario("Storage converts the objects of a class") {
+            Given("A network and a bridge stored using the text format")
+            val network = createProtoNetwork()
+            val bridge = createPojoBridge()
+            zoom.multi(Seq(CreateOp(network), CreateOp(bridge)))
+            val path = zoom.objectPath(classOf[Network], network.getId.asJava)
+
+            When("Converting the networks to the binary format")
+            zoom.convertSerialization(classOf[Network], binary = true) shouldBe
+                (1, 0)
+
+            Then("The network is stored using the binary format")
+            ZoomSerializer.isBinary(curator.getData.forPath(path)) shouldBe true
+            await(zoom.get(classOf[Network], network.getId.asJava)) shouldBe
+                network
+
+            And("Converting the networks again does not modify the network")
+            zoom.convertSerialization(classOf[Network], binary = true) shouldBe
+                (0, 0)
+
+            And("Converting the bridges does not modify the bridge")
+            zoom.convertSerialization(classOf[PojoBridge], binary = true) shouldBe
+                (0, 0)
+
+            When("Converting the networks back to the text format")
+            zoom.convertSerialization(classOf[Network], binary = false) shouldBe
+                (1, 0)
+
+            Then("The network is stored using the text format")
+            ZoomSerializer.isBinary(curator.getData.forPath(path)) shouldBe false
+            await(zoom.get(classOf[Network], network.getId.asJava)) shouldBe
+                network
+        }
+    }
 }
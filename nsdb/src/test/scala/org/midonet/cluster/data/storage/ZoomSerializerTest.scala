@@ -82,6 +82,97 @@ class ZoomSerializerTest extends FeatureSpec with Matchers with GivenWhenThen {
         message1 shouldBe message2
     }
 
+    scenario("Test Protobuf message binary serializer") {
+        Given("A message")
+        val message1 = createProtoNetwork()
+
+        When("Serializing the message using the binary format")
+        val data = ZoomSerializer.serialize(message1, binary = true)
+
+        Then("The data should be in the binary format")
+        ZoomSerializer.isBinary(data) shouldBe true
+        data(0) shouldBe (ZoomSerializer.BinaryFormatFlag |
+                          ZoomSerializer.BinaryFormatVersion).toByte
+        data.length shouldBe message1.getSerializedSize + 1
+
+        And("Deserializing the byte array should return a message")
+        val message2 = ZoomSerializer.deserialize(data, classOf[Network])
+
+        And("The messages should be equal")
+        message1 shouldBe message2
+
+        And("The text format data should not be in the binary format")
+        ZoomSerializer.isBinary(ZoomSerializer.serialize(message1)) shouldBe false
+    }
+
+    scenario("Test Protobuf message binary serializer for empty message") {
+        Given("An empty message")
+        val message1 = Network.getDefaultInstance
+
+        When("Serializing the message using the binary format")
+        val data = ZoomSerializer.serialize(message1, binary = true)
+
+        Then("Deserializing the byte array should return a message")
+        ZoomSerializer.deserialize(data, classOf[Network]) shouldBe message1
+    }
+
+    scenario("Test Protobuf message binary deserializer handles unknown version") {
+        Given("Binary data with an unknown version")
+        val data = ZoomSerializer.serialize(createProtoNetwork(), binary = true)
+        data(0) = (ZoomSerializer.BinaryFormatFlag |
+                   (ZoomSerializer.BinaryFormatVersion + 1)).toByte
+
+        Then("Deserializing the data should throw an exception")
+        intercept[InternalObjectMapperException] {
+            ZoomSerializer.deserialize(data, classOf[Network])
+        }
+    }
+
+    scenario("Test Protobuf message binary deserializer handles exceptions") {
+        Given("Bad binary data")
+        val data = Array.fill[Byte](16)(0xff.toByte)
+        data(0) = (ZoomSerializer.BinaryFormatFlag |
+                   ZoomSerializer.BinaryFormatVersion).toByte
+
+        Then("Deserializing the data should throw an exception")
+        intercept[InternalObjectMapperException] {
+            ZoomSerializer.deserialize(data, classOf[Network])
+        }
+    }
+
+    scenario("Test converting between serialization formats") {
+        Given("A message serialized using the text format")
+        val message = createProtoNetwork()
+        val textData = ZoomSerializer.serialize(message)
+
+        When("Converting the data to the binary format")
+        val binaryData = ZoomSerializer.convert(textData, classOf[Network],
+                                                binary = true)
+
+        Then("The data should be in the binary format")
+        ZoomSerializer.isBinary(binaryData) shouldBe true
+        ZoomSerializer.deserialize(binaryData, classOf[Network]) shouldBe message
+
+        And("Converting the binary data to the binary format returns null")
+        ZoomSerializer.convert(binaryData, classOf[Network],
+                               binary = true) shouldBe null
+
+        When("Converting the data back to the text format")
+        val data = ZoomSerializer.convert(binaryData, classOf[Network],
+                                          binary = false)
+
+        Then("The data should equal the original text data")
+        data shouldBe textData
+
+        And("Converting the text data to the text format returns null")
+        ZoomSerializer.convert(textData, classOf[Network],
+                               binary = false) shouldBe null
+
+        And("Converting a Java object returns null")
+        ZoomSerializer.convert(ZoomSerializer.serialize(createPojoBridge()),
+                               classOf[PojoBridge], binary = true) shouldBe null
+    }
+
     scenario("Test create object") {
         Given("An owner and change number")
         val owner = ZoomOwner.ClusterContainers
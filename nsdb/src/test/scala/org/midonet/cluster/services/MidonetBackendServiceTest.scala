@@ -19,7 +19,6 @@ package org.midonet.cluster.services
 import java.util.UUID
 
 import com.codahale.metrics.MetricRegistry
-import com.typesafe.config.ConfigFactory
 
 import org.apache.curator.framework.CuratorFramework
 import org.junit.runner.RunWith
@@ -32,7 +31,7 @@ import org.midonet.cluster.data.storage.{StateStorage, Storage}
 import org.midonet.cluster.data.{ZoomInit, ZoomInitializer}
 import org.midonet.cluster.storage.MidonetBackendConfig
 import org.midonet.cluster.util.MidonetBackendTest
-import org.midonet.conf.HostIdGenerator
+import org.midonet.conf.{HostIdGenerator, MidoTestConfigurator}
 
 object MidonetBackendServiceTest {
 
@@ -107,7 +106,7 @@ class MidonetBackendServiceTest extends FeatureSpec with Matchers
 
         scenario("Backend for agent") {
             Given("A configuration for agent")
-            val agentConfig = MidonetBackendConfig.forAgent(ConfigFactory.parseString(
+            val agentConfig = MidonetBackendConfig.forAgent(MidoTestConfigurator.forClusters(
                 s"""
                    |zookeeper.root_key=$zkRoot
                    |state_proxy.enabled=true
@@ -144,7 +143,7 @@ class MidonetBackendServiceTest extends FeatureSpec with Matchers
 
         scenario("Backend for cluster") {
             Given("A configuration for agent")
-            val agentConfig = MidonetBackendConfig.forCluster(ConfigFactory.parseString(
+            val agentConfig = MidonetBackendConfig.forCluster(MidoTestConfigurator.forClusters(
                 s"""
                    |zookeeper.root_key=$zkRoot
                    |state_proxy.enabled=true
@@ -184,7 +183,7 @@ class MidonetBackendServiceTest extends FeatureSpec with Matchers
 
         scenario("Backend for agent services") {
             Given("A configuration for agent")
-            val agentConfig = MidonetBackendConfig.forAgentServices(ConfigFactory.parseString(
+            val agentConfig = MidonetBackendConfig.forAgentServices(MidoTestConfigurator.forClusters(
                 s"""
                    |zookeeper.root_key=$zkRoot
                    |state_proxy.enabled=true